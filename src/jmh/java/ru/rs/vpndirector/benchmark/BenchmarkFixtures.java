@@ -0,0 +1,228 @@
+package ru.rs.vpndirector.benchmark;
+
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Синтетические данные для бенчмарков: каталог openvpn с конфигом, файлом статуса,
+ * index.txt и шаблонами клиентских конфигов
+ */
+final class BenchmarkFixtures {
+
+    static final String CONFIG_FILE_NAME = "server.conf";
+    static final String STATUS_FILE_NAME = "openvpn-status.log";
+    static final String GEOIP_FILE_NAME = "ip2asn-v4.tsv";
+    static final int GEOIP_RANGES = 1 << 18;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Создает временный каталог openvpn с подкаталогом easy-rsa/keys
+     */
+    static Path createOpenVpnRoot() throws IOException {
+        Path root = Files.createTempDirectory("vpndirector-bench");
+        Files.createDirectories(keysDir(root));
+        return root;
+    }
+
+    static Path keysDir(Path root) {
+        return root.resolve("easy-rsa").resolve("keys");
+    }
+
+    /**
+     * Настройки, указывающие на каталог с тестовыми данными.
+     * Кодировка не задается, чтобы каждый вызов проходил через определение кодировки.
+     */
+    static OpenVpnProperties properties(Path root) {
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setConfigFileName(CONFIG_FILE_NAME);
+        properties.setConfigEncoding(null);
+        properties.setEasyRsaPath(root.resolve("easy-rsa").toString());
+        properties.setStatusFileName(STATUS_FILE_NAME);
+        return properties;
+    }
+
+    /**
+     * Конфиг сервера с заданным количеством маршрутов, каждый второй - с комментарием на кириллице
+     */
+    static void writeServerConfig(Path root, int routes, Charset charset) throws IOException {
+        List<String> lines = new ArrayList<>(routes * 2 + 16);
+        lines.add("port 1194");
+        lines.add("proto udp");
+        lines.add("dev tun");
+        lines.add("ca ca.crt");
+        lines.add("cert server.crt");
+        lines.add("key server.key");
+        lines.add("dh dh2048.pem");
+        lines.add("server 10.8.0.0 255.255.255.0");
+        lines.add("keepalive 10 120");
+        lines.add("status " + STATUS_FILE_NAME);
+        lines.add("# Маршруты клиентов");
+        for (int i = 0; i < routes; i++) {
+            if (i % 2 == 0) {
+                lines.add("#Маршрут до сервиса номер " + i);
+            }
+            lines.add(routeLine(i));
+        }
+        Files.write(root.resolve(CONFIG_FILE_NAME), lines, charset);
+    }
+
+    /**
+     * Строка маршрута с номером i (все подсети уникальны до 65536 маршрутов)
+     */
+    static String routeLine(int i) {
+        return "push \"route 10." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + ".0 255.255.255.0\"";
+    }
+
+    /**
+     * Файл статуса OpenVPN (формат status-version 1) с заданным количеством клиентов
+     */
+    static void writeStatusFile(Path root, int clients) throws IOException {
+        List<String> lines = new ArrayList<>(clients * 2 + 8);
+        lines.add("OpenVPN CLIENT LIST");
+        lines.add("Updated,2025-12-16 14:20:00");
+        lines.add("Common Name,Real Address,Bytes Received,Bytes Sent,Connected Since");
+        for (int i = 0; i < clients; i++) {
+            lines.add("client" + i + "," + realAddress(i) + "," + (i * 1024L) + "," + (i * 4096L)
+                + ",2025-12-" + String.format("%02d", 1 + i % 28) + " 14:18:32");
+        }
+        lines.add("ROUTING TABLE");
+        lines.add("Virtual Address,Common Name,Real Address,Last Ref");
+        for (int i = 0; i < clients; i++) {
+            lines.add("10.8." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + ",client" + i + ","
+                + realAddress(i) + ",2025-12-16 14:19:00");
+        }
+        lines.add("GLOBAL STATS");
+        lines.add("Max bcast/mcast queue length,0");
+        lines.add("END");
+        Files.write(root.resolve(STATUS_FILE_NAME), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * База GeoIP в формате ip2asn-v4.tsv: все адресное пространство IPv4, поделенное на GEOIP_RANGES диапазонов
+     */
+    static void writeGeoIpFile(Path root) throws IOException {
+        String[] countries = {"RU", "DE", "NL", "US", "FI", "KZ"};
+        int shift = 32 - Integer.numberOfTrailingZeros(GEOIP_RANGES);
+        List<String> lines = new ArrayList<>(GEOIP_RANGES);
+        for (int i = 0; i < GEOIP_RANGES; i++) {
+            long start = (long) i << shift;
+            long end = start + (1L << shift) - 1;
+            lines.add(ipv4(start) + "\t" + ipv4(end) + "\t" + (1000 + i % 50000) + "\t"
+                + countries[i % countries.length] + "\tAS-BENCH-" + (i % 50000));
+        }
+        Files.write(root.resolve(GEOIP_FILE_NAME), lines, StandardCharsets.UTF_8);
+    }
+
+    private static String ipv4(long address) {
+        return (address >> 24 & 0xFF) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+
+    private static String realAddress(int i) {
+        return "46." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF) + ":" + (1024 + i % 60000);
+    }
+
+    /**
+     * index.txt easy-rsa с заданным количеством сертификатов.
+     * Для каждого второго сертификата создаются файлы .crt и .key.
+     */
+    static void writeIndex(Path root, int certificates) throws IOException {
+        Path keysDir = keysDir(root);
+        List<String> lines = new ArrayList<>(certificates);
+        for (int i = 0; i < certificates; i++) {
+            String name = "client" + i;
+            lines.add("V\t491231235959Z\t\t" + String.format("%02X", i + 1) + "\tunknown\t"
+                + "/C=RU/ST=CFO/L=Moscow/O=rs/OU=MyOrganizationalUnit/CN=" + name
+                + "/name=EasyRSA/emailAddress=my@email.ru");
+            if (i % 2 == 0) {
+                Files.write(keysDir.resolve(name + ".crt"), pem("CERTIFICATE", 1200));
+                Files.write(keysDir.resolve(name + ".key"), pem("PRIVATE KEY", 1700));
+            }
+        }
+        Files.write(keysDir.resolve("index.txt"), lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Шаблоны клиентских конфигов, файлы ключа/сертификата и запись index.txt для одного клиента
+     */
+    static void writeClientTemplates(Path root, String certificateName) throws IOException {
+        String template = String.join("\n",
+            "client",
+            "dev tun",
+            "proto udp",
+            "remote 203.0.113.10 1194",
+            "resolv-retry infinite",
+            "nobind",
+            "cipher AES-256-CBC",
+            "auth SHA256",
+            "remote-cert-tls server",
+            "<ca>",
+            new String(pem("CERTIFICATE", 1200), StandardCharsets.US_ASCII),
+            "</ca>",
+            "<key>",
+            "{key}",
+            "</key>",
+            "<cert>",
+            "{cert}",
+            "</cert>",
+            "<tls-crypt>",
+            new String(pem("OpenVPN Static key V1", 600), StandardCharsets.US_ASCII),
+            "</tls-crypt>",
+            "");
+        Files.write(root.resolve("client_template.ovpn"), template.getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("client_template_tun.ovpn"), template.getBytes(StandardCharsets.UTF_8));
+        Files.write(keysDir(root).resolve(certificateName + ".crt"), pem("CERTIFICATE", 1200));
+        Files.write(keysDir(root).resolve(certificateName + ".key"), pem("PRIVATE KEY", 1700));
+        Files.write(keysDir(root).resolve("index.txt"), List.of("V\t491231235959Z\t\t01\tunknown\t"
+            + "/C=RU/ST=CFO/L=Moscow/O=rs/OU=MyOrganizationalUnit/CN=" + certificateName
+            + "/name=EasyRSA/emailAddress=my@email.ru"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Псевдо-PEM заданного размера (содержимое для бенчмарков не важно)
+     */
+    private static byte[] pem(String type, int bodyLength) {
+        StringBuilder sb = new StringBuilder(bodyLength + 64);
+        sb.append("-----BEGIN ").append(type).append("-----\n");
+        for (int i = 0; i < bodyLength; i++) {
+            sb.append((char) ('A' + i % 26));
+            if (i % 64 == 63) {
+                sb.append('\n');
+            }
+        }
+        sb.append("\n-----END ").append(type).append("-----");
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Удаляет каталог с тестовыми данными
+     */
+    static void delete(Path root) {
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
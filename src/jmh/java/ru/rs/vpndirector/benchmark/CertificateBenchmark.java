@@ -0,0 +1,88 @@
+package ru.rs.vpndirector.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ui.ExtendedModelMap;
+import org.springframework.ui.Model;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+import ru.rs.vpndirector.controller.CertificateController;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.CertificateExpiryTracker;
+import ru.rs.vpndirector.service.CertificateRegistry;
+import ru.rs.vpndirector.service.CertificateRevocationService;
+import ru.rs.vpndirector.service.ClientProfileService;
+import ru.rs.vpndirector.service.EasyRsaStore;
+import ru.rs.vpndirector.service.ListingQuery;
+import ru.rs.vpndirector.service.OpenVpnConfigFileService;
+import ru.rs.vpndirector.service.OpenVpnLogTailer;
+import ru.rs.vpndirector.service.ProcessRunner;
+import ru.rs.vpndirector.service.ProfileExportService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор index.txt для страницы сертификатов
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CertificateBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int clients;
+
+    private Path root;
+    private CertificateController controller;
+    private AuditJournal auditJournal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchmarkFixtures.createOpenVpnRoot();
+        BenchmarkFixtures.writeIndex(root, clients);
+        OpenVpnProperties properties = BenchmarkFixtures.properties(root);
+        EasyRsaStore store = new EasyRsaStore(properties);
+        CertificateRegistry registry = new CertificateRegistry(store);
+        ClientProfileService profiles = new ClientProfileService(properties);
+        auditJournal = new AuditJournal(properties, new SimpleMeterRegistry());
+        auditJournal.start();
+        controller = new CertificateController(registry, profiles,
+            new CertificateRevocationService(properties, store, registry),
+            new CertificateExpiryTracker(properties, registry, store, new OpenVpnConfigFileService(properties,
+                new ProcessRunner(properties, new SimpleMeterRegistry())),
+                Collections.emptyList(), new SimpleMeterRegistry()),
+            new ProfileExportService(properties, registry, profiles), auditJournal,
+            new OpenVpnLogTailer(properties, new OpenVpnConfigFileService(properties,
+                new ProcessRunner(properties, new SimpleMeterRegistry())), new SimpleMeterRegistry()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        auditJournal.stop();
+        BenchmarkFixtures.delete(root);
+    }
+
+    @Benchmark
+    public Model certificatesPage() {
+        Model model = new ExtendedModelMap();
+        controller.certificatesPage(new ListingQuery(), model);
+        return model;
+    }
+}
@@ -0,0 +1,134 @@
+package ru.rs.vpndirector.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+import ru.rs.vpndirector.controller.CertificateController;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.CertificateExpiryTracker;
+import ru.rs.vpndirector.service.CertificateRegistry;
+import ru.rs.vpndirector.service.CertificateRevocationService;
+import ru.rs.vpndirector.service.ClientProfileService;
+import ru.rs.vpndirector.service.EasyRsaStore;
+import ru.rs.vpndirector.service.OpenVpnConfigFileService;
+import ru.rs.vpndirector.service.OpenVpnLogTailer;
+import ru.rs.vpndirector.service.ProcessRunner;
+import ru.rs.vpndirector.service.ProfileExportService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Генерация клиентского .ovpn из шаблона для скачивания
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientProfileBenchmark {
+
+    private static final String CLIENT_NAME = "bench-client";
+
+    private Path root;
+    private CertificateController controller;
+    private AuditJournal auditJournal;
+    private String routesETag;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchmarkFixtures.createOpenVpnRoot();
+        BenchmarkFixtures.writeClientTemplates(root, CLIENT_NAME);
+        OpenVpnProperties properties = BenchmarkFixtures.properties(root);
+        EasyRsaStore store = new EasyRsaStore(properties);
+        CertificateRegistry registry = new CertificateRegistry(store);
+        ClientProfileService profiles = new ClientProfileService(properties);
+        auditJournal = new AuditJournal(properties, new SimpleMeterRegistry());
+        auditJournal.start();
+        controller = new CertificateController(registry, profiles,
+            new CertificateRevocationService(properties, store, registry),
+            new CertificateExpiryTracker(properties, registry, store, new OpenVpnConfigFileService(properties,
+                new ProcessRunner(properties, new SimpleMeterRegistry())),
+                Collections.emptyList(), new SimpleMeterRegistry()),
+            new ProfileExportService(properties, registry, profiles), auditJournal,
+            new OpenVpnLogTailer(properties, new OpenVpnConfigFileService(properties,
+                new ProcessRunner(properties, new SimpleMeterRegistry())), new SimpleMeterRegistry()));
+        routesETag = profiles.prepareProfile(CLIENT_NAME, ClientProfileService.ProfileType.ROUTES).getETag();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        auditJournal.stop();
+        BenchmarkFixtures.delete(root);
+    }
+
+    @Benchmark
+    public long downloadRoutesConfig() throws IOException {
+        return write(controller.downloadRoutesConfig(CLIENT_NAME, request(null)));
+    }
+
+    @Benchmark
+    public long downloadTunnelConfig() throws IOException {
+        return write(controller.downloadTunnelConfig(CLIENT_NAME, request(null)));
+    }
+
+    /**
+     * Повторное скачивание с If-None-Match: ответ 304 без чтения ключа и сертификата
+     */
+    @Benchmark
+    public ResponseEntity<StreamingResponseBody> notModifiedRoutesConfig() {
+        return controller.downloadRoutesConfig(CLIENT_NAME, request(routesETag));
+    }
+
+    private static ServletWebRequest request(String ifNoneMatch) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/certificates/download/routes");
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return new ServletWebRequest(request, new MockHttpServletResponse());
+    }
+
+    /**
+     * Записывает тело ответа в поток, считающий байты (как это сделал бы контейнер сервлетов)
+     */
+    private static long write(ResponseEntity<StreamingResponseBody> response) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        response.getBody().writeTo(out);
+        return out.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.rs.vpndirector.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+import ru.rs.vpndirector.service.OpenVpnConfigFileService;
+import ru.rs.vpndirector.service.ProcessRunner;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Чтение, определение кодировки, поиск и дописывание строк в server.conf
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigFileBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int routes;
+
+    @Param({"UTF-8", "Windows-1251", "KOI8-R"})
+    public String encoding;
+
+    private Path root;
+    private OpenVpnConfigFileService service;
+    private String missingRoute;
+    private String lastRoute;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchmarkFixtures.createOpenVpnRoot();
+        OpenVpnProperties properties = BenchmarkFixtures.properties(root);
+        service = new OpenVpnConfigFileService(properties, new ProcessRunner(properties, new SimpleMeterRegistry()));
+        missingRoute = "push \"route 192.168.250.0 255.255.255.0\"";
+        lastRoute = BenchmarkFixtures.routeLine(routes - 1);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetConfig() throws IOException {
+        BenchmarkFixtures.writeServerConfig(root, routes, Charset.forName(encoding));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.delete(root);
+    }
+
+    @Benchmark
+    public List<String> readConfigFile() throws IOException {
+        return service.readConfigFile();
+    }
+
+    @Benchmark
+    public String detectFileEncoding() {
+        return service.detectFileEncoding();
+    }
+
+    @Benchmark
+    public String findLineContainingMissing() throws IOException {
+        return service.findLineContaining(missingRoute);
+    }
+
+    @Benchmark
+    public String findLineContainingLast() throws IOException {
+        return service.findLineContaining(lastRoute);
+    }
+
+    @Benchmark
+    public void appendLine(FreshConfig config) throws IOException {
+        service.appendLine("#benchmark");
+    }
+
+    /**
+     * appendLine меняет файл, поэтому перед каждым вызовом конфиг создается заново:
+     * иначе файл растет на строку за вызов и результат зависит от длительности итерации
+     */
+    @State(Scope.Benchmark)
+    public static class FreshConfig {
+
+        @Setup(Level.Invocation)
+        public void reset(ConfigFileBenchmark benchmark) throws IOException {
+            benchmark.resetConfig();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.rs.vpndirector.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+import ru.rs.vpndirector.service.GeoIpDatabase;
+import ru.rs.vpndirector.service.ListingPage;
+import ru.rs.vpndirector.service.ListingQuery;
+import ru.rs.vpndirector.service.OpenVpnStatusService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор файла статуса OpenVPN с определением страны и ASN каждого клиента по базе GeoIP
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusFileBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int clients;
+
+    private Path root;
+    private OpenVpnStatusService service;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchmarkFixtures.createOpenVpnRoot();
+        BenchmarkFixtures.writeStatusFile(root, clients);
+        BenchmarkFixtures.writeGeoIpFile(root);
+        OpenVpnProperties properties = BenchmarkFixtures.properties(root);
+        properties.setGeoipFile(BenchmarkFixtures.GEOIP_FILE_NAME);
+        service = new OpenVpnStatusService(properties, new GeoIpDatabase(properties));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkFixtures.delete(root);
+    }
+
+    @Benchmark
+    public OpenVpnStatusService.StatusInfo parseStatusFile() throws IOException {
+        return service.parseStatusFile();
+    }
+
+    /**
+     * Страница подключений из кэша с сортировкой по трафику (индекс строится при первом обращении)
+     */
+    @Benchmark
+    public ListingPage<OpenVpnStatusService.ClientConnection> connectionsPage() throws IOException {
+        ListingQuery query = new ListingQuery();
+        query.setSort("received");
+        query.setDir("desc");
+        query.setPage(2);
+        return service.getStatus().search(query);
+    }
+}
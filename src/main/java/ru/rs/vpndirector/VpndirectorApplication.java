@@ -1,13 +1,80 @@
 package ru.rs.vpndirector;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.rs.vpndirector.config.SecurityProperties;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+@Slf4j
 @SpringBootApplication
 public class VpndirectorApplication {
 
+    /**
+     * Тренировочный запуск для архива AppCDS (cds-archive.sh): приложение стартует, выполняет несколько
+     * типичных запросов, чтобы загрузились классы MVC, Security и Thymeleaf, и завершается
+     */
+    private static final String TRAINING_PROPERTY = "vpndirector.cds-training";
+
     public static void main(String[] args) {
-        SpringApplication.run(VpndirectorApplication.class, args);
+        ConfigurableApplicationContext context = SpringApplication.run(VpndirectorApplication.class, args);
+        if (Boolean.getBoolean(TRAINING_PROPERTY)) {
+            warmUp(context);
+            System.exit(SpringApplication.exit(context));
+        }
     }
-}
 
+    private static void warmUp(ConfigurableApplicationContext context) {
+        String base = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port")
+            + context.getEnvironment().getProperty("server.servlet.context-path", "/").replaceAll("/$", "");
+        SecurityProperties user = context.getBean(SecurityProperties.class);
+        try {
+            request(base + "/login", null, null);
+            request(base + "/css/app.css", null, null);
+            String form = "username=" + URLEncoder.encode(user.getName(), StandardCharsets.UTF_8.name())
+                + "&password=" + URLEncoder.encode(user.getPassword(), StandardCharsets.UTF_8.name());
+            String session = request(base + "/login", form, null);
+            for (String page : new String[]{"/", "/certificates", "/connections", "/editor", "/restart"}) {
+                request(base + page, null, session);
+            }
+        } catch (IOException e) {
+            log.warn("Тренировочные запросы выполнены не полностью: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return cookie сессии из ответа (если сервер ее выдал)
+     */
+    private static String request(String url, String form, String cookie) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        if (cookie != null) {
+            connection.setRequestProperty("Cookie", cookie);
+        }
+        if (form != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(form.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        int status = connection.getResponseCode();
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                in.readAllBytes();
+            }
+        }
+        log.info("Тренировочный запрос {}: {}", url, status);
+        String setCookie = connection.getHeaderField("Set-Cookie");
+        return setCookie == null ? cookie : setCookie.split(";", 2)[0];
+    }
+}
@@ -0,0 +1,32 @@
+package ru.rs.vpndirector.config;
+
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.CertificateExpiryTracker;
+import ru.rs.vpndirector.service.CertificateRegistry;
+import ru.rs.vpndirector.service.ClientConfigIndex;
+import ru.rs.vpndirector.service.KeyPairPool;
+import ru.rs.vpndirector.service.OpenVpnLogTailer;
+import ru.rs.vpndirector.service.PendingChangesService;
+import ru.rs.vpndirector.service.RouteGroupService;
+
+/**
+ * Режим быстрого старта (профиль fast, spring.main.lazy-initialization=true).
+ * <p>
+ * Службы, которые работают в фоне с момента запуска (наблюдение за каталогами, пополнение пула ключей,
+ * отложенное применение изменений, метрики сроков действия сертификатов, очистка журнала аудита, чтение журнала OpenVPN),
+ * и группы маршрутов, которые при запуске сверяют файлы client-config-dir, создаются сразу,
+ * остальные бины - при первом запросе.
+ */
+@Configuration
+public class FastStartConfig {
+
+    @Bean
+    static LazyInitializationExcludeFilter backgroundServices() {
+        return LazyInitializationExcludeFilter.forBeanTypes(CertificateRegistry.class, ClientConfigIndex.class,
+            CertificateExpiryTracker.class, KeyPairPool.class, PendingChangesService.class, AuditJournal.class,
+            OpenVpnLogTailer.class, RouteGroupService.class);
+    }
+}
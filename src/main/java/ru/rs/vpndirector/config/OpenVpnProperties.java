@@ -4,6 +4,12 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 @Getter
 @Setter
@@ -15,6 +21,43 @@ public class OpenVpnProperties {
     private String configEncoding = null; // Явно указанная кодировка (если null - определяется автоматически)
     private String easyRsaPath = "/etc/openvpn/easy-rsa/2.0";
     private String statusFileName = "openvpn-status1194.log";
+    private String buildKeyMode = "interactive"; // interactive - build-key с ответами на вопросы, batch - pkitool без вопросов, native - без easy-rsa
+    private Duration buildKeyStepTimeout = Duration.ofSeconds(60); // Максимальное ожидание очередного вопроса build-key
+    private Duration buildKeyTimeout = Duration.ofMinutes(5); // Максимальное время выпуска одного сертификата
+    private String nativeKeyAlgorithm = "EC"; // Алгоритм ключа в режиме native: EC или RSA
+    private int nativeKeySize = 256; // Размер ключа в режиме native: 256/384/521 для EC, 2048/3072/4096 для RSA
+    private int issueWorkers = 2; // Количество потоков для выпуска сертификатов
+    private int issueQueueCapacity = 20; // Максимальное количество заданий на выпуск в очереди
+    private int issueHistorySize = 50; // Сколько последних заданий на выпуск хранить в истории
+    private int bulkIssueMaxNames = 500; // Максимальное количество имен в одном массовом выпуске
+    private int keyPoolSize = 0; // Сколько заранее сгенерированных ключей держать для режима native (0 - пул выключен)
+    private String keyPoolPassphrase = ""; // Пароль шифрования ключей пула (если пусто - генерируется и хранится рядом с пулом)
+    private String crlFile = ""; // Путь к CRL, указанному в crl-verify (если пусто - keys/crl.pem в easy-rsa)
+    private Duration crlValidity = Duration.ofDays(3650); // Срок действия CRL (nextUpdate): с истекшим CRL OpenVPN отклоняет всех клиентов
+    private String profileRemote = ""; // Значение {remote} в шаблонах клиентских конфигураций, например "vpn.example.com 1194 udp"
+    private String profileTlsCryptFile = "ta.key"; // Файл для {tls-crypt} в шаблонах (относительно openvpn-root)
+    private int exportWorkers = 4; // Количество потоков для сборки конфигураций при выгрузке ZIP
+    private Duration restartHealthTimeout = Duration.ofSeconds(90); // Сколько ждать, пока сервер поднимется после перезапуска
+    private boolean restartRollback = true; // Возвращать последнюю рабочую конфигурацию, если сервер не поднялся
+    private int processEasyRsaLimit = 1; // Сколько скриптов easy-rsa может выполняться одновременно
+    private int processSystemctlLimit = 2; // Сколько команд systemctl может выполняться одновременно
+    private int processUtilityLimit = 4; // Сколько служебных утилит (file и т.п.) может выполняться одновременно
+    private boolean processVirtualThreads = false; // Читать вывод внешних команд виртуальными потоками (нужен JDK 21+)
+    private boolean applyAuto = false; // Применять изменения конфигурации автоматически (иначе - кнопкой на странице перезапуска)
+    private Duration applyQuietPeriod = Duration.ofMinutes(2); // Сколько должно пройти без изменений, прежде чем применять их автоматически
+    private String applyWindow = ""; // Окно обслуживания для автоматического применения, например "02:00-05:00" (если пусто - в любое время)
+    private String ccdDir = "ccd"; // Каталог файлов клиентов, если в конфигурации сервера нет client-config-dir (относительно openvpn-root)
+    private String routeGroupsFile = "route-groups.conf"; // Файл групп маршрутов для отдельных клиентов (относительно openvpn-root)
+    private List<Duration> expiryWarningThresholds = new ArrayList<>(
+        Arrays.asList(Duration.ofDays(30), Duration.ofDays(7), Duration.ofDays(1))); // За сколько до истечения сертификата предупреждать
+    private String auditDir = "audit"; // Каталог журнала аудита (относительно openvpn-root)
+    private DataSize auditSegmentSize = DataSize.ofMegabytes(16); // Размер сегмента журнала аудита, по заполнении начинается следующий
+    private Duration auditRetention = Duration.ZERO; // Сколько хранить записи журнала аудита (0 - всегда)
+    private String geoipFile = ""; // Файл базы диапазонов IPv4 со страной и ASN, например ip2asn-v4.tsv (относительно openvpn-root; если пусто - выключено)
+    private String logFile = ""; // Журнал OpenVPN или его выгрузка из journald (относительно openvpn-root; если пусто - из log-append/log конфигурации сервера)
+    private Duration logPollInterval = Duration.ofSeconds(5); // Как часто дочитывать журнал OpenVPN (0 - не читать)
+    private String sessionStateFile = "sessions.dat"; // Позиция чтения журнала и история сессий клиентов (относительно openvpn-root)
+    private int sessionHistorySize = 10; // Сколько последних сессий и ошибок подключения хранить для каждого клиента
     
     /**
      * Возвращает полный путь к файлу конфигурации
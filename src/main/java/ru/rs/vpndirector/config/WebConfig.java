@@ -0,0 +1,73 @@
+package ru.rs.vpndirector.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.resource.EncodedResourceResolver;
+import org.springframework.web.servlet.resource.ResourceUrlEncodingFilter;
+import org.springframework.web.servlet.resource.VersionResourceResolver;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.regex.Pattern;
+
+/**
+ * Общие стили и сценарии страниц (/css, /js).
+ * <p>
+ * Ссылки @{/css/app.css} в шаблонах переписываются в адреса с хешем содержимого (app-&lt;md5&gt;.css),
+ * поэтому такие адреса кешируются браузером на год без перепроверки. Рядом с файлами при сборке
+ * кладутся сжатые копии .gz, которые отдаются клиентам, принимающим gzip.
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    private static final String[] BUNDLE_PATTERNS = {"/css/**", "/js/**"};
+
+    /**
+     * Имя файла с хешем содержимого, который добавляет VersionResourceResolver
+     */
+    private static final Pattern FINGERPRINTED = Pattern.compile(".*-[0-9a-f]{32}\\.[a-z]+$");
+
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+
+    @Override
+    public void addResourceHandlers(ResourceHandlerRegistry registry) {
+        addBundle(registry, "/css/**", "classpath:/static/css/");
+        addBundle(registry, "/js/**", "classpath:/static/js/");
+    }
+
+    private static void addBundle(ResourceHandlerRegistry registry, String pattern, String location) {
+        registry.addResourceHandler(pattern)
+            .addResourceLocations(location)
+            .resourceChain(true)
+            .addResolver(new EncodedResourceResolver())
+            .addResolver(new VersionResourceResolver().addContentVersionStrategy("/**"));
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        // Spring 5 не умеет добавлять immutable в Cache-Control, поэтому заголовок ставится здесь,
+        // а не через setCacheControl обработчика ресурсов (тот перезаписал бы его)
+        registry.addInterceptor(new HandlerInterceptor() {
+            @Override
+            public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                boolean fingerprinted = FINGERPRINTED.matcher(request.getRequestURI()).matches();
+                response.setHeader(HttpHeaders.CACHE_CONTROL, fingerprinted ? IMMUTABLE : REVALIDATE);
+                return true;
+            }
+        }).addPathPatterns(BUNDLE_PATTERNS);
+    }
+
+    /**
+     * Переписывает ссылки на ресурсы в шаблонах Thymeleaf на адреса с хешем
+     */
+    @Bean
+    public ResourceUrlEncodingFilter resourceUrlEncodingFilter() {
+        return new ResourceUrlEncodingFilter();
+    }
+}
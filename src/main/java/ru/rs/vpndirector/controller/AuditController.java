@@ -0,0 +1,45 @@
+package ru.rs.vpndirector.controller;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.AuditPage;
+import ru.rs.vpndirector.service.AuditQuery;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+
+/**
+ * Журнал аудита: поиск по интервалу дат, действию, субъекту и пользователю
+ */
+@Slf4j
+@Controller
+@RequiredArgsConstructor
+public class AuditController {
+
+    private final AuditJournal auditJournal;
+
+    @GetMapping("/audit")
+    public String auditPage(@ModelAttribute("query") AuditQuery query, Model model) {
+        model.addAttribute("actions", Arrays.stream(AuditAction.values())
+            .filter(action -> action != AuditAction.UNKNOWN)
+            .collect(Collectors.toList()));
+        model.addAttribute("recordsTotal", auditJournal.getRecordCount());
+        model.addAttribute("segmentsTotal", auditJournal.getSegmentCount());
+        try {
+            model.addAttribute("page", auditJournal.query(query));
+        } catch (IOException e) {
+            log.error("Ошибка чтения журнала аудита", e);
+            model.addAttribute("error", "Ошибка чтения журнала аудита: " + e.getMessage());
+            model.addAttribute("page", new AuditPage(Collections.emptyList(), null, 0));
+        }
+        return "audit";
+    }
+}
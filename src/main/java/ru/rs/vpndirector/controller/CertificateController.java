@@ -2,162 +2,208 @@ package ru.rs.vpndirector.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import ru.rs.vpndirector.config.OpenVpnProperties;
-
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.CertificateExpiryTracker;
+import ru.rs.vpndirector.service.CertificateRegistry;
+import ru.rs.vpndirector.service.CertificateRevocationService;
+import ru.rs.vpndirector.service.ClientProfileService;
+import ru.rs.vpndirector.service.ListingPage;
+import ru.rs.vpndirector.service.ListingQuery;
+import ru.rs.vpndirector.service.OpenVpnLogTailer;
+import ru.rs.vpndirector.service.ProfileExportService;
+
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Controller
 @RequiredArgsConstructor
 public class CertificateController {
 
-    private final OpenVpnProperties openVpnProperties;
-    private static final Pattern CN_PATTERN = Pattern.compile("/CN=([^/]+)");
+    private static final DateTimeFormatter ZIP_NAME_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    /**
+     * Профиль содержит закрытый ключ: хранить можно только в браузере и только с перепроверкой по ETag
+     */
+    private static final CacheControl PROFILE_CACHE = CacheControl.noCache().cachePrivate();
+
+    private final CertificateRegistry certificateRegistry;
+    private final ClientProfileService clientProfileService;
+    private final CertificateRevocationService certificateRevocationService;
+    private final CertificateExpiryTracker certificateExpiryTracker;
+    private final ProfileExportService profileExportService;
+    private final AuditJournal auditJournal;
+    private final OpenVpnLogTailer logTailer;
 
     @GetMapping("/certificates")
-    public String certificatesPage(Model model) {
-        List<CertificateInfo> certificates = new ArrayList<>();
-        
+    public String certificatesPage(@ModelAttribute("query") ListingQuery query, Model model) {
+        ListingPage<CertificateRegistry.CertificateRecord> page = certificateRegistry.search(query);
+        model.addAttribute("page", page);
+        model.addAttribute("certificates", page.getItems());
+        model.addAttribute("sessions", logTailer.getSessions(page.getItems().stream()
+            .map(CertificateRegistry.CertificateRecord::getName).collect(Collectors.toList())));
+        model.addAttribute("certificatesTotal", certificateRegistry.getCertificates().size());
+        model.addAttribute("revocationReasons", CertificateRevocationService.getReasons());
+        model.addAttribute("expiryWarnings", certificateExpiryTracker.getWarnings());
+        return "certificates";
+    }
+
+    /**
+     * Отзыв одного или нескольких сертификатов с обновлением CRL
+     */
+    @PostMapping("/certificates/revoke")
+    public String revokeCertificates(@RequestParam(required = false) List<String> certificateName,
+                                     @RequestParam(required = false) String reason,
+                                     RedirectAttributes redirectAttributes) {
+        if (certificateName == null || certificateName.isEmpty()) {
+            redirectAttributes.addFlashAttribute("error", "Не выбраны сертификаты для отзыва");
+            return "redirect:/certificates";
+        }
         try {
-            String keysDir = openVpnProperties.getEasyRsaPath() + "/keys";
-            Path indexFile = Paths.get(keysDir, "index.txt");
-            if (Files.exists(indexFile)) {
-                List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
-                
-                for (String line : lines) {
-                    line = line.trim();
-                    if (line.isEmpty() || line.startsWith("#")) {
-                        continue;
-                    }
-                    
-                    // Парсим строку формата: V	270111231001Z		02	unknown	/C=RU/ST=CFO/L=Moscow/O=rs/OU=MyOrganizationalUnit/CN=someSertName/name=EasyRSA/emailAddress=my@email.ru
-                    String certificateName = extractCertificateName(line);
-                    if (certificateName != null && !certificateName.isEmpty()) {
-                        boolean hasFiles = checkCertificateFiles(certificateName, keysDir);
-                        certificates.add(new CertificateInfo(certificateName, hasFiles));
-                    }
+            Map<String, CertificateRevocationService.Outcome> outcomes =
+                certificateRevocationService.revoke(certificateName, reason);
+            String message = CertificateRevocationService.describe(outcomes);
+            outcomes.forEach((name, outcome) -> {
+                if (outcome == CertificateRevocationService.Outcome.REVOKED) {
+                    auditJournal.record(AuditAction.CERT_REVOKE, name, reason != null ? "причина: " + reason : null);
                 }
+            });
+            if (outcomes.containsValue(CertificateRevocationService.Outcome.REVOKED)) {
+                redirectAttributes.addFlashAttribute("success", message);
             } else {
-                log.warn("Файл index.txt не найден: {}", indexFile);
+                redirectAttributes.addFlashAttribute("error", message);
             }
+        } catch (IllegalArgumentException e) {
+            redirectAttributes.addFlashAttribute("error", e.getMessage());
         } catch (IOException e) {
-            log.error("Ошибка при чтении файла index.txt", e);
+            log.error("Ошибка при отзыве сертификатов {}", certificateName, e);
+            redirectAttributes.addFlashAttribute("error", "Ошибка при отзыве: " + e.getMessage());
         }
-        
-        model.addAttribute("certificates", certificates);
-        return "certificates";
+        return "redirect:/certificates";
     }
 
     /**
-     * Извлекает имя сертификата (CN) из строки index.txt
+     * Скачивание конфигурации клиента для тоннеля
      */
-    private String extractCertificateName(String line) {
-        try {
-            Matcher matcher = CN_PATTERN.matcher(line);
-            if (matcher.find()) {
-                return matcher.group(1);
-            }
-        } catch (Exception e) {
-            log.warn("Ошибка при извлечении имени сертификата из строки: {}", line, e);
-        }
-        return null;
+    @RequestMapping(value = "/certificates/download/tunnel", method = {RequestMethod.GET, RequestMethod.POST})
+    public ResponseEntity<StreamingResponseBody> downloadTunnelConfig(@RequestParam String certificateName,
+                                                                      WebRequest webRequest) {
+        return generateAndDownloadConfig(certificateName, ClientProfileService.ProfileType.TUNNEL, webRequest);
     }
 
     /**
-     * Проверяет наличие файлов .crt и .key для сертификата
+     * Скачивание конфигурации клиента для маршрутов
      */
-    private boolean checkCertificateFiles(String certificateName, String keysDir) {
-        try {
-            Path crtFile = Paths.get(keysDir, certificateName + ".crt");
-            Path keyFile = Paths.get(keysDir, certificateName + ".key");
-            
-            return Files.exists(crtFile) && Files.exists(keyFile);
-        } catch (Exception e) {
-            log.warn("Ошибка при проверке файлов сертификата: {}", certificateName, e);
-            return false;
-        }
+    @RequestMapping(value = "/certificates/download/routes", method = {RequestMethod.GET, RequestMethod.POST})
+    public ResponseEntity<StreamingResponseBody> downloadRoutesConfig(@RequestParam String certificateName,
+                                                                      WebRequest webRequest) {
+        return generateAndDownloadConfig(certificateName, ClientProfileService.ProfileType.ROUTES, webRequest);
     }
 
     /**
-     * Скачивание конфигурации клиента для тоннеля
+     * Выгрузка конфигураций (для тоннеля и для маршрутов) всех действующих сертификатов одним ZIP.
+     * Архив пишется в ответ по мере сборки профилей; ход выгрузки доступен по id.
      */
-    @PostMapping("/certificates/download/tunnel")
-    public ResponseEntity<Resource> downloadTunnelConfig(@RequestParam String certificateName) {
-        return generateAndDownloadConfig(certificateName, "client_template_tun.ovpn", "_tun");
+    @GetMapping("/certificates/export")
+    public ResponseEntity<StreamingResponseBody> exportProfiles(@RequestParam(required = false) String prefix,
+                                                                @RequestParam(required = false) String id) {
+        List<String> names = profileExportService.selectNames(prefix);
+        ProfileExportService.Progress progress = profileExportService.startProgress(id, names.size());
+        log.info("Выгрузка конфигураций: {} сертификатов, префикс '{}'", names.size(), prefix != null ? prefix : "");
+        auditJournal.record(AuditAction.PROFILE_EXPORT, Collections.emptyList(),
+            "сертификатов: " + names.size() + (prefix != null && !prefix.isEmpty() ? ", префикс " + prefix : ""));
+
+        String filename = "profiles-" + LocalDateTime.now().format(ZIP_NAME_TIME) + ".zip";
+        StreamingResponseBody body = out -> profileExportService.exportToZip(names, out, progress);
+        return ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType("application/zip"))
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+            .body(body);
     }
 
     /**
-     * Скачивание конфигурации клиента для маршрутов
+     * Ход выгрузки конфигураций
      */
-    @PostMapping("/certificates/download/routes")
-    public ResponseEntity<Resource> downloadRoutesConfig(@RequestParam String certificateName) {
-        return generateAndDownloadConfig(certificateName, "client_template.ovpn", "");
+    @GetMapping("/certificates/export/progress/{id}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> exportProgress(@PathVariable String id) {
+        ProfileExportService.Progress progress = profileExportService.getProgress(id);
+        if (progress == null) {
+            return ResponseEntity.notFound().build();
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("state", progress.getState());
+        result.put("total", progress.getTotal());
+        result.put("done", progress.getDone());
+        result.put("failed", progress.getFailed());
+        result.put("elapsedMillis", progress.getElapsedMillis());
+        return ResponseEntity.ok(result);
     }
 
     /**
-     * Генерирует конфигурацию клиента из шаблона и отдает на скачивание
+     * Генерирует конфигурацию клиента из шаблона и отдает на скачивание: отрезки шаблона
+     * и файлы ключа/сертификата пишутся прямо в ответ.
+     * Профиль помечается ETag по отпечатку шаблона и файлов; на повторный GET с тем же If-None-Match
+     * отвечаем 304, не читая ключ и сертификат.
      */
-    private ResponseEntity<Resource> generateAndDownloadConfig(String certificateName, String templateFileName, String filenameSuffix) {
+    private ResponseEntity<StreamingResponseBody> generateAndDownloadConfig(String certificateName,
+                                                                            ClientProfileService.ProfileType type,
+                                                                            WebRequest webRequest) {
+        CertificateRegistry.CertificateRecord certificate = certificateRegistry.find(certificateName);
+        if (certificate == null || !certificate.isHasFiles()) {
+            log.error("Файлы сертификата не найдены для: {}", certificateName);
+            return ResponseEntity.notFound().build();
+        }
+        if (!certificate.isValid()) {
+            log.warn("Запрошена конфигурация для недействительного сертификата {} ({})", certificateName,
+                certificate.getStatus().getLabel());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+
         try {
-            String openvpnRoot = openVpnProperties.getOpenvpnRoot();
-            String easyRsaPath = openVpnProperties.getEasyRsaPath();
-            String keysDir = easyRsaPath + "/keys";
-            
-            // Читаем шаблон
-            Path templatePath = Paths.get(openvpnRoot, templateFileName);
-            if (!Files.exists(templatePath)) {
-                log.error("Шаблон не найден: {}", templatePath);
-                return ResponseEntity.notFound().build();
-            }
-            
-            String template = new String(Files.readAllBytes(templatePath), StandardCharsets.UTF_8);
-            
-            // Читаем содержимое файлов сертификата и ключа
-            Path keyFile = Paths.get(keysDir, certificateName + ".key");
-            Path certFile = Paths.get(keysDir, certificateName + ".crt");
-            
-            if (!Files.exists(keyFile) || !Files.exists(certFile)) {
-                log.error("Файлы сертификата не найдены для: {}", certificateName);
-                return ResponseEntity.notFound().build();
+            ClientProfileService.Profile profile = clientProfileService.prepareProfile(certificateName, type);
+            // checkNotModified сам ставит заголовок ETag, а при совпадении с If-None-Match - статус 304
+            if (webRequest.checkNotModified(profile.getETag())) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(PROFILE_CACHE).build();
             }
-            
-            String keyContent = new String(Files.readAllBytes(keyFile), StandardCharsets.UTF_8);
-            String certContent = new String(Files.readAllBytes(certFile), StandardCharsets.UTF_8);
-            
-            // Заменяем плейсхолдеры в шаблоне
-            String configContent = template
-                .replace("{key}", keyContent)
-                .replace("{cert}", certContent);
-            
-            // Создаем ресурс из байтов
-            byte[] configBytes = configContent.getBytes(StandardCharsets.UTF_8);
-            ByteArrayResource resource = new ByteArrayResource(configBytes);
-            
-            String filename = certificateName + filenameSuffix + ".ovpn";
-            
+            String filename = type.fileName(certificateName);
+            auditJournal.record(AuditAction.PROFILE_DOWNLOAD, certificateName, filename);
+
             return ResponseEntity.ok()
+                .cacheControl(PROFILE_CACHE)
                 .contentType(MediaType.APPLICATION_OCTET_STREAM)
                 .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
-                .body(resource);
-                
+                .body(profile::writeTo);
+
+        } catch (FileNotFoundException e) {
+            log.error(e.getMessage());
+            return ResponseEntity.notFound().build();
         } catch (IOException e) {
             log.error("Ошибка при генерации конфигурации для сертификата: {}", certificateName, e);
             return ResponseEntity.internalServerError().build();
@@ -166,34 +212,4 @@ public class CertificateController {
             return ResponseEntity.internalServerError().build();
         }
     }
-
-    /**
-     * Класс для хранения информации о сертификате
-     */
-    public static class CertificateInfo {
-        private String name;
-        private boolean hasFiles;
-
-        public CertificateInfo(String name, boolean hasFiles) {
-            this.name = name;
-            this.hasFiles = hasFiles;
-        }
-
-        public String getName() {
-            return name;
-        }
-
-        public void setName(String name) {
-            this.name = name;
-        }
-
-        public boolean isHasFiles() {
-            return hasFiles;
-        }
-
-        public void setHasFiles(boolean hasFiles) {
-            this.hasFiles = hasFiles;
-        }
-    }
 }
-
@@ -2,23 +2,59 @@ package ru.rs.vpndirector.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.BulkCertificateIssueService;
 import ru.rs.vpndirector.service.CertificateGenerationService;
+import ru.rs.vpndirector.service.CertificateIssueJob;
+import ru.rs.vpndirector.service.CertificateIssueJobService;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Controller
 @RequiredArgsConstructor
 public class CertificateGenerationController {
 
+    /**
+     * Сколько держать открытым SSE-соединение с клиентом, следящим за заданием
+     */
+    private static final long SSE_TIMEOUT_MILLIS = 10 * 60 * 1000L;
+    private static final DateTimeFormatter ZIP_NAME_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
     private final CertificateGenerationService certificateGenerationService;
+    private final CertificateIssueJobService certificateIssueJobService;
+    private final BulkCertificateIssueService bulkCertificateIssueService;
+    private final AuditJournal auditJournal;
 
     @GetMapping("/generate-certificate")
-    public String generateCertificatePage(Model model) {
+    public String generateCertificatePage(@RequestParam(required = false) String job, Model model) {
+        model.addAttribute("job", certificateIssueJobService.getJob(job));
+        model.addAttribute("jobs", certificateIssueJobService.getHistory());
         return "generate-certificate";
     }
 
@@ -32,6 +68,12 @@ public class CertificateGenerationController {
 
             certificateName = certificateName.trim();
 
+            if (!CertificateGenerationService.isValidCertificateName(certificateName)) {
+                redirectAttributes.addFlashAttribute("error",
+                    "Недопустимое имя сертификата '" + certificateName + "'");
+                return "redirect:/generate-certificate";
+            }
+
             // Проверяем, существует ли уже сертификат
             if (certificateGenerationService.certificateExists(certificateName)) {
                 redirectAttributes.addFlashAttribute("error", 
@@ -39,20 +81,68 @@ public class CertificateGenerationController {
                 return "redirect:/generate-certificate";
             }
 
-            // Генерируем сертификат
-            String result = certificateGenerationService.generateCertificate(certificateName);
-            
-            if (result.startsWith("Ошибка:")) {
-                redirectAttributes.addFlashAttribute("error", result);
-            } else {
-                redirectAttributes.addFlashAttribute("success", result);
-            }
+            // Ставим выпуск в очередь; повторная отправка формы вернет уже запущенное задание
+            CertificateIssueJob job = certificateIssueJobService.submit(certificateName);
+            auditJournal.record(AuditAction.CERT_ISSUE, certificateName, "задание " + job.getId());
+            redirectAttributes.addAttribute("job", job.getId());
+        } catch (RejectedExecutionException e) {
+            redirectAttributes.addFlashAttribute("error",
+                "Очередь выпуска сертификатов заполнена. Повторите попытку позже.");
         } catch (Exception e) {
-            log.error("Ошибка при генерации сертификата", e);
+            log.error("Ошибка при постановке выпуска сертификата в очередь", e);
             redirectAttributes.addFlashAttribute("error", "Ошибка: " + e.getMessage());
         }
         
         return "redirect:/generate-certificate";
     }
-}
 
+    /**
+     * Массовый выпуск: список имен из поля формы и/или CSV-файла.
+     * В ответ потоково отдается ZIP с конфигурациями и отчетом report.csv.
+     */
+    @PostMapping("/generate-certificate/bulk")
+    public ResponseEntity<StreamingResponseBody> bulkGenerate(@RequestParam(required = false) String names,
+                                                              @RequestParam(required = false) MultipartFile file)
+            throws IOException {
+        List<String> certificateNames = new ArrayList<>(BulkCertificateIssueService.parseNames(names));
+        if (file != null && !file.isEmpty()) {
+            certificateNames.addAll(BulkCertificateIssueService.parseNames(
+                new String(file.getBytes(), StandardCharsets.UTF_8)));
+        }
+        List<BulkCertificateIssueService.Result> plan = bulkCertificateIssueService.plan(certificateNames);
+        log.info("Массовый выпуск сертификатов: {} имен", certificateNames.size());
+        auditJournal.record(AuditAction.CERT_BULK_ISSUE, certificateNames, "имен: " + certificateNames.size());
+
+        String filename = "certificates-" + LocalDateTime.now().format(ZIP_NAME_TIME) + ".zip";
+        StreamingResponseBody body = out -> bulkCertificateIssueService.issueToZip(plan, out);
+        return ResponseEntity.ok()
+            .contentType(MediaType.parseMediaType("application/zip"))
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
+            .body(body);
+    }
+
+    /**
+     * История заданий на выпуск сертификатов
+     */
+    @GetMapping("/generate-certificate/jobs")
+    @ResponseBody
+    public List<Map<String, Object>> jobs() {
+        return certificateIssueJobService.getHistory().stream()
+            .map(CertificateIssueJob::summary)
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * Поток событий задания: state, progress, output и done
+     */
+    @GetMapping("/generate-certificate/jobs/{id}/events")
+    public SseEmitter jobEvents(@PathVariable String id) {
+        CertificateIssueJob job = certificateIssueJobService.getJob(id);
+        if (job == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Задание не найдено");
+        }
+        SseEmitter emitter = new SseEmitter(SSE_TIMEOUT_MILLIS);
+        job.subscribe(emitter);
+        return emitter;
+    }
+}
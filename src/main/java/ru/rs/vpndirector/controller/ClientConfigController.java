@@ -2,81 +2,108 @@ package ru.rs.vpndirector.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
-import ru.rs.vpndirector.config.OpenVpnProperties;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.ClientConfigIndex;
+import ru.rs.vpndirector.service.ListingPage;
+import ru.rs.vpndirector.service.ListingQuery;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Stream;
+import java.nio.file.StandardOpenOption;
 
 @Slf4j
 @Controller
 @RequiredArgsConstructor
 public class ClientConfigController {
 
-    private final OpenVpnProperties openVpnProperties;
+    /**
+     * Атрибуты запроса Tomcat для отправки файла через sendfile (как это делает DefaultServlet)
+     */
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private final ClientConfigIndex clientConfigIndex;
+    private final AuditJournal auditJournal;
 
     @GetMapping("/download-config")
-    public String downloadConfigPage(Model model) {
-        List<String> configs = new ArrayList<>();
-        
-        try {
-            // Ищем конфигурационные файлы клиентов
-            String clientsDirPath = openVpnProperties.getOpenvpnRoot() + "/clients";
-            Path clientsDir = Paths.get(clientsDirPath);
-            if (Files.exists(clientsDir) && Files.isDirectory(clientsDir)) {
-                try (Stream<Path> paths = Files.list(clientsDir)) {
-                    paths.filter(Files::isRegularFile)
-                        .filter(p -> p.toString().endsWith(".ovpn") || p.toString().endsWith(".conf"))
-                        .forEach(path -> configs.add(path.getFileName().toString()));
-                }
-            }
-            
-            if (configs.isEmpty()) {
-                configs.add("Конфигурационные файлы не найдены");
-            }
-        } catch (IOException e) {
-            log.error("Ошибка при чтении списка конфигураций", e);
-            configs.add("Ошибка при чтении: " + e.getMessage());
-        }
-        
-        model.addAttribute("configs", configs);
+    public String downloadConfigPage(@ModelAttribute("query") ListingQuery query, Model model) {
+        ListingPage<ClientConfigIndex.ConfigFile> page = clientConfigIndex.search(query);
+        model.addAttribute("page", page);
+        model.addAttribute("configsTotal", clientConfigIndex.size());
+        model.addAttribute("clientsDir", clientConfigIndex.getDirectory().toString());
         return "download-config";
     }
 
+    /**
+     * Скачивание готовой конфигурации. Отдается только файл из индекса каталога clients:
+     * имя из запроса ищется в индексе и не используется для построения пути.
+     * Если контейнер поддерживает sendfile, файл передается ядром напрямую в сокет,
+     * иначе - через FileChannel.transferTo.
+     */
     @PostMapping("/download-config")
-    public ResponseEntity<Resource> downloadConfig(@RequestParam String filename) {
+    public ResponseEntity<StreamingResponseBody> downloadConfig(@RequestParam String filename,
+                                                                HttpServletRequest request) {
+        ClientConfigIndex.ConfigFile config = clientConfigIndex.find(filename);
+        if (config == null) {
+            log.warn("Запрошена отсутствующая в каталоге clients конфигурация: {}", filename);
+            return ResponseEntity.notFound().build();
+        }
+        // Размер берется с диска, а не из индекса: файл мог измениться после последнего события
+        long size;
         try {
-            String clientsDirPath = openVpnProperties.getOpenvpnRoot() + "/clients";
-            Path filePath = Paths.get(clientsDirPath).resolve(filename);
-            
-            if (!Files.exists(filePath)) {
-                return ResponseEntity.notFound().build();
-            }
-            
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"")
-                .body(resource);
-        } catch (Exception e) {
-            log.error("Ошибка при скачивании конфигурации", e);
-            return ResponseEntity.internalServerError().build();
+            size = Files.size(config.getPath());
+        } catch (IOException e) {
+            log.warn("Конфигурация {} недоступна: {}", config.getPath(), e.getMessage());
+            return ResponseEntity.notFound().build();
+        }
+
+        auditJournal.record(AuditAction.CONFIG_DOWNLOAD, config.getName(), "байт: " + size);
+
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+            .contentLength(size)
+            .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(config.getName(), StandardCharsets.UTF_8).build().toString());
+
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, config.getPath().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, 0L);
+            request.setAttribute(SENDFILE_END, size);
+            return response.build();
         }
+
+        return response.body(out -> {
+            try (FileChannel channel = FileChannel.open(config.getPath(), StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = 0;
+                while (position < size) {
+                    long sent = channel.transferTo(position, size - position, target);
+                    if (sent <= 0) {
+                        // Файл укоротился после stat - клиент получит меньше объявленного Content-Length
+                        break;
+                    }
+                    position += sent;
+                }
+            }
+        });
     }
 }
-
@@ -1,17 +1,37 @@
 package ru.rs.vpndirector.controller;
 
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.ConfigDiff;
+import ru.rs.vpndirector.service.ConfigRevisionMismatchException;
 import ru.rs.vpndirector.service.OpenVpnConfigFileService;
+import ru.rs.vpndirector.service.OpenVpnRestartService;
+import ru.rs.vpndirector.service.PendingChangesService;
+import ru.rs.vpndirector.service.RestartRun;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Controller
@@ -19,6 +39,19 @@ import java.util.List;
 public class ConfigEditorController {
 
     private final OpenVpnConfigFileService configFileService;
+    private final PendingChangesService pendingChangesService;
+    private final OpenVpnRestartService restartService;
+    private final AuditJournal auditJournal;
+
+    /**
+     * Сколько строк отдается за один запрос /editor/lines
+     */
+    private static final int MAX_CHUNK_LINES = 1000;
+
+    /**
+     * Сколько совпадений отдается за один запрос /editor/search
+     */
+    private static final int MAX_SEARCH_MATCHES = 200;
 
     @GetMapping("/editor")
     public String editor(Model model) {
@@ -27,28 +60,31 @@ public class ConfigEditorController {
             model.addAttribute("filePath", filePath);
             model.addAttribute("backupExists", configFileService.backupExists());
             model.addAttribute("defaultFileExists", configFileService.defaultFileExists());
-            
+
             if (configFileService.configFileExists()) {
                 // Определяем кодировку файла
                 String encoding = configFileService.detectFileEncoding();
                 model.addAttribute("fileEncoding", encoding != null ? encoding : "не определена");
-                
-                List<String> lines = configFileService.readConfigFile();
-                String content = String.join("\n", lines);
-                model.addAttribute("content", content);
+
+                // Страница получает только ревизию и число строк, сами строки браузер подгружает кусками
+                OpenVpnConfigFileService.LineRange range = configFileService.readLines(0, 0);
+                model.addAttribute("revision", range.getRevision());
+                model.addAttribute("totalLines", range.getTotalLines());
                 model.addAttribute("fileExists", true);
-                
-                log.info("Файл прочитан. Определенная кодировка: {}", encoding);
+
+                log.info("Файл открыт в редакторе: {} строк, кодировка: {}", range.getTotalLines(), encoding);
             } else {
                 model.addAttribute("fileExists", false);
-                model.addAttribute("content", "");
+                model.addAttribute("revision", "");
+                model.addAttribute("totalLines", 0);
                 model.addAttribute("fileEncoding", "файл не существует");
             }
         } catch (IOException e) {
             log.error("Ошибка при чтении файла конфигурации", e);
             model.addAttribute("error", "Ошибка при чтении файла: " + e.getMessage());
             model.addAttribute("fileExists", false);
-            model.addAttribute("content", "");
+            model.addAttribute("revision", "");
+            model.addAttribute("totalLines", 0);
             model.addAttribute("filePath", configFileService.getConfigFilePath());
             model.addAttribute("fileEncoding", "ошибка чтения");
             model.addAttribute("backupExists", false);
@@ -57,23 +93,168 @@ public class ConfigEditorController {
         return "editor";
     }
 
-    @PostMapping("/editor/save")
-    public String saveConfig(@RequestParam String content, RedirectAttributes redirectAttributes) {
+    @GetMapping("/editor/lines")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> lines(@RequestParam int from,
+                                                     @RequestParam(defaultValue = "200") int count) {
+        try {
+            OpenVpnConfigFileService.LineRange range =
+                configFileService.readLines(Math.max(0, from), Math.min(Math.max(0, count), MAX_CHUNK_LINES));
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("revision", range.getRevision());
+            body.put("totalLines", range.getTotalLines());
+            body.put("from", range.getFrom());
+            body.put("lines", range.getLines());
+            return ResponseEntity.ok(body);
+        } catch (IOException e) {
+            log.error("Ошибка при чтении строк файла конфигурации", e);
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Ошибка при чтении файла: " + e.getMessage());
+        }
+    }
+
+    @GetMapping("/editor/search")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> search(@RequestParam String q,
+                                                      @RequestParam(defaultValue = "0") int from,
+                                                      @RequestParam(defaultValue = "50") int limit) {
+        if (q.isEmpty()) {
+            return error(HttpStatus.BAD_REQUEST, "Пустой запрос поиска");
+        }
         try {
-            List<String> lines = List.of(content.split("\n"));
-            configFileService.writeConfigFile(lines);
-            redirectAttributes.addFlashAttribute("success", "Файл успешно сохранен! Создана резервная копия.");
+            OpenVpnConfigFileService.LineSearch result = configFileService.searchLines(q, Math.max(0, from),
+                Math.min(Math.max(1, limit), MAX_SEARCH_MATCHES));
+            List<Map<String, Object>> matches = new ArrayList<>();
+            for (OpenVpnConfigFileService.LineMatch match : result.getMatches()) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("line", match.getLine());
+                item.put("text", match.getText());
+                matches.add(item);
+            }
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("revision", result.getRevision());
+            body.put("totalLines", result.getTotalLines());
+            body.put("total", result.getTotal());
+            body.put("matches", matches);
+            return ResponseEntity.ok(body);
+        } catch (IOException e) {
+            log.error("Ошибка при поиске по файлу конфигурации", e);
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Ошибка при поиске: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Предпросмотр сохранения: изменится ли текст, какие директивы и чем их придется применить
+     */
+    @PostMapping("/editor/preview")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> previewRanges(@RequestBody RangesRequest request) {
+        if (request.getRevision() == null || request.getEdits() == null) {
+            return error(HttpStatus.BAD_REQUEST, "Не указаны ревизия или изменения");
+        }
+        try {
+            return ResponseEntity.ok(editResult(configFileService.previewLineEdits(edits(request), request.getRevision())));
+        } catch (ConfigRevisionMismatchException e) {
+            return error(HttpStatus.CONFLICT, "Ошибка при сохранении файла: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "Ошибка при сохранении файла: " + e.getMessage());
+        } catch (IOException e) {
+            log.error("Ошибка при сравнении правок с файлом конфигурации", e);
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Ошибка при чтении файла: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Сохраняет только измененные диапазоны строк. Правки без изменения текста не перезаписывают файл,
+     * правки только комментариев не требуют перезапуска
+     */
+    @PostMapping("/editor/ranges")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> saveRanges(@RequestBody RangesRequest request) {
+        if (request.getRevision() == null || request.getEdits() == null) {
+            return error(HttpStatus.BAD_REQUEST, "Не указаны ревизия или изменения");
+        }
+        try {
+            OpenVpnConfigFileService.LineEditResult saved =
+                configFileService.applyLineEdits(edits(request), request.getRevision());
+            Map<String, Object> body = editResult(saved);
+            Set<String> directives = directiveNames(saved);
+            if (!saved.isWritten()) {
+                body.put("message", "Изменений нет - файл не перезаписан.");
+                return ResponseEntity.ok(body);
+            }
+            auditJournal.record(AuditAction.CONFIG_EDIT, new ArrayList<>(directives), saved.getChanges().isEmpty()
+                ? "изменены комментарии и пустые строки"
+                : saved.getChanges().stream().map(change -> change.getType() + " " + change.getText())
+                    .collect(Collectors.joining("\n")));
+            if (directives.isEmpty()) {
+                body.put("message", "Файл сохранен. Изменены только комментарии и пустые строки - перезапуск не нужен.");
+            } else {
+                pendingChangesService.markDirty("Редактор", "сохранение файла: " + String.join(", ", directives));
+                body.put("message", "Файл успешно сохранен! Создана резервная копия.");
+            }
+            return ResponseEntity.ok(body);
+        } catch (ConfigRevisionMismatchException e) {
+            log.warn("Сохранение файла конфигурации отклонено: {}", e.getMessage());
+            return error(HttpStatus.CONFLICT, "Ошибка при сохранении файла: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return error(HttpStatus.BAD_REQUEST, "Ошибка при сохранении файла: " + e.getMessage());
         } catch (IOException e) {
             log.error("Ошибка при сохранении файла конфигурации", e);
-            redirectAttributes.addFlashAttribute("error", "Ошибка при сохранении файла: " + e.getMessage());
+            return error(HttpStatus.INTERNAL_SERVER_ERROR, "Ошибка при сохранении файла: " + e.getMessage());
         }
-        return "redirect:/editor";
+    }
+
+    private static List<OpenVpnConfigFileService.LineEdit> edits(RangesRequest request) {
+        List<OpenVpnConfigFileService.LineEdit> edits = new ArrayList<>();
+        for (RangeEdit edit : request.getEdits()) {
+            edits.add(new OpenVpnConfigFileService.LineEdit(edit.getFrom(), edit.getTo(),
+                edit.getLines() != null ? edit.getLines() : Collections.emptyList()));
+        }
+        return edits;
+    }
+
+    private static Set<String> directiveNames(OpenVpnConfigFileService.LineEditResult result) {
+        Set<String> names = new TreeSet<>();
+        for (ConfigDiff.Change change : result.getChanges()) {
+            names.add(change.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Ответ на предпросмотр и сохранение: измененные директивы с пометкой, нужен ли для них
+     * полный перезапуск, и итоговый способ применения
+     */
+    private Map<String, Object> editResult(OpenVpnConfigFileService.LineEditResult result) {
+        Set<String> directives = directiveNames(result);
+        OpenVpnRestartService.Decision decision = restartService.decideFor(directives);
+        List<Map<String, Object>> changes = new ArrayList<>();
+        for (ConfigDiff.Change change : result.getChanges()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("type", String.valueOf(change.getType()));
+            item.put("text", change.getText());
+            item.put("restart", decision.getRestartDirectives().contains(change.getName()));
+            changes.add(item);
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("revision", result.getRevision());
+        body.put("totalLines", result.getTotalLines());
+        body.put("changed", result.isChanged());
+        body.put("written", result.isWritten());
+        body.put("changes", changes);
+        if (!directives.isEmpty()) {
+            body.put("action", decision.getAction() == RestartRun.Action.RELOAD ? "reload" : "restart");
+            body.put("reason", decision.getReason());
+        }
+        return body;
     }
 
     @PostMapping("/editor/restore")
     public String restoreFromBackup(RedirectAttributes redirectAttributes) {
         try {
             configFileService.restoreFromBackup();
+            pendingChangesService.markDirty("Редактор", "восстановление из резервной копии");
+            auditJournal.record(AuditAction.CONFIG_RESTORE, Collections.emptyList(), null);
             redirectAttributes.addFlashAttribute("success", "Файл успешно восстановлен из резервной копии!");
         } catch (IOException e) {
             log.error("Ошибка при восстановлении файла из резервной копии", e);
@@ -86,6 +267,8 @@ public class ConfigEditorController {
     public String resetToDefault(RedirectAttributes redirectAttributes) {
         try {
             configFileService.resetToDefault();
+            pendingChangesService.markDirty("Редактор", "сброс к значениям по умолчанию");
+            auditJournal.record(AuditAction.CONFIG_RESET, Collections.emptyList(), null);
             redirectAttributes.addFlashAttribute("success", "Конфигурация успешно сброшена к значениям по умолчанию!");
         } catch (IOException e) {
             log.error("Ошибка при сбросе конфигурации", e);
@@ -93,5 +276,29 @@ public class ConfigEditorController {
         }
         return "redirect:/editor";
     }
-}
 
+    private static ResponseEntity<Map<String, Object>> error(HttpStatus status, String message) {
+        return ResponseEntity.status(status).body(Collections.singletonMap("error", message));
+    }
+
+    /**
+     * Тело запроса /editor/ranges: ревизия, с которой начато редактирование, и замены строк
+     */
+    @Getter
+    @Setter
+    public static class RangesRequest {
+        private String revision;
+        private List<RangeEdit> edits;
+    }
+
+    /**
+     * Замена строк [from, to) на lines (нумерация с нуля)
+     */
+    @Getter
+    @Setter
+    public static class RangeEdit {
+        private int from;
+        private int to;
+        private List<String> lines;
+    }
+}
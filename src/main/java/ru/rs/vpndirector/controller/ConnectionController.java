@@ -5,26 +5,40 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import ru.rs.vpndirector.service.ListingPage;
+import ru.rs.vpndirector.service.ListingQuery;
+import ru.rs.vpndirector.service.OpenVpnLogTailer;
 import ru.rs.vpndirector.service.OpenVpnStatusService;
 
+import java.util.stream.Collectors;
+
 @Slf4j
 @Controller
 @RequiredArgsConstructor
 public class ConnectionController {
 
     private final OpenVpnStatusService statusService;
+    private final OpenVpnLogTailer logTailer;
 
     @GetMapping("/connections")
-    public String connectionsPage(Model model) {
+    public String connectionsPage(@ModelAttribute("query") ListingQuery query, Model model) {
         try {
-            OpenVpnStatusService.StatusInfo statusInfo = statusService.parseStatusFile();
+            OpenVpnStatusService.StatusInfo statusInfo = statusService.getStatus();
             model.addAttribute("statusInfo", statusInfo);
+            ListingPage<OpenVpnStatusService.ClientConnection> page = statusInfo.search(query);
+            model.addAttribute("page", page);
+            model.addAttribute("sessions", logTailer.getSessions(page.getItems().stream()
+                .map(OpenVpnStatusService.ClientConnection::getClientName).collect(Collectors.toList())));
             model.addAttribute("hasError", false);
         } catch (Exception e) {
             log.error("Ошибка при чтении файла статуса", e);
             model.addAttribute("error", "Ошибка при чтении файла статуса: " + e.getMessage());
             model.addAttribute("hasError", true);
         }
+        model.addAttribute("recentFailures", logTailer.getRecentFailures());
+        model.addAttribute("logFile", logTailer.getLogFile());
+        model.addAttribute("logError", logTailer.getLastError());
         return "connections";
     }
 }
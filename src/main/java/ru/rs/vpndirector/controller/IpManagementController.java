@@ -8,9 +8,18 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.HostResolver;
 import ru.rs.vpndirector.service.OpenVpnConfigFileService;
+import ru.rs.vpndirector.service.PendingChangesService;
+import ru.rs.vpndirector.service.RouteGroupService;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 @Slf4j
 @Controller
@@ -18,15 +27,21 @@ import java.net.InetAddress;
 public class IpManagementController {
 
     private final OpenVpnConfigFileService configFileService;
+    private final HostResolver hostResolver;
+    private final PendingChangesService pendingChangesService;
+    private final RouteGroupService routeGroupService;
+    private final AuditJournal auditJournal;
 
     @GetMapping("/add-ip")
     public String addIpPage(Model model) {
+        model.addAttribute("groups", routeGroupService.getGroups());
         return "add-ip";
     }
 
     @PostMapping("/add-ip")
     public String addIp(@RequestParam String ipAddress, 
                         @RequestParam(required = false) String comment,
+                        @RequestParam(required = false) String group,
                         RedirectAttributes redirectAttributes) {
         try {
             // Валидация IP адреса
@@ -40,24 +55,29 @@ public class IpManagementController {
             }
             
             String subnet = ipParts[0] + "." + ipParts[1] + "." + ipParts[2] + ".0";
+            if (group != null && !group.isEmpty()) {
+                addToGroup(group, subnet, "255.255.255.0", comment, redirectAttributes);
+                return "redirect:/add-ip";
+            }
             String routeLine = "push \"route " + subnet + " 255.255.255.0\"";
             
-            // Проверяем, есть ли уже такая строка в файле
-            String existingLine = configFileService.findLineContaining("push \"route " + subnet + " 255.255.255.0\"");
-            
+            // Если комментарий не пустой, добавляем его перед строкой route
+            List<String> newLines = new ArrayList<>();
+            if (comment != null && !comment.trim().isEmpty()) {
+                newLines.add("#" + comment.trim());
+            }
+            newLines.add(routeLine);
+
+            // Проверка наличия строки и добавление выполняются атомарно
+            String existingLine = configFileService.appendLinesIfAbsent(List.of(routeLine), newLines);
+
             if (existingLine != null) {
                 // Строка уже существует
                 redirectAttributes.addFlashAttribute("error", 
                     "Такой адрес уже есть: " + existingLine);
             } else {
-                // Если комментарий не пустой, добавляем его перед строкой route
-                if (comment != null && !comment.trim().isEmpty()) {
-                    String commentLine = "#" + comment.trim();
-                    configFileService.appendLine(commentLine);
-                }
-                
-                // Добавляем строку маршрута
-                configFileService.appendLine(routeLine);
+                pendingChangesService.markDirty("Добавление IP", routeLine);
+                auditJournal.record(AuditAction.ROUTE_ADD, subnet + " 255.255.255.0", String.join("\n", newLines));
                 redirectAttributes.addFlashAttribute("success", "Подсеть успешно добавлена");
             }
         } catch (Exception e) {
@@ -69,52 +89,53 @@ public class IpManagementController {
 
     @GetMapping("/add-ip-by-domain")
     public String addIpByDomainPage(Model model) {
+        model.addAttribute("groups", routeGroupService.getGroups());
         return "add-ip-by-domain";
     }
 
     @PostMapping("/add-ip-by-domain")
-    public String addIpByDomain(@RequestParam String domain, RedirectAttributes redirectAttributes) {
+    public String addIpByDomain(@RequestParam String domain,
+                                @RequestParam(required = false) String group,
+                                RedirectAttributes redirectAttributes) {
         try {
             // Получаем IP адрес по домену
-            InetAddress address = InetAddress.getByName(domain);
+            InetAddress address = hostResolver.resolve(domain);
             String ipAddress = address.getHostAddress();
             
-            // Проверяем наличие маршрута для конкретного IP адреса
-            String exactRouteLine = "push \"route " + ipAddress + " 255.255.255.255\"";
-            String existingExactRoute = configFileService.findLineContaining(exactRouteLine);
-            
-            if (existingExactRoute != null) {
-                redirectAttributes.addFlashAttribute("error", 
-                    "Такой IP адрес уже есть: " + existingExactRoute);
-                return "redirect:/add-ip-by-domain";
-            }
-            
             // Преобразуем IP адрес в подсеть (например, 1.2.3.4 -> 1.2.3.0)
             String[] ipParts = ipAddress.split("\\.");
             if (ipParts.length != 4) {
                 redirectAttributes.addFlashAttribute("error", "Неверный формат IP адреса");
                 return "redirect:/add-ip-by-domain";
             }
+            if (group != null && !group.isEmpty()) {
+                addToGroup(group, ipAddress, "255.255.255.255", domain, redirectAttributes);
+                return "redirect:/add-ip-by-domain";
+            }
             
+            String exactRouteLine = "push \"route " + ipAddress + " 255.255.255.255\"";
             String subnet = ipParts[0] + "." + ipParts[1] + "." + ipParts[2] + ".0";
             String subnetRouteLine = "push \"route " + subnet + " 255.255.255.0\"";
             
-            // Проверяем наличие маршрута для подсети
-            String existingSubnetRoute = configFileService.findLineContaining(subnetRouteLine);
+            // Проверяем наличие маршрута для конкретного IP адреса и для подсети,
+            // и добавляем комментарий с доменом и маршрут - атомарно
+            String existingRoute = configFileService.appendLinesIfAbsent(
+                List.of(exactRouteLine, subnetRouteLine),
+                List.of("#" + domain, exactRouteLine));
             
-            if (existingSubnetRoute != null) {
-                redirectAttributes.addFlashAttribute("error", 
-                    "Подсеть для этого IP адреса уже есть: " + existingSubnetRoute);
+            if (existingRoute != null) {
+                if (existingRoute.contains(exactRouteLine)) {
+                    redirectAttributes.addFlashAttribute("error", 
+                        "Такой IP адрес уже есть: " + existingRoute);
+                } else {
+                    redirectAttributes.addFlashAttribute("error", 
+                        "Подсеть для этого IP адреса уже есть: " + existingRoute);
+                }
                 return "redirect:/add-ip-by-domain";
             }
-            
-            // Добавляем комментарий с доменом перед строкой маршрута
-            String commentLine = "#" + domain;
-            configFileService.appendLine(commentLine);
-            
-            // Добавляем IP в конфигурацию
-            configFileService.appendLine(exactRouteLine);
-            
+
+            pendingChangesService.markDirty("Добавление IP по домену", domain + ": " + exactRouteLine);
+            auditJournal.record(AuditAction.ROUTE_ADD, Arrays.asList(domain, ipAddress + " 255.255.255.255"), exactRouteLine);
             redirectAttributes.addFlashAttribute("success", 
                 "IP адрес " + ipAddress + " для домена " + domain + " успешно добавлен!");
         } catch (Exception e) {
@@ -123,5 +144,19 @@ public class IpManagementController {
         }
         return "redirect:/add-ip-by-domain";
     }
-}
 
+    /**
+     * Маршрут только для клиентов группы: пишется в их файлы ccd, перезапуск не нужен
+     */
+    private void addToGroup(String group, String network, String mask, String comment,
+                            RedirectAttributes redirectAttributes) throws IOException {
+        if (routeGroupService.addRoute(group, network, mask, comment)) {
+            auditJournal.record(AuditAction.GROUP_ROUTE_ADD,
+                Arrays.asList(group, RouteGroupService.routeTarget(network, mask)), comment);
+            redirectAttributes.addFlashAttribute("success", "Маршрут " + network + " " + mask
+                + " добавлен в группу " + group + ". Перезапуск не нужен: клиенты группы получат его при следующем подключении");
+        } else {
+            redirectAttributes.addFlashAttribute("error", "Такой маршрут в группе " + group + " уже есть");
+        }
+    }
+}
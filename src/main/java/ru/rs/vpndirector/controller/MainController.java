@@ -1,13 +1,23 @@
 package ru.rs.vpndirector.controller;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import ru.rs.vpndirector.service.CertificateExpiryTracker;
+import ru.rs.vpndirector.service.PendingChangesService;
 
 @Controller
+@RequiredArgsConstructor
 public class MainController {
 
+    private final CertificateExpiryTracker certificateExpiryTracker;
+    private final PendingChangesService pendingChangesService;
+
     @GetMapping("/")
-    public String index() {
+    public String index(Model model) {
+        model.addAttribute("expiryWarnings", certificateExpiryTracker.getWarnings());
+        model.addAttribute("pendingChanges", pendingChangesService.getChanges().size());
         return "index";
     }
 
@@ -2,67 +2,70 @@ package ru.rs.vpndirector.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
-import ru.rs.vpndirector.config.OpenVpnProperties;
+import ru.rs.vpndirector.service.OpenVpnRestartService;
+import ru.rs.vpndirector.service.PendingChangesService;
+import ru.rs.vpndirector.service.RestartRun;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 
 @Slf4j
 @Controller
 @RequiredArgsConstructor
 public class OpenVpnServiceController {
-    
-    private final OpenVpnProperties openVpnProperties;
+
+    private final OpenVpnRestartService restartService;
+    private final PendingChangesService pendingChangesService;
 
     @GetMapping("/restart")
-    public String restartPage(Model model) {
+    public String restartPage(@RequestParam(value = "run", required = false) String runId, Model model) {
+        model.addAttribute("run", restartService.getRun(runId));
+        model.addAttribute("history", restartService.getHistory());
+        model.addAttribute("autoDecision", restartService.decide(RestartRun.Mode.AUTO));
+        model.addAttribute("pendingChanges", pendingChangesService.getChanges());
+        model.addAttribute("revertedChanges", pendingChangesService.getReverted());
+        model.addAttribute("nextApplyAt", pendingChangesService.getNextApplyAtLocal());
+        model.addAttribute("applyWindow", pendingChangesService.getWindowText());
+        model.addAttribute("restartsSaved", pendingChangesService.getRestartsSaved());
+        try {
+            model.addAttribute("pendingDiff", pendingChangesService.diff());
+        } catch (IOException e) {
+            log.warn("Не удалось сравнить конфигурацию с рабочей ревизией: {}", e.getMessage());
+            model.addAttribute("pendingDiff", Collections.emptyList());
+        }
         return "restart";
     }
 
     @PostMapping("/restart")
-    public String restartOpenVpn(RedirectAttributes redirectAttributes) {
-        try {
-            // Получаем имя файла конфигурации без расширения для systemctl
-            String configName = openVpnProperties.getConfigFileNameWithoutExtension();
-            String serviceName = "openvpn@" + configName;
-            log.info("Перезапуск OpenVPN сервиса: {}", serviceName);
-            
-            // Попытка перезапустить OpenVPN через systemctl
-            ProcessBuilder processBuilder = new ProcessBuilder("sudo", "systemctl", "restart", serviceName);
-            processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
-            
-            StringBuilder output = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                }
-            }
-            
-            int exitCode = process.waitFor();
-            
-            if (exitCode == 0) {
-                redirectAttributes.addFlashAttribute("success", 
-                    "OpenVPN успешно перезапущен!");
-            } else {
-                redirectAttributes.addFlashAttribute("error", 
-                    "Ошибка при перезапуске OpenVPN. Код выхода: " + exitCode);
-            }
-        } catch (Exception e) {
-            log.error("Ошибка при перезапуске OpenVPN", e);
-            redirectAttributes.addFlashAttribute("error", 
-                "Ошибка при перезапуске: " + e.getMessage() + 
-                ". Убедитесь, что у приложения есть права на выполнение systemctl.");
-        }
-        
+    public String restartOpenVpn(@RequestParam(value = "mode", required = false) String mode,
+                                 RedirectAttributes redirectAttributes) {
+        // Перезапуск применяет сразу все накопленные изменения конфигурации
+        RestartRun run = pendingChangesService.applyNow(RestartRun.Mode.parse(mode));
+        log.info("Перезапуск OpenVPN {} (режим {})", run.getId(), run.getMode());
+        redirectAttributes.addAttribute("run", run.getId());
         return "redirect:/restart";
     }
-}
 
+    /**
+     * Состояние перезапуска для опроса со страницы
+     */
+    @GetMapping("/restart/runs/{id}")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> restartState(@PathVariable String id) {
+        RestartRun run = restartService.getRun(id);
+        if (run == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(run.summary());
+    }
+}
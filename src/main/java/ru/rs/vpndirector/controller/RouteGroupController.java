@@ -0,0 +1,140 @@
+package ru.rs.vpndirector.controller;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.rs.vpndirector.service.AuditAction;
+import ru.rs.vpndirector.service.AuditJournal;
+import ru.rs.vpndirector.service.CertificateRegistry;
+import ru.rs.vpndirector.service.PendingChangesService;
+import ru.rs.vpndirector.service.RouteGroupService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+/**
+ * Группы маршрутов для отдельных клиентов (client-config-dir). Изменения применяются
+ * без перезапуска сервера: клиенты получают новые маршруты при следующем подключении
+ */
+@Slf4j
+@Controller
+@RequiredArgsConstructor
+public class RouteGroupController {
+
+    private static final String APPLIED = " Клиенты получат изменения при следующем подключении.";
+
+    private final RouteGroupService routeGroupService;
+    private final CertificateRegistry certificateRegistry;
+    private final PendingChangesService pendingChangesService;
+    private final AuditJournal auditJournal;
+
+    @GetMapping("/route-groups")
+    public String routeGroupsPage(Model model) {
+        model.addAttribute("groups", routeGroupService.getGroups());
+        model.addAttribute("ccdEnabled", routeGroupService.isCcdEnabled());
+        model.addAttribute("ccdDir", routeGroupService.getCcdDir());
+        model.addAttribute("clientNames", new TreeSet<>(certificateRegistry.getValidNames()));
+        return "route-groups";
+    }
+
+    @PostMapping("/route-groups")
+    public String createGroup(@RequestParam String name, RedirectAttributes redirectAttributes) {
+        return update(redirectAttributes, "Группа создана", () -> routeGroupService.createGroup(name),
+            AuditAction.GROUP_CREATE, name != null ? name.trim() : null);
+    }
+
+    @PostMapping("/route-groups/delete")
+    public String deleteGroup(@RequestParam String group, RedirectAttributes redirectAttributes) {
+        return update(redirectAttributes, "Группа " + group + " удалена." + APPLIED,
+            () -> routeGroupService.deleteGroup(group), AuditAction.GROUP_DELETE, group);
+    }
+
+    @PostMapping("/route-groups/routes")
+    public String addRoute(@RequestParam String group,
+                           @RequestParam String network,
+                           @RequestParam(required = false) String mask,
+                           @RequestParam(required = false) String comment,
+                           RedirectAttributes redirectAttributes) {
+        try {
+            if (routeGroupService.addRoute(group, network, mask, comment)) {
+                auditJournal.record(AuditAction.GROUP_ROUTE_ADD,
+                    Arrays.asList(group, RouteGroupService.routeTarget(network, mask)), comment);
+                redirectAttributes.addFlashAttribute("success", "Маршрут добавлен в группу " + group + "." + APPLIED);
+            } else {
+                redirectAttributes.addFlashAttribute("error", "Такой маршрут в группе " + group + " уже есть");
+            }
+        } catch (Exception e) {
+            log.error("Ошибка при добавлении маршрута в группу {}", group, e);
+            redirectAttributes.addFlashAttribute("error", "Ошибка: " + e.getMessage());
+        }
+        return "redirect:/route-groups";
+    }
+
+    @PostMapping("/route-groups/routes/delete")
+    public String removeRoute(@RequestParam String group,
+                              @RequestParam String network,
+                              @RequestParam String mask,
+                              RedirectAttributes redirectAttributes) {
+        return update(redirectAttributes, "Маршрут удален из группы " + group + "." + APPLIED,
+            () -> routeGroupService.removeRoute(group, network, mask),
+            AuditAction.GROUP_ROUTE_REMOVE, group, network + " " + mask);
+    }
+
+    @PostMapping("/route-groups/clients")
+    public String assign(@RequestParam String group, @RequestParam String client,
+                         RedirectAttributes redirectAttributes) {
+        return update(redirectAttributes, "Клиент " + client + " добавлен в группу " + group + "." + APPLIED,
+            () -> routeGroupService.assign(group, client), AuditAction.GROUP_CLIENT_ADD, group, client);
+    }
+
+    @PostMapping("/route-groups/clients/delete")
+    public String unassign(@RequestParam String group, @RequestParam String client,
+                           RedirectAttributes redirectAttributes) {
+        return update(redirectAttributes, "Клиент " + client + " исключен из группы " + group + "." + APPLIED,
+            () -> routeGroupService.unassign(group, client), AuditAction.GROUP_CLIENT_REMOVE, group, client);
+    }
+
+    @PostMapping("/route-groups/enable-ccd")
+    public String enableCcd(RedirectAttributes redirectAttributes) {
+        try {
+            String line = routeGroupService.enableCcd();
+            if (line == null) {
+                redirectAttributes.addFlashAttribute("error", "Директива client-config-dir уже есть в конфигурации");
+            } else {
+                // client-config-dir - единственное изменение, которому нужен перезапуск
+                pendingChangesService.markDirty("Группы маршрутов", line);
+                auditJournal.record(AuditAction.CCD_ENABLE, Collections.emptyList(), line);
+                redirectAttributes.addFlashAttribute("success",
+                    "Добавлено: " + line + ". Изменение вступит в силу после перезапуска OpenVPN");
+            }
+        } catch (Exception e) {
+            log.error("Ошибка при включении client-config-dir", e);
+            redirectAttributes.addFlashAttribute("error", "Ошибка: " + e.getMessage());
+        }
+        return "redirect:/route-groups";
+    }
+
+    private String update(RedirectAttributes redirectAttributes, String success, GroupAction action,
+                          AuditAction auditAction, String... subjects) {
+        try {
+            action.run();
+            auditJournal.record(auditAction, Arrays.asList(subjects), null);
+            redirectAttributes.addFlashAttribute("success", success);
+        } catch (Exception e) {
+            log.error("Ошибка при изменении групп маршрутов", e);
+            redirectAttributes.addFlashAttribute("error", "Ошибка: " + e.getMessage());
+        }
+        return "redirect:/route-groups";
+    }
+
+    @FunctionalInterface
+    private interface GroupAction {
+        void run() throws Exception;
+    }
+}
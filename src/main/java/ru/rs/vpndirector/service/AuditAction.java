@@ -0,0 +1,74 @@
+package ru.rs.vpndirector.service;
+
+/**
+ * Действия, которые пишутся в журнал аудита. Код хранится в записи журнала, поэтому коды
+ * существующих действий менять нельзя; новые действия получают следующий свободный код (не больше 31)
+ */
+public enum AuditAction {
+    UNKNOWN(0, "Неизвестное действие"),
+    ROUTE_ADD(1, "Маршрут добавлен"),
+    GROUP_CREATE(2, "Группа маршрутов создана"),
+    GROUP_DELETE(3, "Группа маршрутов удалена"),
+    GROUP_ROUTE_ADD(4, "Маршрут добавлен в группу"),
+    GROUP_ROUTE_REMOVE(5, "Маршрут удален из группы"),
+    GROUP_CLIENT_ADD(6, "Клиент добавлен в группу"),
+    GROUP_CLIENT_REMOVE(7, "Клиент исключен из группы"),
+    CCD_ENABLE(8, "Включен client-config-dir"),
+    CONFIG_EDIT(9, "Конфигурация изменена в редакторе"),
+    CONFIG_RESTORE(10, "Конфигурация восстановлена из резервной копии"),
+    CONFIG_RESET(11, "Конфигурация сброшена"),
+    CERT_ISSUE(12, "Выпуск сертификата"),
+    CERT_BULK_ISSUE(13, "Массовый выпуск сертификатов"),
+    CERT_REVOKE(14, "Сертификат отозван"),
+    PROFILE_DOWNLOAD(15, "Скачан профиль клиента"),
+    CONFIG_DOWNLOAD(16, "Скачана готовая конфигурация"),
+    PROFILE_EXPORT(17, "Выгрузка профилей"),
+    RESTART(18, "Перезапуск OpenVPN");
+
+    private static final AuditAction[] BY_CODE = new AuditAction[32];
+
+    static {
+        for (AuditAction action : values()) {
+            BY_CODE[action.code] = action;
+        }
+    }
+
+    private final int code;
+    private final String label;
+
+    AuditAction(int code, String label) {
+        this.code = code;
+        this.label = label;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Действие по коду из журнала; коды, записанные более новой версией, читаются как UNKNOWN
+     */
+    public static AuditAction of(int code) {
+        AuditAction action = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        return action != null ? action : UNKNOWN;
+    }
+
+    /**
+     * Действие по имени константы или null, если имя пустое или неизвестное
+     */
+    public static AuditAction parse(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        for (AuditAction action : values()) {
+            if (action.name().equalsIgnoreCase(name)) {
+                return action;
+            }
+        }
+        return null;
+    }
+}
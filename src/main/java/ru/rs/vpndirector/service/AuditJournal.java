@@ -0,0 +1,368 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Журнал аудита: кто и когда добавил маршрут, выпустил, отозвал или скачал сертификат, правил конфигурацию,
+ * перезапускал OpenVPN.
+ * <p>
+ * Записи только дописываются в сегменты в каталоге audit-dir (см. {@link AuditSegment}); когда активный
+ * сегмент заполняется до audit-segment-size, он закрывается и начинается следующий. Каталог и первый
+ * сегмент создаются при первой записи, а не при запуске, - пока действий не было, журнал не занимает места. Поиск идет от новых
+ * сегментов к старым и использует разреженный индекс сегментов по времени, действию и субъекту, поэтому
+ * читает только блоки, где могут быть нужные записи. Раз в сутки записи старше audit-retention удаляются:
+ * закрытые сегменты целиком, а у самого старого из оставшихся - устаревшее начало, если оно занимает
+ * не меньше половины сегмента.
+ * <p>
+ * Ошибка записи в журнал не отменяет само действие: она пишется в лог и в метрику vpndirector.audit.failures.
+ */
+@Slf4j
+@Service
+public class AuditJournal {
+
+    /**
+     * Пользователь для действий, выполненных приложением без запроса (автоматическое применение изменений)
+     */
+    public static final String SYSTEM_USER = "system";
+
+    private static final long MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 1024 * 1024 * 1024;
+    private static final Duration COMPACTION_PERIOD = Duration.ofDays(1);
+
+    private final OpenVpnProperties openVpnProperties;
+    private final Clock clock;
+    private final Counter recordsCounter;
+    private final Counter failuresCounter;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Сегменты от старых к новым; последний - активный
+     */
+    private final List<AuditSegment> segments = new ArrayList<>();
+    private Path directory;
+    private int segmentSize;
+    private boolean opened;
+    private long lastTime;
+
+    private ScheduledExecutorService executor;
+
+    @Autowired
+    public AuditJournal(OpenVpnProperties openVpnProperties, MeterRegistry meterRegistry) {
+        this(openVpnProperties, meterRegistry, Clock.systemDefaultZone());
+    }
+
+    AuditJournal(OpenVpnProperties openVpnProperties, MeterRegistry meterRegistry, Clock clock) {
+        this.openVpnProperties = openVpnProperties;
+        this.clock = clock;
+        this.recordsCounter = Counter.builder("vpndirector.audit.records")
+            .description("Записи, добавленные в журнал аудита")
+            .register(meterRegistry);
+        this.failuresCounter = Counter.builder("vpndirector.audit.failures")
+            .description("Действия, которые не удалось записать в журнал аудита")
+            .register(meterRegistry);
+        Gauge.builder("vpndirector.audit.segments", this, AuditJournal::getSegmentCount)
+            .description("Сегменты журнала аудита")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        try {
+            open();
+        } catch (IOException e) {
+            log.error("Журнал аудита недоступен, действия не будут записываться", e);
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "audit-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::compactQuietly, 1, COMPACTION_PERIOD.toMinutes(), TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        lock.writeLock().lock();
+        try {
+            for (AuditSegment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        } catch (IOException e) {
+            log.warn("Ошибка при закрытии журнала аудита: {}", e.getMessage());
+        } finally {
+            opened = false;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Открывает сегменты каталога audit-dir: закрытые - по сохраненному индексу, последний - для дописывания.
+     * Если каталога еще нет, он не создается: это сделает первая запись
+     */
+    void open() throws IOException {
+        directory = Paths.get(openVpnProperties.getOpenvpnRoot()).resolve(openVpnProperties.getAuditDir()).normalize();
+        long size = openVpnProperties.getAuditSegmentSize().toBytes();
+        segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(size, MAX_SEGMENT_SIZE));
+        List<Path> files = Collections.emptyList();
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> list = Files.list(directory)) {
+                // номер первой записи в имени дополнен нулями, поэтому порядок имен совпадает с порядком сегментов
+                files = list.filter(AuditSegment::isSegmentFile).sorted().collect(Collectors.toList());
+            }
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                boolean active = i == files.size() - 1 && !Files.exists(AuditSegment.indexPath(file));
+                AuditSegment segment = active ? AuditSegment.openActive(file, segmentSize) : AuditSegment.openSealed(file);
+                if (segment.getDiscarded() > 0) {
+                    log.warn("Журнал аудита: в {} отброшен поврежденный хвост ({} байт)", file, segment.getDiscarded());
+                }
+                AuditSegment previous = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+                if (previous != null && segment.getBaseSeq() < previous.getNextSeq()) {
+                    // очистка прервалась между записью укороченной копии сегмента и удалением исходного
+                    log.warn("Журнал аудита: сегмент {} повторяет записи {}, удаляется", file, previous.getPath());
+                    segment.delete();
+                    continue;
+                }
+                segments.add(segment);
+            }
+            for (AuditSegment segment : segments) {
+                if (segment.getCount() > 0) {
+                    lastTime = Math.max(lastTime, segment.getLastTime());
+                }
+            }
+            opened = true;
+            log.info("Журнал аудита {}: сегментов {}, записей {}", directory, segments.size(), getRecordCountUnlocked());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Сегмент для дописывания; если его нет (журнал пуст или последний сегмент закрыт), создается новый.
+     * Вызывается под блокировкой записи
+     */
+    private AuditSegment activeSegment() throws IOException {
+        AuditSegment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && !last.isSealed()) {
+            return last;
+        }
+        Files.createDirectories(directory);
+        AuditSegment created = AuditSegment.create(directory, last != null ? last.getNextSeq() : 0, segmentSize);
+        segments.add(created);
+        log.info("Журнал аудита: начат сегмент {}", created.getPath().getFileName());
+        return created;
+    }
+
+    /**
+     * Записывает действие текущего пользователя
+     *
+     * @param subject с чем выполнено действие: CN, маршрут, домен, группа
+     * @param details подробности в свободной форме
+     */
+    public void record(AuditAction action, String subject, String details) {
+        record(action, subject != null ? Collections.singletonList(subject) : Collections.emptyList(), details);
+    }
+
+    public void record(AuditAction action, List<String> subjects, String details) {
+        String user = currentUser();
+        lock.writeLock().lock();
+        try {
+            if (!opened) {
+                throw new IOException("журнал не открыт");
+            }
+            AuditSegment active = activeSegment();
+            // время записей не убывает, даже если часы сервера перевели назад - на этом основан поиск по времени
+            lastTime = Math.max(lastTime, clock.millis());
+            byte[] body = AuditRecord.encode(lastTime, action, user, subjects, details);
+            AuditRecord record = AuditRecord.decode(active.getNextSeq(), ByteBuffer.wrap(body));
+            if (!active.append(record, body)) {
+                active.seal();
+                active = activeSegment();
+                if (!active.append(record, body)) {
+                    throw new IOException("запись длиннее сегмента (" + body.length + " байт)");
+                }
+            }
+            recordsCounter.increment();
+        } catch (IOException | RuntimeException e) {
+            failuresCounter.increment();
+            log.error("Не удалось записать в журнал аудита: {} {} {} ({})", user, action, subjects, details, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Записи, подходящие под фильтр, от новых к старым
+     */
+    public AuditPage query(AuditQuery query) throws IOException {
+        long started = System.nanoTime();
+        Long from = startOfDay(query.getFrom(), 0);
+        Long to = startOfDay(query.getTo(), 1);
+        AuditSegment.Filter filter = new AuditSegment.Filter(
+            from != null ? from : Long.MIN_VALUE,
+            to != null ? to : Long.MAX_VALUE,
+            query.getBefore() != null ? query.getBefore() : Long.MAX_VALUE,
+            AuditAction.parse(query.getAction()),
+            query.getSubject().isEmpty() ? null : query.getSubject(),
+            query.getUser().isEmpty() ? null : query.getUser());
+        int limit = query.getSize();
+        List<AuditRecord> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (int i = segments.size() - 1; i >= 0 && found.size() <= limit; i--) {
+                AuditSegment segment = segments.get(i);
+                if (segment.getCount() == 0 || segment.getBaseSeq() >= filter.before || segment.getFirstTime() >= filter.to) {
+                    continue;
+                }
+                if (segment.getLastTime() < filter.from) {
+                    break;
+                }
+                // одна лишняя запись показывает, есть ли следующая страница
+                segment.search(filter, found, limit + 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Long nextBefore = null;
+        if (found.size() > limit) {
+            found.remove(limit);
+            nextBefore = found.get(limit - 1).getSeq();
+        }
+        return new AuditPage(found, nextBefore, (System.nanoTime() - started) / 1000);
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getRecordCount() {
+        lock.readLock().lock();
+        try {
+            return getRecordCountUnlocked();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getSizeBytes() {
+        lock.readLock().lock();
+        try {
+            return segments.stream().mapToLong(AuditSegment::getSize).sum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Удаляет записи старше audit-retention (0 - хранить всегда). Активный сегмент не трогается
+     */
+    void compact() throws IOException {
+        Duration retention = openVpnProperties.getAuditRetention();
+        if (retention == null || retention.isZero() || retention.isNegative()) {
+            return;
+        }
+        long cutoff = clock.millis() - retention.toMillis();
+        lock.writeLock().lock();
+        try {
+            int removed = 0;
+            while (segments.size() > 1 && segments.get(0).getLastTime() < cutoff) {
+                removed += segments.get(0).getCount();
+                segments.remove(0).delete();
+            }
+            if (segments.size() > 1) {
+                AuditSegment oldest = segments.get(0);
+                int expired = oldest.countBefore(cutoff);
+                if (expired > 0 && expired * 2 >= oldest.getCount()) {
+                    segments.set(0, oldest.dropFirst(expired));
+                    oldest.delete();
+                    removed += expired;
+                }
+            }
+            if (removed > 0) {
+                log.info("Журнал аудита: удалено записей старше {} дн.: {}", retention.toDays(), removed);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            log.error("Ошибка очистки журнала аудита", e);
+        }
+    }
+
+    private long getRecordCountUnlocked() {
+        return segments.stream().mapToLong(AuditSegment::getCount).sum();
+    }
+
+    /**
+     * Начало дня date + plusDays в миллисекундах или null, если дата не задана или не разобрана
+     */
+    private Long startOfDay(String date, int plusDays) {
+        if (date == null || date.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(date.trim()).plusDays(plusDays).atStartOfDay(clock.getZone()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Имя пользователя текущего запроса или {@link #SYSTEM_USER}
+     */
+    static String currentUser() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication == null || !authentication.isAuthenticated()
+            || authentication instanceof AnonymousAuthenticationToken) {
+            return SYSTEM_USER;
+        }
+        return authentication.getName();
+    }
+}
@@ -0,0 +1,45 @@
+package ru.rs.vpndirector.service;
+
+import java.util.List;
+
+/**
+ * Страница журнала аудита: записи от новых к старым
+ */
+public class AuditPage {
+
+    private final List<AuditRecord> records;
+    private final Long nextBefore;
+    private final long elapsedMicros;
+
+    public AuditPage(List<AuditRecord> records, Long nextBefore, long elapsedMicros) {
+        this.records = records;
+        this.nextBefore = nextBefore;
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    public List<AuditRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * Значение before для следующей (более старой) страницы или null, если записей больше нет
+     */
+    public Long getNextBefore() {
+        return nextBefore;
+    }
+
+    public boolean isHasNext() {
+        return nextBefore != null;
+    }
+
+    /**
+     * Время поиска
+     */
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    public double getElapsedMillis() {
+        return elapsedMicros / 1000.0;
+    }
+}
@@ -0,0 +1,54 @@
+package ru.rs.vpndirector.service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Фильтр страницы журнала аудита из строки запроса: ?from=2024-01-01&to=2024-02-01&action=CERT_REVOKE&subject=ivanov&user=admin.
+ * Все параметры необязательные; before - номер записи, с которой продолжить (следующая страница)
+ */
+@Getter
+@Setter
+public class AuditQuery {
+
+    public static final int DEFAULT_SIZE = 100;
+    public static final int MAX_SIZE = 1000;
+
+    /**
+     * Первый день интервала (yyyy-MM-dd, включительно)
+     */
+    private String from = "";
+
+    /**
+     * Последний день интервала (yyyy-MM-dd, включительно)
+     */
+    private String to = "";
+
+    /**
+     * Имя константы {@link AuditAction}
+     */
+    private String action = "";
+
+    /**
+     * Точное значение субъекта без учета регистра: CN, маршрут "10.0.0.0 255.255.255.0", домен, группа
+     */
+    private String subject = "";
+
+    private String user = "";
+
+    private Long before;
+
+    private int size = DEFAULT_SIZE;
+
+    public String getSubject() {
+        return subject != null ? subject.trim() : "";
+    }
+
+    public String getUser() {
+        return user != null ? user.trim() : "";
+    }
+
+    public int getSize() {
+        return size < 1 ? DEFAULT_SIZE : Math.min(size, MAX_SIZE);
+    }
+}
@@ -0,0 +1,133 @@
+package ru.rs.vpndirector.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Запись журнала аудита: кто, когда, что сделал и с чем (субъекты - CN сертификатов, маршруты, домены, группы).
+ * <p>
+ * Двоичное тело записи: long время (мс), byte код действия, пользователь, short число субъектов,
+ * субъекты, подробности. Строки - unsigned short длина и UTF-8
+ */
+public final class AuditRecord {
+
+    static final int MAX_SUBJECTS = 1000;
+    private static final int MAX_STRING_BYTES = 1024;
+    private static final int MAX_DETAILS_BYTES = 8192;
+
+    private final long seq;
+    private final Instant time;
+    private final AuditAction action;
+    private final String user;
+    private final List<String> subjects;
+    private final String details;
+
+    AuditRecord(long seq, Instant time, AuditAction action, String user, List<String> subjects, String details) {
+        this.seq = seq;
+        this.time = time;
+        this.action = action;
+        this.user = user;
+        this.subjects = subjects;
+        this.details = details;
+    }
+
+    /**
+     * Сквозной номер записи в журнале (не меняется при ротации и очистке)
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    public Instant getTime() {
+        return time;
+    }
+
+    public LocalDateTime getTimeLocal() {
+        return LocalDateTime.ofInstant(time, ZoneId.systemDefault());
+    }
+
+    public AuditAction getAction() {
+        return action;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public List<String> getSubjects() {
+        return subjects;
+    }
+
+    public String getDetails() {
+        return details;
+    }
+
+    static byte[] encode(long time, AuditAction action, String user, List<String> subjects, String details) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(time);
+            out.writeByte(action.getCode());
+            writeString(out, user, MAX_STRING_BYTES);
+            int count = Math.min(subjects.size(), MAX_SUBJECTS);
+            out.writeShort(count);
+            for (int i = 0; i < count; i++) {
+                writeString(out, subjects.get(i), MAX_STRING_BYTES);
+            }
+            writeString(out, details, MAX_DETAILS_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Читает тело записи с текущей позиции буфера
+     */
+    static AuditRecord decode(long seq, ByteBuffer body) {
+        long time = body.getLong();
+        AuditAction action = AuditAction.of(body.get());
+        String user = readString(body);
+        int count = Short.toUnsignedInt(body.getShort());
+        List<String> subjects = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            subjects.add(readString(body));
+        }
+        String details = readString(body);
+        return new AuditRecord(seq, Instant.ofEpochMilli(time), action, user,
+            Collections.unmodifiableList(subjects), details);
+    }
+
+    private static void writeString(DataOutputStream out, String value, int limit) throws IOException {
+        byte[] bytes = truncate(value != null ? value : "", limit);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * UTF-8 не длиннее limit байт; строка обрезается по символам, а не посреди символа
+     */
+    private static byte[] truncate(String value, int limit) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        while (bytes.length > limit) {
+            value = value.substring(0, (int) ((long) value.length() * limit / bytes.length) - 1);
+            bytes = value.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] bytes = new byte[Short.toUnsignedInt(body.getShort())];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,563 @@
+package ru.rs.vpndirector.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Сегмент журнала аудита: файл записей, который дописывается через отображение в память, и разреженный индекс к нему.
+ * <p>
+ * Файл: заголовок (MAGIC, VERSION), затем записи [int длина тела][тело][int CRC32 тела]. Длина 0 - конец
+ * данных: активный сегмент заранее растянут до полного размера и заполнен нулями. Длина записи пишется
+ * последней, поэтому недописанная при сбое запись не видна, а поврежденная отсекается по CRC.
+ * <p>
+ * Индекс строится на блок из {@link #BLOCK} записей: смещение и время первой записи, маска кодов действий
+ * и 256-битный фильтр Блума по пользователю и субъектам. Время записей в журнале не убывает, поэтому блоки
+ * ищутся по времени двоичным поиском, а блоки без нужного действия или субъекта пропускаются не читая.
+ * Закрытый сегмент обрезается по данным, а индекс сохраняется рядом в .idx, чтобы при запуске его не перечитывать.
+ * Методы не потокобезопасны: доступ к сегментам разграничивает {@link AuditJournal}
+ */
+final class AuditSegment {
+
+    static final int BLOCK = 32;
+    static final String SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x56444155;
+    private static final int INDEX_MAGIC = 0x56444149;
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int BLOOM_WORDS = 4;
+    /**
+     * Тело без строк: время, действие, длина пользователя, число субъектов и длина подробностей
+     */
+    private static final int MIN_BODY = 8 + 1 + 2 + 2 + 2;
+
+    private final Path path;
+    private final long baseSeq;
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private boolean sealed;
+    private int end = HEADER;
+    private int count;
+    private long firstTime;
+    private long lastTime;
+    private int discarded;
+
+    private int blocks;
+    private int[] blockOffsets = new int[8];
+    private long[] blockTimes = new long[8];
+    private int[] blockActions = new int[8];
+    private long[] blockBlooms = new long[8 * BLOOM_WORDS];
+
+    private AuditSegment(Path path, long baseSeq) {
+        this.path = path;
+        this.baseSeq = baseSeq;
+    }
+
+    /**
+     * Новый пустой активный сегмент, первая запись которого получит номер baseSeq
+     */
+    static AuditSegment create(Path directory, long baseSeq, int capacity) throws IOException {
+        AuditSegment segment = new AuditSegment(directory.resolve(fileName(baseSeq)), baseSeq);
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer mapped = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mapped.putInt(0, MAGIC);
+        mapped.putInt(4, VERSION);
+        mapped.force();
+        segment.buffer = mapped;
+        return segment;
+    }
+
+    /**
+     * Открывает активный сегмент для дописывания. Поврежденный хвост (запись, оборванная сбоем)
+     * затирается нулями, и следующие записи пишутся на его место ({@link #getDiscarded()})
+     */
+    static AuditSegment openActive(Path path, int capacity) throws IOException {
+        AuditSegment segment = new AuditSegment(path, baseSeq(path));
+        segment.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(capacity, segment.channel.size());
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        checkHeader(segment.buffer, path);
+        if (!segment.scan()) {
+            int claimed = segment.buffer.getInt(segment.end);
+            int stop = (int) Math.min(size, segment.end + 8L + Math.max(claimed, 0));
+            for (int position = segment.end; position < stop; position++) {
+                segment.buffer.put(position, (byte) 0);
+            }
+            ((MappedByteBuffer) segment.buffer).force();
+            segment.discarded = stop - segment.end;
+        }
+        return segment;
+    }
+
+    /**
+     * Открывает закрытый сегмент: индекс читается из .idx, а если его нет или он не соответствует
+     * файлу - строится заново проходом по записям
+     */
+    static AuditSegment openSealed(Path path) throws IOException {
+        AuditSegment segment = new AuditSegment(path, baseSeq(path));
+        segment.sealed = true;
+        if (!segment.loadIndex()) {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment.buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+                checkHeader(segment.buffer, path);
+                // нули после данных остаются от активного сегмента, закрытого при сбое; поврежденный файл не обрезается
+                if (segment.scan() && segment.end < file.size()) {
+                    segment.buffer = null;
+                    file.truncate(segment.end);
+                }
+            }
+            segment.writeIndex();
+        }
+        return segment;
+    }
+
+    static String fileName(long baseSeq) {
+        return String.format(Locale.ROOT, "%020d", baseSeq) + SUFFIX;
+    }
+
+    static boolean isSegmentFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.length() == 20 + SUFFIX.length() && name.endsWith(SUFFIX)
+            && name.chars().limit(20).allMatch(Character::isDigit);
+    }
+
+    static Path indexPath(Path segmentPath) {
+        String name = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(name.substring(0, name.length() - SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getBaseSeq() {
+        return baseSeq;
+    }
+
+    /**
+     * Номер, который получит следующая запись
+     */
+    long getNextSeq() {
+        return baseSeq + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getSize() {
+        return end;
+    }
+
+    long getFirstTime() {
+        return firstTime;
+    }
+
+    long getLastTime() {
+        return lastTime;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Сколько байт поврежденного хвоста затерто при открытии
+     */
+    int getDiscarded() {
+        return discarded;
+    }
+
+    /**
+     * Дописывает запись. Возвращает false, если в сегменте не осталось места
+     */
+    boolean append(AuditRecord record, byte[] body) {
+        int position = end;
+        if ((long) position + 8 + body.length > buffer.capacity()) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + 4);
+        target.put(body);
+        target.putInt((int) crc.getValue());
+        // длина пишется последней: до этого момента запись не видна при чтении
+        buffer.putInt(position, body.length);
+        ((MappedByteBuffer) buffer).force();
+        end = position + 8 + body.length;
+        index(position, record);
+        return true;
+    }
+
+    /**
+     * Закрывает сегмент для записи: файл обрезается по данным, индекс сохраняется в .idx
+     */
+    void seal() throws IOException {
+        ((MappedByteBuffer) buffer).force();
+        // отображение на весь размер после обрезки файла трогать нельзя, для чтения сегмент отобразится заново
+        buffer = null;
+        channel.truncate(end);
+        channel.force(true);
+        channel.close();
+        channel = null;
+        sealed = true;
+        writeIndex();
+    }
+
+    void close() throws IOException {
+        if (channel != null) {
+            ((MappedByteBuffer) buffer).force();
+            channel.close();
+            channel = null;
+        }
+        buffer = null;
+    }
+
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(indexPath(path));
+    }
+
+    /**
+     * Добавляет в result подходящие под фильтр записи сегмента, от новых к старым, пока в result не наберется limit
+     */
+    void search(Filter filter, List<AuditRecord> result, int limit) throws IOException {
+        if (count == 0 || filter.before <= baseSeq) {
+            return;
+        }
+        int last = blocks - 1;
+        if (filter.before < getNextSeq()) {
+            last = (int) ((filter.before - 1 - baseSeq) / BLOCK);
+        }
+        last = Math.min(last, lastBlockBefore(filter.to));
+        ByteBuffer data = data();
+        List<AuditRecord> block = new ArrayList<>(BLOCK);
+        for (int b = last; b >= 0 && result.size() < limit; b--) {
+            if (b + 1 < blocks && blockTimes[b + 1] < filter.from) {
+                // все записи этого блока и более ранних не новее первой записи следующего блока
+                break;
+            }
+            if ((blockActions[b] & filter.actions) == 0 || !filter.mayContain(blockBlooms, b * BLOOM_WORDS)) {
+                continue;
+            }
+            block.clear();
+            int position = blockOffsets[b];
+            int records = Math.min(BLOCK, count - b * BLOCK);
+            for (int i = 0; i < records; i++) {
+                int length = data.getInt(position);
+                block.add(AuditRecord.decode(baseSeq + (long) b * BLOCK + i, body(data, position, length)));
+                position += length + 8;
+            }
+            for (int i = block.size() - 1; i >= 0 && result.size() < limit; i--) {
+                if (filter.matches(block.get(i))) {
+                    result.add(block.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Сколько записей в начале сегмента старше cutoff
+     */
+    int countBefore(long cutoff) throws IOException {
+        int b = 0;
+        while (b + 1 < blocks && blockTimes[b + 1] < cutoff) {
+            b++;
+        }
+        ByteBuffer data = data();
+        int k = b * BLOCK;
+        int position = blocks > 0 ? blockOffsets[b] : HEADER;
+        while (k < count && data.getLong(position + 4) < cutoff) {
+            position += data.getInt(position) + 8;
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Копия закрытого сегмента без первых skip записей. Номера оставшихся записей не меняются:
+     * новый сегмент начинается с baseSeq + skip. Исходный сегмент не удаляется
+     */
+    AuditSegment dropFirst(int skip) throws IOException {
+        ByteBuffer data = data();
+        int position = HEADER;
+        for (int i = 0; i < skip; i++) {
+            position += data.getInt(position) + 8;
+        }
+        Path target = path.resolveSibling(fileName(baseSeq + skip));
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            out.write(header);
+            ByteBuffer rest = data.duplicate();
+            rest.limit(end).position(position);
+            while (rest.hasRemaining()) {
+                out.write(rest);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return openSealed(target);
+    }
+
+    /**
+     * Проходит записи от начала и строит индекс. Возвращает false, если данные оборвались на поврежденной записи
+     */
+    private boolean scan() {
+        int position = HEADER;
+        int limit = buffer.capacity();
+        while (position <= limit - 4) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                end = position;
+                return true;
+            }
+            if (length < MIN_BODY || length > limit - position - 8) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body(buffer, position, length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4 + length)) {
+                break;
+            }
+            index(position, AuditRecord.decode(baseSeq + count, body(buffer, position, length)));
+            position += length + 8;
+        }
+        end = position;
+        return position > limit - 4;
+    }
+
+    private void index(int position, AuditRecord record) {
+        if (count % BLOCK == 0) {
+            if (blocks == blockOffsets.length) {
+                int capacity = blocks * 2;
+                blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+                blockTimes = Arrays.copyOf(blockTimes, capacity);
+                blockActions = Arrays.copyOf(blockActions, capacity);
+                blockBlooms = Arrays.copyOf(blockBlooms, capacity * BLOOM_WORDS);
+            }
+            blockOffsets[blocks] = position;
+            blockTimes[blocks] = record.getTime().toEpochMilli();
+            blocks++;
+        }
+        int block = blocks - 1;
+        blockActions[block] |= 1 << record.getAction().getCode();
+        addKey(blockBlooms, block * BLOOM_WORDS, record.getUser());
+        for (String subject : record.getSubjects()) {
+            addKey(blockBlooms, block * BLOOM_WORDS, subject);
+        }
+        if (count == 0) {
+            firstTime = record.getTime().toEpochMilli();
+        }
+        lastTime = record.getTime().toEpochMilli();
+        count++;
+    }
+
+    /**
+     * Последний блок, первая запись которого раньше time, или -1
+     */
+    private int lastBlockBefore(long time) {
+        int low = 0;
+        int high = blocks - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockTimes[middle] < time) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private synchronized ByteBuffer data() throws IOException {
+        if (buffer == null) {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, end);
+            }
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer body(ByteBuffer data, int position, int length) {
+        ByteBuffer body = data.duplicate();
+        body.limit(position + 4 + length).position(position + 4);
+        return body;
+    }
+
+    private void writeIndex() throws IOException {
+        Path index = indexPath(path);
+        Path tmp = index.resolveSibling(index.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(end);
+            out.writeInt(count);
+            out.writeLong(firstTime);
+            out.writeLong(lastTime);
+            out.writeInt(blocks);
+            for (int b = 0; b < blocks; b++) {
+                out.writeInt(blockOffsets[b]);
+                out.writeLong(blockTimes[b]);
+                out.writeInt(blockActions[b]);
+                for (int w = 0; w < BLOOM_WORDS; w++) {
+                    out.writeLong(blockBlooms[b * BLOOM_WORDS + w]);
+                }
+            }
+        }
+        Files.move(tmp, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private boolean loadIndex() throws IOException {
+        Path index = indexPath(path);
+        if (!Files.exists(index)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            int indexedEnd = in.readInt();
+            if (indexedEnd != Files.size(path)) {
+                return false;
+            }
+            int indexedCount = in.readInt();
+            long indexedFirst = in.readLong();
+            long indexedLast = in.readLong();
+            int indexedBlocks = in.readInt();
+            if (indexedBlocks != (indexedCount + BLOCK - 1) / BLOCK) {
+                return false;
+            }
+            int[] offsets = new int[Math.max(indexedBlocks, 1)];
+            long[] times = new long[offsets.length];
+            int[] actions = new int[offsets.length];
+            long[] blooms = new long[offsets.length * BLOOM_WORDS];
+            for (int b = 0; b < indexedBlocks; b++) {
+                offsets[b] = in.readInt();
+                times[b] = in.readLong();
+                actions[b] = in.readInt();
+                for (int w = 0; w < BLOOM_WORDS; w++) {
+                    blooms[b * BLOOM_WORDS + w] = in.readLong();
+                }
+            }
+            end = indexedEnd;
+            count = indexedCount;
+            firstTime = indexedFirst;
+            lastTime = indexedLast;
+            blocks = indexedBlocks;
+            blockOffsets = offsets;
+            blockTimes = times;
+            blockActions = actions;
+            blockBlooms = blooms;
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static void checkHeader(ByteBuffer buffer, Path path) throws IOException {
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Файл " + path + " не является сегментом журнала аудита");
+        }
+    }
+
+    private static long baseSeq(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static void addKey(long[] blooms, int offset, String key) {
+        int hash = hash(key);
+        for (int i = 0; i < 3; i++) {
+            int bit = (hash >>> (i * 8)) & 0xFF;
+            blooms[offset + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Хэш ключа без учета регистра. Сохраняется в .idx, поэтому не должен меняться между версиями
+     */
+    private static int hash(String key) {
+        int h = key.toLowerCase(Locale.ROOT).hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Условия поиска: интервал времени [from, to), записи с номером меньше before,
+     * маска кодов действий и необязательные точные (без учета регистра) субъект и пользователь
+     */
+    static final class Filter {
+        final long from;
+        final long to;
+        final long before;
+        final int actions;
+        private final String subject;
+        private final String user;
+        private final long[] bloom = new long[BLOOM_WORDS];
+
+        Filter(long from, long to, long before, AuditAction action, String subject, String user) {
+            this.from = from;
+            this.to = to;
+            this.before = before;
+            this.actions = action != null ? 1 << action.getCode() : -1;
+            this.subject = subject;
+            this.user = user;
+            if (subject != null) {
+                addKey(bloom, 0, subject);
+            }
+            if (user != null) {
+                addKey(bloom, 0, user);
+            }
+        }
+
+        boolean mayContain(long[] blooms, int offset) {
+            for (int w = 0; w < BLOOM_WORDS; w++) {
+                if ((blooms[offset + w] & bloom[w]) != bloom[w]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(AuditRecord record) {
+            long time = record.getTime().toEpochMilli();
+            if (time < from || time >= to || record.getSeq() >= before
+                || (actions & 1 << record.getAction().getCode()) == 0) {
+                return false;
+            }
+            if (user != null && !user.equalsIgnoreCase(record.getUser())) {
+                return false;
+            }
+            return subject == null || record.getSubjects().stream().anyMatch(subject::equalsIgnoreCase);
+        }
+    }
+}
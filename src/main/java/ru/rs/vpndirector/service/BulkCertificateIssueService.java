@@ -0,0 +1,358 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Массовый выпуск сертификатов по списку имен с выгрузкой готовых .ovpn одним ZIP-архивом.
+ * <p>
+ * В режиме native ключи генерируются параллельно, а подпись и выделение серийных номеров
+ * выполняются по порядку списка, поэтому серийные номера идут строго в порядке входных имен.
+ * В режимах easy-rsa сертификаты выпускаются по одному через пул {@link CertificateIssueJobService}.
+ * Имена, которые в этот момент выпускаются отдельным заданием, пропускаются.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BulkCertificateIssueService {
+
+    private static final Set<String> HEADER_NAMES = Set.of("name", "cn", "certificatename", "имя");
+
+    private final OpenVpnProperties openVpnProperties;
+    private final CertificateGenerationService certificateGenerationService;
+    private final CertificateIssueJobService certificateIssueJobService;
+    private final NativeCertificateIssuer nativeCertificateIssuer;
+    private final EasyRsaStore easyRsaStore;
+    private final ClientProfileService clientProfileService;
+    private final CertificateRegistry certificateRegistry;
+
+    public enum Status {
+        /**
+         * Сертификат выпущен
+         */
+        ISSUED,
+        /**
+         * Имя пропущено: повторяется в списке, сертификат уже существует или выпускается другим заданием
+         */
+        SKIPPED,
+        /**
+         * Недопустимое имя
+         */
+        INVALID,
+        /**
+         * Ошибка при выпуске
+         */
+        FAILED
+    }
+
+    /**
+     * Разбирает список имен: по одному имени в строке или CSV, где имя - первая колонка.
+     * Пустые строки, комментарии (#) и строка заголовка пропускаются.
+     */
+    public static List<String> parseNames(String text) {
+        List<String> names = new ArrayList<>();
+        if (text == null) {
+            return names;
+        }
+        boolean first = true;
+        for (String line : text.split("\\r?\\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("\uFEFF")) {
+                trimmed = trimmed.substring(1);
+            }
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            String name = firstColumn(trimmed);
+            if (first && HEADER_NAMES.contains(name.toLowerCase(Locale.ROOT))) {
+                first = false;
+                continue;
+            }
+            first = false;
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static String firstColumn(String line) {
+        String value = line;
+        if (value.startsWith("\"")) {
+            int end = value.indexOf('"', 1);
+            return (end > 0 ? value.substring(1, end) : value.substring(1)).trim();
+        }
+        int separator = value.length();
+        for (char c : new char[] {',', ';', '\t'}) {
+            int index = value.indexOf(c);
+            if (index >= 0 && index < separator) {
+                separator = index;
+            }
+        }
+        return value.substring(0, separator).trim();
+    }
+
+    /**
+     * Проверяет имена и разделяет их на подлежащие выпуску и отклоненные.
+     * Порядок имен сохраняется.
+     */
+    public List<Result> plan(List<String> names) {
+        Set<String> existing = certificateRegistry.getValidNames();
+        Set<String> seen = new HashSet<>();
+        int limit = openVpnProperties.getBulkIssueMaxNames();
+        List<Result> plan = new ArrayList<>();
+        int accepted = 0;
+        for (String name : names) {
+            if (!CertificateGenerationService.isValidCertificateName(name)) {
+                plan.add(new Result(name, Status.INVALID, null, "Недопустимое имя сертификата"));
+            } else if (!seen.add(name)) {
+                plan.add(new Result(name, Status.SKIPPED, null, "Имя повторяется в списке"));
+            } else if (existing.contains(name) || certificateGenerationService.certificateExists(name)) {
+                plan.add(new Result(name, Status.SKIPPED, null, "Сертификат уже существует"));
+            } else if (accepted >= limit) {
+                plan.add(new Result(name, Status.INVALID, null,
+                    "Превышено максимальное количество имен в одном выпуске (" + limit + ")"));
+            } else {
+                plan.add(new Result(name, null, null, null));
+                accepted++;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Выпускает сертификаты по плану и пишет в поток ZIP-архив: для каждого выпущенного
+     * сертификата каталог &lt;CN&gt;/ с конфигурациями для тоннеля и маршрутов, в конце - report.csv
+     * со статусом по каждому имени. Записи архива отправляются клиенту по мере выпуска.
+     *
+     * @param plan результат {@link #plan}
+     * @param out поток ответа, не закрывается
+     */
+    public void issueToZip(List<Result> plan, OutputStream out) throws IOException {
+        long started = System.nanoTime();
+        boolean nativeMode = CertificateGenerationService.BUILD_KEY_MODE_NATIVE
+            .equalsIgnoreCase(openVpnProperties.getBuildKeyMode());
+        List<Result> report = new ArrayList<>();
+        ExecutorService keyGenerators = nativeMode ? newKeyGenerators() : null;
+        ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        try {
+            List<Future<KeyPair>> keyPairs = new ArrayList<>();
+            EasyRsaStore.CertificateAuthority authority = null;
+            if (nativeMode) {
+                authority = easyRsaStore.loadCertificateAuthority();
+                for (Result item : plan) {
+                    keyPairs.add(item.status == null ? keyGenerators.submit(nativeCertificateIssuer::nextKeyPair) : null);
+                }
+            }
+
+            for (int i = 0; i < plan.size(); i++) {
+                Result item = plan.get(i);
+                if (item.status != null) {
+                    report.add(item);
+                    continue;
+                }
+                Result result = nativeMode
+                    ? issueNative(item.name, keyPairs.get(i), authority)
+                    : issueWithEasyRsa(item.name);
+                if (result.status == Status.ISSUED) {
+                    result = writeProfiles(zip, result);
+                }
+                report.add(result);
+                zip.flush();
+                out.flush();
+            }
+
+            zip.putNextEntry(new ZipEntry("report.csv"));
+            zip.write(toCsv(report).getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.finish();
+            out.flush();
+        } finally {
+            if (keyGenerators != null) {
+                keyGenerators.shutdownNow();
+            }
+        }
+        long issued = report.stream().filter(r -> r.status == Status.ISSUED).count();
+        log.info("Массовый выпуск: выпущено {} из {} за {} мс", issued, plan.size(),
+            Duration.ofNanos(System.nanoTime() - started).toMillis());
+    }
+
+    private ExecutorService newKeyGenerators() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, openVpnProperties.getIssueWorkers()), runnable -> {
+            Thread thread = new Thread(runnable, "bulk-keygen-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private Result issueNative(String name, Future<KeyPair> keyPair, EasyRsaStore.CertificateAuthority authority) {
+        CertificateIssueJob job = certificateIssueJobService.reserve(name);
+        if (job == null) {
+            keyPair.cancel(true);
+            return inFlight(name);
+        }
+        job.markRunning();
+        Result result = null;
+        try {
+            result = signNative(name, keyPair, authority, job);
+            return result;
+        } finally {
+            boolean issued = result != null && result.status == Status.ISSUED;
+            certificateIssueJobService.release(job, issued, issued
+                ? "Сертификат '" + name + "' выпущен массовым выпуском"
+                : result != null ? result.message : "Ошибка: выпуск не завершен");
+        }
+    }
+
+    private Result signNative(String name, Future<KeyPair> keyPair, EasyRsaStore.CertificateAuthority authority,
+                              CertificateIssueJob job) {
+        try {
+            job.onProgress(20, "Генерация ключа и подпись");
+            X509Certificate certificate = nativeCertificateIssuer.issue(name, keyPair.get(), authority);
+            return new Result(name, Status.ISSUED, certificate.getSerialNumber(), null);
+        } catch (ExecutionException e) {
+            log.error("Ошибка при генерации ключа для {}", name, e.getCause());
+            return new Result(name, Status.FAILED, null, "Ошибка: " + e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(name, Status.FAILED, null, "Выпуск прерван");
+        } catch (IOException e) {
+            log.error("Ошибка при выпуске сертификата {}", name, e);
+            return new Result(name, Status.FAILED, null, "Ошибка: " + e.getMessage());
+        }
+    }
+
+    private Result issueWithEasyRsa(String name) {
+        CertificateIssueJob job;
+        try {
+            job = certificateIssueJobService.issueAndWait(name);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(name, Status.FAILED, null, "Выпуск прерван");
+        }
+        if (job == null) {
+            return inFlight(name);
+        }
+        if (job.getStatus() != CertificateIssueJob.Status.SUCCESS) {
+            return new Result(name, Status.FAILED, null, job.getResult());
+        }
+        return new Result(name, Status.ISSUED, readSerial(name), null);
+    }
+
+    private static Result inFlight(String name) {
+        return new Result(name, Status.SKIPPED, null, "Сертификат выпускается другим заданием");
+    }
+
+    private BigInteger readSerial(String name) {
+        Path certFile = easyRsaStore.getKeysDir().resolve(name + ".crt");
+        try (InputStream in = Files.newInputStream(certFile)) {
+            return ((X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in)).getSerialNumber();
+        } catch (IOException | CertificateException e) {
+            log.warn("Не удалось прочитать серийный номер сертификата {}: {}", name, e.getMessage());
+            return null;
+        }
+    }
+
+    private Result writeProfiles(ZipOutputStream zip, Result result) throws IOException {
+        ClientProfileService.Profile[] profiles =
+            new ClientProfileService.Profile[ClientProfileService.ProfileType.values().length];
+        try {
+            for (ClientProfileService.ProfileType type : ClientProfileService.ProfileType.values()) {
+                profiles[type.ordinal()] = clientProfileService.prepareProfile(result.name, type);
+            }
+        } catch (IOException e) {
+            log.error("Не удалось собрать конфигурацию для {}", result.name, e);
+            return new Result(result.name, Status.ISSUED, result.serial,
+                "Сертификат выпущен, но конфигурация не собрана: " + e.getMessage());
+        }
+        for (ClientProfileService.ProfileType type : ClientProfileService.ProfileType.values()) {
+            zip.putNextEntry(new ZipEntry(result.name + "/" + type.fileName(result.name)));
+            profiles[type.ordinal()].writeTo(zip);
+            zip.closeEntry();
+        }
+        return result;
+    }
+
+    private static String toCsv(List<Result> report) {
+        StringBuilder csv = new StringBuilder("name,status,serial,message\n");
+        for (Result result : report) {
+            csv.append(csvValue(result.name)).append(',')
+                .append(result.status).append(',')
+                .append(result.serial != null ? EasyRsaStore.formatSerial(result.serial) : "").append(',')
+                .append(csvValue(result.message != null ? result.message : "")).append('\n');
+        }
+        return csv.toString();
+    }
+
+    private static String csvValue(String value) {
+        String singleLine = value.replace('\r', ' ').replace('\n', ' ');
+        if (singleLine.contains(",") || singleLine.contains("\"")) {
+            return "\"" + singleLine.replace("\"", "\"\"") + "\"";
+        }
+        return singleLine;
+    }
+
+    /**
+     * Результат обработки одного имени из списка
+     */
+    public static class Result {
+        private final String name;
+        private final Status status;
+        private final BigInteger serial;
+        private final String message;
+
+        Result(String name, Status status, BigInteger serial, String message) {
+            this.name = name;
+            this.status = status;
+            this.serial = serial;
+            this.message = message;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Статус или null, если имя принято к выпуску
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        public BigInteger getSerial() {
+            return serial;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
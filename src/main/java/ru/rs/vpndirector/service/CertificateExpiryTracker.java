@@ -0,0 +1,456 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.security.auth.x500.X500Principal;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.X509Certificate;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Отслеживание сроков действия сертификатов: клиентских (из реестра index.txt), CA и сервера.
+ * <p>
+ * Для каждого сертификата в очереди с приоритетом (min-heap) лежит момент пересечения следующего
+ * порога (по умолчанию за 30, 7 и 1 день до notAfter, затем само истечение). Единственная
+ * отложенная задача просыпается к вершине кучи, сообщает о пересеченных порогах и засыпает
+ * до следующей вершины - без периодического перебора всех сертификатов. Куча пересобирается
+ * только при изменении index.txt (подписка на реестр) или файлов CA/сервера.
+ */
+@Slf4j
+@Service
+public class CertificateExpiryTracker {
+
+    private static final Pattern CN_PATTERN = Pattern.compile("CN=([^,]+)");
+
+    /**
+     * Не дольше суток между пробуждениями: проверка времени изменения ca.crt и сертификата сервера
+     */
+    private static final Duration MAX_SLEEP = Duration.ofDays(1);
+
+    private final OpenVpnProperties openVpnProperties;
+    private final CertificateRegistry certificateRegistry;
+    private final EasyRsaStore easyRsaStore;
+    private final OpenVpnConfigFileService configFileService;
+    private final List<ExpiryNotifier> notifiers;
+    private final Clock clock;
+    private final Counter notificationsCounter;
+
+    /**
+     * Пороги по убыванию, последний - нулевой (истечение)
+     */
+    private final Duration[] thresholds;
+
+    // Состояние ниже меняется только под this
+    private final PriorityQueue<Alarm> alarms = new PriorityQueue<>(Comparator.comparing((Alarm alarm) -> alarm.dueAt));
+    private Map<String, Integer> notifiedLevels = new HashMap<>();
+    private Map<Path, FileTime> sourceFiles = Collections.emptyMap();
+
+    /**
+     * Все отслеживаемые сертификаты по возрастанию срока действия (для страниц и метрик)
+     */
+    private volatile Tracked[] byExpiry = new Tracked[0];
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> wakeUp;
+
+    @Autowired
+    public CertificateExpiryTracker(OpenVpnProperties openVpnProperties, CertificateRegistry certificateRegistry,
+                                    EasyRsaStore easyRsaStore, OpenVpnConfigFileService configFileService,
+                                    List<ExpiryNotifier> notifiers, MeterRegistry meterRegistry) {
+        this(openVpnProperties, certificateRegistry, easyRsaStore, configFileService, notifiers, meterRegistry,
+            Clock.systemUTC());
+    }
+
+    CertificateExpiryTracker(OpenVpnProperties openVpnProperties, CertificateRegistry certificateRegistry,
+                             EasyRsaStore easyRsaStore, OpenVpnConfigFileService configFileService,
+                             List<ExpiryNotifier> notifiers, MeterRegistry meterRegistry, Clock clock) {
+        this.openVpnProperties = openVpnProperties;
+        this.certificateRegistry = certificateRegistry;
+        this.easyRsaStore = easyRsaStore;
+        this.configFileService = configFileService;
+        this.notifiers = notifiers;
+        this.clock = clock;
+        this.thresholds = thresholds(openVpnProperties.getExpiryWarningThresholds());
+
+        for (int i = 0; i < thresholds.length - 1; i++) {
+            Duration threshold = thresholds[i];
+            Gauge.builder("vpndirector.certificates.expiring", this, tracker -> tracker.countExpiring(threshold))
+                .description("Сертификаты, истекающие в пределах порога")
+                .tag("within", format(threshold))
+                .register(meterRegistry);
+        }
+        Gauge.builder("vpndirector.certificates.expired", this, CertificateExpiryTracker::countExpired)
+            .description("Истекшие отслеживаемые сертификаты")
+            .register(meterRegistry);
+        TimeGauge.builder("vpndirector.certificates.next.expiry", this, TimeUnit.SECONDS,
+                CertificateExpiryTracker::secondsToNextExpiry)
+            .description("Время до ближайшего истечения сертификата")
+            .register(meterRegistry);
+        this.notificationsCounter = Counter.builder("vpndirector.certificates.expiry.notifications")
+            .description("Отправленные предупреждения об истечении сертификатов")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "certificate-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        certificateRegistry.addListener(() -> executor.execute(this::rebuildAndSchedule));
+        executor.execute(this::rebuildAndSchedule);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Текущие предупреждения: сертификаты, истекающие в пределах наибольшего порога или истекшие,
+     * по возрастанию срока действия
+     */
+    public List<ExpiryWarning> getWarnings() {
+        Instant now = clock.instant();
+        Instant horizon = now.plus(thresholds[0]);
+        List<ExpiryWarning> warnings = new ArrayList<>();
+        for (Tracked tracked : byExpiry) {
+            if (tracked.expiresAt.isAfter(horizon)) {
+                break;
+            }
+            warnings.add(tracked.warning(thresholds[crossedLevel(tracked, now)], now));
+        }
+        return warnings;
+    }
+
+    private void rebuildAndSchedule() {
+        try {
+            rebuild(clock.instant());
+        } catch (RuntimeException e) {
+            log.error("Ошибка при обновлении сроков действия сертификатов", e);
+        }
+        schedule();
+    }
+
+    private void onWakeUp() {
+        try {
+            Instant now = clock.instant();
+            if (!readSourceTimes().equals(sourceFiles)) {
+                rebuild(now);
+            } else {
+                fire(now);
+            }
+        } catch (RuntimeException e) {
+            log.error("Ошибка при проверке сроков действия сертификатов", e);
+        }
+        schedule();
+    }
+
+    private synchronized void schedule() {
+        if (executor == null || executor.isShutdown()) {
+            return;
+        }
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
+        }
+        Instant now = clock.instant();
+        Instant next = getNextWakeUp();
+        Duration delay = next == null ? MAX_SLEEP : Duration.between(now, next);
+        if (delay.compareTo(MAX_SLEEP) > 0) {
+            delay = MAX_SLEEP;
+        }
+        if (delay.isNegative()) {
+            delay = Duration.ZERO;
+        }
+        wakeUp = executor.schedule(this::onWakeUp, delay.toMillis(), TimeUnit.MILLISECONDS);
+        log.debug("Следующая проверка сроков действия сертификатов через {}", delay);
+    }
+
+    /**
+     * Момент пересечения ближайшего порога или null, если ждать нечего
+     */
+    synchronized Instant getNextWakeUp() {
+        Alarm next = alarms.peek();
+        return next != null ? next.dueAt : null;
+    }
+
+    /**
+     * Пересобирает кучу по реестру и файлам CA/сервера. Об уже пересеченных порогах
+     * сообщается один раз: уровни, о которых уже сообщили, переживают пересборку.
+     * Клиентские сертификаты, истекшие до того, как попали под отслеживание, видны на страницах
+     * и в метриках, но о них не сообщается.
+     */
+    synchronized void rebuild(Instant now) {
+        List<Tracked> tracked = new ArrayList<>();
+        Map<Path, FileTime> sources = readSourceTimes();
+        for (Path file : sources.keySet()) {
+            Tracked certificate = readCertificateFile(file);
+            if (certificate != null) {
+                tracked.add(certificate);
+            }
+        }
+        for (CertificateRegistry.CertificateRecord record : certificateRegistry.getLatestCertificates()) {
+            if (record.getStatus() == CertificateRegistry.Status.REVOKED || record.getExpiresAt() == null) {
+                continue;
+            }
+            tracked.add(new Tracked(ExpiryWarning.Kind.CLIENT, record.getName(), record.getSerial(),
+                record.getExpiresAt()));
+        }
+        tracked.sort(Comparator.comparing((Tracked t) -> t.expiresAt));
+
+        // ожидающие порога: если такой сертификат уже истек, о его истечении еще не сообщали
+        Set<String> scheduled = new HashSet<>();
+        for (Alarm alarm : alarms) {
+            scheduled.add(alarm.tracked.key());
+        }
+        Map<String, Integer> previous = notifiedLevels;
+        notifiedLevels = new HashMap<>();
+        for (Tracked t : tracked) {
+            Integer level = previous.get(t.key());
+            if (level != null) {
+                notifiedLevels.put(t.key(), level);
+            }
+        }
+        alarms.clear();
+        sourceFiles = sources;
+        byExpiry = tracked.toArray(new Tracked[0]);
+        for (Tracked t : tracked) {
+            if (t.kind == ExpiryWarning.Kind.CLIENT && !t.expiresAt.isAfter(now) && !scheduled.contains(t.key())) {
+                continue;
+            }
+            advance(t, now);
+        }
+        log.info("Сроки действия: отслеживается {} сертификатов, предупреждений {}, следующий порог {}",
+            tracked.size(), countExpiring(thresholds[0]) + countExpired(), getNextWakeUp());
+    }
+
+    /**
+     * Обрабатывает пороги, наступившие к моменту now
+     */
+    synchronized void fire(Instant now) {
+        while (!alarms.isEmpty() && !alarms.peek().dueAt.isAfter(now)) {
+            advance(alarms.poll().tracked, now);
+        }
+    }
+
+    /**
+     * Сообщает о наибольшем пересеченном пороге (если о нем еще не сообщали) и ставит в кучу следующий
+     */
+    private void advance(Tracked tracked, Instant now) {
+        int crossed = crossedLevel(tracked, now);
+        if (crossed >= 0) {
+            Integer notified = notifiedLevels.get(tracked.key());
+            if (notified == null || notified < crossed) {
+                notifiedLevels.put(tracked.key(), crossed);
+                notifyWarning(tracked.warning(thresholds[crossed], now));
+            }
+        }
+        int next = crossed + 1;
+        if (next < thresholds.length) {
+            alarms.add(new Alarm(tracked, tracked.expiresAt.minus(thresholds[next])));
+        }
+    }
+
+    /**
+     * Индекс наименьшего пересеченного порога или -1, если до наибольшего порога еще далеко
+     */
+    private int crossedLevel(Tracked tracked, Instant now) {
+        int crossed = -1;
+        for (int i = 0; i < thresholds.length; i++) {
+            if (!now.isBefore(tracked.expiresAt.minus(thresholds[i]))) {
+                crossed = i;
+            }
+        }
+        return crossed;
+    }
+
+    private void notifyWarning(ExpiryWarning warning) {
+        notificationsCounter.increment();
+        for (ExpiryNotifier notifier : notifiers) {
+            try {
+                notifier.notify(warning);
+            } catch (RuntimeException e) {
+                log.error("Ошибка при отправке предупреждения через {}", notifier.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    /**
+     * Файлы сертификатов CA и сервера: директивы ca и cert из конфигурации сервера,
+     * для CA - keys/ca.crt, если директивы нет. Значение - время изменения.
+     */
+    private Map<Path, FileTime> readSourceTimes() {
+        Path ca = null;
+        Path server = null;
+        try {
+            if (configFileService.configFileExists()) {
+                ca = resolveConfigPath(configFileService.getConfigValue("ca "));
+                server = resolveConfigPath(configFileService.getConfigValue("cert "));
+            }
+        } catch (IOException e) {
+            log.debug("Не удалось прочитать конфигурацию сервера: {}", e.getMessage());
+        }
+        if (ca == null) {
+            ca = easyRsaStore.getKeysDir().resolve("ca.crt");
+        }
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path file : Arrays.asList(ca, server)) {
+            if (file == null) {
+                continue;
+            }
+            try {
+                times.put(file, Files.getLastModifiedTime(file));
+            } catch (IOException e) {
+                log.debug("Файл сертификата {} недоступен: {}", file, e.getMessage());
+            }
+        }
+        return times;
+    }
+
+    private Path resolveConfigPath(String value) {
+        if (value == null || value.isEmpty() || "[inline]".equals(value)) {
+            return null;
+        }
+        String path = value.replaceAll("^\"|\"$", "");
+        return Paths.get(openVpnProperties.getOpenvpnRoot()).resolve(path);
+    }
+
+    private Tracked readCertificateFile(Path file) {
+        try {
+            X509Certificate certificate = EasyRsaStore.readCertificate(file);
+            X500Principal subject = certificate.getSubjectX500Principal();
+            Matcher matcher = CN_PATTERN.matcher(subject.getName());
+            String name = matcher.find() ? matcher.group(1) : file.getFileName().toString();
+            ExpiryWarning.Kind kind = certificate.getBasicConstraints() >= 0 ? ExpiryWarning.Kind.CA
+                : ExpiryWarning.Kind.SERVER;
+            return new Tracked(kind, name, EasyRsaStore.formatSerial(certificate.getSerialNumber()),
+                certificate.getNotAfter().toInstant());
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать сертификат {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private int countExpiring(Duration within) {
+        Instant now = clock.instant();
+        Instant horizon = now.plus(within);
+        int count = 0;
+        for (Tracked tracked : byExpiry) {
+            if (tracked.expiresAt.isAfter(horizon)) {
+                break;
+            }
+            if (tracked.expiresAt.isAfter(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int countExpired() {
+        Instant now = clock.instant();
+        int count = 0;
+        for (Tracked tracked : byExpiry) {
+            if (tracked.expiresAt.isAfter(now)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private double secondsToNextExpiry() {
+        Instant now = clock.instant();
+        for (Tracked tracked : byExpiry) {
+            if (tracked.expiresAt.isAfter(now)) {
+                return Duration.between(now, tracked.expiresAt).getSeconds();
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static Duration[] thresholds(List<Duration> configured) {
+        TreeSet<Duration> sorted = new TreeSet<>(Comparator.reverseOrder());
+        if (configured != null) {
+            for (Duration threshold : configured) {
+                if (threshold != null && !threshold.isNegative() && !threshold.isZero()) {
+                    sorted.add(threshold);
+                }
+            }
+        }
+        sorted.add(Duration.ZERO);
+        return sorted.toArray(new Duration[0]);
+    }
+
+    private static String format(Duration threshold) {
+        return threshold.toHours() % 24 == 0 && threshold.toDays() > 0
+            ? threshold.toDays() + "d"
+            : threshold.toString();
+    }
+
+    private static final class Tracked {
+        private final ExpiryWarning.Kind kind;
+        private final String name;
+        private final String serial;
+        private final Instant expiresAt;
+
+        private Tracked(ExpiryWarning.Kind kind, String name, String serial, Instant expiresAt) {
+            this.kind = kind;
+            this.name = name;
+            this.serial = serial;
+            this.expiresAt = expiresAt;
+        }
+
+        private String key() {
+            return kind + "/" + name + "/" + serial;
+        }
+
+        private ExpiryWarning warning(Duration threshold, Instant now) {
+            return new ExpiryWarning(kind, name, serial, expiresAt, threshold, now);
+        }
+    }
+
+    private static final class Alarm {
+        private final Tracked tracked;
+        private final Instant dueAt;
+
+        private Alarm(Tracked tracked, Instant dueAt) {
+            this.tracked = tracked;
+            this.dueAt = dueAt;
+        }
+    }
+}
@@ -5,119 +5,110 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import ru.rs.vpndirector.config.OpenVpnProperties;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class CertificateGenerationService {
 
+    /**
+     * Режим выпуска через pkitool без вопросов (см. {@link OpenVpnProperties#getBuildKeyMode()})
+     */
+    public static final String BUILD_KEY_MODE_BATCH = "batch";
+    /**
+     * Режим выпуска без easy-rsa, средствами {@link NativeCertificateIssuer}
+     */
+    public static final String BUILD_KEY_MODE_NATIVE = "native";
+
+    /**
+     * Вопросы "Sign the certificate? [y/n]:" и "1 out of 1 certificate requests certified, commit? [y/n]"
+     */
+    private static final Pattern CONFIRM_PROMPT = Pattern.compile("\\[y/n\\]:?\\s*$");
+    /**
+     * Вопросы о полях сертификата, например "Country Name (2 letter code) [RU]:"
+     */
+    private static final Pattern FIELD_PROMPT = Pattern.compile("\\]:\\s*$");
+    /**
+     * build-key задает 10 вопросов о полях и 2 подтверждения; запас на случай измененного openssl.cnf
+     */
+    private static final int EXPECTED_BUILD_KEY_ANSWERS = 12;
+    private static final int MAX_BUILD_KEY_ANSWERS = 20;
+    private static final Pattern CERTIFICATE_NAME_PATTERN = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._@-]{0,63}");
+
     private final OpenVpnProperties openVpnProperties;
+    private final NativeCertificateIssuer nativeCertificateIssuer;
+    private final EasyRsaStore easyRsaStore;
+    private final ProcessRunner processRunner;
 
     /**
      * Выпускает новый сертификат для клиента
      *
      * @param certificateName имя сертификата (CN)
-     * @return результат выполнения команды
+     * @return результат выпуска
      */
-    public String generateCertificate(String certificateName) {
+    public IssueResult generateCertificate(String certificateName) {
+        return generateCertificate(certificateName, IssueListener.NONE);
+    }
+
+    /**
+     * Выпускает новый сертификат для клиента, сообщая о ходе выпуска
+     *
+     * @param certificateName имя сертификата (CN)
+     * @param listener получатель вывода и прогресса
+     * @return результат выпуска
+     */
+    public IssueResult generateCertificate(String certificateName, IssueListener listener) {
         try {
+            if (!isValidCertificateName(certificateName)) {
+                return IssueResult.failed("Ошибка: Недопустимое имя сертификата '" + certificateName
+                    + "'. Разрешены латинские буквы, цифры и символы . _ @ -");
+            }
+
             String easyRsaPath = openVpnProperties.getEasyRsaPath();
             String keysDir = easyRsaPath + "/keys";
             
-            // Проверяем, существует ли уже сертификат с таким именем
+            // Проверяем, существует ли уже сертификат с таким именем (быстрый отказ; окончательная проверка - под блокировкой)
             Path csrFile = Paths.get(keysDir, certificateName + ".csr");
             Path keyFile = Paths.get(keysDir, certificateName + ".key");
             Path crtFile = Paths.get(keysDir, certificateName + ".crt");
-            if (Files.exists(csrFile) || Files.exists(keyFile) || Files.exists(crtFile)) {
-                return "Ошибка: Сертификат с именем '" + certificateName + "' уже существует";
+            if (anyExists(csrFile, keyFile, crtFile)) {
+                return IssueResult.failed(alreadyExists(certificateName));
             }
 
-            // Выполняем команды в правильной последовательности
-            // 1. Переходим в директорию и загружаем vars
-            // 2. Выполняем build-key с автоматическими ответами через stdin
-            // build-key задает 10 вопросов (все Enter для значений по умолчанию),
-            // затем 2 вопроса "Sign the certificate? [y/n]" (y) и "commit? [y/n]" (y)
-            
-            // Отключаем буферизацию вывода для более надежной работы
-            String command = String.format(
-                "cd %s && . %s/vars && stdbuf -oL -eL ./build-key %s",
-                easyRsaPath, easyRsaPath, certificateName
-            );
-            
-            ProcessBuilder processBuilder = new ProcessBuilder("bash", "-c", command);
-            processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
-            
-            final PrintWriter writer = new PrintWriter(
-                new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8), true);
-            
             StringBuilder output = new StringBuilder();
-            log.info("Генерация сертификата {}...", certificateName);
-            
-            // Используем отдельный поток для отправки ответов с задержками
-            // Этот поток будет отправлять ответы автоматически через определенные интервалы
-            Thread answerThread = new Thread(() -> {
-                try {
-                    // Даем команде время на запуск и генерацию ключей
-                    Thread.sleep(3000);
-                    
-                    // Отправляем 10 пустых строк для ответов на вопросы (значения по умолчанию)
-                    for (int i = 0; i < 10; i++) {
-                        writer.println();
-                        writer.flush();
-                        Thread.sleep(400);
+            log.info("Генерация сертификата {} (режим {})...", certificateName, openVpnProperties.getBuildKeyMode());
+
+            listener.onProgress(5, "Запуск");
+            int exitCode;
+            if (BUILD_KEY_MODE_NATIVE.equalsIgnoreCase(openVpnProperties.getBuildKeyMode())) {
+                listener.onProgress(20, "Генерация ключа и подпись");
+                nativeCertificateIssuer.issue(certificateName);
+                exitCode = 0;
+            } else {
+                // easy-rsa не рассчитан на параллельный запуск: index.txt и serial меняются без блокировок
+                exitCode = easyRsaStore.withIndexLock(() -> {
+                    // выпуск того же CN мог закончиться, пока это задание ждало блокировку
+                    if (anyExists(csrFile, keyFile, crtFile)) {
+                        throw new CertificateExistsException();
                     }
-                    
-                    // Ждем появления вопросов о подписи
-                    Thread.sleep(3000);
-                    
-                    // Отправляем 'y' для "Sign the certificate?"
-                    writer.println("y");
-                    writer.flush();
-                    
-                    // Ждем следующего вопроса
-                    Thread.sleep(2000);
-                    
-                    // Отправляем 'y' для "commit?"
-                    writer.println("y");
-                    writer.flush();
-                    
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    log.warn("Поток отправки ответов прерван");
-                }
-            });
-            
-            answerThread.setDaemon(true);
-            answerThread.start();
-            
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                    log.info("build-key output: {}", line);
-                }
-            } finally {
-                // Даем потоку время завершиться
-                try {
-                    answerThread.join(15000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-                writer.close();
+                    try {
+                        if (BUILD_KEY_MODE_BATCH.equalsIgnoreCase(openVpnProperties.getBuildKeyMode())) {
+                            return runPkitoolBatch(easyRsaPath, certificateName, output, listener);
+                        }
+                        return runBuildKeyInteractive(easyRsaPath, certificateName, output, listener);
+                    } catch (TimeoutException | InterruptedException e) {
+                        throw new BuildKeyInterruptedException(e);
+                    }
+                });
             }
-
-            int exitCode = process.waitFor();
+            listener.onProgress(95, "Проверка файлов");
 
             // Проверяем наличие созданных файлов
             boolean csrExists = Files.exists(csrFile);
@@ -127,8 +118,8 @@ public class CertificateGenerationService {
             if (exitCode == 0 && csrExists && keyExists && crtExists) {
                 log.info("Сертификат {} успешно создан. Файлы: {}.csr, {}.key, {}.crt",
                     certificateName, certificateName, certificateName, certificateName);
-                return "Сертификат '" + certificateName + "' успешно создан! Файлы " + 
-                    certificateName + ".csr, " + certificateName + ".key  и " + certificateName + ".crt созданы.";
+                return IssueResult.issued("Сертификат '" + certificateName + "' успешно создан! Файлы " +
+                    certificateName + ".csr, " + certificateName + ".key  и " + certificateName + ".crt созданы.");
             } else {
                 String errorMsg = "Ошибка при создании сертификата.";
                 if (exitCode != 0) {
@@ -144,14 +135,115 @@ public class CertificateGenerationService {
                     errorMsg += " Файл " + certificateName + ".crt не найден.";
                 }
                 log.error("Ошибка при создании сертификата {}. {}", certificateName, errorMsg);
-                return errorMsg + "\nВывод команды:\n" + output.toString();
+                return IssueResult.failed(errorMsg + "\nВывод команды:\n" + output.toString());
             }
+        } catch (CertificateExistsException e) {
+            log.warn("Сертификат {} уже выпущен параллельным заданием", certificateName);
+            return IssueResult.failed(alreadyExists(certificateName));
+        } catch (BuildKeyInterruptedException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                log.error("Генерация сертификата {} прервана", certificateName);
+                return IssueResult.failed("Ошибка: генерация сертификата прервана");
+            }
+            log.error("Превышено время ожидания при генерации сертификата {}: {}", certificateName, e.getCause().getMessage());
+            return IssueResult.failed("Ошибка: " + e.getCause().getMessage());
         } catch (Exception e) {
             log.error("Ошибка при генерации сертификата: {}", certificateName, e);
-            return "Ошибка: " + e.getMessage();
+            return IssueResult.failed("Ошибка: " + e.getMessage());
         }
     }
 
+    /**
+     * Запускает build-key и отвечает на каждое приглашение сразу после его появления:
+     * на вопросы о полях сертификата - Enter (значения по умолчанию из vars),
+     * на "Sign the certificate? [y/n]" и "commit? [y/n]" - y.
+     *
+     * @return код выхода build-key
+     */
+    private int runBuildKeyInteractive(String easyRsaPath, String certificateName, StringBuilder output,
+                                       IssueListener listener)
+            throws IOException, TimeoutException, InterruptedException {
+        String command = String.format(
+            "cd %s && . %s/vars && ./build-key %s",
+            easyRsaPath, easyRsaPath, certificateName
+        );
+
+        long deadline = System.nanoTime() + openVpnProperties.getBuildKeyTimeout().toNanos();
+        try (PromptDriver driver = processRunner.startInteractive(ProcessRunner.CommandClass.EASY_RSA,
+                new ProcessBuilder("bash", "-c", command), openVpnProperties.getBuildKeyTimeout(),
+                line -> {
+                    log.info("build-key output: {}", line);
+                    listener.onOutput(line);
+                })) {
+            try {
+                int answers = 0;
+                while (true) {
+                    int prompt = driver.expect(nextStepTimeout(deadline), CONFIRM_PROMPT, FIELD_PROMPT);
+                    if (prompt == PromptDriver.EOF) {
+                        break;
+                    }
+                    if (++answers > MAX_BUILD_KEY_ANSWERS) {
+                        throw new IOException("build-key задает больше вопросов, чем ожидалось (" + MAX_BUILD_KEY_ANSWERS + ")");
+                    }
+                    driver.sendLine(prompt == 0 ? "y" : "");
+                    listener.onProgress(10 + answers * 80 / EXPECTED_BUILD_KEY_ANSWERS,
+                        prompt == 0 ? "Подпись сертификата" : "Заполнение полей сертификата");
+                }
+                return driver.waitFor(nextStepTimeout(deadline));
+            } finally {
+                output.append(driver.getOutput());
+            }
+        }
+    }
+
+    /**
+     * Запускает pkitool из easy-rsa в пакетном режиме (без вопросов, значения полей берутся из vars)
+     *
+     * @return код выхода pkitool
+     */
+    private int runPkitoolBatch(String easyRsaPath, String certificateName, StringBuilder output,
+                                IssueListener listener)
+            throws IOException, TimeoutException, InterruptedException {
+        String command = String.format(
+            "cd %s && . %s/vars && ./pkitool %s",
+            easyRsaPath, easyRsaPath, certificateName
+        );
+
+        try (PromptDriver driver = processRunner.startInteractive(ProcessRunner.CommandClass.EASY_RSA,
+                new ProcessBuilder("bash", "-c", command), openVpnProperties.getBuildKeyTimeout(),
+                line -> {
+                    log.info("pkitool output: {}", line);
+                    listener.onOutput(line);
+                })) {
+            try {
+                return driver.waitFor(openVpnProperties.getBuildKeyTimeout());
+            } finally {
+                output.append(driver.getOutput());
+            }
+        }
+    }
+
+    /**
+     * Время на очередной шаг: не больше таймаута шага и не позже общего дедлайна
+     */
+    private Duration nextStepTimeout(long deadlineNanos) throws TimeoutException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining <= 0) {
+            throw new TimeoutException("Превышено общее время генерации сертификата ("
+                + openVpnProperties.getBuildKeyTimeout().toSeconds() + " с)");
+        }
+        Duration stepTimeout = openVpnProperties.getBuildKeyStepTimeout();
+        return remaining < stepTimeout.toNanos() ? Duration.ofNanos(remaining) : stepTimeout;
+    }
+
+    /**
+     * Проверяет, что имя сертификата безопасно для передачи в командную строку и имена файлов
+     */
+    public static boolean isValidCertificateName(String certificateName) {
+        return certificateName != null && CERTIFICATE_NAME_PATTERN.matcher(certificateName).matches();
+    }
+
     /**
      * Проверяет, существует ли сертификат с указанным именем
      */
@@ -160,5 +252,82 @@ public class CertificateGenerationService {
         Path crtFile = Paths.get(keysDir, certificateName + ".crt");
         return Files.exists(crtFile);
     }
-}
 
+    /**
+     * Результат выпуска сертификата: признак успеха и сообщение для пользователя
+     */
+    public static class IssueResult {
+        private final boolean success;
+        private final String message;
+
+        private IssueResult(boolean success, String message) {
+            this.success = success;
+            this.message = message;
+        }
+
+        static IssueResult issued(String message) {
+            return new IssueResult(true, message);
+        }
+
+        static IssueResult failed(String message) {
+            return new IssueResult(false, message);
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+
+    /**
+     * Получатель вывода easy-rsa и прогресса выпуска сертификата
+     */
+    public interface IssueListener {
+
+        IssueListener NONE = new IssueListener() {
+        };
+
+        /**
+         * Очередная строка вывода команды
+         */
+        default void onOutput(String line) {
+        }
+
+        /**
+         * Прогресс выпуска в процентах и название текущего этапа
+         */
+        default void onProgress(int percent, String stage) {
+        }
+    }
+
+    private static boolean anyExists(Path... files) {
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String alreadyExists(String certificateName) {
+        return "Ошибка: Сертификат с именем '" + certificateName + "' уже существует";
+    }
+
+    /**
+     * Файлы сертификата появились, пока выпуск ждал блокировку index.txt
+     */
+    private static class CertificateExistsException extends IOException {
+    }
+
+    /**
+     * Таймаут или прерывание запуска easy-rsa, вынесенные из-под блокировки {@link EasyRsaStore#withIndexLock}
+     */
+    private static class BuildKeyInterruptedException extends IOException {
+        BuildKeyInterruptedException(Exception cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
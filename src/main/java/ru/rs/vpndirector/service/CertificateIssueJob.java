@@ -0,0 +1,289 @@
+package ru.rs.vpndirector.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Задание на выпуск сертификата: состояние, прогресс, вывод easy-rsa и подписчики SSE.
+ * <p>
+ * События не отправляются под монитором задания: у каждого подписчика своя очередь, которую отдельная
+ * задача в пуле sender отправляет в его соединение. Медленный браузер не задерживает вывод easy-rsa
+ * и ответы на его запросы; если подписчик отстал больше чем на {@link #MAX_PENDING_EVENTS} событий,
+ * соединение закрывается, а при повторном открытии страницы клиент снова получит состояние и накопленный вывод.
+ */
+@Slf4j
+public class CertificateIssueJob implements CertificateGenerationService.IssueListener {
+
+    /**
+     * Сколько последних строк вывода хранить в задании
+     */
+    private static final int MAX_OUTPUT_LINES = 500;
+
+    /**
+     * Сколько неотправленных событий может накопиться у одного подписчика
+     */
+    private static final int MAX_PENDING_EVENTS = MAX_OUTPUT_LINES * 2;
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCESS, FAILED
+    }
+
+    private final String id;
+    private final String certificateName;
+    private final Instant createdAt = Instant.now();
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile int progress;
+    private volatile String stage = "В очереди";
+    private volatile String result;
+
+    private final Deque<String> output = new ArrayDeque<>();
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final Executor sender;
+
+    /**
+     * @param sender пул, в котором события отправляются подписчикам SSE
+     */
+    public CertificateIssueJob(String id, String certificateName, Executor sender) {
+        this.id = id;
+        this.certificateName = certificateName;
+        this.sender = sender;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCertificateName() {
+        return certificateName;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Время создания задания в часовом поясе сервера (для отображения)
+     */
+    @JsonIgnore
+    public LocalDateTime getCreatedAtLocal() {
+        return LocalDateTime.ofInstant(createdAt, ZoneId.systemDefault());
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public int getProgress() {
+        return progress;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public boolean isFinished() {
+        return status == Status.SUCCESS || status == Status.FAILED;
+    }
+
+    @JsonIgnore
+    public synchronized List<String> getOutput() {
+        return new ArrayList<>(output);
+    }
+
+    synchronized void markRunning() {
+        startedAt = Instant.now();
+        status = Status.RUNNING;
+        stage = "Выполняется";
+        publish("state", summary());
+    }
+
+    synchronized void markFinished(boolean success, String result) {
+        this.finishedAt = Instant.now();
+        this.status = success ? Status.SUCCESS : Status.FAILED;
+        this.progress = 100;
+        this.stage = success ? "Готово" : "Ошибка";
+        this.result = result;
+        Map<String, Object> summary = summary();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer("done", summary, true);
+        }
+        subscribers.clear();
+    }
+
+    @Override
+    public synchronized void onOutput(String line) {
+        output.addLast(line);
+        if (output.size() > MAX_OUTPUT_LINES) {
+            output.removeFirst();
+        }
+        publish("output", line);
+    }
+
+    @Override
+    public synchronized void onProgress(int percent, String stage) {
+        this.progress = Math.max(this.progress, Math.min(percent, 99));
+        this.stage = stage;
+        publish("progress", summary());
+    }
+
+    /**
+     * Подписывает клиента на события задания. Сначала отправляется текущее состояние
+     * и накопленный вывод, затем - новые события по мере поступления.
+     */
+    public synchronized void subscribe(SseEmitter emitter) {
+        Subscriber subscriber = new Subscriber(emitter);
+        subscriber.offer("state", summary(), false);
+        for (String line : output) {
+            subscriber.offer("output", line, false);
+        }
+        if (isFinished()) {
+            subscriber.offer("done", summary(), true);
+            return;
+        }
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(() -> unsubscribe(subscriber));
+    }
+
+    private synchronized void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    /**
+     * Ставит событие в очереди подписчиков; вызывается под монитором задания, поэтому порядок событий сохраняется
+     */
+    private void publish(String event, Object data) {
+        subscribers.removeIf(subscriber -> !subscriber.offer(event, data, false));
+    }
+
+    /**
+     * Подписчик SSE с очередью неотправленных событий. Очередь разбирает не больше одной задачи в пуле sender
+     */
+    private final class Subscriber implements Runnable {
+
+        private final SseEmitter emitter;
+        private final Deque<SseEmitter.SseEventBuilder> pending = new ArrayDeque<>();
+        private boolean draining;
+        private boolean completeWhenDrained;
+        private boolean closed;
+
+        private Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        /**
+         * @param last закрыть соединение после отправки этого события
+         * @return false, если подписчик отключился или отстал и больше не получает события
+         */
+        synchronized boolean offer(String event, Object data, boolean last) {
+            if (closed) {
+                return false;
+            }
+            if (pending.size() >= MAX_PENDING_EVENTS) {
+                log.debug("Клиент SSE задания {} отстал на {} событий, соединение закрывается", id, pending.size());
+                pending.clear();
+                closed = true;
+                completeWhenDrained = true;
+            } else {
+                SseEmitter.SseEventBuilder builder = SseEmitter.event().name(event);
+                if (data instanceof String) {
+                    builder.data(data);
+                } else {
+                    builder.data(data, MediaType.APPLICATION_JSON);
+                }
+                pending.addLast(builder);
+                completeWhenDrained |= last;
+                closed = last;
+            }
+            if (!draining) {
+                draining = true;
+                try {
+                    sender.execute(this);
+                } catch (RejectedExecutionException e) {
+                    pending.clear();
+                    closed = true;
+                    return false;
+                }
+            }
+            return !closed;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                SseEmitter.SseEventBuilder event;
+                synchronized (this) {
+                    event = pending.pollFirst();
+                    if (event == null) {
+                        draining = false;
+                        if (!completeWhenDrained) {
+                            return;
+                        }
+                        completeWhenDrained = false;
+                    }
+                }
+                if (event == null) {
+                    emitter.complete();
+                    return;
+                }
+                try {
+                    emitter.send(event);
+                } catch (IOException | IllegalStateException e) {
+                    log.debug("Клиент SSE отключился от задания {}: {}", id, e.getMessage());
+                    synchronized (this) {
+                        pending.clear();
+                        closed = true;
+                        draining = false;
+                    }
+                    unsubscribe(this);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Краткое состояние задания для отправки клиенту
+     */
+    public Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("id", id);
+        summary.put("certificateName", certificateName);
+        summary.put("status", status);
+        summary.put("progress", progress);
+        summary.put("stage", stage);
+        summary.put("result", result);
+        summary.put("createdAt", createdAt.toString());
+        summary.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+        return summary;
+    }
+}
@@ -0,0 +1,213 @@
+package ru.rs.vpndirector.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Асинхронный выпуск сертификатов: задания выполняются ограниченным пулом потоков,
+ * не занимая потоки Tomcat. Для одного имени одновременно может существовать только одно активное задание.
+ */
+@Slf4j
+@Service
+public class CertificateIssueJobService {
+
+    private final CertificateGenerationService certificateGenerationService;
+    private final OpenVpnProperties openVpnProperties;
+    private final ThreadPoolExecutor executor;
+    /**
+     * Отправка событий заданий подписчикам SSE: запись в медленное соединение не задерживает выпуск
+     */
+    private final ExecutorService sseSender;
+
+    /**
+     * Активные (в очереди или выполняющиеся) задания по имени сертификата
+     */
+    private final Map<String, CertificateIssueJob> activeByName = new ConcurrentHashMap<>();
+    private final Map<String, CertificateIssueJob> jobsById = new ConcurrentHashMap<>();
+    /**
+     * История заданий, новые - в начале
+     */
+    private final Deque<CertificateIssueJob> history = new ConcurrentLinkedDeque<>();
+
+    public CertificateIssueJobService(CertificateGenerationService certificateGenerationService,
+                                      OpenVpnProperties openVpnProperties) {
+        this.certificateGenerationService = certificateGenerationService;
+        this.openVpnProperties = openVpnProperties;
+        int workers = Math.max(1, openVpnProperties.getIssueWorkers());
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, openVpnProperties.getIssueQueueCapacity())),
+            runnable -> {
+                Thread thread = new Thread(runnable, "cert-issue-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        AtomicInteger senderNumber = new AtomicInteger();
+        this.sseSender = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "cert-issue-sse-" + senderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Ставит выпуск сертификата в очередь. Если для этого имени уже есть активное задание, возвращает его.
+     *
+     * @param certificateName имя сертификата (CN)
+     * @return задание
+     * @throws RejectedExecutionException если очередь заданий заполнена
+     */
+    public CertificateIssueJob submit(String certificateName) {
+        CertificateIssueJob[] created = new CertificateIssueJob[1];
+        CertificateIssueJob job = activeByName.computeIfAbsent(certificateName, name -> {
+            created[0] = new CertificateIssueJob(UUID.randomUUID().toString(), name, sseSender);
+            return created[0];
+        });
+        if (created[0] == null) {
+            log.info("Выпуск сертификата {} уже выполняется (задание {})", certificateName, job.getId());
+            return job;
+        }
+
+        jobsById.put(job.getId(), job);
+        try {
+            executor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            activeByName.remove(certificateName, job);
+            jobsById.remove(job.getId());
+            log.warn("Очередь выпуска сертификатов заполнена, задание для {} отклонено", certificateName);
+            throw e;
+        }
+        addToHistory(job);
+        log.info("Задание {} на выпуск сертификата {} поставлено в очередь", job.getId(), certificateName);
+        return job;
+    }
+
+    /**
+     * Выпускает сертификат в пуле заданий и ждет завершения. В отличие от {@link #submit},
+     * не присоединяется к уже идущему выпуску того же имени.
+     *
+     * @param certificateName имя сертификата (CN)
+     * @return завершенное задание или null, если для этого имени уже есть активное задание
+     */
+    CertificateIssueJob issueAndWait(String certificateName) throws InterruptedException {
+        CertificateIssueJob job = reserve(certificateName);
+        if (job == null) {
+            return null;
+        }
+        Future<?> future;
+        try {
+            future = executor.submit(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            log.warn("Очередь выпуска сертификатов заполнена, задание для {} отклонено", certificateName);
+            release(job, false, "Ошибка: очередь выпуска сертификатов заполнена");
+            return job;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            log.error("Ошибка при выполнении задания {}", job.getId(), e.getCause());
+        }
+        return job;
+    }
+
+    /**
+     * Занимает имя для выпуска вне очереди заданий (массовый выпуск). Пока имя занято,
+     * {@link #submit} для него возвращает это задание. Занятое имя освобождается через {@link #release}.
+     *
+     * @param certificateName имя сертификата (CN)
+     * @return задание или null, если для этого имени уже есть активное задание
+     */
+    CertificateIssueJob reserve(String certificateName) {
+        CertificateIssueJob job = new CertificateIssueJob(UUID.randomUUID().toString(), certificateName, sseSender);
+        if (activeByName.putIfAbsent(certificateName, job) != null) {
+            log.info("Выпуск сертификата {} уже выполняется другим заданием", certificateName);
+            return null;
+        }
+        jobsById.put(job.getId(), job);
+        addToHistory(job);
+        return job;
+    }
+
+    /**
+     * Завершает задание, полученное через {@link #reserve}, и освобождает имя
+     */
+    void release(CertificateIssueJob job, boolean success, String result) {
+        try {
+            job.markFinished(success, result);
+        } finally {
+            activeByName.remove(job.getCertificateName(), job);
+        }
+    }
+
+    private void run(CertificateIssueJob job) {
+        job.markRunning();
+        try {
+            CertificateGenerationService.IssueResult result =
+                certificateGenerationService.generateCertificate(job.getCertificateName(), job);
+            job.markFinished(result.isSuccess(), result.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Ошибка при выполнении задания {}", job.getId(), e);
+            job.markFinished(false, "Ошибка: " + e.getMessage());
+        } finally {
+            activeByName.remove(job.getCertificateName(), job);
+        }
+    }
+
+    private void addToHistory(CertificateIssueJob job) {
+        history.addFirst(job);
+        int limit = Math.max(1, openVpnProperties.getIssueHistorySize());
+        while (history.size() > limit) {
+            CertificateIssueJob removed = history.pollLast();
+            if (removed == null) {
+                break;
+            }
+            if (removed.isFinished()) {
+                jobsById.remove(removed.getId());
+            } else {
+                // Незавершенные задания не вытесняем, чтобы не потерять их состояние
+                history.addLast(removed);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Задание по идентификатору или null
+     */
+    public CertificateIssueJob getJob(String id) {
+        return id != null ? jobsById.get(id) : null;
+    }
+
+    /**
+     * История заданий, новые - в начале
+     */
+    public List<CertificateIssueJob> getHistory() {
+        return Collections.unmodifiableList(new ArrayList<>(history));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        sseSender.shutdownNow();
+    }
+}
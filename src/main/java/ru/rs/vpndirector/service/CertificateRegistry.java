@@ -0,0 +1,496 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Реестр сертификатов: разобранный index.txt и список файлов каталога keys в памяти.
+ * <p>
+ * Реестр обновляется по событиям WatchService: дописанные в index.txt строки разбираются
+ * без перечитывания файла целиком, созданные и удаленные .crt/.key проверяются по одному.
+ * Кроме того, при каждом обращении сверяются размер и время изменения index.txt и каталога keys
+ * (два вызова stat), чтобы не отдать устаревшие данные, если событие еще не обработано или потеряно.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CertificateRegistry {
+
+    private static final String INDEX_FILE_NAME = "index.txt";
+    private static final Pattern CN_PATTERN = Pattern.compile("/CN=([^/]+)");
+
+    private final EasyRsaStore easyRsaStore;
+
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot;
+    private DirectoryWatcher watcher;
+
+    // Состояние разбора, защищено lock
+    private final List<IndexEntry> entries = new ArrayList<>();
+    private final Set<String> keyFiles = new HashSet<>();
+    private Path keysDir;
+    private FileState indexState;
+    private FileState keysDirState;
+    private long indexOffset;
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void start() {
+        refresh();
+        Path dir = easyRsaStore.getKeysDir();
+        if (!Files.isDirectory(dir)) {
+            log.warn("Каталог {} не найден, реестр сертификатов будет обновляться только при обращении", dir);
+            return;
+        }
+        try {
+            watcher = DirectoryWatcher.start("certificate-registry", dir, this::onChange);
+        } catch (IOException e) {
+            log.warn("Не удалось включить наблюдение за {}: {}", dir, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Все записи index.txt в порядке выпуска
+     */
+    public List<CertificateRecord> getCertificates() {
+        return current().records;
+    }
+
+    /**
+     * Последняя запись index.txt с указанным CN или null
+     */
+    public CertificateRecord find(String name) {
+        return current().latestByName.get(name);
+    }
+
+    /**
+     * Страница записей index.txt с поиском по имени и сортировкой: name, serial, expires
+     * (по умолчанию - порядок выпуска)
+     */
+    public ListingPage<CertificateRecord> search(ListingQuery query) {
+        return current().listing().page(query);
+    }
+
+    /**
+     * Последние записи index.txt по каждому CN
+     */
+    public Collection<CertificateRecord> getLatestCertificates() {
+        return current().latestByName.values();
+    }
+
+    /**
+     * Подписка на изменения index.txt. Получатель вызывается под блокировкой реестра
+     * и не должен выполнять в этом потоке долгих операций.
+     */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Имена (CN), для которых есть действующий (не отозванный и не истекший) сертификат
+     */
+    public Set<String> getValidNames() {
+        Set<String> names = new HashSet<>();
+        for (CertificateRecord record : current().records) {
+            if (record.isValid()) {
+                names.add(record.getName());
+            }
+        }
+        return names;
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null || !current.keysDir.equals(easyRsaStore.getKeysDir())
+                || !Objects.equals(stat(current.keysDir.resolve(INDEX_FILE_NAME)), current.indexState)
+                || !Objects.equals(stat(current.keysDir), current.keysDirState)) {
+            refresh();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    /**
+     * Обновляет реестр по изменениям на диске
+     */
+    public void refresh() {
+        synchronized (lock) {
+            Path dir = easyRsaStore.getKeysDir();
+            if (!dir.equals(keysDir)) {
+                keysDir = dir;
+                resetIndex();
+                keysDirState = null;
+            }
+            refreshIndex();
+            FileState dirState = stat(dir);
+            if (!Objects.equals(dirState, keysDirState)) {
+                listKeyFiles();
+                keysDirState = dirState;
+            }
+            publish();
+        }
+    }
+
+    private void onChange(Set<Path> changed) {
+        synchronized (lock) {
+            if (changed == null || !easyRsaStore.getKeysDir().equals(keysDir)) {
+                keysDirState = null;
+                resetIndex();
+                refresh();
+                return;
+            }
+            for (Path path : changed) {
+                String fileName = path.getFileName().toString();
+                if (isKeyMaterial(fileName)) {
+                    if (Files.exists(keysDir.resolve(path))) {
+                        keyFiles.add(fileName);
+                    } else {
+                        keyFiles.remove(fileName);
+                    }
+                }
+            }
+            refreshIndex();
+            keysDirState = stat(keysDir);
+            publish();
+        }
+    }
+
+    private static boolean isKeyMaterial(String fileName) {
+        return fileName.endsWith(".crt") || fileName.endsWith(".key");
+    }
+
+    private void listKeyFiles() {
+        keyFiles.clear();
+        if (!Files.isDirectory(keysDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(keysDir)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (isKeyMaterial(fileName)) {
+                    keyFiles.add(fileName);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Ошибка при чтении каталога {}", keysDir, e);
+        }
+    }
+
+    private void resetIndex() {
+        entries.clear();
+        indexState = null;
+        indexOffset = 0;
+    }
+
+    /**
+     * Разбирает index.txt: если файл тот же (тот же inode) и только вырос - только дописанные строки
+     */
+    private void refreshIndex() {
+        Path indexFile = keysDir.resolve(INDEX_FILE_NAME);
+        FileState state = stat(indexFile);
+        if (Objects.equals(state, indexState)) {
+            return;
+        }
+        if (state == null) {
+            log.warn("Файл index.txt не найден: {}", indexFile);
+            resetIndex();
+            return;
+        }
+        boolean appended = indexState != null && Objects.equals(state.fileKey, indexState.fileKey)
+            && state.size > indexState.size;
+        if (!appended) {
+            resetIndex();
+        }
+        try (SeekableByteChannel channel = Files.newByteChannel(indexFile)) {
+            channel.position(indexOffset);
+            byte[] tail = Channels.newInputStream(channel).readAllBytes();
+            int lineStart = 0;
+            for (int i = 0; i < tail.length; i++) {
+                if (tail[i] == '\n') {
+                    parseLine(new String(tail, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                    lineStart = i + 1;
+                }
+            }
+            // Незавершенную последнюю строку разберем, когда она будет дописана
+            indexOffset += lineStart;
+            indexState = state;
+        } catch (NoSuchFileException e) {
+            resetIndex();
+        } catch (IOException e) {
+            log.error("Ошибка при чтении файла index.txt", e);
+            resetIndex();
+        }
+    }
+
+    /**
+     * Строка index.txt: статус, срок действия, дата отзыва[,причина], серийный номер, файл, DN
+     * <pre>V	270111231001Z		02	unknown	/C=RU/ST=CFO/L=Moscow/O=rs/OU=MyOrganizationalUnit/CN=someSertName/name=EasyRSA/emailAddress=my@email.ru</pre>
+     */
+    private void parseLine(String line) {
+        String trimmed = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return;
+        }
+        String[] fields = trimmed.split("\t", -1);
+        if (fields.length < 6 || fields[0].length() != 1) {
+            log.warn("Некорректная строка index.txt: {}", trimmed);
+            return;
+        }
+        Matcher matcher = CN_PATTERN.matcher(fields[5]);
+        if (!matcher.find()) {
+            log.warn("В строке index.txt нет CN: {}", trimmed);
+            return;
+        }
+        String revocation = fields[2];
+        String revocationReason = null;
+        int comma = revocation.indexOf(',');
+        if (comma >= 0) {
+            revocationReason = revocation.substring(comma + 1);
+            revocation = revocation.substring(0, comma);
+        }
+        entries.add(new IndexEntry(fields[0].charAt(0), EasyRsaStore.parseIndexTime(fields[1]),
+            revocation.isEmpty() ? null : EasyRsaStore.parseIndexTime(revocation), revocationReason,
+            fields[3], fields[5], matcher.group(1)));
+    }
+
+    private void publish() {
+        List<CertificateRecord> records = new ArrayList<>(entries.size());
+        Map<String, CertificateRecord> latestByName = new HashMap<>();
+        for (IndexEntry entry : entries) {
+            boolean hasFiles = keyFiles.contains(entry.name + ".crt") && keyFiles.contains(entry.name + ".key");
+            CertificateRecord record = new CertificateRecord(entry, hasFiles);
+            records.add(record);
+            latestByName.put(entry.name, record);
+        }
+        Snapshot previous = snapshot;
+        snapshot = new Snapshot(keysDir, indexState, keysDirState, Collections.unmodifiableList(records),
+            Collections.unmodifiableMap(latestByName));
+        if (previous == null || !previous.keysDir.equals(keysDir) || !Objects.equals(previous.indexState, indexState)) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+
+    private static FileState stat(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileState(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Статус сертификата
+     */
+    public enum Status {
+        VALID("Действителен"),
+        REVOKED("Отозван"),
+        EXPIRED("Истек");
+
+        private final String label;
+
+        Status(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Запись реестра: строка index.txt и наличие файлов .crt/.key
+     */
+    public static class CertificateRecord {
+        private final IndexEntry entry;
+        private final boolean hasFiles;
+
+        CertificateRecord(IndexEntry entry, boolean hasFiles) {
+            this.entry = entry;
+            this.hasFiles = hasFiles;
+        }
+
+        public String getName() {
+            return entry.name;
+        }
+
+        public String getSerial() {
+            return entry.serial;
+        }
+
+        public String getSubject() {
+            return entry.subject;
+        }
+
+        public Instant getExpiresAt() {
+            return entry.expiresAt;
+        }
+
+        public Instant getRevokedAt() {
+            return entry.revokedAt;
+        }
+
+        /**
+         * Срок действия в часовом поясе сервера (для отображения)
+         */
+        public LocalDateTime getExpiresAtLocal() {
+            return entry.expiresAt != null ? LocalDateTime.ofInstant(entry.expiresAt, ZoneId.systemDefault()) : null;
+        }
+
+        /**
+         * Дата отзыва в часовом поясе сервера (для отображения)
+         */
+        public LocalDateTime getRevokedAtLocal() {
+            return entry.revokedAt != null ? LocalDateTime.ofInstant(entry.revokedAt, ZoneId.systemDefault()) : null;
+        }
+
+        public String getRevocationReason() {
+            return entry.revocationReason;
+        }
+
+        public boolean isHasFiles() {
+            return hasFiles;
+        }
+
+        /**
+         * Статус с учетом срока действия: сертификат с пометкой V и истекшим сроком считается истекшим
+         */
+        public Status getStatus() {
+            if (entry.status == 'R') {
+                return Status.REVOKED;
+            }
+            if (entry.status == 'E' || entry.expiresAt != null && entry.expiresAt.isBefore(Instant.now())) {
+                return Status.EXPIRED;
+            }
+            return Status.VALID;
+        }
+
+        public boolean isValid() {
+            return getStatus() == Status.VALID;
+        }
+    }
+
+    private static final class IndexEntry {
+        private final char status;
+        private final Instant expiresAt;
+        private final Instant revokedAt;
+        private final String revocationReason;
+        private final String serial;
+        private final String subject;
+        private final String name;
+
+        private IndexEntry(char status, Instant expiresAt, Instant revokedAt, String revocationReason,
+                           String serial, String subject, String name) {
+            this.status = status;
+            this.expiresAt = expiresAt;
+            this.revokedAt = revokedAt;
+            this.revocationReason = revocationReason;
+            this.serial = serial;
+            this.subject = subject;
+            this.name = name;
+        }
+    }
+
+    private static final class FileState {
+        private final Object fileKey;
+        private final long size;
+        private final long modifiedMillis;
+
+        private FileState(Object fileKey, long size, long modifiedMillis) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileState)) {
+                return false;
+            }
+            FileState that = (FileState) o;
+            return size == that.size && modifiedMillis == that.modifiedMillis && Objects.equals(fileKey, that.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, size, modifiedMillis);
+        }
+    }
+
+    private static final class Snapshot {
+        private final Path keysDir;
+        private final FileState indexState;
+        private final FileState keysDirState;
+        private final List<CertificateRecord> records;
+        private final Map<String, CertificateRecord> latestByName;
+        private volatile ListingIndex<CertificateRecord> listing;
+
+        private Snapshot(Path keysDir, FileState indexState, FileState keysDirState, List<CertificateRecord> records,
+                         Map<String, CertificateRecord> latestByName) {
+            this.keysDir = keysDir;
+            this.indexState = indexState;
+            this.keysDirState = keysDirState;
+            this.records = records;
+            this.latestByName = latestByName;
+        }
+
+        /**
+         * Индексы для постраничного вывода строятся при первом обращении к снимку
+         */
+        private ListingIndex<CertificateRecord> listing() {
+            ListingIndex<CertificateRecord> result = listing;
+            if (result == null) {
+                Map<String, Comparator<CertificateRecord>> sorts = new HashMap<>();
+                sorts.put("serial", Comparator.comparing((CertificateRecord record) -> record.getSerial().length())
+                    .thenComparing(CertificateRecord::getSerial));
+                sorts.put("expires", Comparator.comparing(CertificateRecord::getExpiresAt,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
+                result = new ListingIndex<>(records, CertificateRecord::getName, sorts, null);
+                listing = result;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Отзыв сертификатов без revoke-full: записи index.txt помечаются как отозванные (R),
+ * а crl.pem собирается заново в процессе из реестра и подменяется атомарно, так что
+ * OpenVPN с crl-verify подхватывает его без перезапуска.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CertificateRevocationService {
+
+    private static final Pattern CN_PATTERN = Pattern.compile("/CN=([^/]+)");
+
+    /**
+     * Причины отзыва в написании openssl (поле даты отзыва в index.txt: "дата,причина")
+     */
+    private static final Map<String, Integer> REASONS = new LinkedHashMap<>();
+
+    static {
+        REASONS.put("unspecified", CRLReason.unspecified);
+        REASONS.put("keyCompromise", CRLReason.keyCompromise);
+        REASONS.put("CACompromise", CRLReason.cACompromise);
+        REASONS.put("affiliationChanged", CRLReason.affiliationChanged);
+        REASONS.put("superseded", CRLReason.superseded);
+        REASONS.put("cessationOfOperation", CRLReason.cessationOfOperation);
+        REASONS.put("certificateHold", CRLReason.certificateHold);
+        REASONS.put("removeFromCRL", CRLReason.removeFromCRL);
+    }
+
+    private final OpenVpnProperties openVpnProperties;
+    private final EasyRsaStore easyRsaStore;
+    private final CertificateRegistry certificateRegistry;
+
+    public enum Outcome {
+        REVOKED, ALREADY_REVOKED, NOT_FOUND
+    }
+
+    /**
+     * Допустимые причины отзыва
+     */
+    public static Set<String> getReasons() {
+        return REASONS.keySet();
+    }
+
+    /**
+     * Отзывает действующие сертификаты с указанными именами и обновляет CRL
+     *
+     * @param names имена сертификатов (CN)
+     * @param reason причина отзыва в написании openssl или null
+     * @return результат по каждому имени
+     */
+    public Map<String, Outcome> revoke(Collection<String> names, String reason) throws IOException {
+        if (reason != null && !reason.isEmpty() && !REASONS.containsKey(reason)) {
+            throw new IllegalArgumentException("Неизвестная причина отзыва: " + reason);
+        }
+        Set<String> targets = new LinkedHashSet<>(names);
+        Map<String, Outcome> outcomes = new LinkedHashMap<>();
+        long started = System.nanoTime();
+        easyRsaStore.withIndexLock(() -> {
+            Path indexFile = easyRsaStore.getKeysDir().resolve("index.txt");
+            if (!Files.exists(indexFile)) {
+                throw new IOException("Файл index.txt не найден: " + indexFile);
+            }
+            String revocationField = EasyRsaStore.formatIndexTime(new Date())
+                + (reason != null && !reason.isEmpty() ? "," + reason : "");
+            List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            List<String> updated = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                String[] fields = line.split("\t", -1);
+                String name = fields.length >= 6 ? extractName(fields[5]) : null;
+                if (name == null || !targets.contains(name)) {
+                    updated.add(line);
+                    continue;
+                }
+                if ("V".equals(fields[0])) {
+                    fields[0] = "R";
+                    fields[2] = revocationField;
+                    outcomes.put(name, Outcome.REVOKED);
+                    log.info("Сертификат {} (серийный номер {}) отозван", name, fields[3]);
+                    updated.add(String.join("\t", fields));
+                } else {
+                    outcomes.putIfAbsent(name, Outcome.ALREADY_REVOKED);
+                    updated.add(line);
+                }
+            }
+            if (outcomes.containsValue(Outcome.REVOKED)) {
+                Files.copy(indexFile, indexFile.resolveSibling("index.txt.old"), StandardCopyOption.REPLACE_EXISTING);
+                EasyRsaStore.writeAtomically(indexFile,
+                    (String.join("\n", updated) + "\n").getBytes(StandardCharsets.UTF_8));
+                certificateRegistry.refresh();
+                writeCrl();
+            }
+            return null;
+        });
+        for (String name : targets) {
+            outcomes.putIfAbsent(name, Outcome.NOT_FOUND);
+        }
+        log.info("Отзыв {} сертификатов выполнен за {} мс", targets.size(),
+            Duration.ofNanos(System.nanoTime() - started).toMillis());
+        return outcomes;
+    }
+
+    /**
+     * Собирает CRL заново по текущему index.txt
+     */
+    public void regenerateCrl() throws IOException {
+        easyRsaStore.withIndexLock(() -> {
+            certificateRegistry.refresh();
+            writeCrl();
+            return null;
+        });
+    }
+
+    private static String extractName(String subject) {
+        Matcher matcher = CN_PATTERN.matcher(subject);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Путь к CRL: crl-file из настроек или keys/crl.pem
+     */
+    public Path getCrlFile() {
+        String configured = openVpnProperties.getCrlFile();
+        return configured != null && !configured.isEmpty()
+            ? Paths.get(configured)
+            : easyRsaStore.getKeysDir().resolve("crl.pem");
+    }
+
+    private void writeCrl() throws IOException {
+        long started = System.nanoTime();
+        List<CertificateRegistry.CertificateRecord> revoked = new ArrayList<>();
+        for (CertificateRegistry.CertificateRecord record : certificateRegistry.getCertificates()) {
+            if (record.getStatus() == CertificateRegistry.Status.REVOKED) {
+                revoked.add(record);
+            }
+        }
+        EasyRsaStore.CertificateAuthority authority = easyRsaStore.loadCertificateAuthority();
+        byte[] crl = buildCrl(authority, revoked, nextCrlNumber(), Instant.now(), openVpnProperties.getCrlValidity());
+
+        Path crlFile = getCrlFile();
+        EasyRsaStore.writeAtomically(crlFile, crl);
+        try {
+            // OpenVPN перечитывает CRL после сброса привилегий (user nobody), файл должен быть доступен на чтение всем
+            Files.setPosixFilePermissions(crlFile, PosixFilePermissions.fromString("rw-r--r--"));
+        } catch (UnsupportedOperationException e) {
+            log.debug("Права на {} не изменены: {}", crlFile, e.getMessage());
+        }
+        log.info("CRL {} обновлен: {} отозванных сертификатов, {} мс", crlFile, revoked.size(),
+            Duration.ofNanos(System.nanoTime() - started).toMillis());
+    }
+
+    /**
+     * Следующий номер CRL из keys/crlnumber (формат openssl), файл обновляется
+     */
+    private BigInteger nextCrlNumber() throws IOException {
+        Path file = easyRsaStore.getKeysDir().resolve("crlnumber");
+        BigInteger number = BigInteger.ONE;
+        if (Files.exists(file)) {
+            String value = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            try {
+                number = new BigInteger(value, 16);
+            } catch (NumberFormatException e) {
+                log.warn("Некорректный номер в {}: {}", file, value);
+            }
+        }
+        EasyRsaStore.writeAtomically(file,
+            (EasyRsaStore.formatSerial(number.add(BigInteger.ONE)) + "\n").getBytes(StandardCharsets.US_ASCII));
+        return number;
+    }
+
+    /**
+     * Собирает и подписывает CRL в формате PEM
+     */
+    static byte[] buildCrl(EasyRsaStore.CertificateAuthority authority,
+                           List<CertificateRegistry.CertificateRecord> revoked, BigInteger crlNumber,
+                           Instant now, Duration validity) throws IOException {
+        try {
+            X509v2CRLBuilder builder = new JcaX509v2CRLBuilder(authority.getCertificate(), Date.from(now));
+            builder.setNextUpdate(Date.from(now.plus(validity)));
+            for (CertificateRegistry.CertificateRecord record : revoked) {
+                BigInteger serial;
+                try {
+                    serial = new BigInteger(record.getSerial(), 16);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Date revokedAt = Date.from(record.getRevokedAt() != null ? record.getRevokedAt() : now);
+                Integer reason = record.getRevocationReason() != null ? REASONS.get(record.getRevocationReason()) : null;
+                builder.addCRLEntry(serial, revokedAt, reason != null ? reason : CRLReason.unspecified);
+            }
+            builder.addExtension(Extension.authorityKeyIdentifier, false,
+                new JcaX509ExtensionUtils().createAuthorityKeyIdentifier(authority.getCertificate()));
+            builder.addExtension(Extension.cRLNumber, false, new CRLNumber(crlNumber));
+
+            PrivateKey key = authority.getPrivateKey();
+            String algorithm = "RSA".equals(key.getAlgorithm()) ? "SHA256withRSA" : "SHA256withECDSA";
+            X509CRLHolder crl = builder.build(new JcaContentSignerBuilder(algorithm).build(key));
+
+            StringWriter pem = new StringWriter();
+            try (JcaPEMWriter writer = new JcaPEMWriter(pem)) {
+                writer.writeObject(crl);
+            }
+            return pem.toString().getBytes(StandardCharsets.US_ASCII);
+        } catch (GeneralSecurityException | OperatorCreationException e) {
+            throw new IOException("Не удалось подписать CRL: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Описание результата отзыва для пользователя
+     */
+    public static String describe(Map<String, Outcome> outcomes) {
+        List<String> revoked = new ArrayList<>();
+        List<String> skipped = new ArrayList<>();
+        for (Map.Entry<String, Outcome> entry : outcomes.entrySet()) {
+            if (entry.getValue() == Outcome.REVOKED) {
+                revoked.add(entry.getKey());
+            } else {
+                skipped.add(entry.getKey() + (entry.getValue() == Outcome.NOT_FOUND ? " (не найден)" : " (уже отозван)"));
+            }
+        }
+        StringBuilder message = new StringBuilder();
+        if (!revoked.isEmpty()) {
+            message.append(String.format(Locale.ROOT, "Отозвано сертификатов: %d (%s). CRL обновлен.",
+                revoked.size(), String.join(", ", revoked)));
+        }
+        if (!skipped.isEmpty()) {
+            if (message.length() > 0) {
+                message.append(' ');
+            }
+            message.append("Пропущены: ").append(String.join(", ", skipped)).append('.');
+        }
+        return message.toString();
+    }
+}
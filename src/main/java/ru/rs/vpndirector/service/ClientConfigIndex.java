@@ -0,0 +1,345 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Индекс готовых клиентских конфигураций в каталоге clients (.ovpn и .conf).
+ * <p>
+ * Для каждого файла в памяти хранятся имя, размер, время изменения и SHA-256; хеш пересчитывается
+ * только для изменившихся файлов. Индекс обновляется по событиям WatchService, а при обращении
+ * дополнительно сверяется состояние каталога (один вызов stat) на случай потерянных событий.
+ * Скачать можно только файл, который есть в индексе, - имя из запроса никогда не превращается в путь.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ClientConfigIndex {
+
+    private static final String CLIENTS_DIR = "clients";
+
+    private final OpenVpnProperties openVpnProperties;
+
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot;
+    private DirectoryWatcher watcher;
+
+    // Состояние индекса, защищено lock
+    private final Map<String, ConfigFile> files = new HashMap<>();
+    private Path directory;
+    private DirectoryState directoryState;
+
+    @PostConstruct
+    public void start() {
+        refresh();
+        Path dir = getDirectory();
+        if (!Files.isDirectory(dir)) {
+            log.warn("Каталог {} не найден, список конфигураций будет обновляться только при обращении", dir);
+            return;
+        }
+        try {
+            watcher = DirectoryWatcher.start("client-configs", dir, this::onChange);
+        } catch (IOException e) {
+            log.warn("Не удалось включить наблюдение за {}: {}", dir, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    /**
+     * Каталог готовых клиентских конфигураций
+     */
+    public Path getDirectory() {
+        return Paths.get(openVpnProperties.getOpenvpnRoot(), CLIENTS_DIR);
+    }
+
+    /**
+     * Страница списка с поиском по имени и сортировкой: name, size, modified
+     */
+    public ListingPage<ConfigFile> search(ListingQuery query) {
+        return current().listing().page(query);
+    }
+
+    /**
+     * Количество файлов в индексе
+     */
+    public int size() {
+        return current().files.size();
+    }
+
+    /**
+     * Файл из индекса по имени или null
+     */
+    public ConfigFile find(String name) {
+        return name != null ? current().byName.get(name) : null;
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current == null || !current.directory.equals(getDirectory())
+                || !Objects.equals(DirectoryState.of(current.directory), current.directoryState)) {
+            refresh();
+            current = snapshot;
+        }
+        return current;
+    }
+
+    /**
+     * Перечитывает каталог; хеши пересчитываются только для файлов с новым размером или временем изменения
+     */
+    public void refresh() {
+        synchronized (lock) {
+            Path dir = getDirectory();
+            if (!dir.equals(directory)) {
+                directory = dir;
+                files.clear();
+            }
+            directoryState = DirectoryState.of(dir);
+            Map<String, ConfigFile> previous = new HashMap<>(files);
+            files.clear();
+            if (directoryState != null) {
+                try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+                    for (Path path : paths) {
+                        String name = path.getFileName().toString();
+                        if (isClientConfig(name)) {
+                            index(name, previous.get(name));
+                        }
+                    }
+                } catch (IOException e) {
+                    log.error("Ошибка при чтении каталога {}", dir, e);
+                }
+            }
+            publish();
+        }
+    }
+
+    private void onChange(Set<Path> changed) {
+        synchronized (lock) {
+            if (changed == null || !getDirectory().equals(directory)) {
+                refresh();
+                return;
+            }
+            for (Path path : changed) {
+                String name = path.getFileName().toString();
+                if (isClientConfig(name)) {
+                    index(name, files.get(name));
+                }
+            }
+            directoryState = DirectoryState.of(directory);
+            publish();
+        }
+    }
+
+    private static boolean isClientConfig(String name) {
+        return name.endsWith(".ovpn") || name.endsWith(".conf");
+    }
+
+    /**
+     * Добавляет файл в индекс, удаляет исчезнувший; известный файл с теми же размером и временем не перечитывается
+     */
+    private void index(String name, ConfigFile known) {
+        Path path = directory.resolve(name);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                files.remove(name);
+                return;
+            }
+            long modifiedMillis = attributes.lastModifiedTime().toMillis();
+            if (known != null && known.size == attributes.size() && known.modifiedMillis == modifiedMillis) {
+                files.put(name, known);
+                return;
+            }
+            files.put(name, new ConfigFile(name, path, attributes.size(), modifiedMillis, sha256(path)));
+        } catch (NoSuchFileException e) {
+            files.remove(name);
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать {}: {}", path, e.getMessage());
+            files.remove(name);
+        }
+    }
+
+    private static String sha256(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private void publish() {
+        List<ConfigFile> sorted = new ArrayList<>(files.values());
+        sorted.sort(Comparator.comparing(ConfigFile::getName));
+        snapshot = new Snapshot(directory, directoryState, Collections.unmodifiableList(sorted),
+            Collections.unmodifiableMap(new HashMap<>(files)));
+    }
+
+    /**
+     * Файл конфигурации в индексе
+     */
+    public static final class ConfigFile {
+        private final String name;
+        private final Path path;
+        private final long size;
+        private final long modifiedMillis;
+        private final String sha256;
+
+        private ConfigFile(String name, Path path, long size, long modifiedMillis, String sha256) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.sha256 = sha256;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Путь к файлу внутри каталога clients
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSizeText() {
+            return OpenVpnStatusService.formatBytes(size);
+        }
+
+        public Instant getModifiedAt() {
+            return Instant.ofEpochMilli(modifiedMillis);
+        }
+
+        public LocalDateTime getModifiedAtLocal() {
+            return LocalDateTime.ofInstant(getModifiedAt(), ZoneId.systemDefault());
+        }
+
+        /**
+         * SHA-256 содержимого в шестнадцатеричном виде
+         */
+        public String getSha256() {
+            return sha256;
+        }
+    }
+
+    private static final class DirectoryState {
+        private final Object fileKey;
+        private final long modifiedMillis;
+
+        private DirectoryState(Object fileKey, long modifiedMillis) {
+            this.fileKey = fileKey;
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        /**
+         * Состояние каталога или null, если его нет. Время изменения каталога меняется
+         * при создании, удалении и переименовании файлов
+         */
+        private static DirectoryState of(Path dir) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+                return attributes.isDirectory()
+                    ? new DirectoryState(attributes.fileKey(), attributes.lastModifiedTime().toMillis()) : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DirectoryState)) {
+                return false;
+            }
+            DirectoryState that = (DirectoryState) o;
+            return modifiedMillis == that.modifiedMillis && Objects.equals(fileKey, that.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fileKey, modifiedMillis);
+        }
+    }
+
+    private static final class Snapshot {
+        private final Path directory;
+        private final DirectoryState directoryState;
+        private final List<ConfigFile> files;
+        private final Map<String, ConfigFile> byName;
+        private volatile ListingIndex<ConfigFile> listing;
+
+        private Snapshot(Path directory, DirectoryState directoryState, List<ConfigFile> files,
+                         Map<String, ConfigFile> byName) {
+            this.directory = directory;
+            this.directoryState = directoryState;
+            this.files = files;
+            this.byName = byName;
+        }
+
+        /**
+         * Индексы для постраничного вывода строятся при первом обращении к снимку
+         */
+        private ListingIndex<ConfigFile> listing() {
+            ListingIndex<ConfigFile> result = listing;
+            if (result == null) {
+                Map<String, Comparator<ConfigFile>> sorts = new HashMap<>();
+                sorts.put("size", Comparator.comparingLong(ConfigFile::getSize));
+                sorts.put("modified", Comparator.comparing(ConfigFile::getModifiedAt));
+                result = new ListingIndex<>(files, ConfigFile::getName, sorts, ListingIndex.NAME);
+                listing = result;
+            }
+            return result;
+        }
+    }
+}
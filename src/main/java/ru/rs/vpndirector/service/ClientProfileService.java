@@ -0,0 +1,289 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Сборка клиентских .ovpn из шаблонов.
+ * <p>
+ * Шаблон один раз разбирается на байтовые отрезки текста и подстановки ({key}, {cert}, {ca}, {remote},
+ * {tls-crypt}) и перечитывается только при изменении файла. Профиль не собирается в памяти целиком:
+ * отрезки шаблона и содержимое файлов ключа и сертификата пишутся прямо в выходной поток.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ClientProfileService {
+
+    private final OpenVpnProperties openVpnProperties;
+
+    private final Map<ProfileType, CompiledTemplate> templates = new ConcurrentHashMap<>();
+
+    /**
+     * Вид клиентской конфигурации
+     */
+    public enum ProfileType {
+        /**
+         * Весь трафик через тоннель
+         */
+        TUNNEL("client_template_tun.ovpn", "_tun"),
+        /**
+         * Только маршруты из server.conf
+         */
+        ROUTES("client_template.ovpn", "");
+
+        private final String templateFileName;
+        private final String filenameSuffix;
+
+        ProfileType(String templateFileName, String filenameSuffix) {
+            this.templateFileName = templateFileName;
+            this.filenameSuffix = filenameSuffix;
+        }
+
+        public String getTemplateFileName() {
+            return templateFileName;
+        }
+
+        /**
+         * Имя файла конфигурации для скачивания
+         */
+        public String fileName(String certificateName) {
+            return certificateName + filenameSuffix + ".ovpn";
+        }
+    }
+
+    /**
+     * Подстановки шаблона
+     */
+    enum Placeholder {
+        KEY("{key}"),
+        CERT("{cert}"),
+        CA("{ca}"),
+        REMOTE("{remote}"),
+        TLS_CRYPT("{tls-crypt}");
+
+        private final byte[] token;
+
+        Placeholder(String token) {
+            this.token = token.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Проверяет наличие шаблона и всех подставляемых файлов и возвращает профиль, готовый к записи в поток.
+     * Ошибки (нет шаблона, ключа или сертификата) возникают здесь, до начала ответа.
+     *
+     * @param certificateName имя сертификата (CN)
+     * @param type вид конфигурации
+     * @throws FileNotFoundException если нет шаблона или подставляемых файлов
+     */
+    public Profile prepareProfile(String certificateName, ProfileType type) throws IOException {
+        CompiledTemplate template = compiledTemplate(type);
+
+        Path keysDir = Paths.get(openVpnProperties.getEasyRsaPath(), "keys");
+        Map<Placeholder, Path> files = new EnumMap<>(Placeholder.class);
+        byte[] remote = null;
+        for (Placeholder placeholder : template.placeholders) {
+            switch (placeholder) {
+                case KEY:
+                    files.put(placeholder, keysDir.resolve(certificateName + ".key"));
+                    break;
+                case CERT:
+                    files.put(placeholder, keysDir.resolve(certificateName + ".crt"));
+                    break;
+                case CA:
+                    files.put(placeholder, keysDir.resolve("ca.crt"));
+                    break;
+                case TLS_CRYPT:
+                    files.put(placeholder, Paths.get(openVpnProperties.getOpenvpnRoot())
+                        .resolve(openVpnProperties.getProfileTlsCryptFile()));
+                    break;
+                case REMOTE:
+                    String value = openVpnProperties.getProfileRemote();
+                    if (value == null || value.trim().isEmpty()) {
+                        throw new IOException("Шаблон " + type.getTemplateFileName()
+                            + " содержит {remote}, но адрес сервера (profile-remote) не задан");
+                    }
+                    remote = value.trim().getBytes(StandardCharsets.UTF_8);
+                    break;
+                default:
+                    throw new IllegalStateException("Неизвестная подстановка " + placeholder);
+            }
+        }
+        // Отпечаток собирается из размеров и времени изменения файлов - содержимое ключей не читается
+        StringBuilder fingerprint = new StringBuilder(template.state);
+        for (Map.Entry<Placeholder, Path> entry : files.entrySet()) {
+            Path file = entry.getValue();
+            BasicFileAttributes attributes = regularFileAttributes(file);
+            if (attributes == null) {
+                throw new FileNotFoundException(entry.getKey() == Placeholder.KEY || entry.getKey() == Placeholder.CERT
+                    ? "Файлы сертификата не найдены для: " + certificateName
+                    : "Файл для подстановки " + new String(entry.getKey().token, StandardCharsets.US_ASCII)
+                        + " не найден: " + file);
+            }
+            fingerprint.append('\n').append(file).append('|').append(attributes.size())
+                .append('|').append(attributes.lastModifiedTime().toMillis());
+        }
+        if (remote != null) {
+            fingerprint.append('\n').append(new String(remote, StandardCharsets.UTF_8));
+        }
+        return new Profile(template, files, remote, fingerprint.toString());
+    }
+
+    private static BasicFileAttributes regularFileAttributes(Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Разобранный шаблон; перечитывается, если изменились время изменения или размер файла
+     */
+    private CompiledTemplate compiledTemplate(ProfileType type) throws IOException {
+        Path templatePath = Paths.get(openVpnProperties.getOpenvpnRoot(), type.getTemplateFileName());
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(templatePath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            templates.remove(type);
+            throw new FileNotFoundException("Шаблон не найден: " + templatePath);
+        }
+        String state = templatePath + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+        CompiledTemplate template = templates.get(type);
+        if (template == null || !template.state.equals(state)) {
+            template = CompiledTemplate.compile(Files.readAllBytes(templatePath), state);
+            templates.put(type, template);
+            log.info("Шаблон {} разобран, подстановки: {}", templatePath, template.placeholders);
+        }
+        return template;
+    }
+
+    /**
+     * Профиль, готовый к записи: отрезки шаблона и пути к подставляемым файлам
+     */
+    public static final class Profile {
+        private final CompiledTemplate template;
+        private final Map<Placeholder, Path> files;
+        private final byte[] remote;
+        private final String fingerprint;
+
+        private Profile(CompiledTemplate template, Map<Placeholder, Path> files, byte[] remote, String fingerprint) {
+            this.template = template;
+            this.files = files;
+            this.remote = remote;
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * ETag профиля: меняется при изменении шаблона, ключа, сертификата, CA или адреса сервера
+         */
+        public String getETag() {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(fingerprint.getBytes(StandardCharsets.UTF_8));
+                StringBuilder hex = new StringBuilder("\"");
+                for (int i = 0; i < 16; i++) {
+                    hex.append(Character.forDigit((digest[i] >> 4) & 0xF, 16))
+                        .append(Character.forDigit(digest[i] & 0xF, 16));
+                }
+                return hex.append('"').toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 недоступен", e);
+            }
+        }
+
+        /**
+         * Пишет профиль в поток; поток не закрывается
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            for (Object segment : template.segments) {
+                if (segment instanceof byte[]) {
+                    out.write((byte[]) segment);
+                } else if (segment == Placeholder.REMOTE) {
+                    out.write(remote);
+                } else {
+                    Files.copy(files.get(segment), out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Шаблон в виде последовательности отрезков: byte[] - текст, Placeholder - подстановка
+     */
+    static final class CompiledTemplate {
+        private final String state;
+        private final List<Object> segments;
+        private final List<Placeholder> placeholders;
+
+        private CompiledTemplate(String state, List<Object> segments) {
+            this.state = state;
+            this.segments = Collections.unmodifiableList(segments);
+            List<Placeholder> distinct = new ArrayList<>();
+            for (Object segment : segments) {
+                if (segment instanceof Placeholder && !distinct.contains(segment)) {
+                    distinct.add((Placeholder) segment);
+                }
+            }
+            this.placeholders = distinct;
+        }
+
+        static CompiledTemplate compile(byte[] content, String state) {
+            List<Object> segments = new ArrayList<>();
+            int literalStart = 0;
+            int i = 0;
+            while (i < content.length) {
+                Placeholder placeholder = content[i] == '{' ? placeholderAt(content, i) : null;
+                if (placeholder == null) {
+                    i++;
+                    continue;
+                }
+                if (i > literalStart) {
+                    segments.add(Arrays.copyOfRange(content, literalStart, i));
+                }
+                segments.add(placeholder);
+                i += placeholder.token.length;
+                literalStart = i;
+            }
+            if (content.length > literalStart) {
+                segments.add(Arrays.copyOfRange(content, literalStart, content.length));
+            }
+            return new CompiledTemplate(state, segments);
+        }
+
+        private static Placeholder placeholderAt(byte[] content, int offset) {
+            for (Placeholder placeholder : Placeholder.values()) {
+                byte[] token = placeholder.token;
+                if (offset + token.length <= content.length
+                        && Arrays.equals(content, offset, offset + token.length, token, 0, token.length)) {
+                    return placeholder;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package ru.rs.vpndirector.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * История сессий по CN, собранная из событий журнала OpenVPN: последнее подключение, количество сессий,
+ * последние сессии и ошибки подключения. Общий список последних ошибок включает и попытки без известного CN.
+ * <p>
+ * Индекс изменяет только поток чтения журнала; страницы получают копии записей, поэтому все методы синхронизированы.
+ */
+public class ClientSessionIndex {
+
+    /**
+     * Версия формата файла состояния
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Сколько адресов помнить для привязки ошибок TLS к CN, прошедшему VERIFY OK с того же адреса
+     */
+    private static final int MAX_VERIFIED_ADDRESSES = 4096;
+
+    /**
+     * Сколько ошибок подключения хранить в общем списке
+     */
+    static final int MAX_RECENT_FAILURES = 50;
+
+    /**
+     * Сколько одновременных сессий одного CN учитывать (duplicate-cn)
+     */
+    private static final int MAX_OPEN_SESSIONS = 16;
+
+    private final int historySize;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Deque<Failure> recentFailures = new ArrayDeque<>();
+    private final Map<String, String> verifiedAddresses = new LinkedHashMap<String, String>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_VERIFIED_ADDRESSES;
+        }
+    };
+
+    /**
+     * @param historySize сколько последних сессий и ошибок хранить для каждого CN
+     */
+    public ClientSessionIndex(int historySize) {
+        this.historySize = Math.max(1, historySize);
+    }
+
+    /**
+     * Учитывает событие журнала
+     */
+    synchronized void apply(OpenVpnLogEvent event) {
+        String commonName = event.getCommonName();
+        switch (event.getType()) {
+            case VERIFIED:
+                verifiedAddresses.put(event.getAddress(), commonName);
+                break;
+            case CONNECT:
+                verifiedAddresses.remove(event.getAddress());
+                entry(commonName).connect(event.getTime(), event.getAddress(), historySize);
+                break;
+            case ADDRESS:
+                entry(commonName).assignAddress(event.getAddress(), event.getDetail());
+                break;
+            case DISCONNECT:
+                entry(commonName).disconnect(event.getTime(), event.getAddress(), event.getDetail(), historySize);
+                break;
+            case FAILURE:
+                if (commonName == null) {
+                    commonName = verifiedAddresses.get(event.getAddress());
+                }
+                Failure failure = new Failure(event.getTime(), commonName, event.getAddress(), event.getDetail());
+                if (commonName != null) {
+                    entry(commonName).fail(failure, historySize);
+                }
+                push(recentFailures, failure, MAX_RECENT_FAILURES);
+                break;
+            case SERVER_RESTART:
+                entries.values().forEach(entry -> entry.closeAll(event.getTime(), "перезапуск сервера", historySize));
+                verifiedAddresses.clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Entry entry(String commonName) {
+        return entries.computeIfAbsent(commonName, name -> new Entry());
+    }
+
+    /**
+     * Сводка по CN или null, если клиент в журнале не встречался
+     */
+    public synchronized ClientSessions get(String commonName) {
+        Entry entry = commonName != null ? entries.get(commonName) : null;
+        return entry != null ? entry.snapshot(commonName) : null;
+    }
+
+    /**
+     * Сводки по нескольким CN (для страницы списка); клиенты без истории в результат не попадают
+     */
+    public synchronized Map<String, ClientSessions> get(Collection<String> commonNames) {
+        Map<String, ClientSessions> result = new HashMap<>();
+        for (String commonName : commonNames) {
+            Entry entry = entries.get(commonName);
+            if (entry != null) {
+                result.put(commonName, entry.snapshot(commonName));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Последние ошибки подключения, от новых к старым
+     */
+    public synchronized List<Failure> getRecentFailures() {
+        return Collections.unmodifiableList(new ArrayList<>(recentFailures));
+    }
+
+    /**
+     * Количество клиентов с историей
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        recentFailures.clear();
+        verifiedAddresses.clear();
+    }
+
+    synchronized void write(DataOutputStream out) throws IOException {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().write(out);
+        }
+        writeFailures(out, recentFailures);
+        out.writeInt(verifiedAddresses.size());
+        for (Map.Entry<String, String> e : verifiedAddresses.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeUTF(e.getValue());
+        }
+    }
+
+    synchronized void read(DataInputStream in) throws IOException {
+        clear();
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Неизвестная версия файла состояния: " + version);
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String commonName = in.readUTF();
+            entries.put(commonName, Entry.read(in));
+        }
+        readFailures(in, recentFailures);
+        int addresses = in.readInt();
+        for (int i = 0; i < addresses; i++) {
+            verifiedAddresses.put(in.readUTF(), in.readUTF());
+        }
+    }
+
+    private static <T> void push(Deque<T> deque, T item, int limit) {
+        deque.addFirst(item);
+        while (deque.size() > limit) {
+            deque.removeLast();
+        }
+    }
+
+    private static void writeFailures(DataOutputStream out, Collection<Failure> failures) throws IOException {
+        out.writeInt(failures.size());
+        for (Failure failure : failures) {
+            out.writeLong(failure.time.toEpochMilli());
+            writeNullable(out, failure.commonName);
+            writeNullable(out, failure.address);
+            writeNullable(out, failure.reason);
+        }
+    }
+
+    private static void readFailures(DataInputStream in, Deque<Failure> failures) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            failures.addLast(new Failure(Instant.ofEpochMilli(in.readLong()), readNullable(in), readNullable(in),
+                readNullable(in)));
+        }
+    }
+
+    private static void writeSession(DataOutputStream out, Session session) throws IOException {
+        out.writeLong(session.start.toEpochMilli());
+        out.writeLong(session.end != null ? session.end.toEpochMilli() : Long.MIN_VALUE);
+        writeNullable(out, session.address);
+        writeNullable(out, session.virtualAddress);
+        writeNullable(out, session.reason);
+    }
+
+    private static Session readSession(DataInputStream in) throws IOException {
+        Instant start = Instant.ofEpochMilli(in.readLong());
+        long end = in.readLong();
+        return new Session(start, end != Long.MIN_VALUE ? Instant.ofEpochMilli(end) : null, readNullable(in),
+            readNullable(in), readNullable(in));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.length() > 1024 ? value.substring(0, 1024) : value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static LocalDateTime local(Instant instant) {
+        return instant != null ? LocalDateTime.ofInstant(instant, ZoneId.systemDefault()) : null;
+    }
+
+    /**
+     * Изменяемое состояние одного CN, защищено монитором индекса
+     */
+    private static final class Entry {
+        private Instant firstSeen;
+        private Instant lastSeen;
+        private String lastAddress;
+        private long sessionCount;
+        private long failureCount;
+        private final List<Session> open = new ArrayList<>(1);
+        private final Deque<Session> recentSessions = new ArrayDeque<>();
+        private final Deque<Failure> recentFailures = new ArrayDeque<>();
+
+        void connect(Instant time, String address, int historySize) {
+            seen(time);
+            lastAddress = address;
+            sessionCount++;
+            // отключение могло не попасть в журнал: прежняя сессия с того же адреса или самая старая закрывается
+            disconnect(time, address, "повторное подключение", historySize);
+            if (open.size() >= MAX_OPEN_SESSIONS) {
+                push(recentSessions, open.remove(0).close(time, "нет записи об отключении"), historySize);
+            }
+            open.add(new Session(time, null, address, null, null));
+        }
+
+        void assignAddress(String address, String virtualAddress) {
+            for (int i = open.size() - 1; i >= 0; i--) {
+                Session session = open.get(i);
+                if (session.address.equals(address)) {
+                    open.set(i, new Session(session.start, null, address, virtualAddress, null));
+                    return;
+                }
+            }
+        }
+
+        void disconnect(Instant time, String address, String reason, int historySize) {
+            seen(time);
+            Iterator<Session> iterator = open.iterator();
+            while (iterator.hasNext()) {
+                Session session = iterator.next();
+                if (session.address.equals(address)) {
+                    iterator.remove();
+                    push(recentSessions, session.close(time, reason), historySize);
+                    return;
+                }
+            }
+        }
+
+        void fail(Failure failure, int historySize) {
+            seen(failure.time);
+            failureCount++;
+            push(recentFailures, failure, historySize);
+        }
+
+        void closeAll(Instant time, String reason, int historySize) {
+            for (Session session : open) {
+                push(recentSessions, session.close(time, reason), historySize);
+            }
+            open.clear();
+        }
+
+        private void seen(Instant time) {
+            if (firstSeen == null || time.isBefore(firstSeen)) {
+                firstSeen = time;
+            }
+            if (lastSeen == null || time.isAfter(lastSeen)) {
+                lastSeen = time;
+            }
+        }
+
+        ClientSessions snapshot(String commonName) {
+            List<Session> sessions = new ArrayList<>(open.size() + recentSessions.size());
+            for (int i = open.size() - 1; i >= 0; i--) {
+                sessions.add(open.get(i));
+            }
+            sessions.addAll(recentSessions);
+            return new ClientSessions(commonName, firstSeen, lastSeen, lastAddress, sessionCount, failureCount,
+                open.size(), Collections.unmodifiableList(sessions),
+                Collections.unmodifiableList(new ArrayList<>(recentFailures)));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(firstSeen != null ? firstSeen.toEpochMilli() : Long.MIN_VALUE);
+            out.writeLong(lastSeen != null ? lastSeen.toEpochMilli() : Long.MIN_VALUE);
+            writeNullable(out, lastAddress);
+            out.writeLong(sessionCount);
+            out.writeLong(failureCount);
+            out.writeInt(open.size());
+            for (Session session : open) {
+                writeSession(out, session);
+            }
+            out.writeInt(recentSessions.size());
+            for (Session session : recentSessions) {
+                writeSession(out, session);
+            }
+            writeFailures(out, recentFailures);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            Entry entry = new Entry();
+            long firstSeen = in.readLong();
+            long lastSeen = in.readLong();
+            entry.firstSeen = firstSeen != Long.MIN_VALUE ? Instant.ofEpochMilli(firstSeen) : null;
+            entry.lastSeen = lastSeen != Long.MIN_VALUE ? Instant.ofEpochMilli(lastSeen) : null;
+            entry.lastAddress = readNullable(in);
+            entry.sessionCount = in.readLong();
+            entry.failureCount = in.readLong();
+            int open = in.readInt();
+            for (int i = 0; i < open; i++) {
+                entry.open.add(readSession(in));
+            }
+            int recent = in.readInt();
+            for (int i = 0; i < recent; i++) {
+                entry.recentSessions.addLast(readSession(in));
+            }
+            readFailures(in, entry.recentFailures);
+            return entry;
+        }
+    }
+
+    /**
+     * Сводка по клиенту на момент запроса
+     */
+    public static final class ClientSessions {
+        private final String commonName;
+        private final Instant firstSeen;
+        private final Instant lastSeen;
+        private final String lastAddress;
+        private final long sessionCount;
+        private final long failureCount;
+        private final int openCount;
+        private final List<Session> sessions;
+        private final List<Failure> failures;
+
+        private ClientSessions(String commonName, Instant firstSeen, Instant lastSeen, String lastAddress,
+                               long sessionCount, long failureCount, int openCount, List<Session> sessions,
+                               List<Failure> failures) {
+            this.commonName = commonName;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.lastAddress = lastAddress;
+            this.sessionCount = sessionCount;
+            this.failureCount = failureCount;
+            this.openCount = openCount;
+            this.sessions = sessions;
+            this.failures = failures;
+        }
+
+        public String getCommonName() {
+            return commonName;
+        }
+
+        /**
+         * Первое появление в прочитанной части журнала
+         */
+        public Instant getFirstSeen() {
+            return firstSeen;
+        }
+
+        /**
+         * Последнее подключение, отключение или ошибка
+         */
+        public Instant getLastSeen() {
+            return lastSeen;
+        }
+
+        public LocalDateTime getLastSeenLocal() {
+            return local(lastSeen);
+        }
+
+        /**
+         * Реальный адрес последнего подключения
+         */
+        public String getLastAddress() {
+            return lastAddress;
+        }
+
+        public long getSessionCount() {
+            return sessionCount;
+        }
+
+        public long getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Подключен ли клиент сейчас (по журналу)
+         */
+        public boolean isOnline() {
+            return openCount > 0;
+        }
+
+        /**
+         * Открытые и последние закрытые сессии, от новых к старым
+         */
+        public List<Session> getSessions() {
+            return sessions;
+        }
+
+        /**
+         * Последние ошибки подключения, от новых к старым
+         */
+        public List<Failure> getFailures() {
+            return failures;
+        }
+    }
+
+    /**
+     * Сессия клиента: от Peer Connection Initiated до отключения
+     */
+    public static final class Session {
+        private final Instant start;
+        private final Instant end;
+        private final String address;
+        private final String virtualAddress;
+        private final String reason;
+
+        Session(Instant start, Instant end, String address, String virtualAddress, String reason) {
+            this.start = start;
+            this.end = end;
+            this.address = address;
+            this.virtualAddress = virtualAddress;
+            this.reason = reason;
+        }
+
+        private Session close(Instant time, String closeReason) {
+            return new Session(start, time, address, virtualAddress, closeReason);
+        }
+
+        public Instant getStart() {
+            return start;
+        }
+
+        public LocalDateTime getStartLocal() {
+            return local(start);
+        }
+
+        /**
+         * Время отключения или null, если сессия еще открыта
+         */
+        public Instant getEnd() {
+            return end;
+        }
+
+        public LocalDateTime getEndLocal() {
+            return local(end);
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * Адрес в туннеле или null, если в журнале его не было
+         */
+        public String getVirtualAddress() {
+            return virtualAddress;
+        }
+
+        /**
+         * Причина отключения из журнала: remote-exit, ping-restart, connection-reset и т.п.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        public String getDuration() {
+            return end != null ? OpenVpnStatusService.formatDuration(start, end) : "-";
+        }
+    }
+
+    /**
+     * Неудачная попытка подключения
+     */
+    public static final class Failure {
+        private final Instant time;
+        private final String commonName;
+        private final String address;
+        private final String reason;
+
+        Failure(Instant time, String commonName, String address, String reason) {
+            this.time = time;
+            this.commonName = commonName;
+            this.address = address;
+            this.reason = reason;
+        }
+
+        public Instant getTime() {
+            return time;
+        }
+
+        public LocalDateTime getTimeLocal() {
+            return local(time);
+        }
+
+        /**
+         * CN клиента или null, если сертификат не дошел до проверки
+         */
+        public String getCommonName() {
+            return commonName;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package ru.rs.vpndirector.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Построчное сравнение конфигураций: diff Майерса в линейной памяти (поиск средней змейки
+ * и рекурсия по половинам, O((N+M)D) времени) и разбор конфигурации OpenVPN на значимые директивы
+ */
+public final class ConfigDiff {
+
+    private ConfigDiff() {
+    }
+
+    /**
+     * Удаленные (-) и добавленные (+) строки в порядке следования. Внутри каждого
+     * измененного фрагмента удаления идут перед добавлениями
+     */
+    public static List<Change> diff(List<String> before, List<String> after) {
+        // строки сравниваются по номерам, а не через equals на каждом шаге
+        Map<String, Integer> ids = new HashMap<>();
+        int[] a = ids(before, ids);
+        int[] b = ids(after, ids);
+        int size = before.size() + after.size() + 3;
+        Matcher matcher = new Matcher(a, b, new int[size], new int[size]);
+        matcher.compare(0, a.length, 0, b.length);
+
+        List<Change> changes = new ArrayList<>();
+        List<Change> added = new ArrayList<>();
+        for (int i = 0; i < matcher.size; i++) {
+            long op = matcher.ops[i];
+            int index = (int) (op >> 2);
+            switch ((int) (op & 3)) {
+                case Matcher.DELETE:
+                    changes.add(new Change('-', index, before.get(index)));
+                    break;
+                case Matcher.INSERT:
+                    added.add(new Change('+', index, after.get(index)));
+                    break;
+                default:
+                    changes.addAll(added);
+                    added.clear();
+            }
+        }
+        changes.addAll(added);
+        return changes;
+    }
+
+    /**
+     * Значимые строки конфигурации: без комментариев и пустых строк, пробелы схлопнуты.
+     * Строки внутри встроенных блоков (&lt;ca&gt;...&lt;/ca&gt;) получают префикс блока,
+     * чтобы их изменение считалось изменением директивы блока
+     */
+    public static List<String> directives(List<String> lines) {
+        List<String> result = new ArrayList<>();
+        String block = null;
+        for (String raw : lines) {
+            String line = raw.trim();
+            if (block == null && (line.isEmpty() || line.startsWith("#") || line.startsWith(";"))) {
+                continue;
+            }
+            if (block != null) {
+                if (line.equals("</" + block + ">")) {
+                    block = null;
+                } else {
+                    result.add("<" + block + "> " + line);
+                }
+                continue;
+            }
+            if (line.startsWith("<") && line.endsWith(">") && !line.startsWith("</")) {
+                block = line.substring(1, line.length() - 1);
+                continue;
+            }
+            result.add(line.replaceAll("\\s+", " "));
+        }
+        return result;
+    }
+
+    /**
+     * Имя директивы (первое слово) в нижнем регистре
+     */
+    public static String directiveName(String directive) {
+        int space = directive.indexOf(' ');
+        return (space < 0 ? directive : directive.substring(0, space)).toLowerCase(Locale.ROOT);
+    }
+
+    private static int[] ids(List<String> lines, Map<String, Integer> ids) {
+        int[] result = new int[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            Integer id = ids.get(lines.get(i));
+            if (id == null) {
+                id = ids.size();
+                ids.put(lines.get(i), id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Рекурсивный поиск кратчайшего сценария правки. Операции пишутся в ops в порядке следования:
+     * номер строки << 2 | тип операции
+     */
+    private static final class Matcher {
+
+        static final int EQUAL = 0;
+        static final int DELETE = 1;
+        static final int INSERT = 2;
+
+        private final int[] a;
+        private final int[] b;
+        private final int[] forward;
+        private final int[] backward;
+        private long[] ops = new long[64];
+        private int size;
+
+        Matcher(int[] a, int[] b, int[] forward, int[] backward) {
+            this.a = a;
+            this.b = b;
+            this.forward = forward;
+            this.backward = backward;
+        }
+
+        void compare(int aLo, int aHi, int bLo, int bHi) {
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                emit(EQUAL, aLo);
+                aLo++;
+                bLo++;
+            }
+            int suffix = 0;
+            while (aLo < aHi - suffix && bLo < bHi - suffix && a[aHi - 1 - suffix] == b[bHi - 1 - suffix]) {
+                suffix++;
+            }
+            aHi -= suffix;
+            bHi -= suffix;
+            if (aLo == aHi) {
+                for (int j = bLo; j < bHi; j++) {
+                    emit(INSERT, j);
+                }
+            } else if (bLo == bHi) {
+                for (int i = aLo; i < aHi; i++) {
+                    emit(DELETE, i);
+                }
+            } else {
+                // после отрезания общих краев обе части непусты и различаются минимум на две правки,
+                // поэтому средняя змейка делит задачу на две строго меньшие
+                int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+                compare(aLo, snake[0], bLo, snake[1]);
+                for (int i = snake[0]; i < snake[2]; i++) {
+                    emit(EQUAL, i);
+                }
+                compare(snake[2], aHi, snake[3], bHi);
+            }
+            for (int i = 0; i < suffix; i++) {
+                emit(EQUAL, aHi + i);
+            }
+        }
+
+        /**
+         * Средняя змейка кратчайшего пути: встречный поиск от начала и от конца.
+         * Возвращает начало (x, y) и конец (u, v) змейки в абсолютных номерах строк
+         */
+        private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+            int n = aHi - aLo;
+            int m = bHi - bLo;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0;
+            int max = (n + m + 1) / 2;
+            int offset = max + 1;
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            for (int d = 0; d <= max; d++) {
+                for (int k = -d; k <= d; k += 2) {
+                    int x = k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])
+                        ? forward[offset + k + 1] : forward[offset + k - 1] + 1;
+                    int y = x - k;
+                    int startX = x;
+                    int startY = y;
+                    while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[offset + k] = x;
+                    int reverse = delta - k;
+                    if (odd && x <= n && y <= m && reverse >= -(d - 1) && reverse <= d - 1
+                        && x + backward[offset + reverse] >= n) {
+                        return new int[] {aLo + startX, bLo + startY, aLo + x, bLo + y};
+                    }
+                }
+                for (int k = -d; k <= d; k += 2) {
+                    int x = k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])
+                        ? backward[offset + k + 1] : backward[offset + k - 1] + 1;
+                    int y = x - k;
+                    int startX = x;
+                    int startY = y;
+                    while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                        x++;
+                        y++;
+                    }
+                    backward[offset + k] = x;
+                    int direct = delta - k;
+                    if (!odd && x <= n && y <= m && direct >= -d && direct <= d
+                        && x + forward[offset + direct] >= n) {
+                        return new int[] {aHi - x, bHi - y, aHi - startX, bHi - startY};
+                    }
+                }
+            }
+            throw new IllegalStateException("Средняя змейка не найдена");
+        }
+
+        private void emit(int type, int index) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+            }
+            ops[size++] = (long) index << 2 | type;
+        }
+    }
+
+    /**
+     * Строка отличий: '+' - добавлена, '-' - удалена
+     */
+    public static final class Change {
+        private final char type;
+        private final int line;
+        private final String text;
+
+        Change(char type, int line, String text) {
+            this.type = type;
+            this.line = line;
+            this.text = text;
+        }
+
+        public char getType() {
+            return type;
+        }
+
+        /**
+         * Номер строки (с нуля) в своей версии: для удаленных - в старой, для добавленных - в новой
+         */
+        public int getLine() {
+            return line;
+        }
+
+        public boolean isAdded() {
+            return type == '+';
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Имя директивы строки
+         */
+        public String getName() {
+            return directiveName(text);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package ru.rs.vpndirector.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Разреженный индекс строк файла конфигурации: смещение каждой {@link #STRIDE}-й строки,
+ * число строк и ревизия (SHA-256), посчитанные за один потоковый проход. Позволяет читать
+ * произвольный диапазон строк, не загружая файл в память целиком.
+ * Строки разделяются '\n', завершающий '\r' отбрасывается - так же, как при чтении всего файла
+ */
+final class ConfigLineIndex {
+
+    static final int STRIDE = 128;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final Charset charset;
+    private final long size;
+    private final FileTime modified;
+    private final Object fileKey;
+    private final String revision;
+    private final int lineCount;
+    private final long[] offsets;
+
+    private ConfigLineIndex(Path path, Charset charset, BasicFileAttributes attributes,
+                            String revision, int lineCount, long[] offsets) {
+        this.path = path;
+        this.charset = charset;
+        this.size = attributes.size();
+        this.modified = attributes.lastModifiedTime();
+        this.fileKey = attributes.fileKey();
+        this.revision = revision;
+        this.lineCount = lineCount;
+        this.offsets = offsets;
+    }
+
+    static ConfigLineIndex build(Path path, Charset charset) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 недоступен", e);
+        }
+        long[] offsets = new long[16];
+        int lines = 0;
+        long position = 0;
+        boolean lineStart = true;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                for (int i = 0; i < read; i++) {
+                    if (lineStart) {
+                        if (lines % STRIDE == 0) {
+                            int slot = lines / STRIDE;
+                            if (slot == offsets.length) {
+                                offsets = Arrays.copyOf(offsets, slot * 2);
+                            }
+                            offsets[slot] = position + i;
+                        }
+                        lines++;
+                        lineStart = false;
+                    }
+                    if (buffer[i] == '\n') {
+                        lineStart = true;
+                    }
+                }
+                position += read;
+            }
+        }
+        String revision = String.format("%064x", new BigInteger(1, digest.digest()));
+        return new ConfigLineIndex(path, charset, attributes, revision, lines,
+            Arrays.copyOf(offsets, (lines + STRIDE - 1) / STRIDE));
+    }
+
+    /**
+     * Индекс соответствует файлу на диске: не изменились размер, время изменения и inode
+     */
+    boolean isCurrent() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.size() == size
+                && attributes.lastModifiedTime().equals(modified)
+                && Objects.equals(attributes.fileKey(), fileKey);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    String getRevision() {
+        return revision;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Читает до count строк, начиная со строки from (нумерация с нуля)
+     */
+    List<String> read(int from, int count) throws IOException {
+        List<String> lines = new ArrayList<>();
+        if (from < 0 || from >= lineCount || count <= 0) {
+            return lines;
+        }
+        try (LineReader reader = open(from)) {
+            while (lines.size() < count && reader.next()) {
+                lines.add(reader.text(charset));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Открывает файл для последовательного чтения строк, начиная со строки from
+     */
+    LineReader open(int from) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        LineReader reader = new LineReader(Channels.newInputStream(channel));
+        try {
+            int slot = Math.min(from, lineCount) / STRIDE;
+            if (slot < offsets.length) {
+                channel.position(offsets[slot]);
+                for (int skip = from - slot * STRIDE; skip > 0 && reader.next(); skip--) {
+                    // пропускаем строки до from внутри блока индекса
+                }
+            } else {
+                channel.position(size);
+            }
+            return reader;
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Построчное чтение байтов со своим буфером: строка доступна и как текст, и как исходные
+     * байты с разделителем - неизмененные строки переносятся при записи без перекодирования
+     */
+    static final class LineReader implements Closeable {
+
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        private byte[] line = new byte[256];
+        private int length;
+        private boolean terminated;
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        boolean next() throws IOException {
+            length = 0;
+            terminated = false;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return length > 0;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                append(start, position - start);
+                if (position < limit) {
+                    position++;
+                    terminated = true;
+                    return true;
+                }
+            }
+        }
+
+        String text(Charset charset) {
+            int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            return new String(line, 0, end, charset);
+        }
+
+        /**
+         * Строка заканчивалась переводом строки (не последняя строка файла без '\n')
+         */
+        boolean isTerminated() {
+            return terminated;
+        }
+
+        void copyTo(OutputStream out) throws IOException {
+            out.write(line, 0, length);
+            if (terminated) {
+                out.write('\n');
+            }
+        }
+
+        private void append(int start, int count) {
+            if (length + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+            }
+            System.arraycopy(buffer, start, line, length, count);
+            length += count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ru.rs.vpndirector.service;
+
+import java.io.IOException;
+
+/**
+ * Файл конфигурации был изменен после того, как его прочитали для редактирования
+ */
+public class ConfigRevisionMismatchException extends IOException {
+
+    public ConfigRevisionMismatchException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,106 @@
+package ru.rs.vpndirector.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Наблюдение за каталогом через WatchService в отдельном потоке.
+ * События, пришедшие в течение короткого интервала, объединяются в одно уведомление,
+ * чтобы пачка изменений (например, выпуск сертификата - пять файлов) обрабатывалась один раз.
+ */
+@Slf4j
+public final class DirectoryWatcher implements AutoCloseable {
+
+    /**
+     * Сколько ждать следующих событий, прежде чем уведомить получателя
+     */
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private final Path directory;
+    private final WatchService watchService;
+    private final Consumer<Set<Path>> listener;
+    private final Thread thread;
+
+    private DirectoryWatcher(String name, Path directory, Consumer<Set<Path>> listener) throws IOException {
+        this.directory = directory;
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Начинает наблюдение за каталогом (без подкаталогов)
+     *
+     * @param name имя потока
+     * @param directory каталог
+     * @param listener получатель имен измененных файлов (относительно каталога);
+     *                 null вместо набора - события потеряны, нужно перечитать каталог целиком
+     */
+    public static DirectoryWatcher start(String name, Path directory, Consumer<Set<Path>> listener) throws IOException {
+        return new DirectoryWatcher(name, directory, listener);
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                Set<Path> changed = new HashSet<>();
+                boolean overflow = false;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            changed.add((Path) event.context());
+                        }
+                    }
+                    if (!key.reset()) {
+                        log.warn("Каталог {} больше недоступен для наблюдения", directory);
+                        notifyListener(null);
+                        return;
+                    }
+                    key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                notifyListener(overflow ? null : changed);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Наблюдение за {} остановлено", directory);
+        }
+    }
+
+    private void notifyListener(Set<Path> changed) {
+        try {
+            listener.accept(changed);
+        } catch (RuntimeException e) {
+            log.error("Ошибка при обработке изменений в {}", directory, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.debug("Не удалось закрыть WatchService для {}: {}", directory, e.getMessage());
+        }
+    }
+}
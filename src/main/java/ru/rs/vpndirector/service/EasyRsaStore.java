@@ -0,0 +1,335 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.openssl.PEMEncryptedKeyPair;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Работа с каталогом keys easy-rsa: CA, index.txt, serial и переменные vars.
+ * Формат файлов совпадает с тем, что пишет openssl ca, поэтому сертификаты,
+ * выпущенные здесь и через build-key, можно смешивать.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class EasyRsaStore {
+
+    private static final DateTimeFormatter UTC_TIME = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'");
+    private static final DateTimeFormatter GENERALIZED_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'");
+    /**
+     * UTCTime: годы 50-99 относятся к 1950-1999, 00-49 - к 2000-2049
+     */
+    private static final DateTimeFormatter UTC_TIME_PARSER = new DateTimeFormatterBuilder()
+        .appendValueReduced(ChronoField.YEAR, 2, 2, 1950)
+        .appendPattern("MMddHHmmss'Z'")
+        .toFormatter();
+    private static final Pattern VARS_EXPORT = Pattern.compile("^\\s*export\\s+(KEY_[A-Z_]+)=(.*)$");
+    private static final String LOCK_FILE_NAME = ".index.lock";
+
+    private final OpenVpnProperties openVpnProperties;
+
+    /**
+     * Блокировка внутри JVM: FileLock не защищает от параллельных потоков одного процесса
+     */
+    private final ReentrantLock indexLock = new ReentrantLock(true);
+
+    private volatile CertificateAuthority cachedAuthority;
+
+    /**
+     * Каталог keys easy-rsa
+     */
+    public Path getKeysDir() {
+        return Paths.get(openVpnProperties.getEasyRsaPath(), "keys");
+    }
+
+    /**
+     * Выполняет действие под блокировкой index.txt/serial (в пределах JVM и файловой блокировкой)
+     */
+    public <T> T withIndexLock(IoAction<T> action) throws IOException {
+        indexLock.lock();
+        try (FileChannel channel = FileChannel.open(getKeysDir().resolve(LOCK_FILE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            return action.run();
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Выделяет следующий серийный номер из файла serial и записывает в него следующий.
+     * Должен вызываться под {@link #withIndexLock}.
+     *
+     * @return выделенный серийный номер
+     */
+    public BigInteger allocateSerial() throws IOException {
+        Path serialFile = getKeysDir().resolve("serial");
+        if (!Files.exists(serialFile)) {
+            throw new IOException("Файл serial не найден: " + serialFile);
+        }
+        String value = new String(Files.readAllBytes(serialFile), StandardCharsets.US_ASCII).trim();
+        BigInteger serial;
+        try {
+            serial = new BigInteger(value, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Некорректный серийный номер в файле serial: " + value, e);
+        }
+        Files.copy(serialFile, getKeysDir().resolve("serial.old"), StandardCopyOption.REPLACE_EXISTING);
+        writeAtomically(serialFile, (formatSerial(serial.add(BigInteger.ONE)) + "\n").getBytes(StandardCharsets.US_ASCII));
+        return serial;
+    }
+
+    /**
+     * Добавляет в index.txt запись о выпущенном сертификате в формате openssl ca:
+     * {@code V<TAB>270111231001Z<TAB><TAB>02<TAB>unknown<TAB>/C=RU/.../CN=name}.
+     * Должен вызываться под {@link #withIndexLock}.
+     */
+    public void appendIndexEntry(BigInteger serial, Date notAfter, String subject) throws IOException {
+        Path indexFile = getKeysDir().resolve("index.txt");
+        String entry = "V\t" + formatIndexTime(notAfter) + "\t\t" + formatSerial(serial) + "\tunknown\t" + subject + "\n";
+        if (Files.exists(indexFile)) {
+            Files.copy(indexFile, getKeysDir().resolve("index.txt.old"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.write(indexFile, entry.getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Серийный номер в формате openssl: шестнадцатеричный, заглавными буквами, четное число цифр
+     */
+    public static String formatSerial(BigInteger serial) {
+        String hex = serial.toString(16).toUpperCase(Locale.ROOT);
+        return hex.length() % 2 == 0 ? hex : "0" + hex;
+    }
+
+    /**
+     * Время в формате index.txt: UTCTime до 2050 года, GeneralizedTime после
+     */
+    public static String formatIndexTime(Date date) {
+        ZonedDateTime time = date.toInstant().atZone(ZoneOffset.UTC);
+        return time.getYear() < 2050 ? UTC_TIME.format(time) : GENERALIZED_TIME.format(time);
+    }
+
+    /**
+     * Разбирает время из index.txt (UTCTime или GeneralizedTime)
+     *
+     * @return момент времени или null, если формат не распознан
+     */
+    public static Instant parseIndexTime(String value) {
+        try {
+            if (value.length() == 13) {
+                return LocalDateTime.parse(value, UTC_TIME_PARSER).toInstant(ZoneOffset.UTC);
+            }
+            if (value.length() == 15) {
+                return LocalDateTime.parse(value, GENERALIZED_TIME).toInstant(ZoneOffset.UTC);
+            }
+        } catch (DateTimeParseException e) {
+            log.debug("Некорректное время в index.txt: {}", value);
+        }
+        return null;
+    }
+
+    /**
+     * Загружает CA (ca.crt и ca.key) из каталога keys. Результат кэшируется до изменения файлов.
+     */
+    public CertificateAuthority loadCertificateAuthority() throws IOException {
+        Path certFile = getKeysDir().resolve("ca.crt");
+        Path keyFile = getKeysDir().resolve("ca.key");
+        if (!Files.exists(certFile) || !Files.exists(keyFile)) {
+            throw new IOException("Не найдены ca.crt или ca.key в " + getKeysDir());
+        }
+        FileTime certTime = Files.getLastModifiedTime(certFile);
+        FileTime keyTime = Files.getLastModifiedTime(keyFile);
+        CertificateAuthority authority = cachedAuthority;
+        if (authority != null && authority.certTime.equals(certTime) && authority.keyTime.equals(keyTime)
+                && authority.keysDir.equals(getKeysDir())) {
+            return authority;
+        }
+        authority = new CertificateAuthority(getKeysDir(), readCertificate(certFile), readPrivateKey(keyFile),
+            certTime, keyTime);
+        cachedAuthority = authority;
+        log.info("Загружен CA: {}", authority.getCertificate().getSubjectX500Principal());
+        return authority;
+    }
+
+    /**
+     * Читает сертификат X.509 в формате PEM
+     */
+    static X509Certificate readCertificate(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII);
+             PEMParser parser = new PEMParser(reader)) {
+            Object object = parser.readObject();
+            if (!(object instanceof X509CertificateHolder)) {
+                throw new IOException("Файл не содержит сертификат в формате PEM: " + file);
+            }
+            return new JcaX509CertificateConverter().getCertificate((X509CertificateHolder) object);
+        } catch (CertificateException e) {
+            throw new IOException("Не удалось прочитать сертификат " + file, e);
+        }
+    }
+
+    private PrivateKey readPrivateKey(Path file) throws IOException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII);
+             PEMParser parser = new PEMParser(reader)) {
+            Object object = parser.readObject();
+            JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+            if (object instanceof PEMKeyPair) {
+                return converter.getKeyPair((PEMKeyPair) object).getPrivate();
+            }
+            if (object instanceof PrivateKeyInfo) {
+                return converter.getPrivateKey((PrivateKeyInfo) object);
+            }
+            if (object instanceof PEMEncryptedKeyPair || object instanceof PKCS8EncryptedPrivateKeyInfo) {
+                throw new IOException("Ключ CA зашифрован паролем, выпуск в режиме native невозможен: " + file);
+            }
+            throw new IOException("Файл не содержит закрытый ключ в формате PEM: " + file);
+        }
+    }
+
+    /**
+     * Читает значения KEY_* из файла vars easy-rsa (только литеральные значения, без подстановок)
+     */
+    public Map<String, String> readVars() {
+        Map<String, String> vars = new LinkedHashMap<>();
+        Path varsFile = Paths.get(openVpnProperties.getEasyRsaPath(), "vars");
+        if (!Files.exists(varsFile)) {
+            return vars;
+        }
+        try {
+            List<String> lines = Files.readAllLines(varsFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                Matcher matcher = VARS_EXPORT.matcher(line);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                String value = matcher.group(2).trim();
+                int comment = value.indexOf(" #");
+                if (comment >= 0) {
+                    value = value.substring(0, comment).trim();
+                }
+                if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"")
+                        || value.startsWith("'") && value.endsWith("'"))) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                if (value.contains("$") || value.contains("`")) {
+                    continue;
+                }
+                vars.put(matcher.group(1), value);
+            }
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать файл vars: {}", e.getMessage());
+        }
+        return vars;
+    }
+
+    /**
+     * Записывает файл через временный файл и атомарное переименование
+     */
+    public static void writeAtomically(Path file, byte[] content) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, content);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Записывает файл, доступный только владельцу (для закрытых ключей). Временный файл создается
+     * сразу с правами rw-------, поэтому содержимое ни в какой момент не доступно другим пользователям.
+     *
+     * @throws IOException если файловая система не поддерживает права POSIX
+     */
+    public static void writeOwnerOnly(Path file, byte[] content) throws IOException {
+        Path temp;
+        try {
+            temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("Файловая система не поддерживает права POSIX, закрытый ключ "
+                + file.getFileName() + " не записан", e);
+        }
+        try {
+            Files.write(temp, content);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Действие над файлами easy-rsa, выполняемое под блокировкой
+     */
+    @FunctionalInterface
+    public interface IoAction<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Сертификат и закрытый ключ CA
+     */
+    public static class CertificateAuthority {
+        private final Path keysDir;
+        private final X509Certificate certificate;
+        private final PrivateKey privateKey;
+        private final FileTime certTime;
+        private final FileTime keyTime;
+
+        CertificateAuthority(Path keysDir, X509Certificate certificate, PrivateKey privateKey,
+                             FileTime certTime, FileTime keyTime) {
+            this.keysDir = keysDir;
+            this.certificate = certificate;
+            this.privateKey = privateKey;
+            this.certTime = certTime;
+            this.keyTime = keyTime;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+    }
+}
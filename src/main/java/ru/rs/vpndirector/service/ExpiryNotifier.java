@@ -0,0 +1,13 @@
+package ru.rs.vpndirector.service;
+
+/**
+ * Получатель предупреждений об истечении сертификатов.
+ * Реализации регистрируются как бины Spring; каждая вызывается один раз на каждый пересеченный порог.
+ */
+public interface ExpiryNotifier {
+
+    /**
+     * Сертификат пересек очередной порог (или истек)
+     */
+    void notify(ExpiryWarning warning);
+}
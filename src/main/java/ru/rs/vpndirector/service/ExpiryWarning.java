@@ -0,0 +1,95 @@
+package ru.rs.vpndirector.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Предупреждение об истечении сертификата на момент {@code now}
+ */
+public class ExpiryWarning {
+
+    /**
+     * Чей это сертификат
+     */
+    public enum Kind {
+        CA("Сертификат CA"),
+        SERVER("Сертификат сервера"),
+        CLIENT("Сертификат клиента");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final String serial;
+    private final Instant expiresAt;
+    private final Duration threshold;
+    private final Instant now;
+
+    public ExpiryWarning(Kind kind, String name, String serial, Instant expiresAt, Duration threshold, Instant now) {
+        this.kind = kind;
+        this.name = name;
+        this.serial = serial;
+        this.expiresAt = expiresAt;
+        this.threshold = threshold;
+        this.now = now;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSerial() {
+        return serial;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Пересеченный порог (нулевой - сертификат истек)
+     */
+    public Duration getThreshold() {
+        return threshold;
+    }
+
+    public boolean isExpired() {
+        return !expiresAt.isAfter(now);
+    }
+
+    /**
+     * Полных дней до истечения (0 - меньше суток или уже истек)
+     */
+    public long getDaysLeft() {
+        return isExpired() ? 0 : Duration.between(now, expiresAt).toDays();
+    }
+
+    /**
+     * Истекший сертификат или сертификат CA/сервера: без него не подключится ни один клиент
+     */
+    public boolean isCritical() {
+        return isExpired() || kind != Kind.CLIENT;
+    }
+
+    /**
+     * Срок действия в часовом поясе сервера (для отображения)
+     */
+    public LocalDateTime getExpiresAtLocal() {
+        return LocalDateTime.ofInstant(expiresAt, ZoneId.systemDefault());
+    }
+}
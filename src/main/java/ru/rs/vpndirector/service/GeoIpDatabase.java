@@ -0,0 +1,449 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Офлайн-база GeoIP/ASN: страна и автономная система по реальному адресу клиента.
+ * <p>
+ * Диапазоны IPv4 из файла хранятся в параллельных массивах примитивов, отсортированных по началу диапазона
+ * (страна и организация - индексы в словарях строк), и ищутся двоичным поиском без объектов на каждую запись.
+ * Поддерживаются ip2asn-v4.tsv (iptoasn.com: начало, конец, номер AS, страна, описание AS) и CSV DB-IP lite
+ * (начало,конец,страна или начало,конец,ASN,организация); адреса - в точечной записи или числом.
+ * Файл перечитывается, когда меняются его размер или время изменения (проверка - один stat при чтении статуса).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class GeoIpDatabase {
+
+    private final OpenVpnProperties openVpnProperties;
+
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot;
+    private long generation;
+
+    @PostConstruct
+    public void start() {
+        current();
+    }
+
+    /**
+     * Файл базы или null, если база не настроена
+     */
+    public Path getFile() {
+        String file = openVpnProperties.getGeoipFile();
+        if (file == null || file.trim().isEmpty()) {
+            return null;
+        }
+        return Paths.get(openVpnProperties.getOpenvpnRoot()).resolve(file.trim()).normalize();
+    }
+
+    /**
+     * Текущая таблица диапазонов; если файл изменился, он перечитывается.
+     * Если база не настроена или файл не читается, возвращается пустая таблица (или последняя загруженная)
+     */
+    public Table current() {
+        Path file = getFile();
+        String state = fileState(file);
+        Snapshot current = snapshot;
+        if (current != null && current.state.equals(state)) {
+            return current.table;
+        }
+        synchronized (lock) {
+            current = snapshot;
+            if (current != null && current.state.equals(state)) {
+                return current.table;
+            }
+            Table table = Table.EMPTY;
+            if (file != null && !state.isEmpty()) {
+                long started = System.nanoTime();
+                try {
+                    table = Table.load(file, ++generation);
+                    log.info("База GeoIP {} загружена: диапазонов {}, пропущено строк {}, {} мс", file, table.size(),
+                        table.getSkipped(), (System.nanoTime() - started) / 1_000_000);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Не удалось загрузить базу GeoIP {}: {}", file, e.getMessage());
+                    table = current != null ? current.table : Table.EMPTY;
+                }
+            } else if (file != null) {
+                log.warn("Файл базы GeoIP не найден: {}", file);
+            }
+            snapshot = new Snapshot(state, table);
+            return table;
+        }
+    }
+
+    private static String fileState(Path file) {
+        if (file == null) {
+            return "";
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return file + "|" + attributes.fileKey() + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException e) {
+            return "";
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать атрибуты {}: {}", file, e.getMessage());
+            return "";
+        }
+    }
+
+    /**
+     * Адрес IPv4 в точечной записи как 32-битное число без знака или -1, если это не адрес IPv4
+     */
+    static long parseIpv4(CharSequence text) {
+        int length = text.length();
+        if (length == 0) {
+            return -1;
+        }
+        long result = 0;
+        int octet = -1;
+        int dots = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if (octet > 255) {
+                    return -1;
+                }
+            } else if (c == '.' && octet >= 0 && dots < 3) {
+                result = (result << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                return -1;
+            }
+        }
+        return dots == 3 && octet >= 0 ? (result << 8) | octet : -1;
+    }
+
+    /**
+     * Адрес из файла базы: точечная запись или десятичное число (ip2location, DB-IP); -1, если это не IPv4
+     */
+    static long parseAddress(String text) {
+        if (text.indexOf('.') >= 0) {
+            return parseIpv4(text);
+        }
+        if (text.isEmpty() || text.length() > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value <= 0xFFFFFFFFL ? value : -1;
+    }
+
+    /**
+     * Поля строки CSV (с кавычками и "" внутри них) или TSV
+     */
+    static List<String> splitFields(String line) {
+        List<String> fields = new ArrayList<>(6);
+        char separator = line.indexOf('\t') >= 0 ? '\t' : ',';
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == separator) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    private static final class Snapshot {
+        private final String state;
+        private final Table table;
+
+        private Snapshot(String state, Table table) {
+            this.state = state;
+            this.table = table;
+        }
+    }
+
+    /**
+     * Неизменяемая таблица диапазонов. Начала и концы хранятся с инвертированным старшим битом
+     * (адрес XOR 0x80000000), чтобы адреса без знака сравнивались обычным сравнением int
+     */
+    public static final class Table {
+
+        static final Table EMPTY = new Table(0, new int[0], new int[0], new int[0], new short[0], new int[0],
+            new String[0], new String[0], 0, 0);
+
+        private final long generation;
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] asns;
+        private final short[] countries;
+        private final int[] orgs;
+        private final String[] countryNames;
+        private final String[] orgNames;
+        private final int size;
+        private final int skipped;
+
+        private Table(long generation, int[] starts, int[] ends, int[] asns, short[] countries, int[] orgs,
+                      String[] countryNames, String[] orgNames, int size, int skipped) {
+            this.generation = generation;
+            this.starts = starts;
+            this.ends = ends;
+            this.asns = asns;
+            this.countries = countries;
+            this.orgs = orgs;
+            this.countryNames = countryNames;
+            this.orgNames = orgNames;
+            this.size = size;
+            this.skipped = skipped;
+        }
+
+        /**
+         * Номер загрузки: меняется при каждом перечитывании файла (0 - база пуста)
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Сколько строк файла не удалось разобрать или пропущено (заголовок, IPv6)
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Номер диапазона, содержащего адрес IPv4 в точечной записи, или -1
+         */
+        public int find(String address) {
+            if (size == 0 || address == null) {
+                return -1;
+            }
+            long ip = parseIpv4(address);
+            return ip < 0 ? -1 : find((int) ip);
+        }
+
+        /**
+         * Номер диапазона, содержащего адрес (32 бита без знака), или -1
+         */
+        public int find(int ip) {
+            int key = ip ^ Integer.MIN_VALUE;
+            int index = Arrays.binarySearch(starts, 0, size, key);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index >= 0 && key <= ends[index] ? index : -1;
+        }
+
+        /**
+         * Код страны (ISO 3166, две буквы) или null
+         */
+        public String country(int row) {
+            short country = countries[row];
+            return country >= 0 ? countryNames[country] : null;
+        }
+
+        /**
+         * Номер автономной системы (без знака) или 0, если неизвестен
+         */
+        public long asn(int row) {
+            return Integer.toUnsignedLong(asns[row]);
+        }
+
+        /**
+         * Название автономной системы или null
+         */
+        public String org(int row) {
+            int org = orgs[row];
+            return org >= 0 ? orgNames[org] : null;
+        }
+
+        static Table load(Path file, long generation) throws IOException {
+            Builder builder = new Builder();
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    builder.add(line);
+                }
+            }
+            if (builder.size == 0) {
+                throw new IOException("в файле нет ни одного диапазона IPv4");
+            }
+            return builder.build(generation);
+        }
+    }
+
+    /**
+     * Сборка таблицы: массивы растут удвоением, строки страны и организации складываются в словари
+     */
+    private static final class Builder {
+        private int[] starts = new int[1024];
+        private int[] ends = new int[1024];
+        private int[] asns = new int[1024];
+        private short[] countries = new short[1024];
+        private int[] orgs = new int[1024];
+        private final Map<String, Integer> countryIndex = new HashMap<>();
+        private final Map<String, Integer> orgIndex = new HashMap<>();
+        private final List<String> countryNames = new ArrayList<>();
+        private final List<String> orgNames = new ArrayList<>();
+        private int size;
+        private int skipped;
+        private boolean sorted = true;
+
+        /**
+         * Разбирает строку: после начала и конца диапазона номер AS (число или AS123), код страны (две буквы)
+         * и название организации (первое другое непустое поле) определяются по виду значения
+         */
+        void add(String line) {
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                return;
+            }
+            List<String> fields = splitFields(line);
+            long start = fields.size() >= 2 ? parseAddress(fields.get(0)) : -1;
+            long end = start >= 0 ? parseAddress(fields.get(1)) : -1;
+            if (start < 0 || end < start) {
+                skipped++;
+                return;
+            }
+            long asn = 0;
+            String country = null;
+            String org = null;
+            for (int i = 2; i < fields.size(); i++) {
+                String field = fields.get(i);
+                if (field.isEmpty() || field.equals("-") || field.equalsIgnoreCase("None")) {
+                    continue;
+                }
+                long number = asn == 0 ? parseAsn(field) : -1;
+                if (number >= 0) {
+                    asn = number;
+                } else if (country == null && isCountryCode(field)) {
+                    country = field.toUpperCase(Locale.ROOT);
+                } else if (org == null) {
+                    org = field;
+                }
+            }
+            if (asn == 0 && country == null && org == null) {
+                skipped++;
+                return;
+            }
+            if (size == starts.length) {
+                int capacity = size * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                asns = Arrays.copyOf(asns, capacity);
+                countries = Arrays.copyOf(countries, capacity);
+                orgs = Arrays.copyOf(orgs, capacity);
+            }
+            int key = (int) start ^ Integer.MIN_VALUE;
+            if (size > 0 && key < starts[size - 1]) {
+                sorted = false;
+            }
+            starts[size] = key;
+            ends[size] = (int) end ^ Integer.MIN_VALUE;
+            asns[size] = (int) asn;
+            countries[size] = (short) (country != null ? intern(country, countryIndex, countryNames) : -1);
+            orgs[size] = org != null ? intern(org, orgIndex, orgNames) : -1;
+            size++;
+        }
+
+        Table build(long generation) {
+            if (!sorted) {
+                sort();
+            }
+            return new Table(generation, Arrays.copyOf(starts, size), Arrays.copyOf(ends, size),
+                Arrays.copyOf(asns, size), Arrays.copyOf(countries, size), Arrays.copyOf(orgs, size),
+                countryNames.toArray(new String[0]), orgNames.toArray(new String[0]), size, skipped);
+        }
+
+        /**
+         * Сортировка по началу диапазона: ключ - начало в старших 32 битах и номер строки в младших
+         */
+        private void sort() {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) starts[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] sortedStarts = new int[size];
+            int[] sortedEnds = new int[size];
+            int[] sortedAsns = new int[size];
+            short[] sortedCountries = new short[size];
+            int[] sortedOrgs = new int[size];
+            for (int i = 0; i < size; i++) {
+                int row = (int) keys[i];
+                sortedStarts[i] = starts[row];
+                sortedEnds[i] = ends[row];
+                sortedAsns[i] = asns[row];
+                sortedCountries[i] = countries[row];
+                sortedOrgs[i] = orgs[row];
+            }
+            starts = sortedStarts;
+            ends = sortedEnds;
+            asns = sortedAsns;
+            countries = sortedCountries;
+            orgs = sortedOrgs;
+        }
+
+        private static int intern(String value, Map<String, Integer> index, List<String> names) {
+            Integer existing = index.get(value);
+            if (existing != null) {
+                return existing;
+            }
+            int added = names.size();
+            index.put(value, added);
+            names.add(value);
+            return added;
+        }
+
+        /**
+         * Номер AS из поля "13335" или "AS13335" либо -1, если поле - не номер
+         */
+        private static long parseAsn(String field) {
+            String digits = field.regionMatches(true, 0, "AS", 0, 2) ? field.substring(2) : field;
+            return digits.indexOf('.') < 0 ? parseAddress(digits) : -1;
+        }
+
+        private static boolean isCountryCode(String field) {
+            return field.length() == 2 && Character.isLetter(field.charAt(0)) && Character.isLetter(field.charAt(1));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ru.rs.vpndirector.service;
+
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Разрешение доменных имен в IP адреса (вынесено отдельно, чтобы подменять в тестах)
+ */
+@Component
+public class HostResolver {
+
+    /**
+     * Возвращает IP адрес для доменного имени
+     *
+     * @param domain доменное имя
+     * @return адрес
+     * @throws UnknownHostException если имя не удалось разрешить
+     */
+    public InetAddress resolve(String domain) throws UnknownHostException {
+        return InetAddress.getByName(domain);
+    }
+}
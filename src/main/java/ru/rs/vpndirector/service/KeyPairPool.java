@@ -0,0 +1,330 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcaPKCS8Generator;
+import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8DecryptorProviderBuilder;
+import org.bouncycastle.openssl.jcajce.JceOpenSSLPKCS8EncryptorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.pkcs.PKCS8EncryptedPrivateKeyInfo;
+import org.bouncycastle.pkcs.PKCSException;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пул заранее сгенерированных пар ключей для выпуска в режиме native: фоновый поток с низким
+ * приоритетом держит в пуле openvpn.server.key-pool-size ключей, и выпуск сертификата сводится к подписи.
+ * <p>
+ * Ключи хранятся в каталоге keypool рядом с keys (права 0700, файлы 0600): закрытый ключ в виде
+ * зашифрованного PKCS#8 (AES-256), открытый - рядом в том же PEM-файле. Алгоритм и размер ключей
+ * совпадают с native-key-algorithm и native-key-size; ключи с другими параметрами при запуске удаляются.
+ */
+@Slf4j
+@Service
+public class KeyPairPool {
+
+    private static final String POOL_DIR_NAME = "keypool";
+    private static final String PASSPHRASE_FILE_NAME = ".passphrase";
+    private static final long REFILL_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long ERROR_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Стандартные провайдеры JDK не умеют AES/CBC/PKCS7Padding, нужный для PKCS#8
+     */
+    private static final Provider BOUNCY_CASTLE = new BouncyCastleProvider();
+
+    private final OpenVpnProperties openVpnProperties;
+    private final Queue<Path> available = new ConcurrentLinkedQueue<>();
+    private final Object refillSignal = new Object();
+    private final Counter generated;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer generationTime;
+
+    private volatile char[] passphrase;
+    private volatile Thread refillThread;
+
+    public KeyPairPool(OpenVpnProperties openVpnProperties, MeterRegistry meterRegistry) {
+        this.openVpnProperties = openVpnProperties;
+        Gauge.builder("vpndirector.keypool.size", available, Queue::size)
+            .description("Количество готовых ключей в пуле")
+            .register(meterRegistry);
+        Gauge.builder("vpndirector.keypool.capacity", openVpnProperties, OpenVpnProperties::getKeyPoolSize)
+            .description("Целевой размер пула ключей")
+            .register(meterRegistry);
+        this.generated = Counter.builder("vpndirector.keypool.generated")
+            .description("Сколько ключей сгенерировано фоновым потоком (скорость пополнения)")
+            .register(meterRegistry);
+        this.hits = Counter.builder("vpndirector.keypool.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("vpndirector.keypool.requests").tag("result", "miss").register(meterRegistry);
+        this.generationTime = Timer.builder("vpndirector.keypool.generation")
+            .description("Время генерации и сохранения одного ключа пула")
+            .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return openVpnProperties.getKeyPoolSize() > 0;
+    }
+
+    /**
+     * Загружает сохраненные ключи и запускает фоновое пополнение, если пул включен
+     */
+    @PostConstruct
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            load();
+        } catch (IOException e) {
+            log.error("Не удалось загрузить пул ключей из {}: {}", getPoolDir(), e.getMessage());
+            return;
+        }
+        Thread thread = new Thread(this::refillLoop, "key-pool-refill");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        refillThread = thread;
+        thread.start();
+        log.info("Пул ключей {} {}: загружено {}, целевой размер {}", openVpnProperties.getNativeKeyAlgorithm(),
+            openVpnProperties.getNativeKeySize(), available.size(), openVpnProperties.getKeyPoolSize());
+    }
+
+    @PreDestroy
+    public void stop() {
+        Thread thread = refillThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Забирает ключ из пула
+     *
+     * @return пара ключей или null, если пул выключен или пуст
+     */
+    public KeyPair poll() {
+        if (!isEnabled()) {
+            return null;
+        }
+        Path file;
+        while ((file = available.poll()) != null) {
+            try {
+                KeyPair keyPair = read(file);
+                Files.deleteIfExists(file);
+                hits.increment();
+                signalRefill();
+                return keyPair;
+            } catch (IOException e) {
+                log.warn("Ключ пула {} не удалось прочитать, удаляем: {}", file.getFileName(), e.getMessage());
+                deleteQuietly(file);
+            }
+        }
+        misses.increment();
+        signalRefill();
+        return null;
+    }
+
+    /**
+     * Количество готовых ключей в пуле
+     */
+    public int size() {
+        return available.size();
+    }
+
+    /**
+     * Дополняет пул до целевого размера в текущем потоке
+     */
+    void fill() throws IOException {
+        while (available.size() < openVpnProperties.getKeyPoolSize() && !Thread.currentThread().isInterrupted()) {
+            long started = System.nanoTime();
+            Path file = store(NativeCertificateIssuer.generateKeyPair(
+                openVpnProperties.getNativeKeyAlgorithm(), openVpnProperties.getNativeKeySize()));
+            available.add(file);
+            generationTime.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            generated.increment();
+        }
+    }
+
+    private void refillLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                fill();
+                synchronized (refillSignal) {
+                    if (available.size() >= openVpnProperties.getKeyPoolSize()) {
+                        refillSignal.wait(REFILL_CHECK_MILLIS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                log.error("Ошибка при пополнении пула ключей: {}", e.getMessage());
+                try {
+                    Thread.sleep(ERROR_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        log.debug("Пополнение пула ключей остановлено");
+    }
+
+    private void signalRefill() {
+        synchronized (refillSignal) {
+            refillSignal.notifyAll();
+        }
+    }
+
+    /**
+     * Каталог пула: &lt;easy-rsa&gt;/keypool
+     */
+    Path getPoolDir() {
+        return Paths.get(openVpnProperties.getEasyRsaPath(), POOL_DIR_NAME);
+    }
+
+    /**
+     * Префикс имени файла ключа: по нему отбрасываются ключи с другими алгоритмом и размером
+     */
+    private String filePrefix() {
+        return openVpnProperties.getNativeKeyAlgorithm().toUpperCase(Locale.ROOT) + openVpnProperties.getNativeKeySize() + "-";
+    }
+
+    void load() throws IOException {
+        Path dir = ensurePoolDir();
+        available.clear();
+        String prefix = filePrefix();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.pem")) {
+            for (Path file : files) {
+                if (file.getFileName().toString().startsWith(prefix)) {
+                    available.add(file);
+                } else {
+                    log.info("Удаляем ключ пула с другими параметрами: {}", file.getFileName());
+                    deleteQuietly(file);
+                }
+            }
+        }
+    }
+
+    private Path ensurePoolDir() throws IOException {
+        Path dir = getPoolDir();
+        if (!Files.isDirectory(dir)) {
+            Files.createDirectories(dir);
+        }
+        try {
+            Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+        } catch (UnsupportedOperationException e) {
+            log.warn("Не удалось ограничить права на каталог {}: {}", dir, e.getMessage());
+        }
+        return dir;
+    }
+
+    private Path store(KeyPair keyPair) throws IOException {
+        Path dir = ensurePoolDir();
+        StringWriter pem = new StringWriter();
+        try (JcaPEMWriter writer = new JcaPEMWriter(pem)) {
+            writer.writeObject(new JcaPKCS8Generator(keyPair.getPrivate(),
+                new JceOpenSSLPKCS8EncryptorBuilder(JcaPKCS8Generator.AES_256_CBC)
+                    .setProvider(BOUNCY_CASTLE)
+                    .setRandom(new SecureRandom())
+                    .setPassword(getPassphrase())
+                    .build()).generate());
+            writer.writeObject(keyPair.getPublic());
+        } catch (OperatorCreationException e) {
+            throw new IOException("Не удалось зашифровать ключ пула: " + e.getMessage(), e);
+        }
+        Path file = dir.resolve(filePrefix() + UUID.randomUUID() + ".pem");
+        EasyRsaStore.writeOwnerOnly(file, pem.toString().getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private KeyPair read(Path file) throws IOException {
+        PrivateKey privateKey = null;
+        PublicKey publicKey = null;
+        JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII);
+             PEMParser parser = new PEMParser(reader)) {
+            Object object;
+            while ((object = parser.readObject()) != null) {
+                if (object instanceof PKCS8EncryptedPrivateKeyInfo) {
+                    PrivateKeyInfo info = ((PKCS8EncryptedPrivateKeyInfo) object).decryptPrivateKeyInfo(
+                        new JceOpenSSLPKCS8DecryptorProviderBuilder().setProvider(BOUNCY_CASTLE).build(getPassphrase()));
+                    privateKey = converter.getPrivateKey(info);
+                } else if (object instanceof SubjectPublicKeyInfo) {
+                    publicKey = converter.getPublicKey((SubjectPublicKeyInfo) object);
+                }
+            }
+        } catch (OperatorCreationException | PKCSException e) {
+            throw new IOException("не удалось расшифровать: " + e.getMessage(), e);
+        }
+        if (privateKey == null || publicKey == null) {
+            throw new IOException("файл не содержит пару ключей");
+        }
+        return new KeyPair(publicKey, privateKey);
+    }
+
+    /**
+     * Пароль шифрования: из настроек или сгенерированный при первом запуске и сохраненный в keypool/.passphrase
+     */
+    private char[] getPassphrase() throws IOException {
+        char[] current = passphrase;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (passphrase != null) {
+                return passphrase;
+            }
+            String configured = openVpnProperties.getKeyPoolPassphrase();
+            if (configured != null && !configured.isEmpty()) {
+                passphrase = configured.toCharArray();
+                return passphrase;
+            }
+            Path file = ensurePoolDir().resolve(PASSPHRASE_FILE_NAME);
+            if (!Files.exists(file)) {
+                byte[] random = new byte[32];
+                new SecureRandom().nextBytes(random);
+                EasyRsaStore.writeOwnerOnly(file, Base64.getEncoder().encode(random));
+            }
+            passphrase = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim().toCharArray();
+            return passphrase;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Не удалось удалить {}: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package ru.rs.vpndirector.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Неизменяемый список с заранее отсортированными индексами для постраничного вывода.
+ * <p>
+ * Для каждого ключа сортировки один раз (при первом обращении) строится перестановка int[],
+ * после чего страница без фильтра - это срез перестановки, O(размер страницы).
+ * Поиск по началу имени - двоичный поиск по индексу имен в нижнем регистре: количество найденных
+ * известно сразу, а страница набирается обходом нужного порядка до заполнения.
+ * Поиск по подстроке требует одного прохода по именам.
+ */
+public final class ListingIndex<T> {
+
+    /**
+     * Ключ сортировки по имени (без учета регистра), есть у любого списка
+     */
+    public static final String NAME = "name";
+
+    private final List<T> items;
+    private final String[] lowerNames;
+    private final Map<String, Comparator<T>> comparators;
+    private final String defaultSort;
+    private final Map<String, int[]> orders = new ConcurrentHashMap<>();
+    private volatile String[] sortedNames;
+
+    /**
+     * @param items элементы в естественном порядке (используется, если сортировка не задана)
+     * @param nameOf имя элемента для поиска и сортировки по имени
+     * @param comparators дополнительные ключи сортировки (по возрастанию)
+     * @param defaultSort ключ сортировки по умолчанию или null - естественный порядок
+     */
+    public ListingIndex(List<T> items, Function<T, String> nameOf, Map<String, Comparator<T>> comparators,
+                        String defaultSort) {
+        this.items = new ArrayList<>(items);
+        this.lowerNames = new String[items.size()];
+        for (int i = 0; i < lowerNames.length; i++) {
+            String name = nameOf.apply(this.items.get(i));
+            lowerNames[i] = name != null ? name.toLowerCase(Locale.ROOT) : "";
+        }
+        this.comparators = comparators;
+        this.defaultSort = defaultSort;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    public ListingPage<T> page(ListingQuery query) {
+        String sort = NAME.equals(query.getSort()) || comparators.containsKey(query.getSort())
+            ? query.getSort() : defaultSort;
+        int[] order = sort != null ? order(sort) : null;
+        boolean descending = query.isDescending();
+        String search = query.getQ().toLowerCase(Locale.ROOT);
+        int size = query.getSize();
+
+        if (search.isEmpty()) {
+            int total = items.size();
+            int number = clampPage(query.getPage(), total, size);
+            int from = (number - 1) * size;
+            int to = Math.min(total, from + size);
+            List<T> page = new ArrayList<>(to - from);
+            for (int position = from; position < to; position++) {
+                page.add(items.get(at(order, position, descending)));
+            }
+            return new ListingPage<>(page, number, size, total, sort, descending);
+        }
+
+        if (query.isPrefix()) {
+            String[] names = sortedNames();
+            int lo = lowerBound(names, search);
+            int hi = lowerBound(names, search + Character.MAX_VALUE);
+            int total = hi - lo;
+            int number = clampPage(query.getPage(), total, size);
+            int from = (number - 1) * size;
+            List<T> page = new ArrayList<>(Math.min(size, total));
+            if (NAME.equals(sort)) {
+                int[] byName = order(NAME);
+                for (int i = from; i < Math.min(total, from + size); i++) {
+                    int position = descending ? hi - 1 - i : lo + i;
+                    page.add(items.get(byName[position]));
+                }
+            } else {
+                collect(order, descending, search, true, from, size, page, true);
+            }
+            return new ListingPage<>(page, number, size, total, sort, descending);
+        }
+
+        int total = collect(order, descending, search, false, 0, 0, null, false);
+        int number = clampPage(query.getPage(), total, size);
+        List<T> page = new ArrayList<>(Math.min(size, total));
+        collect(order, descending, search, false, (number - 1) * size, size, page, true);
+        return new ListingPage<>(page, number, size, total, sort, descending);
+    }
+
+    /**
+     * Обходит элементы в заданном порядке и собирает в page подходящие под фильтр с номерами [skip, skip + limit)
+     *
+     * @return количество подходящих элементов (при stopWhenFull - просмотренных до заполнения страницы)
+     */
+    private int collect(int[] order, boolean descending, String search, boolean prefix, int skip, int limit,
+                        List<T> page, boolean stopWhenFull) {
+        int matched = 0;
+        for (int position = 0; position < items.size(); position++) {
+            int index = at(order, position, descending);
+            String name = lowerNames[index];
+            if (prefix ? !name.startsWith(search) : !name.contains(search)) {
+                continue;
+            }
+            if (page != null && matched >= skip && matched < skip + limit) {
+                page.add(items.get(index));
+                if (stopWhenFull && page.size() == limit) {
+                    return matched + 1;
+                }
+            }
+            matched++;
+        }
+        return matched;
+    }
+
+    private int at(int[] order, int position, boolean descending) {
+        int p = descending ? items.size() - 1 - position : position;
+        return order != null ? order[p] : p;
+    }
+
+    private int[] order(String sort) {
+        return orders.computeIfAbsent(sort, key -> {
+            Integer[] boxed = new Integer[items.size()];
+            for (int i = 0; i < boxed.length; i++) {
+                boxed[i] = i;
+            }
+            Comparator<Integer> comparator = NAME.equals(key)
+                ? Comparator.comparing((Integer i) -> lowerNames[i])
+                : Comparator.comparing(items::get, comparators.get(key));
+            // Сортировка устойчивая: при равных ключах сохраняется естественный порядок
+            Arrays.sort(boxed, comparator);
+            int[] order = new int[boxed.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = boxed[i];
+            }
+            return order;
+        });
+    }
+
+    private String[] sortedNames() {
+        String[] names = sortedNames;
+        if (names == null) {
+            int[] byName = order(NAME);
+            names = new String[byName.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = lowerNames[byName[i]];
+            }
+            sortedNames = names;
+        }
+        return names;
+    }
+
+    private static int lowerBound(String[] sorted, String key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int clampPage(int page, int total, int size) {
+        int pages = Math.max(1, (total + size - 1) / size);
+        return Math.min(page, pages);
+    }
+
+    /**
+     * Пустой список
+     */
+    public static <T> ListingIndex<T> empty() {
+        return new ListingIndex<>(Collections.emptyList(), item -> "", Collections.emptyMap(), null);
+    }
+}
@@ -0,0 +1,85 @@
+package ru.rs.vpndirector.service;
+
+import java.util.List;
+
+/**
+ * Страница списка вместе с примененными параметрами (для ссылок сортировки и перехода по страницам)
+ */
+public class ListingPage<T> {
+
+    private final List<T> items;
+    private final int number;
+    private final int size;
+    private final int total;
+    private final String sort;
+    private final boolean descending;
+
+    public ListingPage(List<T> items, int number, int size, int total, String sort, boolean descending) {
+        this.items = items;
+        this.number = number;
+        this.size = size;
+        this.total = total;
+        this.sort = sort;
+        this.descending = descending;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Номер страницы, начиная с 1
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Количество элементов, подходящих под фильтр
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    public int getTotalPages() {
+        return Math.max(1, (total + size - 1) / size);
+    }
+
+    public boolean isHasPrevious() {
+        return number > 1;
+    }
+
+    public boolean isHasNext() {
+        return number < getTotalPages();
+    }
+
+    /**
+     * Порядковый номер первого элемента страницы (с 1) или 0 для пустой страницы
+     */
+    public int getFrom() {
+        return items.isEmpty() ? 0 : (number - 1) * size + 1;
+    }
+
+    public int getTo() {
+        return (number - 1) * size + items.size();
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public String getDir() {
+        return descending ? "desc" : "asc";
+    }
+
+    /**
+     * Направление для ссылки в заголовке столбца: повторный щелчок по текущему ключу меняет направление
+     */
+    public String nextDir(String key) {
+        return key.equals(sort) && !descending ? "desc" : "asc";
+    }
+}
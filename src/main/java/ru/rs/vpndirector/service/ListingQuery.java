@@ -0,0 +1,63 @@
+package ru.rs.vpndirector.service;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Параметры постраничного списка из строки запроса: ?q=...&match=prefix&sort=name&dir=desc&page=2&size=100.
+ * Все параметры необязательные, так что отфильтрованную страницу можно сохранить в закладки.
+ */
+@Getter
+@Setter
+public class ListingQuery {
+
+    public static final int DEFAULT_SIZE = 50;
+    public static final int MAX_SIZE = 500;
+
+    /**
+     * Искомая строка (без учета регистра)
+     */
+    private String q = "";
+
+    /**
+     * prefix - имя начинается с q, contains - содержит q
+     */
+    private String match = "contains";
+
+    /**
+     * Ключ сортировки; неизвестный или пустой - сортировка списка по умолчанию
+     */
+    private String sort = "";
+
+    /**
+     * asc или desc
+     */
+    private String dir = "asc";
+
+    /**
+     * Номер страницы, начиная с 1
+     */
+    private int page = 1;
+
+    private int size = DEFAULT_SIZE;
+
+    public String getQ() {
+        return q != null ? q.trim() : "";
+    }
+
+    public boolean isPrefix() {
+        return "prefix".equals(match);
+    }
+
+    public boolean isDescending() {
+        return "desc".equals(dir);
+    }
+
+    public int getPage() {
+        return Math.max(page, 1);
+    }
+
+    public int getSize() {
+        return size < 1 ? DEFAULT_SIZE : Math.min(size, MAX_SIZE);
+    }
+}
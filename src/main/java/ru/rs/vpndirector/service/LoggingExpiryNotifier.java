@@ -0,0 +1,23 @@
+package ru.rs.vpndirector.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Предупреждения об истечении сертификатов в журнал приложения
+ */
+@Slf4j
+@Component
+public class LoggingExpiryNotifier implements ExpiryNotifier {
+
+    @Override
+    public void notify(ExpiryWarning warning) {
+        if (warning.isExpired()) {
+            log.error("{} {} (серийный номер {}) истек {}", warning.getKind().getLabel(), warning.getName(),
+                warning.getSerial(), warning.getExpiresAt());
+        } else {
+            log.warn("{} {} (серийный номер {}) истекает {}, осталось дней: {}", warning.getKind().getLabel(),
+                warning.getName(), warning.getSerial(), warning.getExpiresAt(), warning.getDaysLeft());
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcaPKCS8Generator;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Выпуск клиентских сертификатов без запуска easy-rsa: ключ, запрос и сертификат
+ * создаются в процессе и подписываются ключом CA из каталога keys.
+ * Результат (файлы .key/.csr/.crt, &lt;serial&gt;.pem, index.txt, serial) совпадает с тем, что оставляет build-key.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class NativeCertificateIssuer {
+
+    private static final long DEFAULT_EXPIRE_DAYS = 3650;
+
+    private final OpenVpnProperties openVpnProperties;
+    private final EasyRsaStore easyRsaStore;
+    private final KeyPairPool keyPairPool;
+
+    /**
+     * Выпускает сертификат с указанным CN
+     *
+     * @param certificateName имя сертификата (CN), должно быть проверено вызывающим кодом
+     * @return выпущенный сертификат
+     * @throws IOException если сертификат выпустить не удалось
+     */
+    public X509Certificate issue(String certificateName) throws IOException {
+        long started = System.nanoTime();
+        EasyRsaStore.CertificateAuthority authority = easyRsaStore.loadCertificateAuthority();
+        KeyPair keyPair = nextKeyPair();
+        X509Certificate certificate = issue(certificateName, keyPair, authority);
+        log.info("Сертификат {} выпущен в режиме native за {} мс", certificateName,
+            Duration.ofNanos(System.nanoTime() - started).toMillis());
+        return certificate;
+    }
+
+    /**
+     * Выпускает сертификат для заранее сгенерированной пары ключей
+     */
+    X509Certificate issue(String certificateName, KeyPair keyPair, EasyRsaStore.CertificateAuthority authority)
+            throws IOException {
+        Path keysDir = easyRsaStore.getKeysDir();
+        Map<String, String> vars = easyRsaStore.readVars();
+        X509Certificate caCertificate = authority.getCertificate();
+        X500Name caSubject = X500Name.getInstance(caCertificate.getSubjectX500Principal().getEncoded());
+        List<Rdn> rdns = subjectRdns(certificateName, vars, caSubject);
+
+        try {
+            X500Name subject = toX500Name(rdns);
+            String signatureAlgorithm = signatureAlgorithm(authority.getPrivateKey());
+
+            PKCS10CertificationRequest csr = new JcaPKCS10CertificationRequestBuilder(subject, keyPair.getPublic())
+                .build(signer(signatureAlgorithm(keyPair.getPrivate()), keyPair.getPrivate()));
+
+            long expireDays = parseDays(vars.get("KEY_EXPIRE"));
+            Instant notBefore = Instant.now().minusSeconds(60);
+            Date notAfter = Date.from(notBefore.plus(Duration.ofDays(expireDays)));
+
+            // Серийный номер выделяется и index.txt дописывается под одной блокировкой,
+            // чтобы номера шли строго по порядку и не пересекались с easy-rsa
+            return easyRsaStore.withIndexLock(() -> {
+                Path crtFile = keysDir.resolve(certificateName + ".crt");
+                if (Files.exists(crtFile)) {
+                    throw new IOException("Сертификат с именем '" + certificateName + "' уже существует");
+                }
+                BigInteger serial = easyRsaStore.allocateSerial();
+                X509Certificate certificate = buildCertificate(authority, subject, keyPair.getPublic(), serial,
+                    Date.from(notBefore), notAfter, signatureAlgorithm);
+
+                EasyRsaStore.writeOwnerOnly(keysDir.resolve(certificateName + ".key"),
+                    toPem(new JcaPKCS8Generator(keyPair.getPrivate(), null)));
+                Files.write(keysDir.resolve(certificateName + ".csr"), toPem(csr));
+                byte[] certificatePem = toPem(certificate);
+                Files.write(keysDir.resolve(EasyRsaStore.formatSerial(serial) + ".pem"), certificatePem);
+                Files.write(crtFile, certificatePem);
+
+                easyRsaStore.appendIndexEntry(serial, notAfter, toOpenSslString(rdns));
+                return certificate;
+            });
+        } catch (OperatorCreationException e) {
+            throw new IOException("Ошибка при выпуске сертификата: " + e.getMessage(), e);
+        }
+    }
+
+    private X509Certificate buildCertificate(EasyRsaStore.CertificateAuthority authority, X500Name subject,
+                                             PublicKey publicKey, BigInteger serial, Date notBefore, Date notAfter,
+                                             String signatureAlgorithm) throws IOException {
+        try {
+            JcaX509ExtensionUtils extensionUtils = new JcaX509ExtensionUtils();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+                    authority.getCertificate(), serial, notBefore, notAfter, subject, publicKey)
+                .addExtension(Extension.basicConstraints, false, new BasicConstraints(false))
+                .addExtension(Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier(publicKey))
+                .addExtension(Extension.authorityKeyIdentifier, false,
+                    extensionUtils.createAuthorityKeyIdentifier(authority.getCertificate()))
+                .addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(KeyPurposeId.id_kp_clientAuth))
+                .addExtension(Extension.keyUsage, false, new KeyUsage(
+                    "RSA".equals(publicKey.getAlgorithm())
+                        ? KeyUsage.digitalSignature | KeyUsage.keyEncipherment
+                        : KeyUsage.digitalSignature));
+            X509CertificateHolder holder = builder.build(signer(signatureAlgorithm, authority.getPrivateKey()));
+            return new JcaX509CertificateConverter().getCertificate(holder);
+        } catch (GeneralSecurityException | OperatorCreationException e) {
+            throw new IOException("Не удалось подписать сертификат: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Пара ключей для нового сертификата: из пула, если он включен и не пуст, иначе генерируется сразу
+     */
+    public KeyPair nextKeyPair() throws IOException {
+        KeyPair keyPair = keyPairPool.poll();
+        return keyPair != null ? keyPair : generateKeyPair();
+    }
+
+    /**
+     * Генерирует пару ключей по настройкам native-key-algorithm и native-key-size
+     */
+    public KeyPair generateKeyPair() throws IOException {
+        return generateKeyPair(openVpnProperties.getNativeKeyAlgorithm(), openVpnProperties.getNativeKeySize());
+    }
+
+    /**
+     * Генерирует пару ключей
+     *
+     * @param algorithm EC или RSA
+     * @param size размер ключа: 256/384/521 для EC, размер модуля для RSA
+     */
+    public static KeyPair generateKeyPair(String algorithm, int size) throws IOException {
+        try {
+            if ("EC".equalsIgnoreCase(algorithm) || "ECDSA".equalsIgnoreCase(algorithm)) {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+                generator.initialize(new ECGenParameterSpec(curveName(size)));
+                return generator.generateKeyPair();
+            }
+            if ("RSA".equalsIgnoreCase(algorithm)) {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+                generator.initialize(size);
+                return generator.generateKeyPair();
+            }
+            throw new IOException("Неподдерживаемый алгоритм ключа: " + algorithm + " (допустимо RSA или EC)");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Не удалось сгенерировать ключ " + algorithm + " " + size + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String curveName(int size) throws IOException {
+        switch (size) {
+            case 256:
+                return "secp256r1";
+            case 384:
+                return "secp384r1";
+            case 521:
+                return "secp521r1";
+            default:
+                throw new IOException("Неподдерживаемый размер EC ключа: " + size + " (допустимо 256, 384 или 521)");
+        }
+    }
+
+    private static String signatureAlgorithm(PrivateKey key) {
+        return "RSA".equals(key.getAlgorithm()) ? "SHA256withRSA" : "SHA256withECDSA";
+    }
+
+    private static ContentSigner signer(String algorithm, PrivateKey key) throws OperatorCreationException {
+        return new JcaContentSignerBuilder(algorithm).build(key);
+    }
+
+    /**
+     * Поля субъекта в порядке easy-rsa: C, ST, L, O, OU, CN, name, emailAddress.
+     * Значения берутся из vars, а при их отсутствии - из субъекта CA.
+     */
+    private static List<Rdn> subjectRdns(String certificateName, Map<String, String> vars, X500Name caSubject) {
+        List<Rdn> rdns = new ArrayList<>();
+        addRdn(rdns, "C", BCStyle.C, vars.get("KEY_COUNTRY"), caSubject);
+        addRdn(rdns, "ST", BCStyle.ST, vars.get("KEY_PROVINCE"), caSubject);
+        addRdn(rdns, "L", BCStyle.L, vars.get("KEY_CITY"), caSubject);
+        addRdn(rdns, "O", BCStyle.O, vars.get("KEY_ORG"), caSubject);
+        addRdn(rdns, "OU", BCStyle.OU, vars.get("KEY_OU"), caSubject);
+        rdns.add(new Rdn("CN", BCStyle.CN, certificateName));
+        addRdn(rdns, "name", BCStyle.NAME, vars.get("KEY_NAME"), caSubject);
+        addRdn(rdns, "emailAddress", BCStyle.EmailAddress, vars.get("KEY_EMAIL"), caSubject);
+        return rdns;
+    }
+
+    private static void addRdn(List<Rdn> rdns, String shortName, ASN1ObjectIdentifier oid, String value, X500Name caSubject) {
+        if (value == null || value.isEmpty()) {
+            RDN[] caRdns = caSubject.getRDNs(oid);
+            if (caRdns.length > 0) {
+                value = caRdns[0].getFirst().getValue().toString();
+            }
+        }
+        if (value != null && !value.isEmpty()) {
+            rdns.add(new Rdn(shortName, oid, value));
+        }
+    }
+
+    private static X500Name toX500Name(List<Rdn> rdns) {
+        X500NameBuilder builder = new X500NameBuilder(BCStyle.INSTANCE);
+        for (Rdn rdn : rdns) {
+            builder.addRDN(rdn.oid, rdn.value);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Субъект в однострочном формате openssl, как в index.txt: /C=RU/ST=.../CN=name/...
+     */
+    private static String toOpenSslString(List<Rdn> rdns) {
+        StringBuilder sb = new StringBuilder();
+        for (Rdn rdn : rdns) {
+            sb.append('/').append(rdn.shortName).append('=').append(rdn.value);
+        }
+        return sb.toString();
+    }
+
+    private static long parseDays(String value) {
+        if (value == null || value.isEmpty()) {
+            return DEFAULT_EXPIRE_DAYS;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Некорректное значение KEY_EXPIRE в vars: {}, используем {} дней", value, DEFAULT_EXPIRE_DAYS);
+            return DEFAULT_EXPIRE_DAYS;
+        }
+    }
+
+    private static byte[] toPem(Object object) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JcaPEMWriter pemWriter = new JcaPEMWriter(writer)) {
+            if (object instanceof JcaPKCS8Generator) {
+                pemWriter.writeObject(((JcaPKCS8Generator) object).generate());
+            } else {
+                pemWriter.writeObject(object);
+            }
+        }
+        return writer.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Поле субъекта сертификата
+     */
+    private static final class Rdn {
+        private final String shortName;
+        private final ASN1ObjectIdentifier oid;
+        private final String value;
+
+        private Rdn(String shortName, ASN1ObjectIdentifier oid, String value) {
+            this.shortName = shortName;
+            this.oid = oid;
+            this.value = value;
+        }
+    }
+}
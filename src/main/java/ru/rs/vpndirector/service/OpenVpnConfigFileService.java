@@ -5,7 +5,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import ru.rs.vpndirector.config.OpenVpnProperties;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
@@ -13,17 +15,39 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class OpenVpnConfigFileService {
 
+    /**
+     * Сколько ждать утилиту file при определении кодировки
+     */
+    private static final Duration FILE_UTILITY_TIMEOUT = Duration.ofSeconds(5);
+
     private final OpenVpnProperties openVpnProperties;
+    private final ProcessRunner processRunner;
+
+    /**
+     * Блокировка файла конфигурации: чтение - под read lock,
+     * любые операции чтение-изменение-запись - целиком под write lock
+     */
+    private final ReentrantReadWriteLock configLock = new ReentrantReadWriteLock(true);
+
+    /**
+     * Индекс строк для постраничного чтения в редакторе, см. {@link #readLines(int, int)}
+     */
+    private volatile ConfigLineIndex lineIndex;
 
     /**
      * Читает содержимое файла конфигурации
@@ -32,6 +56,78 @@ public class OpenVpnConfigFileService {
      * @throws IOException если произошла ошибка при чтении файла
      */
     public List<String> readConfigFile() throws IOException {
+        configLock.readLock().lock();
+        try {
+            return readConfigFileUnlocked();
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Читает файл конфигурации вместе с его ревизией (хэшем содержимого)
+     *
+     * @return снимок файла конфигурации
+     * @throws IOException если произошла ошибка при чтении файла
+     */
+    public ConfigSnapshot readConfigSnapshot() throws IOException {
+        configLock.readLock().lock();
+        try {
+            return new ConfigSnapshot(readConfigFileUnlocked(), getConfigRevisionUnlocked());
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Возвращает ревизию файла конфигурации - SHA-256 от его содержимого
+     *
+     * @return ревизия или пустая строка, если файл не существует
+     * @throws IOException если произошла ошибка при чтении файла
+     */
+    public String getConfigRevision() throws IOException {
+        configLock.readLock().lock();
+        try {
+            return getConfigRevisionUnlocked();
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    private String getConfigRevisionUnlocked() throws IOException {
+        Path configPath = Paths.get(openVpnProperties.getConfigPath());
+        if (!Files.exists(configPath)) {
+            return "";
+        }
+        return getLineIndexUnlocked().getRevision();
+    }
+
+    /**
+     * Индекс строк текущего файла: перестраивается за один потоковый проход, только если файл
+     * изменился с прошлого построения. Гонка двух читателей безвредна - оба построят одинаковый индекс
+     */
+    private ConfigLineIndex getLineIndexUnlocked() throws IOException {
+        ConfigLineIndex index = lineIndex;
+        if (index == null || !index.isCurrent()) {
+            index = ConfigLineIndex.build(Paths.get(openVpnProperties.getConfigPath()), getReadCharsetUnlocked());
+            lineIndex = index;
+        }
+        return index;
+    }
+
+    private Charset getReadCharsetUnlocked() {
+        String detectedEncoding = detectFileEncodingUnlocked();
+        if (detectedEncoding != null) {
+            try {
+                return Charset.forName(detectedEncoding);
+            } catch (Exception e) {
+                log.warn("Не удалось создать Charset для {}, используем Windows-1251", detectedEncoding);
+            }
+        }
+        return Charset.forName("Windows-1251");
+    }
+
+    private List<String> readConfigFileUnlocked() throws IOException {
         Path configPath = Paths.get(openVpnProperties.getConfigPath());
         log.info("Чтение файла конфигурации: {}", configPath);
         
@@ -41,7 +137,7 @@ public class OpenVpnConfigFileService {
         }
         
         // Определяем кодировку файла
-        String detectedEncoding = detectFileEncoding();
+        String detectedEncoding = detectFileEncodingUnlocked();
         Charset charset;
         
         if (detectedEncoding != null) {
@@ -105,15 +201,135 @@ public class OpenVpnConfigFileService {
     }
 
     /**
-     * Записывает содержимое в файл конфигурации
+     * Записывает содержимое в файл конфигурации. Если содержимое отличается от файла только
+     * пробелами в конце строк, переводами строк (CRLF) или пустыми строками в конце, файл
+     * и резервная копия не перезаписываются
      *
      * @param lines список строк для записи
+     * @return false, если записывать было нечего
      * @throws IOException если произошла ошибка при записи файла
      */
-    public void writeConfigFile(List<String> lines) throws IOException {
+    public boolean writeConfigFile(List<String> lines) throws IOException {
+        configLock.writeLock().lock();
+        try {
+            return writeIfChangedUnlocked(lines);
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Записывает содержимое в файл конфигурации, если с момента чтения файл не менялся
+     *
+     * @param lines список строк для записи
+     * @param expectedRevision ревизия, с которой было начато редактирование (см. {@link #getConfigRevision()})
+     * @return false, если содержимое не отличается от файла (см. {@link #writeConfigFile(List)})
+     * @throws ConfigRevisionMismatchException если файл был изменен после чтения
+     * @throws IOException если произошла ошибка при записи файла
+     */
+    public boolean writeConfigFile(List<String> lines, String expectedRevision) throws IOException {
+        configLock.writeLock().lock();
+        try {
+            checkRevision(expectedRevision, getConfigRevisionUnlocked());
+            return writeIfChangedUnlocked(lines);
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private boolean writeIfChangedUnlocked(List<String> lines) throws IOException {
+        if (Files.exists(Paths.get(openVpnProperties.getConfigPath()))
+            && sameText(readConfigFileUnlocked(), lines, true)) {
+            log.info("Содержимое не изменилось, файл конфигурации не перезаписывается");
+            return false;
+        }
+        writeConfigFileUnlocked(lines);
+        return true;
+    }
+
+    /**
+     * Совпадают ли строки без учета пробелов в конце строк (в том числе '\r');
+     * atEnd - фрагменты стоят в конце файла, и пустые строки после них тоже не важны
+     */
+    static boolean sameText(List<String> before, List<String> after, boolean atEnd) {
+        int beforeSize = atEnd ? withoutTrailingBlank(before) : before.size();
+        int afterSize = atEnd ? withoutTrailingBlank(after) : after.size();
+        if (beforeSize != afterSize) {
+            return false;
+        }
+        for (int i = 0; i < beforeSize; i++) {
+            if (!before.get(i).stripTrailing().equals(after.get(i).stripTrailing())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int withoutTrailingBlank(List<String> lines) {
+        int size = lines.size();
+        while (size > 0 && lines.get(size - 1).isBlank()) {
+            size--;
+        }
+        return size;
+    }
+
+    private static void checkRevision(String expectedRevision, String currentRevision)
+        throws ConfigRevisionMismatchException {
+        if (!currentRevision.equals(expectedRevision)) {
+            log.warn("Файл конфигурации изменен с момента чтения (ожидалась ревизия {}, текущая {})",
+                expectedRevision, currentRevision);
+            throw new ConfigRevisionMismatchException(
+                "Файл был изменен другим пользователем после открытия редактора. Обновите страницу и повторите изменения.");
+        }
+    }
+
+    private void writeConfigFileUnlocked(List<String> lines) throws IOException {
         Path configPath = Paths.get(openVpnProperties.getConfigPath());
         log.info("Запись файла конфигурации: {}", configPath);
         
+        backupConfigUnlocked(configPath);
+        
+        // Создаем родительские директории, если они не существуют
+        if (configPath.getParent() != null) {
+            Files.createDirectories(configPath.getParent());
+        }
+        
+        Charset writeCharset = getWriteCharsetUnlocked();
+        
+        // Записываем файл в определенной кодировке
+        // Используем CharsetEncoder с обработкой ошибок для безопасной записи
+        try {
+            CharsetEncoder encoder = writeCharset.newEncoder();
+            encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+            encoder.onMalformedInput(CodingErrorAction.REPLACE);
+            
+            // Обрабатываем строки для безопасной записи
+            List<String> safeLines = new ArrayList<>();
+            for (String line : lines) {
+                safeLines.add(encodableLine(encoder, line));
+            }
+            
+            // Записываем файл
+            Files.write(configPath, safeLines, writeCharset, 
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            log.info("Файл успешно записан: {}", configPath);
+        } catch (Exception e) {
+            log.error("Ошибка при записи файла с кодировкой {}, пробуем UTF-8", writeCharset.name(), e);
+            // В крайнем случае пробуем записать в UTF-8
+            try {
+                Files.write(configPath, lines, StandardCharsets.UTF_8, 
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                log.info("Файл записан в UTF-8");
+            } catch (Exception e2) {
+                log.error("Критическая ошибка при записи файла", e2);
+                throw new IOException("Не удалось записать файл: " + e2.getMessage(), e2);
+            }
+        } finally {
+            lineIndex = null;
+        }
+    }
+
+    private void backupConfigUnlocked(Path configPath) {
         // Создаем резервную копию перед сохранением, если файл существует
         if (Files.exists(configPath)) {
             Path backupPath = Paths.get(openVpnProperties.getOpenvpnRoot(), 
@@ -125,12 +341,9 @@ public class OpenVpnConfigFileService {
                 log.warn("Не удалось создать резервную копию: {}", e.getMessage());
             }
         }
-        
-        // Создаем родительские директории, если они не существуют
-        if (configPath.getParent() != null) {
-            Files.createDirectories(configPath.getParent());
-        }
-        
+    }
+
+    private Charset getWriteCharsetUnlocked() {
         // Определяем кодировку для записи
         Charset writeCharset;
         if (openVpnProperties.getConfigEncoding() != null && !openVpnProperties.getConfigEncoding().trim().isEmpty()) {
@@ -145,7 +358,7 @@ public class OpenVpnConfigFileService {
             }
         } else {
             // Определяем кодировку из существующего файла или используем Windows-1251 по умолчанию
-            String detectedEncoding = detectFileEncoding();
+            String detectedEncoding = detectFileEncodingUnlocked();
             if (detectedEncoding != null) {
                 try {
                     writeCharset = Charset.forName(detectedEncoding);
@@ -160,51 +373,219 @@ public class OpenVpnConfigFileService {
                 log.info("Запись файла с кодировкой по умолчанию: {}", writeCharset.name());
             }
         }
-        
-        // Записываем файл в определенной кодировке
-        // Используем CharsetEncoder с обработкой ошибок для безопасной записи
+        return writeCharset;
+    }
+
+    private String encodableLine(CharsetEncoder encoder, String line) {
         try {
-            CharsetEncoder encoder = writeCharset.newEncoder();
-            encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-            encoder.onMalformedInput(CodingErrorAction.REPLACE);
-            
-            // Обрабатываем строки для безопасной записи
-            List<String> safeLines = new ArrayList<>();
-            for (String line : lines) {
-                try {
-                    // Проверяем, можно ли закодировать строку
-                    if (encoder.canEncode(line)) {
-                        safeLines.add(line);
-                    } else {
-                        // Заменяем проблемные символы
-                        log.warn("Строка содержит невалидные символы для кодировки {}, заменяем: {}", 
-                            writeCharset.name(), line);
-                        String safeLine = line.replaceAll("[^\\x00-\\x7F]", "?");
-                        safeLines.add(safeLine);
+            // Проверяем, можно ли закодировать строку
+            if (encoder.canEncode(line)) {
+                return line;
+            }
+            // Заменяем проблемные символы
+            log.warn("Строка содержит невалидные символы для кодировки {}, заменяем: {}", 
+                encoder.charset().name(), line);
+        } catch (Exception e) {
+            // Если не удалось проверить, заменяем проблемные символы
+            log.warn("Ошибка при проверке строки, заменяем проблемные символы: {}", line);
+        }
+        return line.replaceAll("[^\\x00-\\x7F]", "?");
+    }
+
+    /**
+     * Читает диапазон строк файла конфигурации, не загружая файл целиком (для редактора больших файлов)
+     *
+     * @param from номер первой строки, с нуля
+     * @param count сколько строк прочитать
+     * @return строки диапазона вместе с ревизией и общим числом строк файла
+     * @throws IOException если файла нет или произошла ошибка при чтении
+     */
+    public LineRange readLines(int from, int count) throws IOException {
+        configLock.readLock().lock();
+        try {
+            requireConfigFileUnlocked();
+            ConfigLineIndex index = getLineIndexUnlocked();
+            return new LineRange(index.getRevision(), index.getLineCount(), from, index.read(from, count));
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ищет подстроку (без учета регистра) за один проход по файлу
+     *
+     * @param query искомый текст
+     * @param fromLine с какой строки собирать совпадения
+     * @param limit сколько совпадений вернуть
+     * @return первые limit совпадений начиная с fromLine и общее число совпадений в файле
+     * @throws IOException если файла нет или произошла ошибка при чтении
+     */
+    public LineSearch searchLines(String query, int fromLine, int limit) throws IOException {
+        configLock.readLock().lock();
+        try {
+            requireConfigFileUnlocked();
+            ConfigLineIndex index = getLineIndexUnlocked();
+            String needle = query.toLowerCase(Locale.ROOT);
+            List<LineMatch> matches = new ArrayList<>();
+            int total = 0;
+            try (ConfigLineIndex.LineReader reader = index.open(0)) {
+                for (int line = 0; reader.next(); line++) {
+                    String text = reader.text(index.getCharset());
+                    if (text.toLowerCase(Locale.ROOT).contains(needle)) {
+                        total++;
+                        if (line >= fromLine && matches.size() < limit) {
+                            matches.add(new LineMatch(line, text));
+                        }
                     }
-                } catch (Exception e) {
-                    // Если не удалось проверить, заменяем проблемные символы
-                    log.warn("Ошибка при проверке строки, заменяем проблемные символы: {}", line);
-                    String safeLine = line.replaceAll("[^\\x00-\\x7F]", "?");
-                    safeLines.add(safeLine);
                 }
             }
-            
-            // Записываем файл
-            Files.write(configPath, safeLines, writeCharset, 
-                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-            log.info("Файл успешно записан: {}", configPath);
-        } catch (Exception e) {
-            log.error("Ошибка при записи файла с кодировкой {}, пробуем UTF-8", writeCharset.name(), e);
-            // В крайнем случае пробуем записать в UTF-8
+            return new LineSearch(index.getRevision(), index.getLineCount(), matches, total);
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Что изменят замены диапазонов, без записи: изменен ли текст и какие директивы
+     * добавятся или удалятся. Сравниваются только заменяемые фрагменты, а не файл целиком
+     *
+     * @param edits замены, упорядоченные по номеру строки и не пересекающиеся
+     * @param expectedRevision ревизия, с которой было начато редактирование
+     * @throws ConfigRevisionMismatchException если файл был изменен после чтения
+     * @throws IllegalArgumentException если диапазоны выходят за пределы файла или пересекаются
+     * @throws IOException если произошла ошибка при чтении файла
+     */
+    public LineEditResult previewLineEdits(List<LineEdit> edits, String expectedRevision) throws IOException {
+        configLock.readLock().lock();
+        try {
+            if (!Files.exists(Paths.get(openVpnProperties.getConfigPath()))) {
+                checkRevision(expectedRevision, "");
+                return compareEdits(null, edits, false);
+            }
+            ConfigLineIndex index = getLineIndexUnlocked();
+            checkRevision(expectedRevision, index.getRevision());
+            return compareEdits(index, edits, false);
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сравнивает заменяемые фрагменты с новыми строками. Пробелы в конце строк и пустые строки
+     * в конце файла изменением не считаются, комментарии меняют текст, но не директивы
+     */
+    private LineEditResult compareEdits(ConfigLineIndex index, List<LineEdit> edits, boolean written)
+        throws IOException {
+        int lineCount = index != null ? index.getLineCount() : 0;
+        List<String> before = new ArrayList<>();
+        List<String> after = new ArrayList<>();
+        boolean changed = false;
+        int previousEnd = 0;
+        for (LineEdit edit : edits) {
+            if (edit.getFrom() < previousEnd || edit.getTo() < edit.getFrom() || edit.getTo() > lineCount) {
+                throw new IllegalArgumentException("Некорректный диапазон строк " + edit.getFrom() + "-" + edit.getTo());
+            }
+            previousEnd = edit.getTo();
+            List<String> original = index != null
+                ? index.read(edit.getFrom(), edit.getTo() - edit.getFrom()) : Collections.emptyList();
+            changed |= !sameText(original, edit.getLines(), edit.getTo() == lineCount);
+            before.addAll(original);
+            after.addAll(edit.getLines());
+        }
+        List<ConfigDiff.Change> changes = changed
+            ? ConfigDiff.diff(ConfigDiff.directives(before), ConfigDiff.directives(after))
+            : Collections.emptyList();
+        return new LineEditResult(index != null ? index.getRevision() : "", lineCount, changed, written, changes);
+    }
+
+    /**
+     * Заменяет диапазоны строк, если с момента чтения файл не менялся. Файл переписывается потоково:
+     * неизмененные строки копируются байт в байт, в кодировке записи кодируются только новые строки.
+     * Если замены не меняют текст (см. {@link #previewLineEdits(List, String)}), файл и резервная копия
+     * не перезаписываются
+     *
+     * @param edits замены, упорядоченные по номеру строки и не пересекающиеся
+     * @param expectedRevision ревизия, с которой было начато редактирование
+     * @return ревизия и число строк файла после записи и измененные директивы
+     * @throws ConfigRevisionMismatchException если файл был изменен после чтения
+     * @throws IllegalArgumentException если диапазоны выходят за пределы файла или пересекаются
+     * @throws IOException если произошла ошибка при записи файла
+     */
+    public LineEditResult applyLineEdits(List<LineEdit> edits, String expectedRevision) throws IOException {
+        configLock.writeLock().lock();
+        try {
+            Path configPath = Paths.get(openVpnProperties.getConfigPath());
+            if (!Files.exists(configPath)) {
+                // Новый файл: редактирование начиналось с пустой ревизии
+                checkRevision(expectedRevision, "");
+                if (configPath.getParent() != null) {
+                    Files.createDirectories(configPath.getParent());
+                }
+                Files.createFile(configPath);
+            }
+            // под write lock индекс строится заново: ревизия должна точно соответствовать файлу
+            ConfigLineIndex index = ConfigLineIndex.build(configPath, getReadCharsetUnlocked());
+            if (index.getLineCount() > 0 || !expectedRevision.isEmpty()) {
+                checkRevision(expectedRevision, index.getRevision());
+            }
+            LineEditResult comparison = compareEdits(index, edits, false);
+            if (!comparison.isChanged()) {
+                log.info("Правки не меняют текст, файл конфигурации не перезаписывается");
+                return comparison;
+            }
+
+            backupConfigUnlocked(configPath);
+            Charset writeCharset = getWriteCharsetUnlocked();
+            CharsetEncoder encoder = writeCharset.newEncoder();
+            Path tmpPath = configPath.resolveSibling(configPath.getFileName() + ".tmp");
             try {
-                Files.write(configPath, lines, StandardCharsets.UTF_8, 
-                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-                log.info("Файл записан в UTF-8");
-            } catch (Exception e2) {
-                log.error("Критическая ошибка при записи файла", e2);
-                throw new IOException("Не удалось записать файл: " + e2.getMessage(), e2);
+                try (ConfigLineIndex.LineReader reader = index.open(0);
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmpPath))) {
+                    int line = 0;
+                    boolean lineOpen = false;
+                    for (LineEdit edit : edits) {
+                        for (; line < edit.getFrom() && reader.next(); line++) {
+                            reader.copyTo(out);
+                            lineOpen = !reader.isTerminated();
+                        }
+                        for (String text : edit.getLines()) {
+                            if (lineOpen) {
+                                out.write('\n');
+                                lineOpen = false;
+                            }
+                            out.write(encodableLine(encoder, text).getBytes(writeCharset));
+                            out.write('\n');
+                        }
+                        for (; line < edit.getTo() && reader.next(); line++) {
+                            // заменяемые строки пропускаются
+                        }
+                    }
+                    while (reader.next()) {
+                        reader.copyTo(out);
+                    }
+                }
+                // Переписываем файл на месте, чтобы сохранить владельца и права
+                try (OutputStream out = Files.newOutputStream(configPath, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                    Files.copy(tmpPath, out);
+                }
+            } finally {
+                Files.deleteIfExists(tmpPath);
+                lineIndex = null;
             }
+            log.info("Файл конфигурации записан, изменено диапазонов: {}", edits.size());
+            ConfigLineIndex updated = getLineIndexUnlocked();
+            return new LineEditResult(updated.getRevision(), updated.getLineCount(), true, true,
+                comparison.getChanges());
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private void requireConfigFileUnlocked() throws IOException {
+        Path configPath = Paths.get(openVpnProperties.getConfigPath());
+        if (!Files.exists(configPath)) {
+            throw new IOException("Файл конфигурации не найден: " + configPath);
         }
     }
 
@@ -217,26 +598,31 @@ public class OpenVpnConfigFileService {
      * @throws IOException если произошла ошибка при чтении/записи файла
      */
     public boolean replaceLineByPrefix(String prefix, String newValue) throws IOException {
-        List<String> lines = readConfigFile();
-        boolean replaced = false;
-        
-        for (int i = 0; i < lines.size(); i++) {
-            String line = lines.get(i).trim();
-            if (line.startsWith(prefix)) {
-                lines.set(i, newValue);
-                replaced = true;
-                log.info("Заменена строка '{}' на '{}'", line, newValue);
-                break;
+        configLock.writeLock().lock();
+        try {
+            List<String> lines = readConfigFileUnlocked();
+            boolean replaced = false;
+
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if (line.startsWith(prefix)) {
+                    lines.set(i, newValue);
+                    replaced = true;
+                    log.info("Заменена строка '{}' на '{}'", line, newValue);
+                    break;
+                }
             }
+
+            if (replaced) {
+                writeConfigFileUnlocked(lines);
+            } else {
+                log.warn("Строка с префиксом '{}' не найдена", prefix);
+            }
+
+            return replaced;
+        } finally {
+            configLock.writeLock().unlock();
         }
-        
-        if (replaced) {
-            writeConfigFile(lines);
-        } else {
-            log.warn("Строка с префиксом '{}' не найдена", prefix);
-        }
-        
-        return replaced;
     }
 
     /**
@@ -246,10 +632,45 @@ public class OpenVpnConfigFileService {
      * @throws IOException если произошла ошибка при чтении/записи файла
      */
     public void appendLine(String line) throws IOException {
-        List<String> lines = readConfigFile();
-        lines.add(line);
-        writeConfigFile(lines);
-        log.info("Добавлена строка: {}", line);
+        configLock.writeLock().lock();
+        try {
+            List<String> lines = readConfigFileUnlocked();
+            lines.add(line);
+            writeConfigFileUnlocked(lines);
+            log.info("Добавлена строка: {}", line);
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Атомарно добавляет строки в конец файла, если в нем нет ни одной строки,
+     * содержащей любой из искомых текстов. Проверка и запись выполняются под одной блокировкой,
+     * поэтому параллельные запросы не могут добавить одну и ту же строку дважды.
+     *
+     * @param searchTexts тексты для поиска (проверяются по порядку)
+     * @param newLines строки для добавления
+     * @return найденная строка (добавление не выполнено) или null, если строки добавлены
+     * @throws IOException если произошла ошибка при чтении/записи файла
+     */
+    public String appendLinesIfAbsent(List<String> searchTexts, List<String> newLines) throws IOException {
+        configLock.writeLock().lock();
+        try {
+            List<String> lines = readConfigFileUnlocked();
+            for (String searchText : searchTexts) {
+                for (String line : lines) {
+                    if (line.contains(searchText)) {
+                        return line;
+                    }
+                }
+            }
+            lines.addAll(newLines);
+            writeConfigFileUnlocked(lines);
+            log.info("Добавлены строки: {}", newLines);
+            return null;
+        } finally {
+            configLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -260,17 +681,22 @@ public class OpenVpnConfigFileService {
      * @throws IOException если произошла ошибка при чтении/записи файла
      */
     public boolean removeLineByPrefix(String prefix) throws IOException {
-        List<String> lines = readConfigFile();
-        boolean removed = lines.removeIf(line -> line.trim().startsWith(prefix));
-        
-        if (removed) {
-            writeConfigFile(lines);
-            log.info("Удалена строка с префиксом: {}", prefix);
-        } else {
-            log.warn("Строка с префиксом '{}' не найдена для удаления", prefix);
+        configLock.writeLock().lock();
+        try {
+            List<String> lines = readConfigFileUnlocked();
+            boolean removed = lines.removeIf(line -> line.trim().startsWith(prefix));
+
+            if (removed) {
+                writeConfigFileUnlocked(lines);
+                log.info("Удалена строка с префиксом: {}", prefix);
+            } else {
+                log.warn("Строка с префиксом '{}' не найдена для удаления", prefix);
+            }
+
+            return removed;
+        } finally {
+            configLock.writeLock().unlock();
         }
-        
-        return removed;
     }
 
     /**
@@ -362,6 +788,15 @@ public class OpenVpnConfigFileService {
      * @return название кодировки или null, если не удалось определить
      */
     public String detectFileEncoding() {
+        configLock.readLock().lock();
+        try {
+            return detectFileEncodingUnlocked();
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    private String detectFileEncodingUnlocked() {
         Path configPath = Paths.get(openVpnProperties.getConfigPath());
         
         if (!Files.exists(configPath)) {
@@ -446,16 +881,18 @@ public class OpenVpnConfigFileService {
             
             // Если не удалось определить точно, пробуем через системную утилиту
             try {
-                ProcessBuilder processBuilder = new ProcessBuilder("file", "-bi", configPath.toString());
-                Process process = processBuilder.start();
-                java.io.BufferedReader reader = new java.io.BufferedReader(
-                    new java.io.InputStreamReader(process.getInputStream()));
-                String output = reader.readLine();
-                if (output != null && output.contains("charset=")) {
+                ProcessRunner.Result result = processRunner.run(ProcessRunner.Command
+                    .of(ProcessRunner.CommandClass.UTILITY, "file", "-bi", configPath.toString())
+                    .timeout(FILE_UTILITY_TIMEOUT)
+                    .maxOutputBytes(4096));
+                String output = result.getStdout().trim();
+                if (result.isSuccess() && output.contains("charset=")) {
                     String encoding = output.substring(output.indexOf("charset=") + 8).trim();
                     log.info("Определена кодировка через утилиту file: {}", encoding);
                     return encoding;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
                 log.debug("Не удалось определить кодировку через утилиту file: {}", e.getMessage());
             }
@@ -475,6 +912,15 @@ public class OpenVpnConfigFileService {
      * @throws IOException если произошла ошибка при восстановлении
      */
     public void restoreFromBackup() throws IOException {
+        configLock.writeLock().lock();
+        try {
+            restoreFromBackupUnlocked();
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private void restoreFromBackupUnlocked() throws IOException {
         Path configPath = Paths.get(openVpnProperties.getConfigPath());
         Path backupPath = Paths.get(openVpnProperties.getOpenvpnRoot(), 
             openVpnProperties.getConfigFileName() + "_bak");
@@ -484,6 +930,7 @@ public class OpenVpnConfigFileService {
         }
         
         Files.copy(backupPath, configPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        lineIndex = null;
         log.info("Файл восстановлен из резервной копии: {}", backupPath);
     }
 
@@ -504,6 +951,15 @@ public class OpenVpnConfigFileService {
      * @throws IOException если произошла ошибка при сбросе
      */
     public void resetToDefault() throws IOException {
+        configLock.writeLock().lock();
+        try {
+            resetToDefaultUnlocked();
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private void resetToDefaultUnlocked() throws IOException {
         Path configPath = Paths.get(openVpnProperties.getConfigPath());
         Path defaultPath = Paths.get(openVpnProperties.getOpenvpnRoot(), 
             openVpnProperties.getConfigFileName() + "_default");
@@ -525,6 +981,7 @@ public class OpenVpnConfigFileService {
         }
         
         Files.copy(defaultPath, configPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        lineIndex = null;
         log.info("Конфигурация сброшена к значениям по умолчанию из: {}", defaultPath);
     }
 
@@ -538,5 +995,274 @@ public class OpenVpnConfigFileService {
             openVpnProperties.getConfigFileName() + "_default");
         return Files.exists(defaultPath);
     }
-}
 
+    /**
+     * Запоминает текущий файл конфигурации как последнюю рабочую ревизию (файл _good) -
+     * вызывается после того, как сервер успешно поднялся с этой конфигурацией
+     *
+     * @throws IOException если не удалось скопировать файл
+     */
+    public void saveKnownGood() throws IOException {
+        configLock.readLock().lock();
+        try {
+            Path configPath = Paths.get(openVpnProperties.getConfigPath());
+            Path goodPath = getKnownGoodPath();
+            Path tmpPath = goodPath.resolveSibling(goodPath.getFileName() + ".tmp");
+            Files.copy(configPath, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tmpPath, goodPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Сохранена рабочая ревизия конфигурации: {}", goodPath);
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Возвращает файл конфигурации к последней рабочей ревизии. Текущий файл
+     * сохраняется в _bak, чтобы неудачные изменения можно было посмотреть
+     *
+     * @return false, если рабочей ревизии нет или она совпадает с текущим файлом
+     * @throws IOException если произошла ошибка при восстановлении
+     */
+    public boolean restoreKnownGood() throws IOException {
+        configLock.writeLock().lock();
+        try {
+            Path configPath = Paths.get(openVpnProperties.getConfigPath());
+            Path goodPath = getKnownGoodPath();
+            if (!Files.exists(goodPath)) {
+                return false;
+            }
+            if (Files.exists(configPath) && Arrays.equals(Files.readAllBytes(configPath), Files.readAllBytes(goodPath))) {
+                return false;
+            }
+            if (Files.exists(configPath)) {
+                Path backupPath = Paths.get(openVpnProperties.getOpenvpnRoot(),
+                    openVpnProperties.getConfigFileName() + "_bak");
+                Files.copy(configPath, backupPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.copy(goodPath, configPath, StandardCopyOption.REPLACE_EXISTING);
+            lineIndex = null;
+            log.info("Конфигурация возвращена к рабочей ревизии: {}", goodPath);
+            return true;
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Содержимое файла конфигурации как есть, без перекодирования
+     *
+     * @return байты файла или null, если файла нет
+     */
+    public byte[] readConfigBytes() throws IOException {
+        configLock.readLock().lock();
+        try {
+            Path configPath = Paths.get(openVpnProperties.getConfigPath());
+            return Files.exists(configPath) ? Files.readAllBytes(configPath) : null;
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Содержимое последней рабочей ревизии
+     *
+     * @return байты файла _good или null, если рабочая ревизия еще не сохранялась
+     */
+    public byte[] readKnownGoodBytes() throws IOException {
+        configLock.readLock().lock();
+        try {
+            Path goodPath = getKnownGoodPath();
+            return Files.exists(goodPath) ? Files.readAllBytes(goodPath) : null;
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    private Path getKnownGoodPath() {
+        return Paths.get(openVpnProperties.getOpenvpnRoot(), openVpnProperties.getConfigFileName() + "_good");
+    }
+
+    /**
+     * Снимок файла конфигурации: строки и ревизия, прочитанные под одной блокировкой
+     */
+    public static class ConfigSnapshot {
+        private final List<String> lines;
+        private final String revision;
+
+        public ConfigSnapshot(List<String> lines, String revision) {
+            this.lines = lines;
+            this.revision = revision;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+    }
+
+    /**
+     * Диапазон строк файла конфигурации и ревизия, к которой он относится
+     */
+    public static class LineRange {
+        private final String revision;
+        private final int totalLines;
+        private final int from;
+        private final List<String> lines;
+
+        public LineRange(String revision, int totalLines, int from, List<String> lines) {
+            this.revision = revision;
+            this.totalLines = totalLines;
+            this.from = from;
+            this.lines = lines;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public int getTotalLines() {
+            return totalLines;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+
+    /**
+     * Результат замены диапазонов строк (или ее предпросмотра)
+     */
+    public static class LineEditResult {
+        private final String revision;
+        private final int totalLines;
+        private final boolean changed;
+        private final boolean written;
+        private final List<ConfigDiff.Change> changes;
+
+        public LineEditResult(String revision, int totalLines, boolean changed, boolean written,
+                              List<ConfigDiff.Change> changes) {
+            this.revision = revision;
+            this.totalLines = totalLines;
+            this.changed = changed;
+            this.written = written;
+            this.changes = changes;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public int getTotalLines() {
+            return totalLines;
+        }
+
+        /**
+         * Правки меняют текст файла (не только пробелы в конце строк)
+         */
+        public boolean isChanged() {
+            return changed;
+        }
+
+        /**
+         * Файл был перезаписан
+         */
+        public boolean isWritten() {
+            return written;
+        }
+
+        /**
+         * Удаленные и добавленные директивы; пусто, если изменены только комментарии и пустые строки
+         */
+        public List<ConfigDiff.Change> getChanges() {
+            return changes;
+        }
+    }
+
+    /**
+     * Результат поиска по файлу конфигурации
+     */
+    public static class LineSearch {
+        private final String revision;
+        private final int totalLines;
+        private final List<LineMatch> matches;
+        private final int total;
+
+        public LineSearch(String revision, int totalLines, List<LineMatch> matches, int total) {
+            this.revision = revision;
+            this.totalLines = totalLines;
+            this.matches = matches;
+            this.total = total;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public int getTotalLines() {
+            return totalLines;
+        }
+
+        public List<LineMatch> getMatches() {
+            return matches;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Найденная строка: номер (с нуля) и текст
+     */
+    public static class LineMatch {
+        private final int line;
+        private final String text;
+
+        public LineMatch(int line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Замена строк [from, to) на lines; from == to - вставка перед строкой from
+     */
+    public static class LineEdit {
+        private final int from;
+        private final int to;
+        private final List<String> lines;
+
+        public LineEdit(int from, int to, List<String> lines) {
+            this.from = from;
+            this.to = to;
+            this.lines = lines;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getTo() {
+            return to;
+        }
+
+        public List<String> getLines() {
+            return lines;
+        }
+    }
+}
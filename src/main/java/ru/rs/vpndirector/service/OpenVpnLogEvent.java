@@ -0,0 +1,196 @@
+package ru.rs.vpndirector.service;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Событие из журнала OpenVPN: подключение и отключение клиента, ошибка TLS или проверки сертификата, запуск сервера.
+ * <p>
+ * Понимает строки журнала сервера (log/log-append, verb 3 и выше) с меткой времени OpenVPN
+ * ("2025-12-16 14:18:32" или "Tue Dec 16 14:18:32 2025") и выгрузку journalctl -o short-iso
+ * ("2025-12-16T14:18:32+0300 host openvpn[123]: ..."). Остальные строки пропускаются.
+ */
+final class OpenVpnLogEvent {
+
+    enum Type {
+        /**
+         * Peer Connection Initiated: клиент прошел TLS и подключился
+         */
+        CONNECT,
+        /**
+         * MULTI_sva: клиенту выдан адрес в туннеле
+         */
+        ADDRESS,
+        /**
+         * client-instance exiting/restarting: сессия клиента закончилась
+         */
+        DISCONNECT,
+        /**
+         * VERIFY OK: сертификат с этого адреса прошел проверку (CN еще до подключения)
+         */
+        VERIFIED,
+        /**
+         * Ошибка TLS, проверки сертификата или аутентификации
+         */
+        FAILURE,
+        /**
+         * Сервер (пере)запущен или остановлен: все открытые сессии закончились
+         */
+        SERVER_RESTART
+    }
+
+    private static final DateTimeFormatter ISO_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter CTIME = DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy", Locale.ENGLISH);
+    private static final DateTimeFormatter JOURNAL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss[.SSSSSS]XX");
+
+    private static final Pattern ISO_PREFIX = Pattern.compile("^(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) ");
+    private static final Pattern CTIME_PREFIX = Pattern.compile("^(\\w{3} \\w{3} +\\d{1,2} \\d{2}:\\d{2}:\\d{2} \\d{4}) ");
+    private static final Pattern JOURNAL_PREFIX = Pattern.compile(
+        "^(\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}(?:\\.\\d{6})?[+-]\\d{4}) \\S+ [^:\\s]+: ");
+
+    private static final Pattern PEER_INITIATED = Pattern.compile(
+        "^(?:[^/\\s]+/)?(\\S+) \\[([^\\]]+)\\] Peer Connection Initiated with");
+    private static final Pattern POOL_ADDRESS = Pattern.compile(
+        "^([^/\\s]+)/(\\S+) MULTI_sva: pool returned IPv4=([0-9.]+)");
+    private static final Pattern DISCONNECT = Pattern.compile(
+        "^([^/\\s]+)/(\\S+) (?:SIG\\w+\\[[^,\\]]*,([^\\]]*)\\] received, client-instance (?:exiting|restarting)"
+            + "|(Connection reset), restarting)");
+    private static final Pattern VERIFY_OK = Pattern.compile("^(\\S+) VERIFY OK: depth=0, (.*)");
+    private static final Pattern VERIFY_ERROR = Pattern.compile(
+        "^(?:([^/\\s]+)/)?(\\S+) VERIFY ERROR: depth=\\d+, error=([^:]+)(?::\\s*(.*))?");
+    private static final Pattern CRL_REVOKED = Pattern.compile("^(\\S+) CRL CHECK FAILED: (.*) is REVOKED");
+    private static final Pattern TLS_FAILURE = Pattern.compile(
+        "^(?:([^/\\s]+)/)?(\\S+) (TLS Error: .+|TLS_ERROR: .+|TLS Auth Error: .+|AUTH_FAILED.*)");
+    private static final Pattern SERVER_RESTART = Pattern.compile(
+        "^(?:Initialization Sequence Completed|SIG\\w+\\[hard,[^\\]]*\\] received, process exiting)");
+    private static final Pattern COMMON_NAME = Pattern.compile("(?:^|[,/]\\s*)CN=([^,/]+)");
+
+    private final Type type;
+    private final Instant time;
+    private final String commonName;
+    private final String address;
+    private final String detail;
+
+    OpenVpnLogEvent(Type type, Instant time, String commonName, String address, String detail) {
+        this.type = type;
+        this.time = time;
+        this.commonName = commonName;
+        this.address = address;
+        this.detail = detail;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    Instant getTime() {
+        return time;
+    }
+
+    /**
+     * CN клиента или null, если в строке его нет (тогда его можно узнать по адресу из VERIFIED)
+     */
+    String getCommonName() {
+        return commonName;
+    }
+
+    /**
+     * Реальный адрес клиента "ip:порт"
+     */
+    String getAddress() {
+        return address;
+    }
+
+    /**
+     * Причина отключения или ошибки; для ADDRESS - адрес в туннеле
+     */
+    String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Разбирает строку журнала
+     *
+     * @param line строка без перевода строки
+     * @param zone часовой пояс меток времени OpenVPN (в выгрузке journald он указан явно)
+     * @param now время для строк без метки времени (--suppress-timestamps)
+     * @return событие или null, если строка не описывает ни одно из событий
+     */
+    static OpenVpnLogEvent parse(String line, ZoneId zone, Instant now) {
+        Instant time = now;
+        String message = line;
+        try {
+            Matcher prefix = JOURNAL_PREFIX.matcher(line);
+            if (prefix.find()) {
+                time = OffsetDateTime.parse(prefix.group(1), JOURNAL_TIME).toInstant();
+                message = line.substring(prefix.end());
+            }
+            prefix = ISO_PREFIX.matcher(message);
+            if (prefix.find()) {
+                time = LocalDateTime.parse(prefix.group(1), ISO_TIME).atZone(zone).toInstant();
+                message = message.substring(prefix.end());
+            } else if ((prefix = CTIME_PREFIX.matcher(message)).find()) {
+                time = LocalDateTime.parse(prefix.group(1).replaceAll(" +", " "), CTIME).atZone(zone).toInstant();
+                message = message.substring(prefix.end());
+            }
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+        return parseMessage(message.trim(), time);
+    }
+
+    private static OpenVpnLogEvent parseMessage(String message, Instant time) {
+        Matcher m = PEER_INITIATED.matcher(message);
+        if (m.find()) {
+            return new OpenVpnLogEvent(Type.CONNECT, time, m.group(2), address(m.group(1)), null);
+        }
+        if ((m = POOL_ADDRESS.matcher(message)).find()) {
+            return new OpenVpnLogEvent(Type.ADDRESS, time, m.group(1), address(m.group(2)), m.group(3));
+        }
+        if ((m = DISCONNECT.matcher(message)).find()) {
+            String reason = m.group(3) != null ? m.group(3) : m.group(4);
+            return new OpenVpnLogEvent(Type.DISCONNECT, time, m.group(1), address(m.group(2)),
+                reason == null || reason.isEmpty() ? null : reason);
+        }
+        if ((m = VERIFY_OK.matcher(message)).find()) {
+            String commonName = commonName(m.group(2));
+            return commonName != null
+                ? new OpenVpnLogEvent(Type.VERIFIED, time, commonName, address(m.group(1)), null) : null;
+        }
+        if ((m = VERIFY_ERROR.matcher(message)).find()) {
+            String commonName = m.group(1) != null ? m.group(1) : m.group(4) != null ? commonName(m.group(4)) : null;
+            return new OpenVpnLogEvent(Type.FAILURE, time, commonName, address(m.group(2)),
+                "ошибка проверки сертификата: " + m.group(3).trim());
+        }
+        if ((m = CRL_REVOKED.matcher(message)).find()) {
+            return new OpenVpnLogEvent(Type.FAILURE, time, commonName(m.group(2)), address(m.group(1)),
+                "сертификат отозван (CRL)");
+        }
+        if ((m = TLS_FAILURE.matcher(message)).find()) {
+            return new OpenVpnLogEvent(Type.FAILURE, time, m.group(1), address(m.group(2)), m.group(3).trim());
+        }
+        if (SERVER_RESTART.matcher(message).find()) {
+            return new OpenVpnLogEvent(Type.SERVER_RESTART, time, null, null, null);
+        }
+        return null;
+    }
+
+    private static String address(String value) {
+        if (value.startsWith("[AF_INET6]")) {
+            return value.substring(10);
+        }
+        return value.startsWith("[AF_INET]") ? value.substring(9) : value;
+    }
+
+    private static String commonName(String subject) {
+        Matcher m = COMMON_NAME.matcher(subject);
+        return m.find() ? m.group(1).trim() : null;
+    }
+}
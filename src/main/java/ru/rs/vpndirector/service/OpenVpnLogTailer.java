@@ -0,0 +1,531 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Инкрементальное чтение журнала OpenVPN и история сессий клиентов.
+ * <p>
+ * Журнал (log/log-append из конфигурации сервера или файл из log-file, например выгрузка journalctl)
+ * дочитывается с сохраненной позиции: разбираются только новые полные строки, а события подключения,
+ * отключения и ошибок складываются в {@link ClientSessionIndex}. Позиция хранится вместе с индексом
+ * и идентификатором файла (inode) в session-state-file, поэтому после перезапуска приложения журнал
+ * не перечитывается. При ротации (файл переименован, на его месте новый) открытый канал сначала
+ * дочитывается до конца, затем чтение продолжается с начала нового файла; если файл усечен
+ * (copytruncate), чтение начинается с начала.
+ */
+@Slf4j
+@Service
+public class OpenVpnLogTailer {
+
+    /**
+     * Сигнатура файла состояния
+     */
+    private static final int STATE_MAGIC = 0x56444c54; // VDLT
+
+    private static final String[] LOG_DIRECTIVES = {"log-append", "log"};
+
+    /**
+     * Как часто сохранять позицию и индекс, если журнал продолжает пополняться
+     */
+    private static final Duration SAVE_INTERVAL = Duration.ofSeconds(30);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final OpenVpnProperties openVpnProperties;
+    private final OpenVpnConfigFileService configFileService;
+    private final Clock clock;
+    private final ClientSessionIndex index;
+    private final Map<OpenVpnLogEvent.Type, Counter> eventCounters = new EnumMap<>(OpenVpnLogEvent.Type.class);
+
+    private ScheduledExecutorService executor;
+
+    // Состояние чтения, изменяется только в poll() под монитором this
+    private Path channelPath;
+    private FileChannel channel;
+    private String channelKey;
+    private volatile long offset;
+    private volatile long fileSize;
+    private boolean restored;
+    private boolean dirty;
+    private Instant savedAt = Instant.MIN;
+    private volatile Instant lastPollAt;
+    private volatile String lastError;
+    private volatile CachedDirective configuredLogFile;
+
+    @Autowired
+    public OpenVpnLogTailer(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                            MeterRegistry meterRegistry) {
+        this(openVpnProperties, configFileService, meterRegistry, Clock.systemDefaultZone());
+    }
+
+    OpenVpnLogTailer(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                     MeterRegistry meterRegistry, Clock clock) {
+        this.openVpnProperties = openVpnProperties;
+        this.configFileService = configFileService;
+        this.clock = clock;
+        this.index = new ClientSessionIndex(openVpnProperties.getSessionHistorySize());
+        for (OpenVpnLogEvent.Type type : OpenVpnLogEvent.Type.values()) {
+            eventCounters.put(type, Counter.builder("vpndirector.openvpn.log.events")
+                .description("События журнала OpenVPN, учтенные в истории сессий")
+                .tag("type", type.name().toLowerCase(Locale.ROOT))
+                .register(meterRegistry));
+        }
+        Gauge.builder("vpndirector.openvpn.log.lag", this, tailer -> Math.max(0, tailer.fileSize - tailer.offset))
+            .description("Сколько байт журнала OpenVPN еще не прочитано")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("vpndirector.openvpn.sessions.clients", index, ClientSessionIndex::size)
+            .description("Клиенты с историей сессий")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        Duration interval = openVpnProperties.getLogPollInterval();
+        if (interval == null || interval.isZero() || interval.isNegative()) {
+            log.info("Чтение журнала OpenVPN выключено (log-poll-interval = {})", interval);
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "openvpn-log-tailer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::pollQuietly, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (dirty) {
+                saveQuietly();
+            }
+            closeChannel();
+        }
+    }
+
+    /**
+     * Индекс сессий по CN
+     */
+    public ClientSessionIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Сводки по CN для страницы списка
+     */
+    public Map<String, ClientSessionIndex.ClientSessions> getSessions(List<String> commonNames) {
+        return index.get(commonNames);
+    }
+
+    public List<ClientSessionIndex.Failure> getRecentFailures() {
+        return index.getRecentFailures();
+    }
+
+    /**
+     * Файл журнала: log-file из настроек, иначе log-append или log из конфигурации сервера;
+     * null, если журнал не найден (OpenVPN пишет в syslog/journald, а выгрузка не настроена)
+     */
+    public Path getLogFile() {
+        String configured = openVpnProperties.getLogFile();
+        if (configured == null || configured.trim().isEmpty()) {
+            configured = configuredLogFile();
+        }
+        if (configured == null) {
+            return null;
+        }
+        return Paths.get(openVpnProperties.getOpenvpnRoot()).resolve(configured.trim()).normalize();
+    }
+
+    /**
+     * Значение log-append или log из конфигурации сервера; файл конфигурации перечитывается, только если изменился
+     */
+    private String configuredLogFile() {
+        Path config = Paths.get(configFileService.getConfigFilePath());
+        String state;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(config, BasicFileAttributes.class);
+            state = attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            return null;
+        }
+        CachedDirective cached = configuredLogFile;
+        if (cached != null && cached.state.equals(state)) {
+            return cached.value;
+        }
+        String value = null;
+        try {
+            Map<String, String> directives = new HashMap<>();
+            for (String line : configFileService.readConfigFile()) {
+                String[] parts = line.trim().split("\\s+", 2);
+                if (parts.length == 2) {
+                    directives.putIfAbsent(parts[0], parts[1].trim().replaceAll("^\"|\"$", ""));
+                }
+            }
+            for (String directive : LOG_DIRECTIVES) {
+                value = directives.get(directive);
+                if (value != null && !value.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Не удалось прочитать конфигурацию сервера: {}", e.getMessage());
+        }
+        configuredLogFile = new CachedDirective(state, value);
+        return value;
+    }
+
+    /**
+     * Файл с позицией чтения журнала и историей сессий
+     */
+    public Path getStateFile() {
+        return Paths.get(openVpnProperties.getOpenvpnRoot()).resolve(openVpnProperties.getSessionStateFile()).normalize();
+    }
+
+    /**
+     * Позиция чтения в текущем файле журнала
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public LocalDateTime getLastPollAtLocal() {
+        Instant at = lastPollAt;
+        return at != null ? LocalDateTime.ofInstant(at, clock.getZone()) : null;
+    }
+
+    /**
+     * Последняя ошибка чтения журнала или null
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    private void pollQuietly() {
+        try {
+            poll();
+            lastError = null;
+        } catch (Exception e) {
+            if (!Objects.equals(lastError, e.getMessage())) {
+                log.warn("Ошибка при чтении журнала OpenVPN: {}", e.getMessage());
+            }
+            lastError = e.getMessage();
+        }
+    }
+
+    /**
+     * Дочитывает журнал: новые строки текущего файла, хвост файла до ротации, затем новый файл
+     */
+    synchronized void poll() throws IOException {
+        lastPollAt = clock.instant();
+        if (!restored) {
+            restored = true;
+            restore();
+        }
+        Path file = getLogFile();
+        if (file == null) {
+            closeChannel();
+            return;
+        }
+        if (channel != null && !file.equals(channelPath)) {
+            log.info("Файл журнала OpenVPN изменился: {} -> {}", channelPath, file);
+            closeChannel();
+            offset = 0;
+        }
+        if (channel == null) {
+            if (!Files.exists(file)) {
+                throw new NoSuchFileException(file.toString(), null, "журнал OpenVPN не найден");
+            }
+            open(file, null);
+        }
+        readAvailable();
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // файл переименован, новый еще не создан: продолжим с открытым каналом
+            return;
+        }
+        String key = fileKey(attributes);
+        if (key != null && !key.equals(channelKey)) {
+            log.info("Журнал OpenVPN {} ротирован, читаем новый файл", file);
+            closeChannel();
+            offset = 0;
+            open(file, null);
+            readAvailable();
+        } else if (channel.size() < offset) {
+            log.info("Журнал OpenVPN {} усечен, читаем с начала", file);
+            offset = 0;
+            readAvailable();
+        }
+        fileSize = channel.size();
+
+        if (dirty && !clock.instant().isBefore(savedAt.plus(SAVE_INTERVAL))) {
+            save();
+        }
+    }
+
+    /**
+     * Читает полные строки от позиции до конца файла; незаконченная последняя строка будет прочитана в следующий раз
+     */
+    private void readAvailable() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        Charset charset = charset();
+        Instant now = clock.instant();
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            int lineStart = 0;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] == '\n') {
+                    int lineEnd = i > lineStart && bytes[i - 1] == '\r' ? i - 1 : i;
+                    handleLine(new String(bytes, lineStart, lineEnd - lineStart, charset), now);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart == 0) {
+                if (read < buffer.capacity()) {
+                    break;
+                }
+                log.warn("Строка журнала OpenVPN длиннее {} байт пропущена (позиция {})", READ_BUFFER_SIZE, offset);
+                lineStart = read;
+            }
+            offset += lineStart;
+            dirty = true;
+        }
+    }
+
+    private void handleLine(String line, Instant now) {
+        OpenVpnLogEvent event = OpenVpnLogEvent.parse(line, clock.getZone(), now);
+        if (event != null) {
+            index.apply(event);
+            eventCounters.get(event.getType()).increment();
+        }
+    }
+
+    private boolean open(Path file, String expectedKey) throws IOException {
+        FileChannel opened = FileChannel.open(file, StandardOpenOption.READ);
+        String key = fileKey(Files.readAttributes(file, BasicFileAttributes.class));
+        if (expectedKey != null && !expectedKey.equals(key)) {
+            opened.close();
+            return false;
+        }
+        channel = opened;
+        channelPath = file;
+        channelKey = key;
+        if (offset > channel.size()) {
+            offset = 0;
+        }
+        return true;
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Ошибка при закрытии журнала: {}", e.getMessage());
+            }
+            channel = null;
+            channelKey = null;
+        }
+    }
+
+    /**
+     * Восстанавливает индекс и позицию из файла состояния. Если текущий журнал - другой файл
+     * (ротирован, пока приложение не работало), ищется ротированная копия с тем же inode рядом с ним,
+     * дочитывается с сохраненной позиции, после чего чтение продолжается с начала нового журнала
+     */
+    private void restore() {
+        Path stateFile = getStateFile();
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        String savedPath;
+        String savedKey;
+        long savedOffset;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile)))) {
+            if (in.readInt() != STATE_MAGIC) {
+                throw new IOException("неизвестный формат");
+            }
+            savedPath = in.readUTF();
+            savedKey = in.readBoolean() ? in.readUTF() : null;
+            savedOffset = in.readLong();
+            index.read(in);
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать {}: {}, история сессий будет собрана заново", stateFile, e.getMessage());
+            index.clear();
+            return;
+        }
+        savedAt = clock.instant();
+        log.info("История сессий восстановлена: клиентов {}, позиция {} в {}", index.size(), savedOffset, savedPath);
+
+        Path file = getLogFile();
+        if (file == null || !file.toString().equals(savedPath)) {
+            return;
+        }
+        try {
+            String currentKey = Files.exists(file) ? fileKey(Files.readAttributes(file, BasicFileAttributes.class)) : null;
+            if (savedKey == null || savedKey.equals(currentKey)) {
+                offset = savedOffset;
+                return;
+            }
+            Path rotated = findRotated(file, savedKey);
+            if (rotated == null) {
+                log.warn("Журнал {} ротирован, прежний файл не найден: часть событий могла быть пропущена", file);
+                return;
+            }
+            log.info("Дочитываем ротированный журнал {} с позиции {}", rotated, savedOffset);
+            offset = savedOffset;
+            if (open(rotated, savedKey)) {
+                readAvailable();
+                closeChannel();
+            }
+            offset = 0;
+        } catch (IOException e) {
+            log.warn("Не удалось дочитать ротированный журнал {}: {}", file, e.getMessage());
+            closeChannel();
+            offset = 0;
+        }
+    }
+
+    /**
+     * Ротированная копия журнала (openvpn.log.1, openvpn.log-20251216 и т.п.) с указанным идентификатором файла
+     */
+    private static Path findRotated(Path file, String key) throws IOException {
+        Path dir = file.getParent();
+        if (dir == null || !Files.isDirectory(dir)) {
+            return null;
+        }
+        String name = file.getFileName().toString();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, name + "?*")) {
+            for (Path candidate : paths) {
+                String candidateName = candidate.getFileName().toString();
+                if (candidateName.endsWith(".gz") || candidateName.endsWith(".xz") || candidateName.endsWith(".bz2")) {
+                    continue;
+                }
+                BasicFileAttributes attributes = Files.readAttributes(candidate, BasicFileAttributes.class);
+                if (attributes.isRegularFile() && key.equals(fileKey(attributes))) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Сохраняет позицию и индекс атомарной заменой файла состояния
+     */
+    private void save() throws IOException {
+        Path stateFile = getStateFile();
+        Path tmp = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(STATE_MAGIC);
+            out.writeUTF(channelPath != null ? channelPath.toString() : "");
+            out.writeBoolean(channelKey != null);
+            if (channelKey != null) {
+                out.writeUTF(channelKey);
+            }
+            out.writeLong(offset);
+            index.write(out);
+        }
+        try {
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        dirty = false;
+        savedAt = clock.instant();
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException e) {
+            log.warn("Не удалось сохранить историю сессий: {}", e.getMessage());
+        }
+    }
+
+    private Charset charset() {
+        String encoding = openVpnProperties.getConfigEncoding();
+        if (encoding != null && !encoding.trim().isEmpty()) {
+            try {
+                return Charset.forName(encoding.trim());
+            } catch (Exception e) {
+                log.debug("Неизвестная кодировка {}, журнал читается как UTF-8", encoding);
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Идентификатор файла (устройство и inode) или null, если файловая система его не сообщает
+     */
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        return key != null ? key.toString() : null;
+    }
+
+    private static final class CachedDirective {
+        private final String state;
+        private final String value;
+
+        private CachedDirective(String state, String value) {
+            this.state = state;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Перезапуск OpenVPN с проверкой, что сервер действительно поднялся: юнит active,
+ * management-порт отвечает, файл статуса снова обновляется. Если сервер не поднялся за
+ * restart-health-timeout, конфигурация возвращается к последней рабочей ревизии и сервер перезапускается еще раз.
+ * <p>
+ * Когда изменились только директивы, которые OpenVPN перечитывает по SIGHUP, вместо restart
+ * выполняется reload - процесс не останавливается, ключи и tun-устройство не пересоздаются.
+ */
+@Slf4j
+@Service
+public class OpenVpnRestartService {
+
+    /**
+     * Директивы, изменение которых применяется по SIGHUP без пересоздания процесса
+     */
+    static final Set<String> RELOADABLE = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "push", "client-config-dir", "ccd-exclusive", "client-to-client", "duplicate-cn", "keepalive",
+        "max-clients", "verb", "mute", "status", "ifconfig-pool-persist", "crl-verify")));
+
+    /**
+     * Сколько последних перезапусков хранить в истории
+     */
+    private static final int HISTORY_SIZE = 20;
+
+    /**
+     * Таймаут подключения и ожидания приветствия management-интерфейса
+     */
+    private static final int MANAGEMENT_TIMEOUT_MILLIS = 1000;
+
+    private final OpenVpnProperties openVpnProperties;
+    private final OpenVpnConfigFileService configFileService;
+    private final OpenVpnStatusService statusService;
+    private final SystemctlClient systemctl;
+    private final MeterRegistry meterRegistry;
+    private final Duration probeInterval;
+    private final ExecutorService executor;
+
+    private final AtomicReference<RestartRun> activeRun = new AtomicReference<>();
+    private final Map<String, RestartRun> runsById = new ConcurrentHashMap<>();
+    /**
+     * История перезапусков, новые - в начале
+     */
+    private final Deque<RestartRun> history = new ConcurrentLinkedDeque<>();
+
+    @Autowired
+    public OpenVpnRestartService(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                                 OpenVpnStatusService statusService, SystemctlClient systemctl,
+                                 MeterRegistry meterRegistry) {
+        this(openVpnProperties, configFileService, statusService, systemctl, meterRegistry, Duration.ofMillis(250));
+    }
+
+    OpenVpnRestartService(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                          OpenVpnStatusService statusService, SystemctlClient systemctl,
+                          MeterRegistry meterRegistry, Duration probeInterval) {
+        this.openVpnProperties = openVpnProperties;
+        this.configFileService = configFileService;
+        this.statusService = statusService;
+        this.systemctl = systemctl;
+        this.meterRegistry = meterRegistry;
+        this.probeInterval = probeInterval;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "openvpn-restart");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Запускает перезапуск в фоне. Если перезапуск уже выполняется, возвращает его
+     *
+     * @param mode AUTO - reload, если это безопасно, иначе restart
+     * @return перезапуск, состояние которого можно опрашивать
+     */
+    public RestartRun start(RestartRun.Mode mode) {
+        while (true) {
+            RestartRun run = startIfIdle(mode, null);
+            if (run != null) {
+                return run;
+            }
+            RestartRun active = activeRun.get();
+            if (active != null) {
+                log.info("Перезапуск OpenVPN уже выполняется ({})", active.getId());
+                return active;
+            }
+            // выполнявшийся перезапуск завершился между двумя проверками - пробуем занять место снова
+        }
+    }
+
+    /**
+     * Запускает перезапуск в фоне, только если сейчас ничего не выполняется
+     *
+     * @param onFinish вызывается в потоке перезапуска после его завершения (с любым итогом), может быть null.
+     *                 К этому моменту место уже освобождено и может быть занят следующий перезапуск
+     * @return новый перезапуск или null, если уже выполняется другой
+     */
+    public RestartRun startIfIdle(RestartRun.Mode mode, Consumer<RestartRun> onFinish) {
+        RestartRun run = new RestartRun(UUID.randomUUID().toString(), mode);
+        if (!activeRun.compareAndSet(null, run)) {
+            return null;
+        }
+        runsById.put(run.getId(), run);
+        addToHistory(run);
+        executor.execute(() -> {
+            try {
+                execute(run);
+            } catch (RuntimeException e) {
+                log.error("Ошибка при перезапуске OpenVPN", e);
+                complete(run, RestartRun.Status.FAILED, "Ошибка: " + e.getMessage());
+            } finally {
+                // место освобождается, даже если execute не дошел до complete
+                activeRun.compareAndSet(run, null);
+                if (onFinish != null) {
+                    try {
+                        onFinish.accept(run);
+                    } catch (RuntimeException e) {
+                        log.error("Ошибка при обработке завершения перезапуска {}", run.getId(), e);
+                    }
+                }
+            }
+        });
+        return run;
+    }
+
+    /**
+     * Выполняющийся сейчас перезапуск или null
+     */
+    public RestartRun getActiveRun() {
+        return activeRun.get();
+    }
+
+    /**
+     * Перезапуск по идентификатору или null
+     */
+    public RestartRun getRun(String id) {
+        return id != null ? runsById.get(id) : null;
+    }
+
+    /**
+     * История перезапусков, новые - в начале
+     */
+    public List<RestartRun> getHistory() {
+        return Collections.unmodifiableList(new ArrayList<>(history));
+    }
+
+    /**
+     * Что будет выполнено в выбранном режиме и почему
+     */
+    public Decision decide(RestartRun.Mode mode) {
+        if (mode == RestartRun.Mode.RESTART) {
+            return new Decision(RestartRun.Action.RESTART, "выбран полный перезапуск");
+        }
+        if (mode == RestartRun.Mode.RELOAD) {
+            return new Decision(RestartRun.Action.RELOAD, "выбран reload (SIGHUP)");
+        }
+        try {
+            byte[] good = configFileService.readKnownGoodBytes();
+            byte[] current = configFileService.readConfigBytes();
+            if (good == null || current == null) {
+                return new Decision(RestartRun.Action.RESTART, "нет сохраненной рабочей ревизии для сравнения");
+            }
+            List<String> currentDirectives = directives(current);
+            Set<String> changed = changedDirectives(directives(good), currentDirectives);
+            if (changed.isEmpty()) {
+                return new Decision(RestartRun.Action.RELOAD, "конфигурация не менялась с последнего запуска");
+            }
+            return decide(changed, currentDirectives);
+        } catch (IOException e) {
+            log.warn("Не удалось сравнить конфигурацию с рабочей ревизией: {}", e.getMessage());
+            return new Decision(RestartRun.Action.RESTART, "не удалось прочитать конфигурацию: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Чем придется применить изменение директив changed поверх текущего файла конфигурации -
+     * для предпросмотра правок до записи
+     *
+     * @param changed имена измененных директив (см. {@link ConfigDiff#directiveName(String)})
+     */
+    public Decision decideFor(Set<String> changed) {
+        if (changed.isEmpty()) {
+            return new Decision(RestartRun.Action.RELOAD, "директивы не изменены, перезапуск не нужен");
+        }
+        try {
+            byte[] current = configFileService.readConfigBytes();
+            return decide(changed, current != null ? directives(current) : Collections.emptyList());
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать конфигурацию: {}", e.getMessage());
+            return new Decision(RestartRun.Action.RESTART, "не удалось прочитать конфигурацию: " + e.getMessage(),
+                changed);
+        }
+    }
+
+    static Decision decide(Set<String> changed, List<String> currentDirectives) {
+        Set<String> names = directiveNames(currentDirectives);
+        boolean dropsPrivileges = names.contains("user") || names.contains("group");
+        if (dropsPrivileges && !(names.contains("persist-key") && names.contains("persist-tun"))) {
+            return new Decision(RestartRun.Action.RESTART,
+                "сервер сбрасывает привилегии без persist-key/persist-tun - SIGHUP не сможет перечитать ключи",
+                changed);
+        }
+        Set<String> restart = new TreeSet<>();
+        for (String name : changed) {
+            boolean reloadable = RELOADABLE.contains(name) || ("route".equals(name) && !names.contains("user"));
+            if (!reloadable) {
+                restart.add(name);
+            }
+        }
+        if (!restart.isEmpty()) {
+            return new Decision(RestartRun.Action.RESTART, "изменена директива " + String.join(", ", restart), restart);
+        }
+        return new Decision(RestartRun.Action.RELOAD, "изменены только директивы " + String.join(", ", changed));
+    }
+
+    private void execute(RestartRun run) {
+        String unit = "openvpn@" + openVpnProperties.getConfigFileNameWithoutExtension();
+        Decision decision = decide(run.getMode());
+        run.log("Юнит " + unit + ": " + decision.getReason());
+
+        boolean healthy = apply(run, unit, decision.getAction());
+        if (!healthy && decision.getAction() == RestartRun.Action.RELOAD) {
+            run.log("Reload не помог, выполняется полный перезапуск");
+            healthy = apply(run, unit, RestartRun.Action.RESTART);
+        }
+        if (healthy) {
+            saveKnownGood(run);
+            count(run, "success");
+            complete(run, RestartRun.Status.SUCCESS, "OpenVPN работает");
+            log.info("OpenVPN перезапущен ({}), простой {}", run.getAction(), run.getDowntimeText());
+            return;
+        }
+
+        if (!openVpnProperties.isRestartRollback()) {
+            count(run, "failed");
+            complete(run, RestartRun.Status.FAILED, "Сервер не поднялся, откат отключен");
+            return;
+        }
+        boolean restored;
+        try {
+            restored = configFileService.restoreKnownGood();
+        } catch (IOException e) {
+            log.error("Не удалось вернуть рабочую конфигурацию", e);
+            restored = false;
+        }
+        if (!restored) {
+            count(run, "failed");
+            complete(run, RestartRun.Status.FAILED, "Сервер не поднялся, рабочей ревизии для отката нет");
+            return;
+        }
+        run.markConfigRestored();
+        run.log("Конфигурация возвращена к последней рабочей ревизии, неудачная сохранена в "
+            + openVpnProperties.getConfigFileName() + "_bak");
+        if (apply(run, unit, RestartRun.Action.RESTART)) {
+            count(run, "rolled_back");
+            complete(run, RestartRun.Status.ROLLED_BACK, "Сервер поднят на предыдущей конфигурации");
+            log.warn("OpenVPN не поднялся с новой конфигурацией, выполнен откат");
+        } else {
+            count(run, "failed");
+            complete(run, RestartRun.Status.FAILED, "Сервер не поднялся и после отката");
+            log.error("OpenVPN не поднялся и после отката конфигурации");
+        }
+    }
+
+    /**
+     * Завершает перезапуск, сначала освобождая место: активным считается только незавершенный перезапуск
+     */
+    private void complete(RestartRun run, RestartRun.Status status, String stage) {
+        activeRun.compareAndSet(run, null);
+        run.finish(status, stage);
+    }
+
+    /**
+     * Выполняет reload или restart и ждет, пока сервер поднимется
+     *
+     * @return true, если сервер прошел все проверки до истечения restart-health-timeout
+     */
+    private boolean apply(RestartRun run, String unit, RestartRun.Action action) {
+        run.setAction(action);
+        run.setDowntime(null);
+        Instant statusBefore = statusUpdatedAt();
+        ManagementEndpoint management = managementEndpoint();
+
+        run.stage(action == RestartRun.Action.RELOAD ? "systemctl reload" : "systemctl restart");
+        long commandStarted = System.nanoTime();
+        try {
+            SystemctlClient.CommandResult result = action == RestartRun.Action.RELOAD
+                ? systemctl.reload(unit) : systemctl.restart(unit);
+            if (!result.isSuccess()) {
+                run.log("systemctl завершился с кодом " + result.getExitCode()
+                    + (result.getOutput().isEmpty() ? "" : ": " + result.getOutput()));
+                return false;
+            }
+        } catch (IOException e) {
+            run.log("Не удалось выполнить systemctl: " + e.getMessage());
+            return false;
+        }
+
+        run.stage("Проверка: юнит active" + (management != null ? ", management " + management : "")
+            + (statusBefore != null ? ", обновление файла статуса" : ""));
+        long deadline = commandStarted + openVpnProperties.getRestartHealthTimeout().toNanos();
+        boolean up = false;
+        while (System.nanoTime() < deadline) {
+            if (!up && isActive(unit) && (management == null || management.answers())) {
+                up = true;
+                Duration downtime = Duration.ofNanos(System.nanoTime() - commandStarted);
+                run.setDowntime(downtime);
+                Timer.builder("vpndirector.openvpn.restart.downtime")
+                    .description("Время от команды systemctl до готовности OpenVPN")
+                    .tag("mode", action.name().toLowerCase(Locale.ROOT))
+                    .register(meterRegistry)
+                    .record(downtime);
+                run.log("Сервер принимает подключения, простой " + run.getDowntimeText());
+            }
+            if (up && statusAdvanced(statusBefore)) {
+                return true;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(probeInterval.toNanos(), Math.max(0, deadline - System.nanoTime())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                run.log("Проверка прервана");
+                return false;
+            }
+        }
+        run.log(up ? "Файл статуса не обновился за " + openVpnProperties.getRestartHealthTimeout().getSeconds() + " с"
+            : "Сервер не поднялся за " + openVpnProperties.getRestartHealthTimeout().getSeconds() + " с");
+        return false;
+    }
+
+    private boolean isActive(String unit) {
+        try {
+            return systemctl.isActive(unit);
+        } catch (IOException e) {
+            log.debug("systemctl is-active: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private Instant statusUpdatedAt() {
+        try {
+            return statusService.getStatus().getUpdatedAt();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Файл статуса переписан после команды. Если файла до перезапуска не было, проверка пропускается
+     */
+    private boolean statusAdvanced(Instant before) {
+        if (before == null) {
+            return true;
+        }
+        Instant now = statusUpdatedAt();
+        return now != null && now.isAfter(before);
+    }
+
+    private void saveKnownGood(RestartRun run) {
+        try {
+            configFileService.saveKnownGood();
+        } catch (IOException e) {
+            log.warn("Не удалось сохранить рабочую ревизию конфигурации: {}", e.getMessage());
+            run.log("Не удалось сохранить рабочую ревизию: " + e.getMessage());
+        }
+    }
+
+    private void count(RestartRun run, String outcome) {
+        Counter.builder("vpndirector.openvpn.restarts")
+            .description("Перезапуски OpenVPN по способу и итогу")
+            .tag("mode", run.getAction() != null ? run.getAction().name().toLowerCase(Locale.ROOT) : "none")
+            .tag("outcome", outcome)
+            .register(meterRegistry)
+            .increment();
+    }
+
+    private void addToHistory(RestartRun run) {
+        history.addFirst(run);
+        while (history.size() > HISTORY_SIZE) {
+            RestartRun removed = history.pollLast();
+            if (removed == null) {
+                break;
+            }
+            runsById.remove(removed.getId());
+        }
+    }
+
+    /**
+     * TCP-адрес management-интерфейса из текущей конфигурации или null (нет директивы или unix-сокет)
+     */
+    private ManagementEndpoint managementEndpoint() {
+        try {
+            byte[] config = configFileService.readConfigBytes();
+            if (config == null) {
+                return null;
+            }
+            for (String line : directives(config)) {
+                String[] parts = line.split(" ");
+                if (!"management".equals(parts[0]) || parts.length < 3 || "unix".equals(parts[2])) {
+                    continue;
+                }
+                try {
+                    return new ManagementEndpoint(parts[1], Integer.parseInt(parts[2]));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Не удалось прочитать директиву management: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Значимые строки конфигурации: без комментариев и пустых строк, пробелы схлопнуты.
+     * Строки внутри встроенных блоков (&lt;ca&gt;...&lt;/ca&gt;) получают префикс блока,
+     * чтобы их изменение считалось изменением директивы блока
+     */
+    static List<String> directives(byte[] config) {
+        return ConfigDiff.directives(Arrays.asList(new String(config, StandardCharsets.ISO_8859_1).split("\r?\n")));
+    }
+
+    /**
+     * Имена директив, строки которых есть только в одной из версий (с учетом повторов)
+     */
+    static Set<String> changedDirectives(List<String> before, List<String> after) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String line : before) {
+            counts.merge(line, 1, Integer::sum);
+        }
+        for (String line : after) {
+            counts.merge(line, -1, Integer::sum);
+        }
+        Set<String> changed = new TreeSet<>();
+        counts.forEach((line, count) -> {
+            if (count != 0) {
+                changed.add(ConfigDiff.directiveName(line));
+            }
+        });
+        return changed;
+    }
+
+    private static Set<String> directiveNames(List<String> directives) {
+        Set<String> names = new HashSet<>();
+        for (String line : directives) {
+            names.add(ConfigDiff.directiveName(line));
+        }
+        return names;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Выбранный способ применения конфигурации и причина выбора
+     */
+    public static final class Decision {
+        private final RestartRun.Action action;
+        private final String reason;
+        private final Set<String> restartDirectives;
+
+        Decision(RestartRun.Action action, String reason) {
+            this(action, reason, Collections.emptySet());
+        }
+
+        Decision(RestartRun.Action action, String reason, Set<String> restartDirectives) {
+            this.action = action;
+            this.reason = reason;
+            this.restartDirectives = restartDirectives;
+        }
+
+        public RestartRun.Action getAction() {
+            return action;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * Измененные директивы, из-за которых нужен полный перезапуск
+         */
+        public Set<String> getRestartDirectives() {
+            return restartDirectives;
+        }
+    }
+
+    private static final class ManagementEndpoint {
+        private final String host;
+        private final int port;
+
+        private ManagementEndpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Порт принимает подключения и присылает приветствие (>INFO или запрос пароля)
+         */
+        boolean answers() {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), MANAGEMENT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(MANAGEMENT_TIMEOUT_MILLIS);
+                InputStream in = socket.getInputStream();
+                return in.read() >= 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
@@ -9,16 +9,24 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 @Slf4j
 @Service
@@ -26,6 +34,8 @@ import java.util.List;
 public class OpenVpnStatusService {
 
     private final OpenVpnProperties openVpnProperties;
+    private final GeoIpDatabase geoIpDatabase;
+    private volatile CachedStatus cachedStatus;
     private static final DateTimeFormatter INPUT_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private static final DateTimeFormatter OUTPUT_FORMATTER = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
     private static final ZoneId MOSCOW_ZONE = ZoneId.of("Europe/Moscow");
@@ -98,45 +108,85 @@ public class OpenVpnStatusService {
     }
 
     /**
-     * Вычисляет длительность подключения в формате "Д дней, ЧЧ часов ММ минут"
+     * Разбирает время из файла статуса (UTC)
      */
-    private String calculateDuration(String connectedSinceStr) {
-        if (connectedSinceStr == null || connectedSinceStr.trim().isEmpty()) {
+    private static Instant parseStatusTime(String timeStr) {
+        try {
+            return LocalDateTime.parse(timeStr.trim(), INPUT_FORMATTER).atZone(ZoneOffset.UTC).toInstant();
+        } catch (DateTimeParseException e) {
+            log.warn("Не удалось распарсить время: {}", timeStr);
+            return null;
+        }
+    }
+
+    /**
+     * Длительность подключения в формате "Д дней, ЧЧ часов ММ минут"
+     */
+    static String formatDuration(Instant connectedAt, Instant now) {
+        if (connectedAt == null) {
             return "-";
         }
-        
+        Duration duration = Duration.between(connectedAt, now);
+        long days = duration.toDays();
+        long hours = duration.toHours() % 24;
+        long minutes = duration.toMinutes() % 60;
+        return String.format("%d дней, %02d часов %02d минут", days, hours, minutes);
+    }
+
+    /**
+     * Объем трафика в читаемом виде: 1.5 МБ
+     */
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " Б";
+        }
+        String[] units = {"КБ", "МБ", "ГБ", "ТБ"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ROOT, "%.1f %s", value, units[unit]);
+    }
+
+    /**
+     * Возвращает разобранный файл статуса; файл перечитывается, только если изменились его размер или время изменения
+     * либо перезагружена база GeoIP
+     */
+    public StatusInfo getStatus() throws IOException {
+        Path statusPath = Paths.get(openVpnProperties.getStatusFilePath());
+        BasicFileAttributes attributes;
         try {
-            // Парсим время подключения (в UTC)
-            LocalDateTime connectedSince = LocalDateTime.parse(connectedSinceStr.trim(), INPUT_FORMATTER);
-            ZonedDateTime connectedSinceZoned = connectedSince.atZone(ZoneId.of("UTC"));
-            
-            // Текущее время в московском часовом поясе
-            ZonedDateTime now = ZonedDateTime.now(MOSCOW_ZONE);
-            
-            // Конвертируем время подключения в московское для расчета
-            ZonedDateTime connectedSinceMoscow = connectedSinceZoned.withZoneSameInstant(MOSCOW_ZONE);
-            
-            // Вычисляем разницу
-            Duration duration = Duration.between(connectedSinceMoscow, now);
-            
-            long days = duration.toDays();
-            long hours = duration.toHours() % 24;
-            long minutes = duration.toMinutes() % 60;
-            
-            return String.format("%d дней, %02d часов %02d минут", days, hours, minutes);
-        } catch (Exception e) {
-            log.warn("Ошибка при вычислении длительности подключения: {}", connectedSinceStr, e);
-            return "-";
+            attributes = Files.readAttributes(statusPath, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            log.warn("Файл статуса не существует: {}", statusPath);
+            throw new IOException("Файл статуса не найден: " + statusPath);
+        }
+        GeoIpDatabase.Table geoIp = geoIpDatabase.current();
+        String state = statusPath + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis()
+            + "|" + geoIp.getGeneration();
+        CachedStatus cached = cachedStatus;
+        if (cached != null && cached.state.equals(state)) {
+            return cached.statusInfo;
         }
+        StatusInfo statusInfo = parseStatusFile(geoIp);
+        cachedStatus = new CachedStatus(state, statusInfo);
+        return statusInfo;
     }
 
     /**
      * Парсит файл статуса и возвращает информацию о подключениях
      */
     public StatusInfo parseStatusFile() throws IOException {
+        return parseStatusFile(geoIpDatabase.current());
+    }
+
+    private StatusInfo parseStatusFile(GeoIpDatabase.Table geoIp) throws IOException {
         List<String> lines = readStatusFile();
         
         StatusInfo statusInfo = new StatusInfo();
+        statusInfo.setGeoIp(geoIp.size() > 0);
         boolean inClientList = false;
         
         for (String line : lines) {
@@ -147,6 +197,20 @@ public class OpenVpnStatusService {
                 String updatedStr = line.substring(8).trim();
                 String moscowTime = convertToMoscowTime(updatedStr);
                 statusInfo.setLastUpdate(moscowTime);
+                statusInfo.setUpdatedAt(parseStatusTime(updatedStr));
+                continue;
+            }
+
+            // status-version 2/3: TIME,<время>,<unix time>
+            if (line.startsWith("TIME,") || line.startsWith("TIME\t")) {
+                String[] parts = line.split("[,\t]");
+                if (parts.length >= 3) {
+                    try {
+                        statusInfo.setUpdatedAt(Instant.ofEpochSecond(Long.parseLong(parts[2].trim())));
+                    } catch (NumberFormatException e) {
+                        log.warn("Не удалось распарсить время: {}", line);
+                    }
+                }
                 continue;
             }
             
@@ -168,7 +232,7 @@ public class OpenVpnStatusService {
             
             // Парсим строки подключений
             if (inClientList && !line.isEmpty() && line.contains(",")) {
-                ClientConnection connection = parseConnectionLine(line);
+                ClientConnection connection = parseConnectionLine(line, geoIp);
                 if (connection != null) {
                     statusInfo.addConnection(connection);
                 }
@@ -182,7 +246,7 @@ public class OpenVpnStatusService {
      * Парсит строку подключения
      * Формат: kocmoc,46.39.231.140:14067,12689039,25101420,2025-12-16 14:18:32
      */
-    private ClientConnection parseConnectionLine(String line) {
+    private ClientConnection parseConnectionLine(String line, GeoIpDatabase.Table geoIp) {
         try {
             String[] parts = line.split(",");
             if (parts.length < 5) {
@@ -199,18 +263,21 @@ public class OpenVpnStatusService {
             } else {
                 connection.setClientIp(realAddress);
             }
-            
-            // Время подключения
-            if (parts.length >= 5) {
-                String connectedSince = parts[4].trim();
-                String moscowTime = convertToMoscowTime(connectedSince);
-                connection.setConnectedSince(moscowTime);
-                
-                // Вычисляем длительность подключения
-                String duration = calculateDuration(connectedSince);
-                connection.setDuration(duration);
+            int geoIpRow = geoIp.find(connection.getClientIp());
+            if (geoIpRow >= 0) {
+                connection.setCountry(geoIp.country(geoIpRow));
+                connection.setAsn(geoIp.asn(geoIpRow));
+                connection.setAsnOrg(geoIp.org(geoIpRow));
             }
             
+            connection.setBytesReceived(parseBytes(parts[2]));
+            connection.setBytesSent(parseBytes(parts[3]));
+
+            // Время подключения; длительность считается при выводе, чтобы не устаревала в кэше
+            String connectedSince = parts[4].trim();
+            connection.setConnectedSince(convertToMoscowTime(connectedSince));
+            connection.setConnectedAt(parseStatusTime(connectedSince));
+            
             return connection;
         } catch (Exception e) {
             log.warn("Ошибка при парсинге строки подключения: {}", line, e);
@@ -218,12 +285,33 @@ public class OpenVpnStatusService {
         }
     }
 
+    private static long parseBytes(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final class CachedStatus {
+        private final String state;
+        private final StatusInfo statusInfo;
+
+        private CachedStatus(String state, StatusInfo statusInfo) {
+            this.state = state;
+            this.statusInfo = statusInfo;
+        }
+    }
+
     /**
      * Класс для хранения информации о статусе
      */
     public static class StatusInfo {
         private String lastUpdate;
+        private Instant updatedAt;
+        private boolean geoIp;
         private List<ClientConnection> connections = new ArrayList<>();
+        private volatile ListingIndex<ClientConnection> listing;
 
         public String getLastUpdate() {
             return lastUpdate;
@@ -233,12 +321,57 @@ public class OpenVpnStatusService {
             this.lastUpdate = lastUpdate;
         }
 
+        /**
+         * Время последней записи файла статуса сервером (строка Updated или TIME)
+         */
+        public Instant getUpdatedAt() {
+            return updatedAt;
+        }
+
+        public void setUpdatedAt(Instant updatedAt) {
+            this.updatedAt = updatedAt;
+        }
+
+        /**
+         * Подключения дополнены страной и ASN из базы GeoIP
+         */
+        public boolean isGeoIp() {
+            return geoIp;
+        }
+
+        public void setGeoIp(boolean geoIp) {
+            this.geoIp = geoIp;
+        }
+
         public List<ClientConnection> getConnections() {
             return connections;
         }
 
         public void addConnection(ClientConnection connection) {
             this.connections.add(connection);
+            this.listing = null;
+        }
+
+        /**
+         * Страница подключений с поиском по имени клиента и сортировкой:
+         * name, ip, country, since, received, sent (по умолчанию - порядок файла статуса)
+         */
+        public ListingPage<ClientConnection> search(ListingQuery query) {
+            ListingIndex<ClientConnection> result = listing;
+            if (result == null) {
+                Map<String, Comparator<ClientConnection>> sorts = new HashMap<>();
+                sorts.put("ip", Comparator.comparing(ClientConnection::getClientIp,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
+                sorts.put("country", Comparator.comparing(ClientConnection::getCountry,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
+                sorts.put("since", Comparator.comparing(ClientConnection::getConnectedAt,
+                    Comparator.nullsFirst(Comparator.naturalOrder())));
+                sorts.put("received", Comparator.comparingLong(ClientConnection::getBytesReceived));
+                sorts.put("sent", Comparator.comparingLong(ClientConnection::getBytesSent));
+                result = new ListingIndex<>(connections, ClientConnection::getClientName, sorts, null);
+                listing = result;
+            }
+            return result.page(query);
         }
     }
 
@@ -249,7 +382,12 @@ public class OpenVpnStatusService {
         private String clientName;
         private String clientIp;
         private String connectedSince;
-        private String duration;
+        private Instant connectedAt;
+        private long bytesReceived;
+        private long bytesSent;
+        private String country;
+        private long asn;
+        private String asnOrg;
 
         public String getClientName() {
             return clientName;
@@ -275,12 +413,76 @@ public class OpenVpnStatusService {
             this.connectedSince = connectedSince;
         }
 
-        public String getDuration() {
-            return duration;
+        /**
+         * Время подключения (UTC) для сортировки и расчета длительности
+         */
+        public Instant getConnectedAt() {
+            return connectedAt;
+        }
+
+        public void setConnectedAt(Instant connectedAt) {
+            this.connectedAt = connectedAt;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public void setBytesReceived(long bytesReceived) {
+            this.bytesReceived = bytesReceived;
         }
 
-        public void setDuration(String duration) {
-            this.duration = duration;
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public void setBytesSent(long bytesSent) {
+            this.bytesSent = bytesSent;
+        }
+
+        /**
+         * Код страны реального адреса по базе GeoIP или null
+         */
+        public String getCountry() {
+            return country;
+        }
+
+        public void setCountry(String country) {
+            this.country = country;
+        }
+
+        /**
+         * Номер автономной системы реального адреса по базе GeoIP (0 - неизвестен)
+         */
+        public long getAsn() {
+            return asn;
+        }
+
+        public void setAsn(long asn) {
+            this.asn = asn;
+        }
+
+        public String getAsnOrg() {
+            return asnOrg;
+        }
+
+        public void setAsnOrg(String asnOrg) {
+            this.asnOrg = asnOrg;
+        }
+
+        public String getBytesReceivedText() {
+            return formatBytes(bytesReceived);
+        }
+
+        public String getBytesSentText() {
+            return formatBytes(bytesSent);
+        }
+
+        /**
+         * Длительность подключения на текущий момент
+         */
+        public String getDuration() {
+            return formatDuration(connectedAt, Instant.now());
         }
     }
 }
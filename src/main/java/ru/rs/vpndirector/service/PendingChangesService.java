@@ -0,0 +1,429 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Непримененные изменения конфигурации. Маршруты и правки в редакторе только отмечают конфигурацию
+ * измененной, а перезапуск выполняется один на пачку изменений: вручную со страницы перезапуска или
+ * автоматически (apply-auto), когда изменения затихли на apply-quiet-period и наступило окно обслуживания apply-window.
+ */
+@Slf4j
+@Service
+public class PendingChangesService {
+
+    /**
+     * Через сколько повторить попытку, если в момент применения уже выполняется перезапуск
+     */
+    private static final Duration BUSY_RETRY = Duration.ofSeconds(5);
+
+    private final OpenVpnProperties openVpnProperties;
+    private final OpenVpnConfigFileService configFileService;
+    private final OpenVpnRestartService restartService;
+    private final AuditJournal auditJournal;
+    private final Clock clock;
+    private final LocalTime windowStart;
+    private final LocalTime windowEnd;
+    private final Counter restartsSavedCounter;
+    private final AtomicLong restartsSaved = new AtomicLong();
+
+    /**
+     * Изменения с последнего перезапуска, в порядке поступления
+     */
+    private final List<Change> changes = new ArrayList<>();
+    /**
+     * Последняя пачка, отмененная откатом конфигурации, или null
+     */
+    private volatile RevertedBatch reverted;
+    private volatile Instant nextApplyAt;
+
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> scheduled;
+
+    @Autowired
+    public PendingChangesService(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                                 OpenVpnRestartService restartService, AuditJournal auditJournal,
+                                 MeterRegistry meterRegistry) {
+        this(openVpnProperties, configFileService, restartService, auditJournal, meterRegistry, Clock.systemDefaultZone());
+    }
+
+    PendingChangesService(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                          OpenVpnRestartService restartService, AuditJournal auditJournal,
+                          MeterRegistry meterRegistry, Clock clock) {
+        this.openVpnProperties = openVpnProperties;
+        this.configFileService = configFileService;
+        this.restartService = restartService;
+        this.auditJournal = auditJournal;
+        this.clock = clock;
+        LocalTime[] window = parseWindow(openVpnProperties.getApplyWindow());
+        this.windowStart = window != null ? window[0] : null;
+        this.windowEnd = window != null ? window[1] : null;
+        this.restartsSavedCounter = Counter.builder("vpndirector.openvpn.restarts.saved")
+            .description("Перезапуски, которые не понадобились благодаря объединению изменений")
+            .register(meterRegistry);
+        Gauge.builder("vpndirector.openvpn.pending.changes", this, service -> service.getChanges().size())
+            .description("Изменения конфигурации, ожидающие перезапуска")
+            .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pending-changes");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Отмечает, что конфигурация изменена и требует перезапуска
+     *
+     * @param source откуда пришло изменение (маршрут, редактор)
+     * @param description что изменено
+     */
+    public void markDirty(String source, String description) {
+        synchronized (changes) {
+            changes.add(new Change(clock.instant(), source, description));
+        }
+        log.info("Конфигурация изменена ({}: {}), ожидает перезапуска", source, description);
+        if (openVpnProperties.isApplyAuto()) {
+            schedule();
+        }
+    }
+
+    /**
+     * Изменения с последнего перезапуска
+     */
+    public List<Change> getChanges() {
+        synchronized (changes) {
+            return Collections.unmodifiableList(new ArrayList<>(changes));
+        }
+    }
+
+    public boolean isDirty() {
+        synchronized (changes) {
+            return !changes.isEmpty();
+        }
+    }
+
+    /**
+     * Последняя пачка изменений, отмененная откатом конфигурации после неудачного перезапуска,
+     * или null, если после нее изменения применялись успешно
+     */
+    public RevertedBatch getReverted() {
+        return reverted;
+    }
+
+    /**
+     * Когда изменения будут применены автоматически, или null, если автоприменение выключено или применять нечего
+     */
+    public Instant getNextApplyAt() {
+        return isDirty() ? nextApplyAt : null;
+    }
+
+    public LocalDateTime getNextApplyAtLocal() {
+        Instant at = getNextApplyAt();
+        return at != null ? LocalDateTime.ofInstant(at, clock.getZone()) : null;
+    }
+
+    /**
+     * Сколько перезапусков не понадобилось с момента запуска приложения
+     */
+    public long getRestartsSaved() {
+        return restartsSaved.get();
+    }
+
+    /**
+     * Окно обслуживания в виде "02:00-05:00" или null, если не задано
+     */
+    public String getWindowText() {
+        return windowStart != null ? windowStart + "-" + windowEnd : null;
+    }
+
+    /**
+     * Строки, которые добавлены (+) и удалены (-) относительно последней рабочей ревизии, в порядке
+     * следования в файле (diff Майерса). Пока рабочая ревизия не сохранена (не было ни одного
+     * успешного перезапуска), список пуст
+     */
+    public List<ConfigDiff.Change> diff() throws IOException {
+        byte[] current = configFileService.readConfigBytes();
+        if (current == null) {
+            return Collections.emptyList();
+        }
+        byte[] good = configFileService.readKnownGoodBytes();
+        if (good == null) {
+            return Collections.emptyList();
+        }
+        Charset charset = configCharset();
+        return ConfigDiff.diff(significantLines(new String(good, charset)), significantLines(new String(current, charset)));
+    }
+
+    /**
+     * Применяет накопленные изменения одним перезапуском. Изменения убираются из очереди (и учитываются
+     * в сэкономленных перезапусках), только когда перезапуск закончился успешно; после отката или ошибки
+     * они остаются в очереди. Изменения, сделанные во время перезапуска, остаются до следующего
+     *
+     * @return запущенный перезапуск (или уже выполняющийся - тогда изменения остаются в очереди)
+     */
+    public RestartRun applyNow(RestartRun.Mode mode) {
+        List<Change> batch = getChanges();
+        nextApplyAt = null;
+        while (true) {
+            RestartRun run = restartService.startIfIdle(mode, finished -> applied(finished, batch));
+            if (run != null) {
+                if (!batch.isEmpty()) {
+                    log.info("Применение изменений конфигурации: {} шт. одним перезапуском", batch.size());
+                }
+                // перезапуск по расписанию выполняется без запроса и пишется в журнал от имени system
+                auditJournal.record(AuditAction.RESTART, Collections.emptyList(),
+                    "режим " + run.getMode() + ", изменений: " + batch.size() + ", запуск " + run.getId());
+                return run;
+            }
+            RestartRun active = restartService.getActiveRun();
+            if (active != null) {
+                return active;
+            }
+            // выполнявшийся перезапуск завершился между двумя проверками - пробуем занять место снова
+        }
+    }
+
+    /**
+     * Итог перезапуска, запущенного {@link #applyNow}: при успехе изменения пачки считаются примененными,
+     * при откате конфигурации - отмененными. Если файл конфигурации не возвращался, изменения остаются в очереди
+     */
+    private void applied(RestartRun run, List<Change> batch) {
+        if (run.getStatus() != RestartRun.Status.SUCCESS) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (!run.isConfigRestored()) {
+                log.warn("Перезапуск {} завершился со статусом {}, изменения ({} шт.) остаются непримененными",
+                    run.getId(), run.getStatus(), batch.size());
+                return;
+            }
+            synchronized (changes) {
+                changes.removeAll(batch);
+            }
+            reverted = new RevertedBatch(run, batch);
+            log.warn("Перезапуск {} вернул рабочую конфигурацию, изменения ({} шт.) отменены", run.getId(), batch.size());
+            return;
+        }
+        synchronized (changes) {
+            changes.removeAll(batch);
+        }
+        reverted = null;
+        if (batch.size() > 1) {
+            restartsSaved.addAndGet(batch.size() - 1);
+            restartsSavedCounter.increment(batch.size() - 1);
+        }
+    }
+
+    private void schedule() {
+        Instant lastChange;
+        synchronized (changes) {
+            if (changes.isEmpty()) {
+                return;
+            }
+            lastChange = changes.get(changes.size() - 1).getAt();
+        }
+        scheduleAt(nextAllowed(lastChange.plus(openVpnProperties.getApplyQuietPeriod())));
+    }
+
+    private synchronized void scheduleAt(Instant due) {
+        nextApplyAt = due;
+        if (executor == null) {
+            return;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        long delay = Math.max(0, Duration.between(clock.instant(), due).toMillis());
+        scheduled = executor.schedule(this::applyIfDue, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Срабатывает по расписанию: применяет изменения, если они затихли и открыто окно обслуживания,
+     * иначе переносит проверку
+     */
+    void applyIfDue() {
+        try {
+            Instant lastChange;
+            synchronized (changes) {
+                if (changes.isEmpty()) {
+                    return;
+                }
+                lastChange = changes.get(changes.size() - 1).getAt();
+            }
+            Instant now = clock.instant();
+            boolean quiet = !now.isBefore(lastChange.plus(openVpnProperties.getApplyQuietPeriod()));
+            if (quiet && inWindow(now)) {
+                if (restartService.getActiveRun() != null) {
+                    // Перезапуск уже идет - применим то, что накопилось, после него
+                    scheduleAt(now.plus(BUSY_RETRY));
+                    return;
+                }
+                RestartRun run = applyNow(RestartRun.Mode.AUTO);
+                log.info("Изменения конфигурации применены автоматически (перезапуск {})", run.getId());
+                return;
+            }
+        } catch (RuntimeException e) {
+            log.error("Ошибка при автоматическом применении изменений", e);
+        }
+        schedule();
+    }
+
+    /**
+     * Ближайший момент не раньше указанного, попадающий в окно обслуживания
+     */
+    Instant nextAllowed(Instant from) {
+        if (windowStart == null || inWindow(from)) {
+            return from;
+        }
+        ZonedDateTime start = from.atZone(clock.getZone()).with(windowStart);
+        if (!start.toInstant().isAfter(from)) {
+            start = start.plusDays(1);
+        }
+        return start.toInstant();
+    }
+
+    private boolean inWindow(Instant instant) {
+        if (windowStart == null) {
+            return true;
+        }
+        LocalTime time = instant.atZone(clock.getZone()).toLocalTime();
+        if (windowStart.isBefore(windowEnd)) {
+            return !time.isBefore(windowStart) && time.isBefore(windowEnd);
+        }
+        // Окно через полночь: 23:00-04:00
+        return !time.isBefore(windowStart) || time.isBefore(windowEnd);
+    }
+
+    private static LocalTime[] parseWindow(String window) {
+        if (window == null || window.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = window.trim().split("-");
+        try {
+            if (parts.length == 2) {
+                LocalTime start = LocalTime.parse(parts[0].trim());
+                LocalTime end = LocalTime.parse(parts[1].trim());
+                if (!start.equals(end)) {
+                    return new LocalTime[]{start, end};
+                }
+            }
+        } catch (DateTimeParseException e) {
+            // ниже
+        }
+        throw new IllegalArgumentException("Неверное окно применения изменений: " + window
+            + " (ожидается ЧЧ:ММ-ЧЧ:ММ, например 02:00-05:00)");
+    }
+
+    private Charset configCharset() {
+        String encoding = configFileService.detectFileEncoding();
+        try {
+            return encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        } catch (RuntimeException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private static List<String> significantLines(String content) {
+        List<String> lines = new ArrayList<>();
+        for (String line : content.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (!trimmed.isEmpty()) {
+                lines.add(trimmed);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Одно изменение конфигурации
+     */
+    public static final class Change {
+        private final Instant at;
+        private final String source;
+        private final String description;
+
+        Change(Instant at, String source, String description) {
+            this.at = at;
+            this.source = source;
+            this.description = description;
+        }
+
+        public Instant getAt() {
+            return at;
+        }
+
+        public LocalDateTime getAtLocal() {
+            return LocalDateTime.ofInstant(at, ZoneId.systemDefault());
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * Пачка изменений, отмененная откатом конфигурации
+     */
+    public static final class RevertedBatch {
+        private final RestartRun run;
+        private final List<Change> changes;
+
+        RevertedBatch(RestartRun run, List<Change> changes) {
+            this.run = run;
+            this.changes = changes;
+        }
+
+        /**
+         * Перезапуск, после которого конфигурация была возвращена
+         */
+        public RestartRun getRun() {
+            return run;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+}
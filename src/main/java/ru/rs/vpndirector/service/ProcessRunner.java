@@ -0,0 +1,430 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Запуск внешних команд: у каждой команды есть дедлайн, по истечении которого завершается
+ * все дерево процессов; stdout и stderr читаются в фоне в ограниченные буферы (хранится хвост вывода);
+ * одновременно выполняется не больше заданного числа команд одного класса.
+ * <p>
+ * Метрики: vpndirector.process.exec (время выполнения по классу и итогу)
+ * и vpndirector.process.wait (ожидание своей очереди).
+ */
+@Slf4j
+@Service
+public class ProcessRunner {
+
+    /**
+     * Сколько ждать завершения процесса после SIGTERM, прежде чем убить его
+     */
+    private static final long DESTROY_GRACE_MILLIS = 2000;
+
+    /**
+     * Класс команды: у каждого класса свой лимит одновременно выполняющихся процессов
+     */
+    public enum CommandClass {
+        /**
+         * build-key, pkitool и прочие скрипты easy-rsa
+         */
+        EASY_RSA,
+        /**
+         * systemctl
+         */
+        SYSTEMCTL,
+        /**
+         * Короткие служебные утилиты (file и т.п.)
+         */
+        UTILITY
+    }
+
+    private final MeterRegistry meterRegistry;
+    private final Map<CommandClass, Integer> configuredLimits = new EnumMap<>(CommandClass.class);
+    private final Map<CommandClass, Semaphore> limits = new EnumMap<>(CommandClass.class);
+    private final ExecutorService ioExecutor;
+
+    public ProcessRunner(OpenVpnProperties openVpnProperties, MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        configuredLimits.put(CommandClass.EASY_RSA, Math.max(1, openVpnProperties.getProcessEasyRsaLimit()));
+        configuredLimits.put(CommandClass.SYSTEMCTL, Math.max(1, openVpnProperties.getProcessSystemctlLimit()));
+        configuredLimits.put(CommandClass.UTILITY, Math.max(1, openVpnProperties.getProcessUtilityLimit()));
+        configuredLimits.forEach((commandClass, limit) -> limits.put(commandClass, new Semaphore(limit, true)));
+        this.ioExecutor = createIoExecutor(openVpnProperties.isProcessVirtualThreads());
+    }
+
+    /**
+     * Потоки чтения вывода. Виртуальные потоки доступны с JDK 21; сборка нацелена на Java 11,
+     * поэтому они создаются через reflection, а на старых JDK используется обычный пул
+     */
+    private static ExecutorService createIoExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Вывод внешних команд читается виртуальными потоками");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                log.warn("Виртуальные потоки недоступны в JDK {}, используются обычные потоки",
+                    System.getProperty("java.version"));
+            }
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "process-io-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Выполняет команду и ждет ее завершения
+     *
+     * @return код выхода и вывод
+     * @throws ProcessTimeoutException если команда не дождалась очереди или не завершилась до дедлайна
+     * @throws IOException если команду не удалось запустить
+     */
+    public Result run(Command command) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+        long deadline = started + command.timeout.toNanos();
+        Semaphore permit = acquire(command.commandClass, deadline, command.describe());
+        String outcome = "error";
+        long execStarted = System.nanoTime();
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command.argv).redirectErrorStream(command.mergeErrors);
+            if (command.directory != null) {
+                builder.directory(command.directory.toFile());
+            }
+            Process process = builder.start();
+            process.getOutputStream().close();
+            TailBuffer stdout = new TailBuffer(command.maxOutputBytes);
+            TailBuffer stderr = new TailBuffer(command.maxOutputBytes);
+            Future<?> stdoutPump = ioExecutor.submit(() -> pump(process.getInputStream(), stdout));
+            Future<?> stderrPump = command.mergeErrors ? null : ioExecutor.submit(() -> pump(process.getErrorStream(), stderr));
+
+            boolean finished;
+            try {
+                finished = process.waitFor(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                destroyTree(process);
+                throw e;
+            }
+            if (!finished) {
+                outcome = "timeout";
+                destroyTree(process);
+                throw new ProcessTimeoutException(command.describe() + " не завершилась за "
+                    + command.timeout.toSeconds() + " с и была остановлена");
+            }
+            // Вывод дочитывается недолго: потомки процесса могли унаследовать его stdout
+            awaitPump(stdoutPump);
+            awaitPump(stderrPump);
+            Result result = new Result(process.exitValue(), stdout.toString(command.charset), stderr.toString(command.charset),
+                stdout.isTruncated() || stderr.isTruncated(), Duration.ofNanos(System.nanoTime() - started));
+            outcome = result.isSuccess() ? "success" : "failed";
+            return result;
+        } finally {
+            permit.release();
+            execTimer(command.commandClass, outcome).record(System.nanoTime() - execStarted, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Запускает интерактивную команду (ответы на вопросы build-key). Место в лимите класса
+     * занято, пока не будет вызван {@link PromptDriver#close()}
+     *
+     * @param timeout сколько ждать своей очереди
+     * @param lineListener получатель строк вывода, может быть null
+     */
+    public PromptDriver startInteractive(CommandClass commandClass, ProcessBuilder builder, Duration timeout,
+                                         Consumer<String> lineListener) throws IOException, InterruptedException {
+        String description = String.join(" ", builder.command());
+        Semaphore permit = acquire(commandClass, System.nanoTime() + timeout.toNanos(), description);
+        long started = System.nanoTime();
+        try {
+            builder.redirectErrorStream(true);
+            Process process = builder.start();
+            AtomicBoolean closed = new AtomicBoolean();
+            return new PromptDriver(process, ioExecutor, lineListener, () -> {
+                if (closed.compareAndSet(false, true)) {
+                    String outcome = process.isAlive() ? "timeout" : process.exitValue() == 0 ? "success" : "failed";
+                    destroyTree(process);
+                    permit.release();
+                    execTimer(commandClass, outcome).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            permit.release();
+            execTimer(commandClass, "error").record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+    }
+
+    /**
+     * Сколько команд класса выполняется сейчас
+     */
+    public int running(CommandClass commandClass) {
+        return configuredLimits.get(commandClass) - limits.get(commandClass).availablePermits();
+    }
+
+    private Semaphore acquire(CommandClass commandClass, long deadline, String description)
+            throws ProcessTimeoutException, InterruptedException {
+        Semaphore semaphore = limits.get(commandClass);
+        long waitStarted = System.nanoTime();
+        boolean acquired = semaphore.tryAcquire(Math.max(0, deadline - waitStarted), TimeUnit.NANOSECONDS);
+        Timer.builder("vpndirector.process.wait")
+            .description("Ожидание очереди на запуск внешней команды")
+            .tag("class", tag(commandClass))
+            .register(meterRegistry)
+            .record(System.nanoTime() - waitStarted, TimeUnit.NANOSECONDS);
+        if (!acquired) {
+            throw new ProcessTimeoutException(description + ": не дождались очереди на запуск ("
+                + tag(commandClass) + ")");
+        }
+        return semaphore;
+    }
+
+    private Timer execTimer(CommandClass commandClass, String outcome) {
+        return Timer.builder("vpndirector.process.exec")
+            .description("Время выполнения внешних команд")
+            .tag("class", tag(commandClass))
+            .tag("outcome", outcome)
+            .register(meterRegistry);
+    }
+
+    private static String tag(CommandClass commandClass) {
+        return commandClass.name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    private static void pump(InputStream in, TailBuffer buffer) {
+        byte[] chunk = new byte[8192];
+        try (InputStream input = in) {
+            int read;
+            while ((read = input.read(chunk)) != -1) {
+                buffer.write(chunk, read);
+            }
+        } catch (IOException e) {
+            log.debug("Вывод процесса закрыт: {}", e.getMessage());
+        }
+    }
+
+    private static void awaitPump(Future<?> pump) throws InterruptedException {
+        if (pump == null) {
+            return;
+        }
+        try {
+            pump.get(DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            log.debug("Ошибка чтения вывода процесса: {}", e.getMessage());
+        } catch (TimeoutException e) {
+            pump.cancel(true);
+        }
+    }
+
+    /**
+     * Завершает процесс вместе с дочерними: сначала SIGTERM, через DESTROY_GRACE_MILLIS - SIGKILL
+     */
+    static void destroyTree(Process process) {
+        List<ProcessHandle> descendants = new ArrayList<>();
+        process.descendants().forEach(descendants::add);
+        if (!process.isAlive() && descendants.stream().noneMatch(ProcessHandle::isAlive)) {
+            return;
+        }
+        log.warn("Принудительное завершение процесса {} и его дочерних процессов", process.pid());
+        descendants.forEach(ProcessHandle::destroy);
+        process.destroy();
+        try {
+            if (process.waitFor(DESTROY_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                descendants.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        descendants.forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * Описание запускаемой команды
+     */
+    public static final class Command {
+        private final CommandClass commandClass;
+        private final List<String> argv;
+        private Duration timeout = Duration.ofSeconds(30);
+        private int maxOutputBytes = 64 * 1024;
+        private boolean mergeErrors;
+        private Charset charset = StandardCharsets.UTF_8;
+        private Path directory;
+
+        private Command(CommandClass commandClass, List<String> argv) {
+            this.commandClass = commandClass;
+            this.argv = argv;
+        }
+
+        public static Command of(CommandClass commandClass, String... argv) {
+            return new Command(commandClass, Collections.unmodifiableList(Arrays.asList(argv.clone())));
+        }
+
+        /**
+         * Общий дедлайн: ожидание очереди и выполнение (по умолчанию 30 с)
+         */
+        public Command timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * Сколько последних байт stdout и stderr сохранять (по умолчанию 64 КБ)
+         */
+        public Command maxOutputBytes(int maxOutputBytes) {
+            this.maxOutputBytes = Math.max(1, maxOutputBytes);
+            return this;
+        }
+
+        /**
+         * Объединить stderr с stdout
+         */
+        public Command mergeErrors() {
+            this.mergeErrors = true;
+            return this;
+        }
+
+        public Command charset(Charset charset) {
+            this.charset = charset;
+            return this;
+        }
+
+        public Command directory(Path directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        String describe() {
+            return "Команда " + String.join(" ", argv);
+        }
+    }
+
+    /**
+     * Результат выполнения команды
+     */
+    public static final class Result {
+        private final int exitCode;
+        private final String stdout;
+        private final String stderr;
+        private final boolean truncated;
+        private final Duration duration;
+
+        Result(int exitCode, String stdout, String stderr, boolean truncated, Duration duration) {
+            this.exitCode = exitCode;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.truncated = truncated;
+            this.duration = duration;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+
+        public String getStdout() {
+            return stdout;
+        }
+
+        public String getStderr() {
+            return stderr;
+        }
+
+        /**
+         * Вывод не поместился в буфер и сохранен только его хвост
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public Duration getDuration() {
+            return duration;
+        }
+    }
+
+    /**
+     * Кольцевой буфер: хранит последние capacity байт вывода
+     */
+    static final class TailBuffer {
+        private final byte[] ring;
+        private long total;
+
+        TailBuffer(int capacity) {
+            this.ring = new byte[capacity];
+        }
+
+        synchronized void write(byte[] data, int length) {
+            int offset = 0;
+            if (length > ring.length) {
+                offset = length - ring.length;
+                total += offset;
+            }
+            while (offset < length) {
+                int position = (int) (total % ring.length);
+                int count = Math.min(length - offset, ring.length - position);
+                System.arraycopy(data, offset, ring, position, count);
+                offset += count;
+                total += count;
+            }
+        }
+
+        synchronized boolean isTruncated() {
+            return total > ring.length;
+        }
+
+        synchronized byte[] toByteArray() {
+            if (total <= ring.length) {
+                return Arrays.copyOf(ring, (int) total);
+            }
+            int start = (int) (total % ring.length);
+            byte[] result = new byte[ring.length];
+            System.arraycopy(ring, start, result, 0, ring.length - start);
+            System.arraycopy(ring, 0, result, ring.length - start, start);
+            return result;
+        }
+
+        String toString(Charset charset) {
+            return new String(toByteArray(), charset);
+        }
+    }
+}
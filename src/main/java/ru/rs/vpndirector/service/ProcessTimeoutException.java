@@ -0,0 +1,13 @@
+package ru.rs.vpndirector.service;
+
+import java.io.IOException;
+
+/**
+ * Внешняя команда не уложилась в отведенное время (или не дождалась своей очереди) и была завершена
+ */
+public class ProcessTimeoutException extends IOException {
+
+    public ProcessTimeoutException(String message) {
+        super(message);
+    }
+}
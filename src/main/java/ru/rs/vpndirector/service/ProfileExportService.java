@@ -0,0 +1,232 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Выгрузка конфигураций всех действующих сертификатов одним ZIP-архивом, который пишется прямо в ответ.
+ * <p>
+ * Профили собираются параллельно, но в архив попадают строго по порядку имен: одновременно
+ * в работе не больше нескольких профилей на поток, так что в памяти находится только это окно,
+ * а не весь архив. Ход выгрузки доступен по идентификатору, переданному клиентом.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ProfileExportService {
+
+    /**
+     * Сколько собранных профилей может ждать записи на каждый поток
+     */
+    private static final int WINDOW_PER_WORKER = 4;
+
+    /**
+     * Сколько хранить сведения о завершенных выгрузках
+     */
+    private static final Duration PROGRESS_RETENTION = Duration.ofHours(1);
+
+    private final OpenVpnProperties openVpnProperties;
+    private final CertificateRegistry certificateRegistry;
+    private final ClientProfileService clientProfileService;
+
+    private final Map<String, Progress> exports = new ConcurrentHashMap<>();
+
+    /**
+     * Имена действующих сертификатов с файлами ключа и сертификата, по алфавиту
+     *
+     * @param prefix начало имени или пустая строка - все
+     */
+    public List<String> selectNames(String prefix) {
+        String filter = prefix != null ? prefix.trim() : "";
+        List<String> names = new ArrayList<>();
+        for (CertificateRegistry.CertificateRecord record : certificateRegistry.getLatestCertificates()) {
+            if (record.isValid() && record.isHasFiles() && record.getName().startsWith(filter)) {
+                names.add(record.getName());
+            }
+        }
+        names.sort(Comparator.naturalOrder());
+        return names;
+    }
+
+    /**
+     * Регистрирует выгрузку для отслеживания хода
+     *
+     * @param id идентификатор от клиента или null - ход не отслеживается снаружи
+     */
+    public Progress startProgress(String id, int total) {
+        Instant now = Instant.now();
+        exports.values().removeIf(progress -> progress.finishedAt != null
+            && progress.finishedAt.plus(PROGRESS_RETENTION).isBefore(now));
+        Progress progress = new Progress(total);
+        if (id != null && !id.isEmpty()) {
+            exports.put(id, progress);
+        }
+        return progress;
+    }
+
+    /**
+     * Ход выгрузки или null, если выгрузки с таким идентификатором нет
+     */
+    public Progress getProgress(String id) {
+        return id != null ? exports.get(id) : null;
+    }
+
+    /**
+     * Пишет ZIP-архив: для каждого имени каталог &lt;CN&gt;/ с конфигурациями для тоннеля и маршрутов,
+     * в конце errors.txt, если какие-то профили собрать не удалось
+     *
+     * @param names имена сертификатов в порядке записи
+     * @param out поток ответа, не закрывается
+     * @param progress ход выгрузки
+     */
+    public void exportToZip(List<String> names, OutputStream out, Progress progress) throws IOException {
+        long started = System.nanoTime();
+        int workers = Math.max(1, openVpnProperties.getExportWorkers());
+        ExecutorService renderers = newRenderers(workers);
+        List<String> errors = new ArrayList<>();
+        ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        // Профили - небольшие текстовые файлы, сжатие в один поток - самая медленная часть выгрузки
+        zip.setLevel(Deflater.BEST_SPEED);
+        try {
+            Deque<Future<byte[][]>> window = new ArrayDeque<>();
+            Iterator<String> pending = names.iterator();
+            int written = 0;
+            while (written < names.size()) {
+                while (pending.hasNext() && window.size() < workers * WINDOW_PER_WORKER) {
+                    String name = pending.next();
+                    window.add(renderers.submit(() -> render(name)));
+                }
+                String name = names.get(written++);
+                byte[][] profiles = await(window.poll(), name, errors);
+                if (profiles != null) {
+                    for (ClientProfileService.ProfileType type : ClientProfileService.ProfileType.values()) {
+                        zip.putNextEntry(new ZipEntry(name + "/" + type.fileName(name)));
+                        zip.write(profiles[type.ordinal()]);
+                        zip.closeEntry();
+                    }
+                    progress.done.incrementAndGet();
+                } else {
+                    progress.failed.incrementAndGet();
+                }
+            }
+            if (!errors.isEmpty()) {
+                zip.putNextEntry(new ZipEntry("errors.txt"));
+                zip.write((String.join("\n", errors) + "\n").getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.finish();
+            out.flush();
+            progress.finish(Progress.State.DONE);
+        } catch (IOException | RuntimeException e) {
+            progress.finish(Progress.State.FAILED);
+            throw e;
+        } finally {
+            renderers.shutdownNow();
+        }
+        log.info("Выгрузка конфигураций: {} из {} за {} мс", progress.getDone(), names.size(),
+            Duration.ofNanos(System.nanoTime() - started).toMillis());
+    }
+
+    private byte[][] render(String name) throws IOException {
+        byte[][] profiles = new byte[ClientProfileService.ProfileType.values().length][];
+        for (ClientProfileService.ProfileType type : ClientProfileService.ProfileType.values()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+            clientProfileService.prepareProfile(name, type).writeTo(buffer);
+            profiles[type.ordinal()] = buffer.toByteArray();
+        }
+        return profiles;
+    }
+
+    private static byte[][] await(Future<byte[][]> future, String name, List<String> errors) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            log.warn("Не удалось собрать конфигурацию для {}: {}", name, e.getCause().getMessage());
+            errors.add(name + ": " + e.getCause().getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Выгрузка прервана", e);
+        }
+    }
+
+    private ExecutorService newRenderers(int workers) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "profile-export-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Ход выгрузки
+     */
+    public static class Progress {
+
+        public enum State {
+            RUNNING, DONE, FAILED
+        }
+
+        private final int total;
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final Instant startedAt = Instant.now();
+        private volatile Instant finishedAt;
+        private volatile State state = State.RUNNING;
+
+        Progress(int total) {
+            this.total = total;
+        }
+
+        private void finish(State finalState) {
+            state = finalState;
+            finishedAt = Instant.now();
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getDone() {
+            return done.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getElapsedMillis() {
+            return Duration.between(startedAt, finishedAt != null ? finishedAt : Instant.now()).toMillis();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package ru.rs.vpndirector.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Управление интерактивным процессом в стиле expect: вывод процесса читается
+ * отдельным потоком по мере поступления, а вызывающий код ждет появления нужного
+ * приглашения и сразу отвечает на него.
+ * <p>
+ * stderr объединяется с stdout, так как openssl выводит приглашения в stderr.
+ * Запускается через {@link ProcessRunner#startInteractive}.
+ */
+@Slf4j
+public final class PromptDriver implements AutoCloseable {
+
+    /**
+     * Возвращается из {@link #expect}, если процесс закрыл вывод, не выдав ни одного из ожидаемых шаблонов
+     */
+    public static final int EOF = -1;
+
+    private static final long PUMP_JOIN_MILLIS = 2000;
+
+    /**
+     * Сколько последних символов вывода хранить; более раннее начало вывода отбрасывается
+     */
+    static final int MAX_OUTPUT_CHARS = 256 * 1024;
+
+    private final Process process;
+    private final Writer stdin;
+    private final Future<?> pump;
+    private final Consumer<String> lineListener;
+    private final Runnable onClose;
+
+    private final StringBuilder output = new StringBuilder();
+    private final StringBuilder currentLine = new StringBuilder();
+    private int matchFrom;
+    private boolean eof;
+
+    /**
+     * @param ioExecutor где читать вывод процесса
+     * @param onClose освобождение процесса: завершение дерева процессов, место в лимите, метрики
+     */
+    PromptDriver(Process process, ExecutorService ioExecutor, Consumer<String> lineListener, Runnable onClose) {
+        this.process = process;
+        this.lineListener = lineListener;
+        this.onClose = onClose;
+        this.stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        this.pump = ioExecutor.submit(this::pumpOutput);
+    }
+
+    private void pumpOutput() {
+        char[] buffer = new char[1024];
+        try (Reader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                synchronized (this) {
+                    output.append(buffer, 0, read);
+                    trimOutput();
+                    notifyAll();
+                }
+                emitLines(buffer, read);
+            }
+        } catch (IOException e) {
+            log.debug("Вывод процесса закрыт: {}", e.getMessage());
+        } finally {
+            synchronized (this) {
+                eof = true;
+                notifyAll();
+            }
+            if (currentLine.length() > 0 && lineListener != null) {
+                lineListener.accept(currentLine.toString());
+            }
+        }
+    }
+
+    /**
+     * Ограничивает накопленный вывод, даже если его никто не разбирает через {@link #expect} (пакетный режим):
+     * когда буфер вырастает до двух {@link #MAX_OUTPUT_CHARS}, остаются последние MAX_OUTPUT_CHARS символов.
+     * Приглашение короче лимита, поэтому отбрасывание неразобранного начала не мешает его найти, а сдвиг
+     * раз в MAX_OUTPUT_CHARS символов не копирует длинный вывод на каждом чтении
+     */
+    private void trimOutput() {
+        if (output.length() > 2 * MAX_OUTPUT_CHARS) {
+            int excess = output.length() - MAX_OUTPUT_CHARS;
+            output.delete(0, excess);
+            matchFrom = Math.max(0, matchFrom - excess);
+        }
+    }
+
+    private void emitLines(char[] buffer, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = buffer[i];
+            if (c == '\n') {
+                if (lineListener != null) {
+                    lineListener.accept(currentLine.toString());
+                }
+                currentLine.setLength(0);
+            } else if (c != '\r') {
+                currentLine.append(c);
+            }
+        }
+    }
+
+    /**
+     * Ждет, пока в еще не разобранной части вывода найдется один из шаблонов.
+     * Разобранная часть сдвигается за конец совпадения.
+     *
+     * @param timeout максимальное время ожидания
+     * @param patterns шаблоны приглашений (проверяются по порядку)
+     * @return индекс совпавшего шаблона или {@link #EOF}
+     * @throws TimeoutException если за отведенное время ничего не совпало
+     */
+    public synchronized int expect(Duration timeout, Pattern... patterns) throws TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            for (int i = 0; i < patterns.length; i++) {
+                Matcher matcher = patterns[i].matcher(output);
+                matcher.region(matchFrom, output.length());
+                if (matcher.find()) {
+                    matchFrom = matcher.end();
+                    return i;
+                }
+            }
+            if (eof) {
+                matchFrom = output.length();
+                return EOF;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException("Не дождались ответа процесса за " + timeout.toSeconds() + " с");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Отправляет строку в stdin процесса
+     */
+    public void sendLine(String line) throws IOException {
+        stdin.write(line);
+        stdin.write('\n');
+        stdin.flush();
+    }
+
+    /**
+     * Ждет завершения процесса
+     *
+     * @return код выхода
+     * @throws TimeoutException если процесс не завершился за отведенное время
+     */
+    public int waitFor(Duration timeout) throws TimeoutException, InterruptedException {
+        if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Процесс не завершился за " + timeout.toSeconds() + " с");
+        }
+        try {
+            pump.get(PUMP_JOIN_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Вывод процесса {} не дочитан: {}", process.pid(), e.toString());
+        }
+        return process.exitValue();
+    }
+
+    /**
+     * Вывод процесса на текущий момент (не больше {@link #MAX_OUTPUT_CHARS} последних символов)
+     */
+    public synchronized String getOutput() {
+        return output.substring(Math.max(0, output.length() - MAX_OUTPUT_CHARS));
+    }
+
+    /**
+     * Закрывает stdin и, если процесс еще жив, завершает его вместе с дочерними процессами
+     */
+    @Override
+    public void close() {
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            log.debug("Не удалось закрыть stdin процесса: {}", e.getMessage());
+        }
+        onClose.run();
+    }
+}
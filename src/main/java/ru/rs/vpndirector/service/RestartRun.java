@@ -0,0 +1,174 @@
+package ru.rs.vpndirector.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Один перезапуск (или reload) OpenVPN: выбранный способ, этапы проверки, время простоя и итог
+ */
+public class RestartRun {
+
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    public enum Mode {
+        AUTO, RELOAD, RESTART;
+
+        /**
+         * Режим из параметра запроса; неизвестное значение - AUTO
+         */
+        public static Mode parse(String value) {
+            if (value != null) {
+                for (Mode mode : values()) {
+                    if (mode.name().equalsIgnoreCase(value.trim())) {
+                        return mode;
+                    }
+                }
+            }
+            return AUTO;
+        }
+    }
+
+    public enum Action {
+        RELOAD, RESTART
+    }
+
+    public enum Status {
+        RUNNING, SUCCESS, ROLLED_BACK, FAILED
+    }
+
+    private final String id;
+    private final Mode mode;
+    private final Instant startedAt = Instant.now();
+    private volatile Instant finishedAt;
+    private volatile Action action;
+    private volatile Status status = Status.RUNNING;
+    private volatile String stage = "Подготовка";
+    private volatile Duration downtime;
+    private volatile boolean configRestored;
+    private final List<String> log = new ArrayList<>();
+
+    public RestartRun(String id, Mode mode) {
+        this.id = id;
+        this.mode = mode;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Время запуска в часовом поясе сервера (для отображения)
+     */
+    public LocalDateTime getStartedAtLocal() {
+        return LocalDateTime.ofInstant(startedAt, ZoneId.systemDefault());
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    /**
+     * Время, пока сервер не принимал подключения, или null, если сервер так и не поднялся
+     */
+    public Duration getDowntime() {
+        return downtime;
+    }
+
+    /**
+     * Время простоя в виде "1.25 с"
+     */
+    public String getDowntimeText() {
+        return downtime != null ? String.format(Locale.ROOT, "%.2f с", downtime.toMillis() / 1000.0) : "-";
+    }
+
+    public boolean isFinished() {
+        return status != Status.RUNNING;
+    }
+
+    /**
+     * Конфигурация возвращена к последней рабочей ревизии: изменения, с которыми запускался перезапуск, отменены
+     */
+    public boolean isConfigRestored() {
+        return configRestored;
+    }
+
+    public synchronized List<String> getLog() {
+        return new ArrayList<>(log);
+    }
+
+    void setAction(Action action) {
+        this.action = action;
+    }
+
+    void setDowntime(Duration downtime) {
+        this.downtime = downtime;
+    }
+
+    void markConfigRestored() {
+        this.configRestored = true;
+    }
+
+    synchronized void stage(String stage) {
+        this.stage = stage;
+        log(stage);
+    }
+
+    synchronized void log(String line) {
+        log.add(LocalTime.now().format(LOG_TIME) + "  " + line);
+    }
+
+    synchronized void finish(Status status, String stage) {
+        this.status = status;
+        this.stage = stage;
+        this.finishedAt = Instant.now();
+        log(stage);
+    }
+
+    /**
+     * Краткое состояние для отправки клиенту
+     */
+    public synchronized Map<String, Object> summary() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("id", id);
+        summary.put("mode", mode);
+        summary.put("action", action);
+        summary.put("status", status);
+        summary.put("finished", isFinished());
+        summary.put("stage", stage);
+        summary.put("downtimeMillis", downtime != null ? downtime.toMillis() : null);
+        summary.put("downtime", getDowntimeText());
+        summary.put("startedAt", startedAt.toString());
+        summary.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+        summary.put("log", new ArrayList<>(log));
+        return summary;
+    }
+}
@@ -0,0 +1,564 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Группы маршрутов для отдельных клиентов.
+ * <p>
+ * Вместо глобальных push "route" в конфигурации сервера маршруты группы получают только назначенные ей
+ * клиенты (CN): для каждого из них в каталоге client-config-dir ведется файл ccd/&lt;CN&gt; с блоком push-строк
+ * его групп. Остальное содержимое файла (ifconfig-push, iroute и т.п.) не трогается. При изменении группы
+ * перезаписываются только файлы затронутых клиентов, и только если их содержимое изменилось.
+ * OpenVPN читает эти файлы при подключении клиента, поэтому перезапуск сервера не нужен.
+ * <p>
+ * Сами группы хранятся в текстовом файле route-groups.conf рядом с конфигурацией сервера.
+ */
+@Slf4j
+@Service
+public class RouteGroupService {
+
+    static final String BLOCK_BEGIN = "# >>> vpndirector: группы маршрутов (изменяется автоматически)";
+    static final String BLOCK_END = "# <<< vpndirector: группы маршрутов";
+
+    private static final String CCD_DIRECTIVE = "client-config-dir";
+    private static final Pattern IPV4 = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})");
+    private static final Pattern CLIENT_NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._@-]{0,63}");
+    private static final int MAX_GROUP_NAME = 64;
+
+    private final OpenVpnProperties openVpnProperties;
+    private final OpenVpnConfigFileService configFileService;
+    private final Counter ccdWrites;
+
+    /**
+     * Группы в порядке создания; заменяются целиком при каждом изменении
+     */
+    private volatile Map<String, RouteGroup> groups = Collections.emptyMap();
+
+    public RouteGroupService(OpenVpnProperties openVpnProperties, OpenVpnConfigFileService configFileService,
+                             MeterRegistry meterRegistry) {
+        this.openVpnProperties = openVpnProperties;
+        this.configFileService = configFileService;
+        this.ccdWrites = Counter.builder("vpndirector.ccd.writes")
+            .description("Перезаписанные файлы client-config-dir")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Загружает группы и приводит файлы ccd в соответствие с ними (например, после ручной правки route-groups.conf)
+     */
+    @PostConstruct
+    public void start() {
+        try {
+            groups = load();
+            Set<String> clients = new TreeSet<>();
+            groups.values().forEach(group -> clients.addAll(group.getClients()));
+            clients.addAll(managedClients());
+            int written = sync(clients);
+            log.info("Группы маршрутов: {}, клиентов: {}, обновлено файлов ccd: {}", groups.size(), clients.size(), written);
+        } catch (IOException e) {
+            log.error("Не удалось загрузить группы маршрутов из {}: {}", getGroupsPath(), e.getMessage());
+        }
+    }
+
+    public List<RouteGroup> getGroups() {
+        return new ArrayList<>(groups.values());
+    }
+
+    public RouteGroup getGroup(String name) {
+        return name == null ? null : groups.get(name.trim());
+    }
+
+    /**
+     * Группы, в которые входит клиент
+     */
+    public List<RouteGroup> groupsOf(String client) {
+        List<RouteGroup> result = new ArrayList<>();
+        for (RouteGroup group : groups.values()) {
+            if (group.getClients().contains(client)) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    public synchronized void createGroup(String name) throws IOException {
+        String groupName = validateGroupName(name);
+        if (groups.containsKey(groupName)) {
+            throw new IllegalArgumentException("Группа " + groupName + " уже существует");
+        }
+        Map<String, RouteGroup> updated = new LinkedHashMap<>(groups);
+        updated.put(groupName, new RouteGroup(groupName, Collections.emptyList(), Collections.emptySet()));
+        save(updated);
+    }
+
+    public synchronized void deleteGroup(String name) throws IOException {
+        RouteGroup group = requireGroup(name);
+        Map<String, RouteGroup> updated = new LinkedHashMap<>(groups);
+        updated.remove(group.getName());
+        save(updated);
+        sync(group.getClients());
+    }
+
+    /**
+     * Добавляет маршрут в группу; адрес приводится к адресу сети по маске
+     *
+     * @return false, если такой маршрут в группе уже есть
+     */
+    public synchronized boolean addRoute(String groupName, String network, String mask, String comment) throws IOException {
+        RouteGroup group = requireGroup(groupName);
+        Route route = Route.of(network, mask, comment);
+        if (group.getRoutes().stream().anyMatch(existing -> existing.sameTarget(route))) {
+            return false;
+        }
+        List<Route> routes = new ArrayList<>(group.getRoutes());
+        routes.add(route);
+        replace(new RouteGroup(group.getName(), routes, group.getClients()));
+        sync(group.getClients());
+        return true;
+    }
+
+    /**
+     * Маршрут в виде "сеть маска" так, как он записывается в группу
+     */
+    public static String routeTarget(String network, String mask) {
+        Route route = Route.of(network, mask, null);
+        return route.getNetwork() + " " + route.getMask();
+    }
+
+    public synchronized void removeRoute(String groupName, String network, String mask) throws IOException {
+        RouteGroup group = requireGroup(groupName);
+        Route target = Route.of(network, mask, null);
+        List<Route> routes = new ArrayList<>(group.getRoutes());
+        if (!routes.removeIf(route -> route.sameTarget(target))) {
+            return;
+        }
+        replace(new RouteGroup(group.getName(), routes, group.getClients()));
+        sync(group.getClients());
+    }
+
+    public synchronized void assign(String groupName, String client) throws IOException {
+        RouteGroup group = requireGroup(groupName);
+        String name = validateClientName(client);
+        Set<String> clients = new TreeSet<>(group.getClients());
+        if (!clients.add(name)) {
+            return;
+        }
+        replace(new RouteGroup(group.getName(), group.getRoutes(), clients));
+        sync(Collections.singleton(name));
+    }
+
+    public synchronized void unassign(String groupName, String client) throws IOException {
+        RouteGroup group = requireGroup(groupName);
+        Set<String> clients = new TreeSet<>(group.getClients());
+        if (!clients.remove(client)) {
+            return;
+        }
+        replace(new RouteGroup(group.getName(), group.getRoutes(), clients));
+        sync(Collections.singleton(client));
+    }
+
+    /**
+     * Задан ли client-config-dir в конфигурации сервера (без него файлы ccd сервером не читаются)
+     */
+    public boolean isCcdEnabled() {
+        try {
+            return configFileService.getConfigValue(CCD_DIRECTIVE) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Добавляет client-config-dir в конфигурацию сервера (вступает в силу после перезапуска)
+     *
+     * @return добавленная строка или null, если директива уже есть
+     */
+    public synchronized String enableCcd() throws IOException {
+        String line = CCD_DIRECTIVE + " " + openVpnProperties.getCcdDir();
+        if (configFileService.appendLinesIfAbsent(List.of(CCD_DIRECTIVE), List.of(line)) != null) {
+            return null;
+        }
+        Files.createDirectories(getCcdDir());
+        Set<String> clients = new TreeSet<>();
+        groups.values().forEach(group -> clients.addAll(group.getClients()));
+        sync(clients);
+        return line;
+    }
+
+    /**
+     * Каталог файлов клиентов: из директивы client-config-dir, иначе ccd-dir из настроек.
+     * Относительный путь считается от каталога OpenVPN
+     */
+    public Path getCcdDir() {
+        String configured = null;
+        try {
+            configured = configFileService.getConfigValue(CCD_DIRECTIVE);
+        } catch (IOException e) {
+            log.debug("Не удалось прочитать {}: {}", CCD_DIRECTIVE, e.getMessage());
+        }
+        if (configured != null) {
+            configured = configured.replaceAll("^\"|\"$", "");
+        }
+        String dir = configured == null || configured.isEmpty() ? openVpnProperties.getCcdDir() : configured;
+        return Paths.get(openVpnProperties.getOpenvpnRoot()).resolve(dir).normalize();
+    }
+
+    /**
+     * Приводит файлы ccd указанных клиентов к текущим группам
+     *
+     * @return сколько файлов было изменено
+     */
+    synchronized int sync(Set<String> clients) throws IOException {
+        Path dir = getCcdDir();
+        int written = 0;
+        for (String client : clients) {
+            if (!CLIENT_NAME.matcher(client).matches()) {
+                continue;
+            }
+            if (writeClientFile(dir.resolve(client), pushLines(client))) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * push-строки клиента по всем его группам, без повторов, с именем группы в комментарии
+     */
+    List<String> pushLines(String client) {
+        List<String> lines = new ArrayList<>();
+        Set<String> seen = new LinkedHashSet<>();
+        for (RouteGroup group : groups.values()) {
+            if (!group.getClients().contains(client) || group.getRoutes().isEmpty()) {
+                continue;
+            }
+            lines.add("# " + group.getName());
+            for (Route route : group.getRoutes()) {
+                if (seen.add(route.getPushLine())) {
+                    lines.add(route.getPushLine());
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Заменяет управляемый блок в файле клиента; файл без другого содержимого удаляется
+     *
+     * @return true, если файл изменен
+     */
+    private boolean writeClientFile(Path file, List<String> block) throws IOException {
+        List<String> before = Files.exists(file) ? Files.readAllLines(file, StandardCharsets.UTF_8) : null;
+        List<String> lines = new ArrayList<>();
+        int blockAt = -1;
+        boolean inBlock = false;
+        for (String line : before == null ? Collections.<String>emptyList() : before) {
+            if (line.equals(BLOCK_BEGIN)) {
+                inBlock = true;
+                blockAt = lines.size();
+            } else if (inBlock) {
+                inBlock = !line.equals(BLOCK_END);
+            } else {
+                lines.add(line);
+            }
+        }
+        if (!block.isEmpty()) {
+            List<String> managed = new ArrayList<>(block.size() + 2);
+            managed.add(BLOCK_BEGIN);
+            managed.addAll(block);
+            managed.add(BLOCK_END);
+            lines.addAll(blockAt < 0 ? lines.size() : blockAt, managed);
+        }
+
+        if (lines.stream().allMatch(line -> line.trim().isEmpty())) {
+            if (before == null) {
+                return false;
+            }
+            Files.delete(file);
+            ccdWrites.increment();
+            log.info("Удален файл {}: у клиента не осталось групп маршрутов", file);
+            return true;
+        }
+        if (lines.equals(before)) {
+            return false;
+        }
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling("." + file.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ccdWrites.increment();
+        log.info("Обновлен файл {}", file);
+        return true;
+    }
+
+    /**
+     * Клиенты, в файлах которых уже есть управляемый блок
+     */
+    private Set<String> managedClients() throws IOException {
+        Set<String> clients = new TreeSet<>();
+        Path dir = getCcdDir();
+        if (!Files.isDirectory(dir)) {
+            return clients;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (CLIENT_NAME.matcher(name).matches()
+                        && new String(Files.readAllBytes(file), StandardCharsets.UTF_8).contains(BLOCK_BEGIN)) {
+                    clients.add(name);
+                }
+            }
+        }
+        return clients;
+    }
+
+    private RouteGroup requireGroup(String name) {
+        RouteGroup group = getGroup(name);
+        if (group == null) {
+            throw new IllegalArgumentException("Группа " + name + " не найдена");
+        }
+        return group;
+    }
+
+    private void replace(RouteGroup group) throws IOException {
+        Map<String, RouteGroup> updated = new LinkedHashMap<>(groups);
+        updated.put(group.getName(), group);
+        save(updated);
+    }
+
+    private static String validateGroupName(String name) {
+        String trimmed = name == null ? "" : name.trim();
+        if (trimmed.isEmpty() || trimmed.length() > MAX_GROUP_NAME || trimmed.matches(".*[\\[\\]\\r\\n#].*")) {
+            throw new IllegalArgumentException("Недопустимое имя группы: до " + MAX_GROUP_NAME
+                + " символов, без [ ] и #");
+        }
+        return trimmed;
+    }
+
+    private static String validateClientName(String client) {
+        String name = client == null ? "" : client.trim();
+        if (!CLIENT_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Недопустимое имя клиента: " + name);
+        }
+        return name;
+    }
+
+    private Path getGroupsPath() {
+        return Paths.get(openVpnProperties.getOpenvpnRoot(), openVpnProperties.getRouteGroupsFile());
+    }
+
+    /**
+     * Формат файла:
+     * <pre>
+     * [office]
+     * route 10.1.0.0 255.255.255.0 # комментарий
+     * client alice
+     * </pre>
+     */
+    private Map<String, RouteGroup> load() throws IOException {
+        Path path = getGroupsPath();
+        Map<String, RouteGroup> loaded = new LinkedHashMap<>();
+        if (!Files.exists(path)) {
+            return loaded;
+        }
+        String name = null;
+        List<Route> routes = new ArrayList<>();
+        Set<String> clients = new TreeSet<>();
+        int lineNumber = 0;
+        for (String raw : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("[") && line.endsWith("]")) {
+                if (name != null) {
+                    loaded.put(name, new RouteGroup(name, routes, clients));
+                }
+                name = validateGroupName(line.substring(1, line.length() - 1));
+                routes = new ArrayList<>();
+                clients = new TreeSet<>();
+                continue;
+            }
+            String[] parts = line.split("\\s+", 4);
+            try {
+                if (name == null) {
+                    throw new IllegalArgumentException("строка вне группы");
+                } else if (parts[0].equals("route") && parts.length >= 3) {
+                    String comment = parts.length == 4 ? parts[3].replaceFirst("^#\\s*", "") : null;
+                    routes.add(Route.of(parts[1], parts[2], comment));
+                } else if (parts[0].equals("client") && parts.length == 2) {
+                    clients.add(validateClientName(parts[1]));
+                } else {
+                    throw new IllegalArgumentException("неизвестная строка");
+                }
+            } catch (IllegalArgumentException e) {
+                log.warn("{}:{} пропущена ({}): {}", path, lineNumber, e.getMessage(), raw);
+            }
+        }
+        if (name != null) {
+            loaded.put(name, new RouteGroup(name, routes, clients));
+        }
+        return loaded;
+    }
+
+    private void save(Map<String, RouteGroup> updated) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# Группы маршрутов для client-config-dir (изменяется через VPN Director)");
+        for (RouteGroup group : updated.values()) {
+            lines.add("");
+            lines.add("[" + group.getName() + "]");
+            for (Route route : group.getRoutes()) {
+                lines.add("route " + route.getNetwork() + " " + route.getMask()
+                    + (route.getComment() == null ? "" : " # " + route.getComment()));
+            }
+            for (String client : group.getClients()) {
+                lines.add("client " + client);
+            }
+        }
+        Path path = getGroupsPath();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        groups = Collections.unmodifiableMap(updated);
+    }
+
+    /**
+     * Группа маршрутов и назначенные ей клиенты
+     */
+    public static final class RouteGroup {
+        private final String name;
+        private final List<Route> routes;
+        private final Set<String> clients;
+
+        RouteGroup(String name, List<Route> routes, Set<String> clients) {
+            this.name = name;
+            this.routes = Collections.unmodifiableList(new ArrayList<>(routes));
+            this.clients = Collections.unmodifiableSet(new TreeSet<>(clients));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<Route> getRoutes() {
+            return routes;
+        }
+
+        public Set<String> getClients() {
+            return clients;
+        }
+    }
+
+    /**
+     * Маршрут IPv4: адрес сети и маска
+     */
+    public static final class Route {
+        private final String network;
+        private final String mask;
+        private final String comment;
+
+        private Route(String network, String mask, String comment) {
+            this.network = network;
+            this.mask = mask;
+            this.comment = comment;
+        }
+
+        /**
+         * @param network адрес или сеть в виде 10.1.0.0/24 (тогда mask может быть пустой)
+         * @param mask маска вида 255.255.255.0; если пусто и префикс не указан - 255.255.255.255
+         */
+        static Route of(String network, String mask, String comment) {
+            String address = network == null ? "" : network.trim();
+            long maskValue;
+            int slash = address.indexOf('/');
+            if (slash >= 0) {
+                int prefix;
+                try {
+                    prefix = Integer.parseInt(address.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Неверный префикс сети: " + address);
+                }
+                if (prefix < 0 || prefix > 32) {
+                    throw new IllegalArgumentException("Неверный префикс сети: " + address);
+                }
+                maskValue = prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+                address = address.substring(0, slash);
+            } else if (mask == null || mask.trim().isEmpty()) {
+                maskValue = 0xFFFFFFFFL;
+            } else {
+                maskValue = parseIpv4(mask.trim(), "маска");
+                long inverted = ~maskValue & 0xFFFFFFFFL;
+                if ((inverted & (inverted + 1)) != 0) {
+                    throw new IllegalArgumentException("Маска должна быть непрерывной: " + mask);
+                }
+            }
+            long networkValue = parseIpv4(address, "адрес") & maskValue;
+            String text = comment == null ? null : comment.replaceAll("[\\r\\n]", " ").trim();
+            return new Route(formatIpv4(networkValue), formatIpv4(maskValue), text == null || text.isEmpty() ? null : text);
+        }
+
+        private static long parseIpv4(String value, String what) {
+            Matcher matcher = IPV4.matcher(value);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Неверный " + what + ": " + value);
+            }
+            long result = 0;
+            for (int i = 1; i <= 4; i++) {
+                int octet = Integer.parseInt(matcher.group(i));
+                if (octet > 255) {
+                    throw new IllegalArgumentException("Неверный " + what + ": " + value);
+                }
+                result = (result << 8) | octet;
+            }
+            return result;
+        }
+
+        private static String formatIpv4(long value) {
+            return ((value >> 24) & 0xFF) + "." + ((value >> 16) & 0xFF) + "." + ((value >> 8) & 0xFF) + "." + (value & 0xFF);
+        }
+
+        boolean sameTarget(Route other) {
+            return network.equals(other.network) && mask.equals(other.mask);
+        }
+
+        public String getNetwork() {
+            return network;
+        }
+
+        public String getMask() {
+            return mask;
+        }
+
+        public String getComment() {
+            return comment;
+        }
+
+        public String getPushLine() {
+            return "push \"route " + network + " " + mask + "\"";
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.rs.vpndirector.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * systemctl через sudo: у приложения должно быть право выполнять systemctl для юнита OpenVPN
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SudoSystemctlClient implements SystemctlClient {
+
+    /**
+     * Максимальное время выполнения одной команды systemctl
+     */
+    private static final Duration COMMAND_TIMEOUT = Duration.ofSeconds(120);
+
+    private final ProcessRunner processRunner;
+
+    @Override
+    public CommandResult restart(String unit) throws IOException {
+        return run("restart", unit);
+    }
+
+    @Override
+    public CommandResult reload(String unit) throws IOException {
+        return run("reload", unit);
+    }
+
+    @Override
+    public boolean isActive(String unit) throws IOException {
+        return run("is-active", "--quiet", unit).isSuccess();
+    }
+
+    private CommandResult run(String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList("sudo", "systemctl"));
+        command.addAll(Arrays.asList(args));
+        log.debug("Выполнение: {}", String.join(" ", command));
+        try {
+            ProcessRunner.Result result = processRunner.run(ProcessRunner.Command
+                .of(ProcessRunner.CommandClass.SYSTEMCTL, command.toArray(new String[0]))
+                .timeout(COMMAND_TIMEOUT)
+                .mergeErrors());
+            return new CommandResult(result.getExitCode(), result.getStdout().trim());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Выполнение systemctl прервано", e);
+        }
+    }
+}
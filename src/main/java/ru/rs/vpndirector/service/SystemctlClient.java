@@ -0,0 +1,50 @@
+package ru.rs.vpndirector.service;
+
+import java.io.IOException;
+
+/**
+ * Управление юнитом systemd. Выделено в интерфейс, чтобы конвейер перезапуска можно было
+ * проверять без systemd (см. {@link SudoSystemctlClient} - реализация по умолчанию)
+ */
+public interface SystemctlClient {
+
+    /**
+     * systemctl restart - полный перезапуск процесса
+     */
+    CommandResult restart(String unit) throws IOException;
+
+    /**
+     * systemctl reload - для openvpn@.service это SIGHUP: конфигурация перечитывается без остановки процесса
+     */
+    CommandResult reload(String unit) throws IOException;
+
+    /**
+     * systemctl is-active
+     */
+    boolean isActive(String unit) throws IOException;
+
+    /**
+     * Результат команды systemctl
+     */
+    final class CommandResult {
+        private final int exitCode;
+        private final String output;
+
+        public CommandResult(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+}
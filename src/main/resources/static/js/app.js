@@ -0,0 +1,610 @@
+/* Сценарии страниц VPN Director. Каждый блок срабатывает только на странице с нужными элементами */
+
+/* Ход выпуска сертификата (generate-certificate.html): события задания через SSE */
+(function () {
+    var card = document.getElementById('jobCard');
+    if (!card || !window.EventSource) {
+        return;
+    }
+    var log = document.getElementById('jobLog');
+    var stage = document.getElementById('jobStage');
+    var progress = document.getElementById('jobProgress');
+    var bar = document.getElementById('jobProgressBar');
+    var resultBox = document.getElementById('jobResult');
+
+    function showState(state) {
+        stage.textContent = state.stage;
+        progress.textContent = state.progress;
+        bar.style.width = state.progress + '%';
+        if (state.result) {
+            resultBox.textContent = state.result;
+            resultBox.className = 'alert ' + (state.status === 'SUCCESS' ? 'alert-success' : 'alert-error');
+            resultBox.style.display = 'block';
+        }
+    }
+
+    var source = new EventSource(card.getAttribute('data-events-url'));
+    source.addEventListener('state', function (e) { showState(JSON.parse(e.data)); });
+    source.addEventListener('progress', function (e) { showState(JSON.parse(e.data)); });
+    source.addEventListener('output', function (e) {
+        log.textContent += e.data + '\n';
+        log.scrollTop = log.scrollHeight;
+    });
+    source.addEventListener('done', function (e) {
+        showState(JSON.parse(e.data));
+        source.close();
+    });
+    source.onerror = function () {
+        source.close();
+    };
+})();
+
+/* Ход выгрузки конфигураций в ZIP (certificates.html): опрос состояния по идентификатору выгрузки */
+(function () {
+    var form = document.getElementById('exportForm');
+    if (!form) {
+        return;
+    }
+    var label = document.getElementById('exportProgress');
+    var progressUrl = form.getAttribute('data-progress-url');
+    var timer = null;
+
+    form.addEventListener('submit', function () {
+        var id = Date.now().toString(36) + Math.random().toString(36).slice(2, 8);
+        form.elements['id'].value = id;
+        if (timer) {
+            clearInterval(timer);
+        }
+        label.textContent = 'Подготовка архива...';
+        timer = setInterval(function () {
+            fetch(progressUrl + id, {credentials: 'same-origin'})
+                .then(function (response) { return response.ok ? response.json() : null; })
+                .then(function (p) {
+                    if (!p) {
+                        return;
+                    }
+                    label.textContent = 'Собрано ' + p.done + ' из ' + p.total
+                        + (p.failed > 0 ? ', ошибок: ' + p.failed : '');
+                    if (p.state !== 'RUNNING') {
+                        clearInterval(timer);
+                        timer = null;
+                        label.textContent += p.state === 'DONE' ? ' - готово' : ' - выгрузка прервана';
+                    }
+                })
+                .catch(function () {});
+        }, 1000);
+    });
+})();
+
+/* Ход перезапуска OpenVPN (restart.html): опрос состояния до завершения проверки */
+(function () {
+    var card = document.getElementById('restartRun');
+    if (!card || card.getAttribute('data-finished') === 'true') {
+        return;
+    }
+    var stateUrl = card.getAttribute('data-state-url');
+    var stage = document.getElementById('restartStage');
+    var downtime = document.getElementById('restartDowntime');
+    var log = document.getElementById('restartLog');
+
+    var timer = setInterval(function () {
+        fetch(stateUrl, {credentials: 'same-origin'})
+            .then(function (response) { return response.ok ? response.json() : null; })
+            .then(function (run) {
+                if (!run) {
+                    return;
+                }
+                stage.textContent = run.stage;
+                stage.className = 'status-' + run.status;
+                downtime.textContent = run.downtime;
+                log.textContent = '';
+                run.log.forEach(function (line) {
+                    var row = document.createElement('div');
+                    row.textContent = line;
+                    log.appendChild(row);
+                });
+                log.scrollTop = log.scrollHeight;
+                if (run.finished) {
+                    clearInterval(timer);
+                }
+            })
+            .catch(function () {});
+    }, 1000);
+})();
+
+/* Редактор конфигурации (editor.html): в DOM только видимые строки, исходный файл подгружается
+   кусками с ограниченным кэшем, на сервер уходят только измененные диапазоны */
+(function () {
+    var viewport = document.getElementById('lineEditor');
+    if (!viewport) {
+        return;
+    }
+    var ROW_HEIGHT = 22;
+    var CHUNK = 200;
+    var MAX_CHUNKS = 20;
+    var OVERSCAN = 20;
+
+    var linesUrl = viewport.getAttribute('data-lines-url');
+    var searchUrl = viewport.getAttribute('data-search-url');
+    var saveUrl = viewport.getAttribute('data-save-url');
+    var previewUrl = viewport.getAttribute('data-preview-url');
+    var revision = viewport.getAttribute('data-revision');
+    var totalLines = parseInt(viewport.getAttribute('data-total-lines'), 10) || 0;
+    var spacer = viewport.querySelector('.line-spacer');
+    var rowsBox = viewport.querySelector('.line-window');
+    var state = document.getElementById('editorState');
+    var message = document.getElementById('editorMessage');
+    var searchInput = document.getElementById('editorSearch');
+    var searchStatus = document.getElementById('editorSearchStatus');
+
+    // куски исходного файла по CHUNK строк; порядок вставки в Map - порядок использования
+    var chunks = new Map();
+    var loading = {};
+    // исходная строка -> строки, которыми она заменена; ключ totalLines - вставки в конец файла
+    var patches = new Map();
+    var keys = [];
+    var focus = null;
+    var scheduled = false;
+
+    function updateKeys() {
+        keys = Array.from(patches.keys()).sort(function (a, b) { return a - b; });
+    }
+
+    function rowCount() {
+        var count = totalLines;
+        patches.forEach(function (lines, key) {
+            count += lines.length - (key < totalLines ? 1 : 0);
+        });
+        return Math.max(count, 1);
+    }
+
+    // строка экрана -> {key, index} для измененных строк или {line} для строки исходного файла
+    function locate(row) {
+        var shift = 0;
+        for (var i = 0; i < keys.length; i++) {
+            var lines = patches.get(keys[i]);
+            var start = keys[i] + shift;
+            if (row < start) {
+                break;
+            }
+            if (row < start + lines.length) {
+                return {key: keys[i], index: row - start};
+            }
+            shift += lines.length - (keys[i] < totalLines ? 1 : 0);
+        }
+        if (row - shift >= totalLines) {
+            // пустая строка после конца файла
+            return {key: totalLines, index: -1};
+        }
+        return {line: row - shift};
+    }
+
+    function rowOf(line) {
+        var shift = 0;
+        for (var i = 0; i < keys.length && keys[i] < line; i++) {
+            shift += patches.get(keys[i]).length - 1;
+        }
+        return line + shift;
+    }
+
+    function original(line) {
+        var n = Math.floor(line / CHUNK);
+        var chunk = chunks.get(n);
+        if (!chunk) {
+            load(n);
+            return undefined;
+        }
+        chunks.delete(n);
+        chunks.set(n, chunk);
+        return chunk[line - n * CHUNK];
+    }
+
+    function textAt(row) {
+        var loc = locate(row);
+        if (loc.key === undefined) {
+            return original(loc.line);
+        }
+        return loc.index < 0 ? '' : patches.get(loc.key)[loc.index];
+    }
+
+    function load(n) {
+        if (loading[n]) {
+            return;
+        }
+        loading[n] = true;
+        fetch(linesUrl + '?from=' + n * CHUNK + '&count=' + CHUNK, {credentials: 'same-origin'})
+            .then(function (response) { return response.ok ? response.json() : Promise.reject(); })
+            .then(function (data) {
+                delete loading[n];
+                if (data.revision !== revision) {
+                    changedOnServer(data);
+                    return;
+                }
+                chunks.set(n, data.lines);
+                while (chunks.size > MAX_CHUNKS) {
+                    chunks.delete(chunks.keys().next().value);
+                }
+                render();
+            })
+            .catch(function () {
+                delete loading[n];
+                showMessage('Не удалось загрузить строки файла', true);
+            });
+    }
+
+    function changedOnServer(data) {
+        if (patches.size > 0) {
+            showMessage('Файл изменен на сервере. Сохранение будет отклонено - обновите страницу и повторите изменения.', true);
+            return;
+        }
+        revision = data.revision;
+        totalLines = data.totalLines;
+        chunks.clear();
+        render();
+    }
+
+    // правки переводят строку исходного файла в patches, дальше меняется только ее замена
+    function ensurePatch(row) {
+        hidePreview();
+        var loc = locate(row);
+        if (loc.key === undefined) {
+            var text = original(loc.line);
+            if (text === undefined) {
+                return null;
+            }
+            patches.set(loc.line, [text]);
+            updateKeys();
+            return {lines: patches.get(loc.line), index: 0};
+        }
+        if (loc.index < 0) {
+            patches.set(totalLines, (patches.get(totalLines) || []).concat(['']));
+            updateKeys();
+            return {lines: patches.get(totalLines), index: patches.get(totalLines).length - 1};
+        }
+        return {lines: patches.get(loc.key), index: loc.index};
+    }
+
+    function setText(row, text) {
+        var patch = ensurePatch(row);
+        if (patch) {
+            patch.lines[patch.index] = text;
+        }
+        return patch !== null;
+    }
+
+    function insertAfter(row, text) {
+        var patch = ensurePatch(row);
+        if (patch) {
+            patch.lines.splice(patch.index + 1, 0, text);
+        }
+    }
+
+    function removeRow(row) {
+        var patch = ensurePatch(row);
+        if (patch) {
+            patch.lines.splice(patch.index, 1);
+        }
+    }
+
+    function moveTo(row, start, end) {
+        row = Math.max(0, Math.min(row, rowCount() - 1));
+        focus = {row: row, start: start, end: end === undefined ? start : end};
+        if (row * ROW_HEIGHT < viewport.scrollTop) {
+            viewport.scrollTop = row * ROW_HEIGHT;
+        } else if ((row + 1) * ROW_HEIGHT > viewport.scrollTop + viewport.clientHeight) {
+            viewport.scrollTop = (row + 1) * ROW_HEIGHT - viewport.clientHeight;
+        }
+        render();
+    }
+
+    function render() {
+        var rows = rowCount();
+        spacer.style.height = rows * ROW_HEIGHT + 'px';
+        var first = Math.max(0, Math.floor(viewport.scrollTop / ROW_HEIGHT) - OVERSCAN);
+        var last = Math.min(rows, Math.ceil((viewport.scrollTop + viewport.clientHeight) / ROW_HEIGHT) + OVERSCAN);
+        var active = document.activeElement;
+        if (!focus && active && active.parentNode && active.parentNode.parentNode === rowsBox) {
+            focus = {row: +active.getAttribute('data-row'), start: active.selectionStart, end: active.selectionEnd};
+        }
+        rowsBox.style.transform = 'translateY(' + first * ROW_HEIGHT + 'px)';
+        rowsBox.textContent = '';
+        for (var row = first; row < last; row++) {
+            var div = document.createElement('div');
+            div.className = 'line-row' + (locate(row).key !== undefined ? ' changed' : '');
+            var number = document.createElement('span');
+            number.className = 'line-number';
+            number.textContent = row + 1;
+            var input = document.createElement('input');
+            input.type = 'text';
+            input.className = 'line-text';
+            input.spellcheck = false;
+            input.setAttribute('data-row', row);
+            var text = textAt(row);
+            if (text === undefined) {
+                input.readOnly = true;
+                input.placeholder = '…';
+            } else {
+                input.value = text;
+            }
+            div.appendChild(number);
+            div.appendChild(input);
+            rowsBox.appendChild(div);
+            if (focus && focus.row === row) {
+                input.focus({preventScroll: true});
+                input.setSelectionRange(focus.start, focus.end);
+            }
+        }
+        focus = null;
+        updateState();
+    }
+
+    function updateState() {
+        state.textContent = 'Строк: ' + rowCount() + (patches.size > 0 ? ', изменено фрагментов: ' + patches.size : '');
+    }
+
+    function showMessage(text, error) {
+        message.textContent = text;
+        message.className = 'alert ' + (error ? 'alert-error' : 'alert-success');
+        message.style.display = '';
+    }
+
+    function rowOfInput(target) {
+        return target.classList.contains('line-text') ? +target.getAttribute('data-row') : -1;
+    }
+
+    rowsBox.addEventListener('input', function (event) {
+        var row = rowOfInput(event.target);
+        if (row >= 0 && setText(row, event.target.value)) {
+            event.target.parentNode.classList.add('changed');
+            updateState();
+        }
+    });
+
+    rowsBox.addEventListener('keydown', function (event) {
+        var input = event.target;
+        var row = rowOfInput(input);
+        if (row < 0 || input.readOnly) {
+            return;
+        }
+        var value = input.value;
+        if (event.key === 'Enter') {
+            event.preventDefault();
+            if (setText(row, value.slice(0, input.selectionStart))) {
+                insertAfter(row, value.slice(input.selectionEnd));
+                moveTo(row + 1, 0);
+            }
+        } else if (event.key === 'Backspace' && row > 0 && input.selectionStart === 0 && input.selectionEnd === 0) {
+            var previous = textAt(row - 1);
+            if (previous !== undefined && setText(row - 1, previous + value)) {
+                event.preventDefault();
+                removeRow(row);
+                moveTo(row - 1, previous.length);
+            }
+        } else if (event.key === 'Delete' && row < rowCount() - 1 && input.selectionStart === value.length) {
+            var next = textAt(row + 1);
+            if (next !== undefined && setText(row, value + next)) {
+                event.preventDefault();
+                removeRow(row + 1);
+                moveTo(row, value.length);
+            }
+        } else if (event.key === 'ArrowUp' || event.key === 'ArrowDown') {
+            event.preventDefault();
+            moveTo(row + (event.key === 'ArrowUp' ? -1 : 1), input.selectionStart);
+        }
+    });
+
+    rowsBox.addEventListener('paste', function (event) {
+        var input = event.target;
+        var row = rowOfInput(input);
+        var parts = (event.clipboardData.getData('text') || '').split(/\r?\n/);
+        if (row < 0 || input.readOnly || parts.length < 2) {
+            return;
+        }
+        event.preventDefault();
+        var after = input.value.slice(input.selectionEnd);
+        if (!setText(row, input.value.slice(0, input.selectionStart) + parts[0])) {
+            return;
+        }
+        for (var i = 1; i < parts.length; i++) {
+            insertAfter(row + i - 1, parts[i] + (i === parts.length - 1 ? after : ''));
+        }
+        moveTo(row + parts.length - 1, parts[parts.length - 1].length);
+    });
+
+    viewport.addEventListener('scroll', function () {
+        if (!scheduled) {
+            scheduled = true;
+            requestAnimationFrame(function () {
+                scheduled = false;
+                render();
+            });
+        }
+    });
+
+    // соседние измененные строки уходят одним диапазоном, неизмененные замены отбрасываются
+    function collectEdits() {
+        var edits = [];
+        keys.forEach(function (key) {
+            var lines = patches.get(key);
+            if (key < totalLines && lines.length === 1) {
+                var chunk = chunks.get(Math.floor(key / CHUNK));
+                if (chunk && chunk[key % CHUNK] === lines[0]) {
+                    return;
+                }
+            }
+            var to = key < totalLines ? key + 1 : key;
+            var last = edits[edits.length - 1];
+            if (last && last.to === key) {
+                last.lines = last.lines.concat(lines);
+                last.to = to;
+            } else {
+                edits.push({from: key, to: to, lines: lines.slice()});
+            }
+        });
+        return edits;
+    }
+
+    function postEdits(url, edits) {
+        return fetch(url, {
+            method: 'POST',
+            credentials: 'same-origin',
+            headers: {'Content-Type': 'application/json'},
+            body: JSON.stringify({revision: revision, edits: edits})
+        }).then(function (response) {
+            return response.json().then(function (body) {
+                return response.ok ? body : Promise.reject(body.error || 'Ошибка при сохранении файла');
+            });
+        });
+    }
+
+    function saved() {
+        patches.clear();
+        updateKeys();
+        chunks.clear();
+        render();
+    }
+
+    // перед записью показываем, какие директивы изменятся и понадобится ли перезапуск
+    var preview = document.getElementById('editorPreview');
+    var previewSummary = document.getElementById('editorPreviewSummary');
+    var previewDiff = document.getElementById('editorPreviewDiff');
+    var pendingEdits = null;
+
+    function showPreview(result) {
+        previewDiff.textContent = '';
+        result.changes.forEach(function (change) {
+            var row = document.createElement('div');
+            row.className = change.type === '+' ? 'diff-added' : 'diff-removed';
+            row.textContent = change.type + ' ' + change.text;
+            if (change.restart) {
+                var flag = document.createElement('span');
+                flag.className = 'diff-restart';
+                flag.textContent = ' (restart)';
+                row.appendChild(flag);
+            }
+            previewDiff.appendChild(row);
+        });
+        previewDiff.style.display = result.changes.length > 0 ? '' : 'none';
+        previewSummary.textContent = result.changes.length === 0
+            ? 'Изменены только комментарии и пустые строки - перезапуск не понадобится.'
+            : 'Изменения директив. Применение: ' + (result.action === 'reload' ? 'reload' : 'полный перезапуск')
+                + ' (' + result.reason + ').';
+        preview.style.display = '';
+        preview.scrollIntoView({block: 'nearest'});
+    }
+
+    document.getElementById('editorSave').addEventListener('click', function () {
+        var edits = collectEdits();
+        if (edits.length === 0) {
+            showMessage('Изменений нет', false);
+            return;
+        }
+        postEdits(previewUrl, edits)
+            .then(function (result) {
+                if (!result.changed) {
+                    saved();
+                    showMessage('Изменений нет - правки касаются только пробелов в конце строк, файл не перезаписан', false);
+                    return;
+                }
+                pendingEdits = edits;
+                showPreview(result);
+            })
+            .catch(function (error) {
+                showMessage(typeof error === 'string' ? error : 'Ошибка при сохранении файла', true);
+            });
+    });
+
+    function hidePreview() {
+        pendingEdits = null;
+        preview.style.display = 'none';
+    }
+
+    document.getElementById('editorPreviewCancel').addEventListener('click', hidePreview);
+
+    document.getElementById('editorPreviewConfirm').addEventListener('click', function () {
+        if (!pendingEdits) {
+            return;
+        }
+        var edits = pendingEdits;
+        hidePreview();
+        postEdits(saveUrl, edits)
+            .then(function (result) {
+                revision = result.revision;
+                totalLines = result.totalLines;
+                saved();
+                showMessage(result.message, false);
+            })
+            .catch(function (error) {
+                showMessage(typeof error === 'string' ? error : 'Ошибка при сохранении файла', true);
+            });
+    });
+
+    // поиск идет по файлу на сервере порциями совпадений, после последнего - снова с начала
+    var search = {query: null, matches: [], position: 0};
+
+    function findMatches(from) {
+        fetch(searchUrl + '?q=' + encodeURIComponent(search.query) + '&from=' + from + '&limit=50',
+            {credentials: 'same-origin'})
+            .then(function (response) { return response.ok ? response.json() : Promise.reject(); })
+            .then(function (data) {
+                if (data.matches.length === 0) {
+                    if (data.total > 0 && from > 0) {
+                        findMatches(0);
+                    } else {
+                        searchStatus.textContent = 'Не найдено';
+                    }
+                    return;
+                }
+                search.matches = data.matches;
+                search.position = 0;
+                search.total = data.total;
+                showMatch();
+            })
+            .catch(function () {
+                searchStatus.textContent = 'Ошибка поиска';
+            });
+    }
+
+    function showMatch() {
+        var match = search.matches[search.position];
+        var row = rowOf(match.line);
+        var start = Math.max(0, match.text.toLowerCase().indexOf(search.query.toLowerCase()));
+        viewport.scrollTop = Math.max(0, row * ROW_HEIGHT - viewport.clientHeight / 3);
+        focus = {row: row, start: start, end: start + search.query.length};
+        render();
+        searchStatus.textContent = 'Строка ' + (match.line + 1) + ', всего совпадений: ' + search.total;
+    }
+
+    function findNext() {
+        var query = searchInput.value;
+        if (!query) {
+            return;
+        }
+        if (query !== search.query) {
+            search = {query: query, matches: [], position: 0};
+            findMatches(0);
+        } else if (search.position + 1 < search.matches.length) {
+            search.position++;
+            showMatch();
+        } else {
+            findMatches(search.matches.length > 0 ? search.matches[search.matches.length - 1].line + 1 : 0);
+        }
+    }
+
+    document.getElementById('editorSearchNext').addEventListener('click', findNext);
+    searchInput.addEventListener('keydown', function (event) {
+        if (event.key === 'Enter') {
+            event.preventDefault();
+            findNext();
+        }
+    });
+
+    window.addEventListener('beforeunload', function (event) {
+        if (collectEdits().length > 0) {
+            event.preventDefault();
+            event.returnValue = '';
+        }
+    });
+
+    render();
+})();
@@ -0,0 +1,225 @@
+package ru.rs.vpndirector;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.util.FileSystemUtils;
+import ru.rs.vpndirector.service.HostResolver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+/**
+ * Нагрузочный тест параллельного изменения server.conf через веб-интерфейс.
+ * Сотни одновременных запросов /add-ip, /add-ip-by-domain и /editor/ranges не должны
+ * терять или дублировать принятые изменения.
+ */
+@Slf4j
+@SpringBootTest
+@AutoConfigureMockMvc
+class ConfigConcurrencyStressTest {
+
+    private static final int THREADS = 16;
+    private static final int SUBNETS = 150;
+    private static final int DOMAINS = 100;
+    private static final int EDITOR_SAVES = 40;
+    private static final int DUPLICATES = 3;
+    /**
+     * Граница p99 с большим запасом: ловит зависание на блокировках, а не медленную машину сборки
+     */
+    private static final double MAX_P99_MILLIS = 5_000;
+
+    private static Path openvpnRoot;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private HostResolver hostResolver;
+
+    @DynamicPropertySource
+    static void openvpnProperties(DynamicPropertyRegistry registry) throws IOException {
+        openvpnRoot = Files.createTempDirectory("vpndirector-stress");
+        Files.write(openvpnRoot.resolve("server.conf"), List.of(
+            "port 1194",
+            "proto udp",
+            "dev tun",
+            "server 10.8.0.0 255.255.255.0",
+            "# Маршруты"), StandardCharsets.UTF_8);
+        registry.add("openvpn.server.openvpn-root", openvpnRoot::toString);
+        registry.add("openvpn.server.config-file-name", () -> "server.conf");
+        registry.add("openvpn.server.config-encoding", () -> "UTF-8");
+    }
+
+    @AfterAll
+    static void cleanUp() throws IOException {
+        FileSystemUtils.deleteRecursively(openvpnRoot);
+    }
+
+    @Test
+    void parallelEditsKeepEveryAcceptedRouteExactlyOnce() throws Exception {
+        Mockito.when(hostResolver.resolve(Mockito.anyString())).thenAnswer(invocation -> {
+            int n = Integer.parseInt(invocation.<String>getArgument(0).replaceAll("\\D", ""));
+            return InetAddress.getByAddress(new byte[] {(byte) 172, 16, (byte) n, 7});
+        });
+
+        Map<String, Integer> acceptedRoutes = new ConcurrentHashMap<>();
+        Map<String, Integer> acceptedEditorMarks = new ConcurrentHashMap<>();
+        List<String> rejectedEditorMarks = Collections.synchronizedList(new ArrayList<>());
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int copy = 0; copy < DUPLICATES; copy++) {
+            for (int i = 0; i < SUBNETS; i++) {
+                String ip = "10." + (100 + i / 200) + "." + (i % 200) + ".15";
+                String route = "push \"route 10." + (100 + i / 200) + "." + (i % 200) + ".0 255.255.255.0\"";
+                tasks.add(() -> {
+                    MvcResult result = timed(latencies, () -> mockMvc.perform(post("/add-ip")
+                        .param("ipAddress", ip)
+                        .param("comment", "подсеть " + ip)
+                        .with(user("admin"))).andReturn());
+                    if (result.getFlashMap().get("success") != null) {
+                        acceptedRoutes.merge(route, 1, Integer::sum);
+                    }
+                    return null;
+                });
+            }
+            for (int i = 0; i < DOMAINS; i++) {
+                String domain = "host" + i + ".example.test";
+                String route = "push \"route 172.16." + i + ".7 255.255.255.255\"";
+                tasks.add(() -> {
+                    MvcResult result = timed(latencies, () -> mockMvc.perform(post("/add-ip-by-domain")
+                        .param("domain", domain)
+                        .with(user("admin"))).andReturn());
+                    if (result.getFlashMap().get("success") != null) {
+                        acceptedRoutes.merge(route, 1, Integer::sum);
+                    }
+                    return null;
+                });
+            }
+        }
+        for (int i = 0; i < EDITOR_SAVES; i++) {
+            String mark = "#editor-save-" + i;
+            tasks.add(() -> {
+                MvcResult page = mockMvc.perform(get("/editor").with(user("admin"))).andReturn();
+                Map<String, Object> model = page.getModelAndView().getModel();
+                int totalLines = (Integer) model.get("totalLines");
+                String body = String.format("{\"revision\":\"%s\",\"edits\":[{\"from\":%d,\"to\":%d,\"lines\":[\"%s\"]}]}",
+                    model.get("revision"), totalLines, totalLines, mark);
+                MvcResult result = timed(latencies, () -> mockMvc.perform(post("/editor/ranges")
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .content(body)
+                    .with(user("admin"))).andReturn());
+                if (result.getResponse().getStatus() == 200) {
+                    acceptedEditorMarks.merge(mark, 1, Integer::sum);
+                } else {
+                    rejectedEditorMarks.add(mark);
+                }
+                return null;
+            });
+        }
+        Collections.shuffle(tasks);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+        long startedAt = System.nanoTime();
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(5, TimeUnit.MINUTES);
+        }
+        long elapsed = System.nanoTime() - startedAt;
+        executor.shutdown();
+
+        double p99 = report(tasks.size(), elapsed, latencies);
+        assertThat(p99).as("p99 задержки запроса, мс").isLessThan(MAX_P99_MILLIS);
+
+        List<String> lines = Files.readAllLines(openvpnRoot.resolve("server.conf"), StandardCharsets.UTF_8);
+
+        // Каждый уникальный маршрут принят ровно один раз, дубликаты отклонены
+        assertThat(acceptedRoutes).hasSize(SUBNETS + DOMAINS);
+        assertThat(acceptedRoutes.values()).containsOnly(1);
+        for (String route : acceptedRoutes.keySet()) {
+            assertThat(lines.stream().filter(route::equals).count())
+                .as("маршрут %s в файле", route)
+                .isEqualTo(1);
+        }
+        // Принятые сохранения редактора не потеряны, отклоненные не попали в файл
+        assertThat(acceptedEditorMarks).isNotEmpty();
+        for (String mark : acceptedEditorMarks.keySet()) {
+            assertThat(lines.stream().filter(mark::equals).count())
+                .as("строка редактора %s в файле", mark)
+                .isEqualTo(1);
+        }
+        for (String mark : rejectedEditorMarks) {
+            assertThat(lines).doesNotContain(mark);
+        }
+    }
+
+    private static MvcResult timed(List<Long> latencies, Callable<MvcResult> request) throws Exception {
+        long started = System.nanoTime();
+        try {
+            return request.call();
+        } finally {
+            latencies.add(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Пишет в журнал пропускную способность и перцентили задержки
+     *
+     * @return p99 задержки в миллисекундах
+     */
+    private static double report(int requests, long elapsedNanos, List<Long> latencies) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        double p99 = percentile(sorted, 0.99);
+        log.info(String.format(Locale.ROOT, "Параллельные изменения конфига: %d запросов за %.2f с (%.1f запр/с), "
+                + "p50=%.1f мс, p95=%.1f мс, p99=%.1f мс, max=%.1f мс",
+            requests, seconds, requests / seconds,
+            percentile(sorted, 0.50), percentile(sorted, 0.95), p99, sorted.get(sorted.size() - 1) / 1_000_000.0));
+        return p99;
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1_000_000.0;
+    }
+}
@@ -0,0 +1,62 @@
+package ru.rs.vpndirector;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.FileSystemUtils;
+import ru.rs.vpndirector.service.CertificateRegistry;
+import ru.rs.vpndirector.service.OpenVpnRestartService;
+import ru.rs.vpndirector.service.PendingChangesService;
+import ru.rs.vpndirector.service.RouteGroupService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Профиль fast: бины создаются лениво, но фоновые службы запускаются вместе с приложением
+ */
+@SpringBootTest
+@ActiveProfiles("fast")
+class FastStartProfileTests {
+
+    private static Path openvpnRoot;
+
+    @DynamicPropertySource
+    static void openvpnProperties(DynamicPropertyRegistry registry) throws IOException {
+        // контекст не должен трогать /etc/openvpn хоста, где идет сборка
+        openvpnRoot = Files.createTempDirectory("vpndirector-context");
+        registry.add("openvpn.server.openvpn-root", openvpnRoot::toString);
+    }
+
+    @AfterAll
+    static void cleanUp() throws IOException {
+        FileSystemUtils.deleteRecursively(openvpnRoot);
+    }
+
+    @Autowired
+    private ConfigurableApplicationContext context;
+
+    @Test
+    void backgroundServicesStartEagerly() {
+        assertThat(context.getBeanFactory().containsSingleton(beanName(CertificateRegistry.class))).isTrue();
+        assertThat(context.getBeanFactory().containsSingleton(beanName(PendingChangesService.class))).isTrue();
+        // файлы ccd сверяются с route-groups.conf при запуске, а не при первом открытии страницы групп
+        assertThat(context.getBeanFactory().containsSingleton(beanName(RouteGroupService.class))).isTrue();
+        // PendingChangesService зависит от службы перезапуска, поэтому она тоже создана;
+        // контроллеры - нет, пока к ним не обратились
+        assertThat(context.getBeanFactory().containsSingleton(beanName(OpenVpnRestartService.class))).isTrue();
+        assertThat(context.getBeanFactory().containsSingleton("openVpnServiceController")).isFalse();
+    }
+
+    private String beanName(Class<?> type) {
+        return context.getBeanNamesForType(type)[0];
+    }
+}
@@ -1,11 +1,33 @@
 package ru.rs.vpndirector;
 
+import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 @SpringBootTest
 class VpndirectorApplicationTests {
 
+    private static Path openvpnRoot;
+
+    @DynamicPropertySource
+    static void openvpnProperties(DynamicPropertyRegistry registry) throws IOException {
+        // контекст не должен трогать /etc/openvpn хоста, где идет сборка
+        openvpnRoot = Files.createTempDirectory("vpndirector-context");
+        registry.add("openvpn.server.openvpn-root", openvpnRoot::toString);
+    }
+
+    @AfterAll
+    static void cleanUp() throws IOException {
+        FileSystemUtils.deleteRecursively(openvpnRoot);
+    }
+
     @Test
     void contextLoads() {
     }
@@ -0,0 +1,250 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Журнал аудита: поиск по фильтрам, ротация сегментов, восстановление после сбоя и очистка старых записей
+ */
+class AuditJournalTest {
+
+    @TempDir
+    Path root;
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2026-03-01T10:00:00Z"));
+    private OpenVpnProperties properties;
+    private AuditJournal journal;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setAuditSegmentSize(DataSize.ofKilobytes(64));
+        journal = open();
+    }
+
+    @AfterEach
+    void tearDown() {
+        journal.stop();
+    }
+
+    @Test
+    void filtersAndPagesNewestFirst() throws Exception {
+        journal.record(AuditAction.ROUTE_ADD, Arrays.asList("example.com", "93.184.216.34 255.255.255.255"), "push");
+        clock.plus(Duration.ofDays(1));
+        journal.record(AuditAction.CERT_ISSUE, "ivanov", "задание 1");
+        journal.record(AuditAction.PROFILE_DOWNLOAD, "ivanov", "ivanov.ovpn");
+        clock.plus(Duration.ofDays(1));
+        journal.record(AuditAction.CERT_REVOKE, "Ivanov", "причина: keyCompromise");
+
+        assertThat(actions(query(q -> { }))).containsExactly(
+            AuditAction.CERT_REVOKE, AuditAction.PROFILE_DOWNLOAD, AuditAction.CERT_ISSUE, AuditAction.ROUTE_ADD);
+        assertThat(actions(query(q -> q.setSubject("IVANOV")))).containsExactly(
+            AuditAction.CERT_REVOKE, AuditAction.PROFILE_DOWNLOAD, AuditAction.CERT_ISSUE);
+        assertThat(actions(query(q -> q.setSubject("93.184.216.34 255.255.255.255")))).containsExactly(AuditAction.ROUTE_ADD);
+        assertThat(actions(query(q -> q.setAction("cert_issue")))).containsExactly(AuditAction.CERT_ISSUE);
+        assertThat(actions(query(q -> {
+            q.setFrom("2026-03-02");
+            q.setTo("2026-03-02");
+        }))).containsExactly(AuditAction.PROFILE_DOWNLOAD, AuditAction.CERT_ISSUE);
+        assertThat(query(q -> q.setUser("admin")).getRecords()).isEmpty();
+        assertThat(query(q -> q.setUser(AuditJournal.SYSTEM_USER)).getRecords()).hasSize(4);
+
+        AuditPage first = query(q -> q.setSize(3));
+        assertThat(first.getNextBefore()).isEqualTo(1L);
+        AuditPage second = query(q -> {
+            q.setSize(3);
+            q.setBefore(first.getNextBefore());
+        });
+        assertThat(second.getRecords()).extracting(AuditRecord::getSeq).containsExactly(0L);
+        assertThat(second.isHasNext()).isFalse();
+        assertThat(second.getRecords().get(0).getSubjects()).containsExactly("example.com", "93.184.216.34 255.255.255.255");
+    }
+
+    @Test
+    void createsDirectoryOnFirstRecord() throws Exception {
+        assertThat(root.resolve("audit")).doesNotExist();
+        assertThat(journal.getSegmentCount()).isZero();
+        assertThat(query(q -> { }).getRecords()).isEmpty();
+
+        journal.record(AuditAction.RESTART, List.of(), null);
+
+        assertThat(root.resolve("audit")).isDirectory();
+        assertThat(journal.getSegmentCount()).isEqualTo(1);
+        assertThat(journal.getRecordCount()).isEqualTo(1);
+    }
+
+    @Test
+    void rotatesSegmentsAndReopensFromSavedIndex() throws Exception {
+        for (int i = 0; i < 3000; i++) {
+            journal.record(AuditAction.PROFILE_DOWNLOAD, "client" + (i % 300), "client" + (i % 300) + ".ovpn");
+            clock.plus(Duration.ofMinutes(1));
+        }
+        assertThat(journal.getSegmentCount()).isGreaterThan(2);
+        try (Stream<Path> files = Files.list(root.resolve("audit"))) {
+            assertThat(files.filter(file -> file.toString().endsWith(".idx")).count())
+                .isEqualTo(journal.getSegmentCount() - 1);
+        }
+        List<Long> before = seqs(query(q -> q.setSubject("client42")));
+        assertThat(before).hasSize(10).startsWith(2742L).endsWith(42L);
+
+        journal.stop();
+        journal = open();
+
+        assertThat(journal.getRecordCount()).isEqualTo(3000);
+        assertThat(seqs(query(q -> q.setSubject("client42")))).isEqualTo(before);
+        journal.record(AuditAction.RESTART, List.of(), "после перезапуска");
+        assertThat(query(q -> q.setSize(1)).getRecords().get(0).getSeq()).isEqualTo(3000);
+    }
+
+    @Test
+    void tornTailIsDiscardedOnOpen() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            journal.record(AuditAction.ROUTE_ADD, "10.0." + i + ".0 255.255.255.0", null);
+        }
+        journal.stop();
+        Path active;
+        try (Stream<Path> files = Files.list(root.resolve("audit"))) {
+            active = files.filter(AuditSegment::isSegmentFile).max(Path::compareTo).orElseThrow();
+        }
+        // запись, оборванная сбоем: длина уже записана, а тело и CRC - нет
+        try (FileChannel channel = FileChannel.open(active, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int position = 8;
+            while (data.getInt(position) != 0) {
+                position += data.getInt(position) + 8;
+            }
+            data.putInt(position, 100);
+            data.putLong(position + 4, 12345);
+        }
+
+        journal = open();
+        assertThat(journal.getRecordCount()).isEqualTo(5);
+        journal.record(AuditAction.ROUTE_ADD, "10.0.9.0 255.255.255.0", null);
+        journal.stop();
+        journal = open();
+
+        assertThat(journal.getRecordCount()).isEqualTo(6);
+        assertThat(query(q -> q.setSize(1)).getRecords().get(0).getSubjects()).containsExactly("10.0.9.0 255.255.255.0");
+    }
+
+    @Test
+    void compactionDropsExpiredRecordsAndKeepsNumbers() throws Exception {
+        properties.setAuditRetention(Duration.ofDays(30));
+        for (int i = 0; i < 3000; i++) {
+            journal.record(AuditAction.CONFIG_EDIT, "port", "+ port " + i);
+            clock.plus(Duration.ofHours(1));
+        }
+        int segments = journal.getSegmentCount();
+
+        journal.compact();
+
+        Instant cutoff = clock.instant().minus(Duration.ofDays(30));
+        List<AuditRecord> kept = query(q -> q.setSize(AuditQuery.MAX_SIZE)).getRecords();
+        assertThat(journal.getSegmentCount()).isLessThan(segments);
+        assertThat(journal.getRecordCount()).isEqualTo(kept.size()).isLessThan(3000);
+        assertThat(kept.get(0).getSeq()).isEqualTo(2999);
+        assertThat(kept.get(kept.size() - 1).getSeq()).isEqualTo(3000 - kept.size());
+        // в самом старом сегменте может остаться меньше половины устаревших записей, но не свежие
+        assertThat(kept).filteredOn(record -> !record.getTime().isBefore(cutoff)).hasSize(30 * 24);
+
+        journal.stop();
+        journal = open();
+        assertThat(journal.getRecordCount()).isEqualTo(kept.size());
+    }
+
+    @Test
+    void rareSubjectIsFoundQuicklyInLargeJournal() throws Exception {
+        properties.setAuditSegmentSize(DataSize.ofMegabytes(1));
+        journal.stop();
+        journal = open();
+        for (int i = 0; i < 60_000; i++) {
+            String subject = i % 20_000 == 7 ? "rare-client" : "client" + (i % 5000);
+            journal.record(AuditAction.PROFILE_DOWNLOAD, subject, subject + ".ovpn");
+            clock.plus(Duration.ofSeconds(30));
+        }
+
+        query(q -> q.setSubject("rare-client"));
+        long started = System.nanoTime();
+        AuditPage page = query(q -> q.setSubject("rare-client"));
+        long elapsed = System.nanoTime() - started;
+
+        assertThat(seqs(page)).containsExactly(40_007L, 20_007L, 7L);
+        assertThat(elapsed).isLessThan(Duration.ofMillis(500).toNanos());
+        assertThat(query(q -> {
+            q.setFrom("2026-03-10");
+            q.setTo("2026-03-10");
+            q.setSize(5);
+        }).getRecords()).allMatch(record -> record.getTimeLocal().toLocalDate().toString().equals("2026-03-10"));
+    }
+
+    private AuditJournal open() throws Exception {
+        AuditJournal opened = new AuditJournal(properties, new SimpleMeterRegistry(), clock);
+        opened.open();
+        return opened;
+    }
+
+    private AuditPage query(Consumer<AuditQuery> filter) throws Exception {
+        AuditQuery query = new AuditQuery();
+        filter.accept(query);
+        return journal.query(query);
+    }
+
+    private static List<AuditAction> actions(AuditPage page) {
+        return page.getRecords().stream().map(AuditRecord::getAction).collect(Collectors.toList());
+    }
+
+    private static List<Long> seqs(AuditPage page) {
+        return page.getRecords().stream().map(AuditRecord::getSeq).collect(Collectors.toList());
+    }
+
+    private static final class MutableClock extends Clock {
+        private volatile Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void plus(Duration duration) {
+            this.instant = instant.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
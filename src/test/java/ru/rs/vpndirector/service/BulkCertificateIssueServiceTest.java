@@ -0,0 +1,142 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Массовый выпуск сертификатов в режиме native с выгрузкой ZIP
+ */
+class BulkCertificateIssueServiceTest {
+
+    @TempDir
+    Path openvpnRoot;
+
+    private OpenVpnProperties properties;
+    private CertificateIssueJobService jobService;
+    private BulkCertificateIssueService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path easyRsaDir = openvpnRoot.resolve("easy-rsa");
+        TestEasyRsa.create(easyRsaDir);
+        Files.write(openvpnRoot.resolve("client_template.ovpn"),
+            "client\n<key>\n{key}</key>\n<cert>\n{cert}</cert>\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(openvpnRoot.resolve("client_template_tun.ovpn"),
+            "client\nredirect-gateway def1\n<key>\n{key}</key>\n<cert>\n{cert}</cert>\n".getBytes(StandardCharsets.UTF_8));
+
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(openvpnRoot.toString());
+        properties.setEasyRsaPath(easyRsaDir.toString());
+        properties.setBuildKeyMode(CertificateGenerationService.BUILD_KEY_MODE_NATIVE);
+        properties.setIssueWorkers(4);
+        EasyRsaStore store = new EasyRsaStore(properties);
+        NativeCertificateIssuer issuer = new NativeCertificateIssuer(properties, store,
+            new KeyPairPool(properties, new SimpleMeterRegistry()));
+        CertificateGenerationService generationService = new CertificateGenerationService(properties, issuer, store,
+            new ProcessRunner(properties, new SimpleMeterRegistry()));
+        jobService = new CertificateIssueJobService(generationService, properties);
+        service = new BulkCertificateIssueService(properties, generationService, jobService, issuer, store,
+            new ClientProfileService(properties), new CertificateRegistry(store));
+    }
+
+    @AfterEach
+    void tearDown() {
+        jobService.shutdown();
+    }
+
+    @Test
+    void parsesPlainListAndCsv() {
+        assertThat(BulkCertificateIssueService.parseNames("alice\n\n# comment\r\nbob\n"))
+            .containsExactly("alice", "bob");
+        assertThat(BulkCertificateIssueService.parseNames("\uFEFFname,email\n\"carol\",c@example.com\ndave;x\n"))
+            .containsExactly("carol", "dave");
+    }
+
+    @Test
+    void issuesInInputOrderAndStreamsZipWithReport() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            names.add("user" + i);
+        }
+        names.add("user3");
+        names.add("bad name");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.issueToZip(service.plan(names), out);
+
+        Map<String, String> entries = readZip(out.toByteArray());
+        assertThat(entries).containsKeys("user0/user0.ovpn", "user0/user0_tun.ovpn", "user11/user11.ovpn", "report.csv");
+        assertThat(entries.get("user5/user5_tun.ovpn")).contains("redirect-gateway").contains("BEGIN CERTIFICATE");
+
+        List<String> report = List.of(entries.get("report.csv").split("\n"));
+        assertThat(report).hasSize(names.size() + 1);
+        assertThat(report.get(0)).isEqualTo("name,status,serial,message");
+        for (int i = 0; i < 12; i++) {
+            assertThat(report.get(i + 1)).startsWith("user" + i + ",ISSUED," + EasyRsaStore.formatSerial(BigInteger.valueOf(i + 1)) + ",");
+        }
+        assertThat(report.get(13)).startsWith("user3,SKIPPED,");
+        assertThat(report.get(14)).startsWith("bad name,INVALID,");
+
+        List<String> indexSerials = Files.readAllLines(openvpnRoot.resolve("easy-rsa/keys/index.txt")).stream()
+            .map(line -> line.split("\t")[3])
+            .collect(Collectors.toList());
+        assertThat(indexSerials).containsExactly("01", "02", "03", "04", "05", "06", "07", "08", "09", "0A", "0B", "0C");
+    }
+
+    @Test
+    void skipsNamesAlreadyInIndex() throws Exception {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        service.issueToZip(service.plan(List.of("alice")), first);
+
+        List<BulkCertificateIssueService.Result> plan = service.plan(List.of("alice", "bob"));
+
+        assertThat(plan.get(0).getStatus()).isEqualTo(BulkCertificateIssueService.Status.SKIPPED);
+        assertThat(plan.get(1).getStatus()).isNull();
+    }
+
+    @Test
+    void skipsNamesBeingIssuedBySingleJob() throws Exception {
+        CertificateIssueJob single = jobService.reserve("alice");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.issueToZip(service.plan(List.of("alice", "bob")), out);
+        jobService.release(single, false, "отменено");
+
+        List<String> report = List.of(readZip(out.toByteArray()).get("report.csv").split("\n"));
+        assertThat(report.get(1)).startsWith("alice,SKIPPED,");
+        assertThat(report.get(2)).startsWith("bob,ISSUED,");
+        assertThat(jobService.getHistory()).extracting(CertificateIssueJob::getCertificateName)
+            .containsExactly("bob", "alice");
+    }
+
+    private static Map<String, String> readZip(byte[] zip) throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip), StandardCharsets.UTF_8)) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,175 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Отслеживание сроков действия: пороги 30/7/1 день, однократные уведомления, пробуждение к ближайшему порогу
+ */
+class CertificateExpiryTrackerTest {
+
+    private static final String DN = "/C=RU/ST=CFO/L=Moscow/O=rs/OU=Test/CN=%s/name=EasyRSA/emailAddress=my@email.ru";
+
+    @TempDir
+    Path easyRsaDir;
+
+    private final MutableClock clock = new MutableClock(Instant.EPOCH);
+    private final List<ExpiryWarning> notifications = new ArrayList<>();
+    private Path indexFile;
+    private CertificateRegistry registry;
+    private SimpleMeterRegistry meterRegistry;
+    private CertificateExpiryTracker tracker;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // CA из TestEasyRsa действует 30 дней - он сразу попадает в предупреждения
+        TestEasyRsa.create(easyRsaDir);
+        clock.set(Instant.now().truncatedTo(ChronoUnit.SECONDS).plusSeconds(1));
+        indexFile = easyRsaDir.resolve("keys/index.txt");
+        Instant now = clock.instant();
+        Files.write(indexFile, List.of(
+            line("V", now.plus(Duration.ofDays(40)), "01", "alice"),
+            line("V", now.plus(Duration.ofDays(5)), "02", "bob"),
+            line("V", now.plus(Duration.ofHours(12)), "03", "carol"),
+            line("R", now.plus(Duration.ofDays(2)), "04", "dave"),
+            line("V", now.minus(Duration.ofDays(2)), "05", "erin")), StandardCharsets.UTF_8);
+
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setEasyRsaPath(easyRsaDir.toString());
+        properties.setOpenvpnRoot(easyRsaDir.resolve("openvpn").toString());
+        EasyRsaStore store = new EasyRsaStore(properties);
+        registry = new CertificateRegistry(store);
+        meterRegistry = new SimpleMeterRegistry();
+        tracker = new CertificateExpiryTracker(properties, registry, store, new OpenVpnConfigFileService(properties,
+                new ProcessRunner(properties, meterRegistry)),
+            List.of(notifications::add), meterRegistry, clock);
+    }
+
+    @Test
+    void notifiesCrossedThresholdsOnceAndWakesAtNextOne() {
+        Instant start = clock.instant();
+        tracker.rebuild(start);
+
+        assertThat(describe(notifications)).containsExactlyInAnyOrder("Test CA:30d", "bob:7d", "carol:1d");
+        // Ближайший порог - истечение carol через 12 часов
+        assertThat(tracker.getNextWakeUp()).isEqualTo(start.plus(Duration.ofHours(12)));
+        assertThat(meterRegistry.get("vpndirector.certificates.expiring").tag("within", "7d").gauge().value())
+            .isEqualTo(2);
+
+        notifications.clear();
+        tracker.rebuild(start);
+        assertThat(notifications).isEmpty();
+
+        clock.set(start.plus(Duration.ofHours(12)));
+        tracker.fire(clock.instant());
+        assertThat(describe(notifications)).containsExactly("carol:expired");
+        // Следующий - порог в 1 день для bob
+        assertThat(tracker.getNextWakeUp()).isEqualTo(start.plus(Duration.ofDays(4)));
+
+        notifications.clear();
+        clock.set(start.plus(Duration.ofDays(20)));
+        tracker.fire(clock.instant());
+        // После долгого сна сообщается только последний пересеченный порог
+        assertThat(describe(notifications)).containsExactlyInAnyOrder("bob:expired", "alice:30d");
+    }
+
+    @Test
+    void warningsAreSortedByExpiryAndExcludeRevoked() {
+        tracker.rebuild(clock.instant());
+
+        List<ExpiryWarning> warnings = tracker.getWarnings();
+
+        assertThat(warnings).extracting(ExpiryWarning::getName).containsExactly("erin", "carol", "bob", "Test CA");
+        assertThat(warnings.get(1).getKind()).isEqualTo(ExpiryWarning.Kind.CLIENT);
+        assertThat(warnings.get(2).getDaysLeft()).isEqualTo(5);
+        assertThat(warnings.get(3).getKind()).isEqualTo(ExpiryWarning.Kind.CA);
+        assertThat(warnings.get(3).isCritical()).isTrue();
+    }
+
+    @Test
+    void expiredClientCertificatesAreShownWithoutAlarm() {
+        tracker.rebuild(clock.instant());
+
+        assertThat(tracker.getWarnings().get(0).getName()).isEqualTo("erin");
+        assertThat(meterRegistry.get("vpndirector.certificates.expired").gauge().value()).isEqualTo(1);
+        assertThat(describe(notifications)).doesNotContain("erin:expired");
+
+        notifications.clear();
+        clock.set(clock.instant().plus(Duration.ofDays(1)));
+        tracker.rebuild(clock.instant());
+        tracker.fire(clock.instant());
+        // carol истекла, пока отслеживалась, - об этом сообщается
+        assertThat(describe(notifications)).containsExactly("carol:expired");
+    }
+
+    @Test
+    void renewedCertificateReplacesWarning() throws Exception {
+        tracker.rebuild(clock.instant());
+        Files.write(indexFile, List.of(line("V", clock.instant().plus(Duration.ofDays(365)), "06", "bob")),
+            StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        registry.refresh();
+
+        tracker.rebuild(clock.instant());
+
+        assertThat(tracker.getWarnings()).extracting(ExpiryWarning::getName).doesNotContain("bob");
+    }
+
+    private static List<String> describe(List<ExpiryWarning> warnings) {
+        return warnings.stream()
+            .map(w -> w.getName() + ":" + (w.getThreshold().isZero() ? "expired" : w.getThreshold().toDays() + "d"))
+            .collect(Collectors.toList());
+    }
+
+    private static String line(String status, Instant expiresAt, String serial, String name) {
+        return status + "\t" + EasyRsaStore.formatIndexTime(Date.from(expiresAt)) + "\t"
+            + ("R".equals(status) ? EasyRsaStore.formatIndexTime(new Date()) : "") + "\t" + serial + "\tunknown\t"
+            + String.format(DN, name);
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void set(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
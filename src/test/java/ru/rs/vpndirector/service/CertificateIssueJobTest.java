@@ -0,0 +1,113 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Задание на выпуск: медленный подписчик SSE не задерживает вывод easy-rsa и получает события по порядку
+ */
+class CertificateIssueJobTest {
+
+    private final ExecutorService sender = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        sender.shutdownNow();
+    }
+
+    @Test
+    void stalledSubscriberDoesNotBlockOutput() throws Exception {
+        CertificateIssueJob job = new CertificateIssueJob("1", "kocmoc", sender);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingEmitter stalled = new RecordingEmitter(release);
+        RecordingEmitter fast = new RecordingEmitter(null);
+        job.subscribe(stalled);
+        job.subscribe(fast);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            job.onOutput("line " + i);
+        }
+        job.markFinished(true, "Готово");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)).isLessThan(1000);
+
+        assertThat(fast.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(stalled.events).hasSizeLessThanOrEqualTo(1);
+        release.countDown();
+        assertThat(stalled.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        // state, 100 строк вывода и done
+        assertThat(stalled.texts()).hasSize(102).isEqualTo(fast.texts());
+        assertThat(stalled.texts().get(1)).contains("line 0");
+    }
+
+    @Test
+    void laggingSubscriberIsDisconnected() throws Exception {
+        CertificateIssueJob job = new CertificateIssueJob("2", "kocmoc", sender);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingEmitter stalled = new RecordingEmitter(release);
+        job.subscribe(stalled);
+
+        for (int i = 0; i < 5000; i++) {
+            job.onOutput("line " + i);
+        }
+        release.countDown();
+
+        assertThat(stalled.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(stalled.events.size()).isLessThan(5000);
+        // переподключение получает накопленный вывод заново
+        RecordingEmitter reconnected = new RecordingEmitter(null);
+        job.subscribe(reconnected);
+        job.markFinished(true, "Готово");
+        assertThat(reconnected.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(reconnected.events).hasSize(502);
+    }
+
+    private static final class RecordingEmitter extends SseEmitter {
+
+        private final CountDownLatch release;
+        private final List<SseEventBuilder> events = new CopyOnWriteArrayList<>();
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private RecordingEmitter(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            events.add(builder);
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+        }
+
+        List<String> texts() {
+            return events.stream()
+                .map(event -> event.build().stream()
+                    .map(data -> String.valueOf(data.getData()))
+                    .collect(Collectors.joining()))
+                .collect(Collectors.toList());
+        }
+
+        @Override
+        public synchronized void complete() {
+            completed.countDown();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Реестр сертификатов: разбор index.txt, наличие файлов и обновление при изменениях
+ */
+class CertificateRegistryTest {
+
+    private static final String DN = "/C=RU/ST=CFO/L=Moscow/O=rs/OU=Test/CN=%s/name=EasyRSA/emailAddress=my@email.ru";
+
+    @TempDir
+    Path easyRsaDir;
+
+    private Path keysDir;
+    private CertificateRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        keysDir = Files.createDirectories(easyRsaDir.resolve("keys"));
+        Files.write(keysDir.resolve("index.txt"), List.of(
+            line("V\t491231235959Z\t\t01", "alice"),
+            line("R\t491231235959Z\t240301120000Z,keyCompromise\t02", "bob"),
+            line("V\t200101000000Z\t\t03", "carol"),
+            line("V\t20600101000000Z\t\t04", "dave")), StandardCharsets.UTF_8);
+        touch("alice.crt", "alice.key", "bob.crt", "bob.key", "dave.crt");
+
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setEasyRsaPath(easyRsaDir.toString());
+        registry = new CertificateRegistry(new EasyRsaStore(properties));
+    }
+
+    @Test
+    void parsesStatusDatesAndFiles() {
+        List<CertificateRegistry.CertificateRecord> records = registry.getCertificates();
+
+        assertThat(records).extracting(CertificateRegistry.CertificateRecord::getName)
+            .containsExactly("alice", "bob", "carol", "dave");
+        assertThat(records).extracting(CertificateRegistry.CertificateRecord::getStatus).containsExactly(
+            CertificateRegistry.Status.VALID, CertificateRegistry.Status.REVOKED,
+            CertificateRegistry.Status.EXPIRED, CertificateRegistry.Status.VALID);
+        assertThat(records).extracting(CertificateRegistry.CertificateRecord::isHasFiles)
+            .containsExactly(true, true, false, false);
+
+        CertificateRegistry.CertificateRecord bob = registry.find("bob");
+        assertThat(bob.getSerial()).isEqualTo("02");
+        assertThat(bob.getRevokedAt()).isEqualTo(Instant.parse("2024-03-01T12:00:00Z"));
+        assertThat(bob.getRevocationReason()).isEqualTo("keyCompromise");
+        assertThat(bob.getSubject()).isEqualTo(String.format(DN, "bob"));
+        assertThat(registry.find("dave").getExpiresAt()).isEqualTo(Instant.parse("2060-01-01T00:00:00Z"));
+        assertThat(registry.getValidNames()).containsExactlyInAnyOrder("alice", "dave");
+    }
+
+    @Test
+    void picksUpAppendedLinesAndNewFiles() throws Exception {
+        assertThat(registry.find("erin")).isNull();
+
+        Files.write(keysDir.resolve("index.txt"), (line("V\t491231235959Z\t\t05", "erin") + "\n")
+            .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        touch("erin.crt", "erin.key");
+
+        assertThat(registry.find("erin")).isNotNull();
+        assertThat(registry.find("erin").isHasFiles()).isTrue();
+        assertThat(registry.getCertificates()).hasSize(5);
+    }
+
+    @Test
+    void rebuildsWhenIndexIsReplaced() throws Exception {
+        assertThat(registry.find("alice").isValid()).isTrue();
+
+        List<String> lines = Files.readAllLines(keysDir.resolve("index.txt")).stream()
+            .map(l -> l.replace("V\t491231235959Z\t\t01\t", "R\t491231235959Z\t250101000000Z\t01\t"))
+            .collect(Collectors.toList());
+        EasyRsaStore.writeAtomically(keysDir.resolve("index.txt"),
+            (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+
+        assertThat(registry.find("alice").getStatus()).isEqualTo(CertificateRegistry.Status.REVOKED);
+        assertThat(registry.getCertificates()).hasSize(4);
+    }
+
+    private static String line(String prefix, String name) {
+        return prefix + "\tunknown\t" + String.format(DN, name);
+    }
+
+    private void touch(String... names) throws Exception {
+        for (String name : names) {
+            Files.write(keysDir.resolve(name), new byte[] {1});
+        }
+    }
+}
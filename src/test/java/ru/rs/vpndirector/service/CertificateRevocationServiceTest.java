@@ -0,0 +1,103 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bouncycastle.cert.X509CRLEntryHolder;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Отзыв сертификатов: пометка в index.txt и сборка CRL
+ */
+class CertificateRevocationServiceTest {
+
+    @TempDir
+    Path easyRsaDir;
+
+    private KeyPair caKeyPair;
+    private CertificateRegistry registry;
+    private CertificateRevocationService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        caKeyPair = TestEasyRsa.create(easyRsaDir);
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setEasyRsaPath(easyRsaDir.toString());
+        EasyRsaStore store = new EasyRsaStore(properties);
+        NativeCertificateIssuer issuer = new NativeCertificateIssuer(properties, store,
+            new KeyPairPool(properties, new SimpleMeterRegistry()));
+        for (String name : List.of("alice", "bob", "carol")) {
+            issuer.issue(name);
+        }
+        registry = new CertificateRegistry(store);
+        service = new CertificateRevocationService(properties, store, registry);
+    }
+
+    @Test
+    void revokesAndPublishesSignedCrl() throws Exception {
+        Map<String, CertificateRevocationService.Outcome> outcomes =
+            service.revoke(List.of("alice", "carol", "nobody"), "keyCompromise");
+
+        assertThat(outcomes).containsEntry("alice", CertificateRevocationService.Outcome.REVOKED)
+            .containsEntry("carol", CertificateRevocationService.Outcome.REVOKED)
+            .containsEntry("nobody", CertificateRevocationService.Outcome.NOT_FOUND);
+        List<String> index = Files.readAllLines(easyRsaDir.resolve("keys/index.txt"));
+        assertThat(index.get(0)).matches("R\\t\\d{12}Z\\t\\d{12}Z,keyCompromise\\t01\\tunknown\\t.*CN=alice.*");
+        assertThat(index.get(1)).startsWith("V\t");
+        assertThat(index.get(2)).startsWith("R\t");
+
+        X509CRLHolder crl = readCrl();
+        assertThat(crl.isSignatureValid(new JcaContentVerifierProviderBuilder().build(caKeyPair.getPublic()))).isTrue();
+        @SuppressWarnings("unchecked")
+        Collection<X509CRLEntryHolder> entries = crl.getRevokedCertificates();
+        assertThat(entries).extracting(X509CRLEntryHolder::getSerialNumber)
+            .containsExactlyInAnyOrder(BigInteger.ONE, BigInteger.valueOf(3));
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(service.getCrlFile())))
+            .isEqualTo("rw-r--r--");
+
+        assertThat(registry.find("alice").getStatus()).isEqualTo(CertificateRegistry.Status.REVOKED);
+        assertThat(registry.find("bob").getStatus()).isEqualTo(CertificateRegistry.Status.VALID);
+    }
+
+    @Test
+    void secondRevocationIsReportedAndBumpsCrlNumberOnlyWhenChanged() throws Exception {
+        service.revoke(List.of("bob"), null);
+        assertThat(easyRsaDir.resolve("keys/crlnumber")).hasContent("02");
+
+        Map<String, CertificateRevocationService.Outcome> outcomes = service.revoke(List.of("bob"), null);
+
+        assertThat(outcomes).containsEntry("bob", CertificateRevocationService.Outcome.ALREADY_REVOKED);
+        assertThat(easyRsaDir.resolve("keys/crlnumber")).hasContent("02");
+    }
+
+    @Test
+    void rejectsUnknownReason() {
+        assertThatThrownBy(() -> service.revoke(List.of("bob"), "because"))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private X509CRLHolder readCrl() throws Exception {
+        try (Reader reader = Files.newBufferedReader(service.getCrlFile(), StandardCharsets.US_ASCII);
+             PEMParser parser = new PEMParser(reader)) {
+            return (X509CRLHolder) parser.readObject();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Индекс каталога clients: отбор файлов, хеши, обновление и поиск только по индексу
+ */
+class ClientConfigIndexTest {
+
+    @TempDir
+    Path root;
+
+    private Path clientsDir;
+    private ClientConfigIndex index;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        clientsDir = Files.createDirectories(root.resolve("clients"));
+        write("alice.ovpn", "alice\n", 1_000);
+        write("bob.conf", "bob bob\n", 2_000);
+        write("notes.txt", "not a config\n", 3_000);
+        Files.createDirectories(clientsDir.resolve("nested.ovpn"));
+        Files.write(root.resolve("server.ovpn"), "secret\n".getBytes(StandardCharsets.UTF_8));
+
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        index = new ClientConfigIndex(properties);
+    }
+
+    @Test
+    void indexesClientConfigsWithHashes() {
+        assertThat(index.size()).isEqualTo(2);
+
+        ClientConfigIndex.ConfigFile alice = index.find("alice.ovpn");
+        assertThat(alice.getSize()).isEqualTo(6);
+        assertThat(alice.getModifiedAt()).isEqualTo(Instant.ofEpochSecond(1_000));
+        // sha256("alice\n")
+        assertThat(alice.getSha256()).isEqualTo("f87165e305b0f7c4824d3806434f9d0909610a25641ab8773cf92a48c9d77670");
+
+        ListingQuery query = new ListingQuery();
+        query.setSort("size");
+        query.setDir("desc");
+        assertThat(index.search(query).getItems()).extracting(ClientConfigIndex.ConfigFile::getName)
+            .containsExactly("bob.conf", "alice.ovpn");
+    }
+
+    @Test
+    void findsOnlyIndexedNames() {
+        assertThat(index.find("../server.ovpn")).isNull();
+        assertThat(index.find("notes.txt")).isNull();
+        assertThat(index.find("nested.ovpn")).isNull();
+        assertThat(index.find(null)).isNull();
+    }
+
+    @Test
+    void refreshRehashesOnlyChangedFiles() throws Exception {
+        ClientConfigIndex.ConfigFile alice = index.find("alice.ovpn");
+        ClientConfigIndex.ConfigFile bob = index.find("bob.conf");
+
+        write("alice.ovpn", "alice renewed\n", 4_000);
+        write("carol.ovpn", "carol\n", 5_000);
+        index.refresh();
+
+        assertThat(index.find("alice.ovpn").getSha256()).isNotEqualTo(alice.getSha256());
+        assertThat(index.find("bob.conf")).isSameAs(bob);
+        assertThat(index.find("carol.ovpn")).isNotNull();
+
+        Files.delete(clientsDir.resolve("bob.conf"));
+        index.refresh();
+        assertThat(index.find("bob.conf")).isNull();
+        assertThat(index.size()).isEqualTo(2);
+    }
+
+    private void write(String name, String content, long modifiedSeconds) throws Exception {
+        Path file = clientsDir.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.from(Instant.ofEpochSecond(modifiedSeconds)));
+    }
+}
@@ -0,0 +1,107 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Клиентские профили: разбор шаблона на отрезки, подстановки и перечитывание при изменении
+ */
+class ClientProfileServiceTest {
+
+    @TempDir
+    Path root;
+
+    private Path template;
+    private OpenVpnProperties properties;
+    private ClientProfileService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Path keysDir = Files.createDirectories(root.resolve("easy-rsa/keys"));
+        Files.write(keysDir.resolve("alice.key"), "KEY\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(keysDir.resolve("alice.crt"), "CERT\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(keysDir.resolve("ca.crt"), "CA\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(root.resolve("ta.key"), "TA\n".getBytes(StandardCharsets.US_ASCII));
+        template = root.resolve("client_template.ovpn");
+        write(template, "remote {remote}\n<ca>\n{ca}</ca>\n<key>\n{key}</key>\n<cert>\n{cert}</cert>\n"
+            + "<tls-crypt>\n{tls-crypt}</tls-crypt>\n# {unknown} {key\n", 1_000);
+
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setEasyRsaPath(root.resolve("easy-rsa").toString());
+        properties.setProfileRemote("vpn.example.com 1194 udp");
+        service = new ClientProfileService(properties);
+    }
+
+    @Test
+    void streamsTemplateWithAllPlaceholders() throws Exception {
+        assertThat(render("alice")).isEqualTo("remote vpn.example.com 1194 udp\n<ca>\nCA\n</ca>\n<key>\nKEY\n</key>\n"
+            + "<cert>\nCERT\n</cert>\n<tls-crypt>\nTA\n</tls-crypt>\n# {unknown} {key\n");
+    }
+
+    @Test
+    void recompilesTemplateWhenFileChanges() throws Exception {
+        render("alice");
+        write(template, "<key>\n{key}</key>\n", 2_000);
+
+        assertThat(render("alice")).isEqualTo("<key>\nKEY\n</key>\n");
+    }
+
+    @Test
+    void reportsMissingFilesBeforeWriting() throws Exception {
+        assertThatThrownBy(() -> service.prepareProfile("bob", ClientProfileService.ProfileType.ROUTES))
+            .isInstanceOf(FileNotFoundException.class)
+            .hasMessageContaining("bob");
+
+        properties.setProfileRemote("");
+        assertThatThrownBy(() -> service.prepareProfile("alice", ClientProfileService.ProfileType.ROUTES))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("{remote}");
+
+        assertThatThrownBy(() -> service.prepareProfile("alice", ClientProfileService.ProfileType.TUNNEL))
+            .isInstanceOf(FileNotFoundException.class)
+            .hasMessageContaining("client_template_tun.ovpn");
+    }
+
+    @Test
+    void eTagFollowsTemplateAndCertificateFiles() throws Exception {
+        String eTag = eTag();
+        assertThat(eTag).matches("\"[0-9a-f]{32}\"").isEqualTo(eTag());
+
+        write(root.resolve("easy-rsa/keys/alice.crt"), "CERT2\n", 3_000);
+        String renewed = eTag();
+        assertThat(renewed).isNotEqualTo(eTag);
+
+        properties.setProfileRemote("vpn2.example.com 1194 udp");
+        assertThat(eTag()).isNotEqualTo(renewed);
+    }
+
+    private String eTag() throws IOException {
+        return service.prepareProfile("alice", ClientProfileService.ProfileType.ROUTES).getETag();
+    }
+
+    private String render(String name) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.prepareProfile(name, ClientProfileService.ProfileType.ROUTES).writeTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void write(Path file, String content, long modifiedSeconds) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.from(Instant.ofEpochSecond(modifiedSeconds)));
+    }
+}
@@ -0,0 +1,110 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Diff Майерса: результат переводит старую версию в новую и минимален по числу правок
+ */
+class ConfigDiffTest {
+
+    @Test
+    void randomDiffsAreMinimalAndApplicable() {
+        Random random = new Random(46);
+        for (int round = 0; round < 3000; round++) {
+            List<String> before = randomLines(random, random.nextInt(12));
+            List<String> after = randomLines(random, random.nextInt(12));
+
+            List<ConfigDiff.Change> changes = ConfigDiff.diff(before, after);
+
+            assertThat(apply(before, after, changes)).as("%s -> %s", before, after).isEqualTo(after);
+            assertThat(changes).hasSize(before.size() + after.size() - 2 * lcs(before, after));
+        }
+    }
+
+    @Test
+    void replacedLinesAreGroupedWithDeletionsFirst() {
+        List<ConfigDiff.Change> changes = ConfigDiff.diff(
+            Arrays.asList("port 1194", "proto udp", "dev tun", "verb 3"),
+            Arrays.asList("port 1195", "proto udp", "dev tap", "cipher AES-256-GCM", "verb 3"));
+
+        assertThat(changes).extracting(change -> change.getType() + " " + change.getText()).containsExactly(
+            "- port 1194", "+ port 1195", "- dev tun", "+ dev tap", "+ cipher AES-256-GCM");
+    }
+
+    @Test
+    void largeConfigsWithFewChangesAreFast() {
+        List<String> before = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            before.add("push \"route 10." + (i / 65536) + "." + (i / 256 % 256) + "." + (i % 256) + " 255.255.255.255\"");
+        }
+        List<String> after = new ArrayList<>(before);
+        after.set(500, "push \"route 192.168.0.1 255.255.255.255\"");
+        after.remove(70_000);
+        after.add("verb 4");
+
+        long started = System.nanoTime();
+        List<ConfigDiff.Change> changes = ConfigDiff.diff(before, after);
+
+        assertThat(changes).hasSize(4);
+        assertThat(System.nanoTime() - started).isLessThan(2_000_000_000L);
+    }
+
+    @Test
+    void directivesIgnoreCommentsAndWhitespace() {
+        assertThat(ConfigDiff.directives(Arrays.asList("# comment", "  port   1194 ", "", "<ca>", "AAA", "</ca>", "; x")))
+            .containsExactly("port 1194", "<ca> AAA");
+        assertThat(ConfigDiff.directiveName("Push \"route 10.0.0.0\"")).isEqualTo("push");
+    }
+
+    private static List<String> randomLines(Random random, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(String.valueOf((char) ('a' + random.nextInt(4))));
+        }
+        return lines;
+    }
+
+    private static List<String> apply(List<String> before, List<String> after, List<ConfigDiff.Change> changes) {
+        boolean[] deleted = new boolean[before.size()];
+        String[] result = new String[after.size()];
+        for (ConfigDiff.Change change : changes) {
+            if (change.isAdded()) {
+                result[change.getLine()] = change.getText();
+            } else {
+                assertThat(before.get(change.getLine())).isEqualTo(change.getText());
+                deleted[change.getLine()] = true;
+            }
+        }
+        int next = 0;
+        for (int i = 0; i < before.size(); i++) {
+            if (!deleted[i]) {
+                while (next < result.length && result[next] != null) {
+                    next++;
+                }
+                if (next == result.length) {
+                    return null;
+                }
+                result[next++] = before.get(i);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    private static int lcs(List<String> a, List<String> b) {
+        int[][] table = new int[a.size() + 1][b.size() + 1];
+        for (int i = a.size() - 1; i >= 0; i--) {
+            for (int j = b.size() - 1; j >= 0; j--) {
+                table[i][j] = a.get(i).equals(b.get(j))
+                    ? table[i + 1][j + 1] + 1 : Math.max(table[i + 1][j], table[i][j + 1]);
+            }
+        }
+        return table[0][0];
+    }
+}
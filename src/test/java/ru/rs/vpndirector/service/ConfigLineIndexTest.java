@@ -0,0 +1,144 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Постраничное чтение, поиск и сохранение диапазонов строк большого файла конфигурации,
+ * пропуск записи правок, не меняющих текст
+ */
+class ConfigLineIndexTest {
+
+    private static final Charset CP1251 = Charset.forName("Windows-1251");
+
+    @TempDir
+    Path root;
+
+    private Path config;
+    private OpenVpnConfigFileService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        config = root.resolve("server.conf");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            lines.add("push \"route 10.0." + (i / 250) + "." + (i % 250) + " 255.255.255.255\" # маршрут " + i);
+        }
+        Files.write(config, lines, CP1251);
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setConfigEncoding("Windows-1251");
+        service = new OpenVpnConfigFileService(properties, new ProcessRunner(properties, new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void readsRangesAcrossIndexBlocks() throws Exception {
+        OpenVpnConfigFileService.LineRange range = service.readLines(ConfigLineIndex.STRIDE - 2, 5);
+
+        assertThat(range.getTotalLines()).isEqualTo(1000);
+        assertThat(range.getRevision()).isEqualTo(service.getConfigRevision()).hasSize(64);
+        assertThat(range.getLines()).hasSize(5);
+        assertThat(range.getLines().get(0)).endsWith("# маршрут " + (ConfigLineIndex.STRIDE - 2));
+        assertThat(range.getLines().get(4)).endsWith("# маршрут " + (ConfigLineIndex.STRIDE + 2));
+        assertThat(service.readLines(998, 10).getLines()).hasSize(2);
+        assertThat(service.readLines(1000, 10).getLines()).isEmpty();
+    }
+
+    @Test
+    void searchReturnsLimitedMatchesAndTotal() throws Exception {
+        OpenVpnConfigFileService.LineSearch search = service.searchLines("МАРШРУТ 99", 100, 3);
+
+        // 99 и 990-999
+        assertThat(search.getTotal()).isEqualTo(11);
+        assertThat(search.getMatches()).extracting(OpenVpnConfigFileService.LineMatch::getLine)
+            .containsExactly(990, 991, 992);
+    }
+
+    @Test
+    void savesOnlyEditedRangesAndKeepsOtherBytes() throws Exception {
+        Files.write(config, "port 1194\r\nproto udp\r\n# старый\r\ndev tun".getBytes(CP1251));
+        String revision = service.readLines(0, 0).getRevision();
+
+        OpenVpnConfigFileService.LineEditResult saved = service.applyLineEdits(List.of(
+            new OpenVpnConfigFileService.LineEdit(1, 1, List.of("# новый маршрут")),
+            new OpenVpnConfigFileService.LineEdit(2, 3, List.of()),
+            new OpenVpnConfigFileService.LineEdit(4, 4, List.of("verb 3"))), revision);
+
+        assertThat(new String(Files.readAllBytes(config), CP1251))
+            .isEqualTo("port 1194\r\n# новый маршрут\nproto udp\r\ndev tun\nverb 3\n");
+        assertThat(saved.getTotalLines()).isEqualTo(5);
+        assertThat(saved.isWritten()).isTrue();
+        assertThat(saved.getChanges()).extracting(change -> change.getType() + " " + change.getText())
+            .containsExactly("+ verb 3");
+        assertThat(saved.getRevision()).isEqualTo(service.getConfigRevision());
+        assertThat(root.resolve("server.conf_bak")).exists();
+        assertThat(root.resolve("server.conf.tmp")).doesNotExist();
+    }
+
+    @Test
+    void whitespaceOnlyEditsAreNotWritten() throws Exception {
+        Files.write(config, "port 1194\r\nverb 3\n".getBytes(CP1251));
+        FileTime before = Files.getLastModifiedTime(config);
+        String revision = service.readLines(0, 0).getRevision();
+
+        OpenVpnConfigFileService.LineEditResult result = service.applyLineEdits(List.of(
+            new OpenVpnConfigFileService.LineEdit(0, 1, List.of("port 1194   ")),
+            new OpenVpnConfigFileService.LineEdit(2, 2, List.of("", " "))), revision);
+
+        assertThat(result.isChanged()).isFalse();
+        assertThat(result.isWritten()).isFalse();
+        assertThat(result.getRevision()).isEqualTo(revision);
+        assertThat(Files.getLastModifiedTime(config)).isEqualTo(before);
+        assertThat(root.resolve("server.conf_bak")).doesNotExist();
+        assertThat(service.writeConfigFile(List.of("port 1194", "verb 3", ""))).isFalse();
+        assertThat(root.resolve("server.conf_bak")).doesNotExist();
+    }
+
+    @Test
+    void commentEditsChangeTextButNoDirectives() throws Exception {
+        Files.write(config, "port 1194\n# старый комментарий\nverb   3\n".getBytes(CP1251));
+        String revision = service.readLines(0, 0).getRevision();
+        List<OpenVpnConfigFileService.LineEdit> edits = List.of(
+            new OpenVpnConfigFileService.LineEdit(1, 3, List.of("; новый комментарий", "verb 3")));
+
+        OpenVpnConfigFileService.LineEditResult preview = service.previewLineEdits(edits, revision);
+        assertThat(preview.isChanged()).isTrue();
+        assertThat(preview.isWritten()).isFalse();
+        assertThat(preview.getChanges()).isEmpty();
+
+        OpenVpnConfigFileService.LineEditResult saved = service.applyLineEdits(edits, revision);
+        assertThat(saved.isWritten()).isTrue();
+        assertThat(saved.getChanges()).isEmpty();
+        assertThat(Files.readAllLines(config, CP1251)).containsExactly("port 1194", "; новый комментарий", "verb 3");
+    }
+
+    @Test
+    void rejectsStaleRevisionAndOverlappingRanges() throws Exception {
+        String revision = service.readLines(0, 0).getRevision();
+        service.appendLine("verb 3");
+
+        assertThatThrownBy(() -> service.applyLineEdits(
+            List.of(new OpenVpnConfigFileService.LineEdit(0, 1, List.of("port 1195"))), revision))
+            .isInstanceOf(ConfigRevisionMismatchException.class);
+
+        String current = service.getConfigRevision();
+        assertThatThrownBy(() -> service.applyLineEdits(List.of(
+            new OpenVpnConfigFileService.LineEdit(0, 5, List.of()),
+            new OpenVpnConfigFileService.LineEdit(3, 4, List.of())), current))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThat(service.readLines(0, 1).getLines().get(0)).startsWith("push");
+    }
+}
@@ -0,0 +1,177 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * База GeoIP/ASN: форматы файла, границы диапазонов, перечитывание и дополнение подключений из файла статуса
+ */
+class GeoIpDatabaseTest {
+
+    @TempDir
+    Path root;
+
+    private OpenVpnProperties properties;
+    private GeoIpDatabase database;
+
+    @BeforeEach
+    void setUp() {
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setStatusFileName("openvpn-status.log");
+        properties.setGeoipFile("ip2asn-v4.tsv");
+        database = new GeoIpDatabase(properties);
+    }
+
+    @Test
+    void findsRangesFromIp2AsnFile() throws Exception {
+        write("ip2asn-v4.tsv", 1_000,
+            "0.0.0.0\t0.255.255.255\t0\tNone\tNot routed",
+            "46.39.224.0\t46.39.255.255\t12389\tRU\tROSTELECOM-AS",
+            "93.184.216.0\t93.184.216.255\t15133\tUS\tEDGECAST",
+            "203.0.113.0\t203.0.113.127\t64500\tAU\tDOC-NET",
+            "255.255.255.0\t255.255.255.255\t64511\tZZ\tTOP");
+
+        GeoIpDatabase.Table table = database.current();
+        assertThat(table.size()).isEqualTo(5);
+        assertThat(table.getSkipped()).isZero();
+        assertThat(table.asn(table.find("0.1.2.3"))).isZero();
+        assertThat(table.country(table.find("0.1.2.3"))).isNull();
+
+        int row = table.find("46.39.231.140");
+        assertThat(table.country(row)).isEqualTo("RU");
+        assertThat(table.asn(row)).isEqualTo(12389);
+        assertThat(table.org(row)).isEqualTo("ROSTELECOM-AS");
+        assertThat(table.find("46.39.224.0")).isEqualTo(row);
+        assertThat(table.find("46.39.255.255")).isEqualTo(row);
+        assertThat(table.find("46.40.0.0")).isEqualTo(-1);
+        assertThat(table.find("46.39.223.255")).isEqualTo(-1);
+        // адреса со старшим битом: сравнение без знака
+        assertThat(table.country(table.find("203.0.113.127"))).isEqualTo("AU");
+        assertThat(table.find("203.0.113.128")).isEqualTo(-1);
+        assertThat(table.country(table.find("255.255.255.255"))).isEqualTo("ZZ");
+        assertThat(table.find("1.2.3.4")).isEqualTo(-1);
+        assertThat(table.find("")).isEqualTo(-1);
+        assertThat(table.find("2001:db8::1")).isEqualTo(-1);
+        assertThat(table.find("46.39.231")).isEqualTo(-1);
+        assertThat(table.find("46.39.231.256")).isEqualTo(-1);
+    }
+
+    @Test
+    void readsUnsortedQuotedCsv() throws Exception {
+        properties.setGeoipFile("dbip-asn-lite.csv");
+        write("dbip-asn-lite.csv", 1_000,
+            "start_ip,end_ip,asn,org",
+            "\"93.184.216.0\",\"93.184.216.255\",\"AS15133\",\"Edgecast, \"\"Inc.\"\"\"",
+            "2001:db8::,2001:db8::ffff,64496,IPv6 only",
+            "\"16777216\",\"16777471\",\"13335\",\"Cloudflare\"",
+            "46.39.224.0,46.39.255.255,,RU");
+
+        GeoIpDatabase.Table table = database.current();
+        assertThat(table.size()).isEqualTo(3);
+        assertThat(table.getSkipped()).isEqualTo(2);
+        assertThat(table.org(table.find("93.184.216.34"))).isEqualTo("Edgecast, \"Inc.\"");
+        assertThat(table.asn(table.find("93.184.216.34"))).isEqualTo(15133);
+        assertThat(table.org(table.find("1.0.0.1"))).isEqualTo("Cloudflare");
+        int russian = table.find("46.39.231.140");
+        assertThat(table.country(russian)).isEqualTo("RU");
+        assertThat(table.asn(russian)).isZero();
+        assertThat(table.org(russian)).isNull();
+    }
+
+    @Test
+    void reloadsWhenFileChanges() throws Exception {
+        assertThat(database.current().size()).isZero();
+
+        write("ip2asn-v4.tsv", 1_000, "46.39.224.0\t46.39.255.255\t12389\tRU\tROSTELECOM-AS");
+        GeoIpDatabase.Table first = database.current();
+        assertThat(first.size()).isEqualTo(1);
+        assertThat(database.current()).isSameAs(first);
+
+        write("ip2asn-v4.tsv", 2_000, "46.39.224.0\t46.39.255.255\t8359\tRU\tMTS");
+        GeoIpDatabase.Table second = database.current();
+        assertThat(second.getGeneration()).isGreaterThan(first.getGeneration());
+        assertThat(second.org(second.find("46.39.231.140"))).isEqualTo("MTS");
+
+        // испорченный файл не заменяет последнюю загруженную таблицу
+        write("ip2asn-v4.tsv", 3_000, "<html>404</html>");
+        assertThat(database.current()).isSameAs(second);
+
+        properties.setGeoipFile("");
+        assertThat(database.current().size()).isZero();
+    }
+
+    @Test
+    void enrichesConnectionsInStatusFile() throws Exception {
+        write("ip2asn-v4.tsv", 1_000, "46.39.224.0\t46.39.255.255\t12389\tRU\tROSTELECOM-AS");
+        write("openvpn-status.log", 1_000,
+            "OpenVPN CLIENT LIST",
+            "Updated,2025-12-16 14:20:00",
+            "Common Name,Real Address,Bytes Received,Bytes Sent,Connected Since",
+            "kocmoc,46.39.231.140:14067,12689039,25101420,2025-12-16 14:18:32",
+            "other,10.1.2.3:1194,1,2,2025-12-16 14:18:32",
+            "ROUTING TABLE");
+        OpenVpnStatusService statusService = new OpenVpnStatusService(properties, database);
+
+        OpenVpnStatusService.StatusInfo status = statusService.getStatus();
+        assertThat(status.isGeoIp()).isTrue();
+        OpenVpnStatusService.ClientConnection kocmoc = status.getConnections().get(0);
+        assertThat(kocmoc.getCountry()).isEqualTo("RU");
+        assertThat(kocmoc.getAsn()).isEqualTo(12389);
+        assertThat(kocmoc.getAsnOrg()).isEqualTo("ROSTELECOM-AS");
+        assertThat(status.getConnections().get(1).getCountry()).isNull();
+
+        // новая база сбрасывает кэш статуса, хотя сам файл статуса не менялся
+        write("ip2asn-v4.tsv", 2_000, "10.0.0.0\t10.255.255.255\t0\tZZ\tPrivate");
+        OpenVpnStatusService.StatusInfo reloaded = statusService.getStatus();
+        assertThat(reloaded).isNotSameAs(status);
+        assertThat(reloaded.getConnections().get(1).getCountry()).isEqualTo("ZZ");
+    }
+
+    @Test
+    void lookupsForLargeStatusPageStayCheap() throws Exception {
+        int ranges = 1 << 18;
+        List<String> lines = new ArrayList<>(ranges);
+        for (int i = ranges - 1; i >= 0; i--) {
+            long start = (long) i << 14;
+            lines.add(ipv4(start) + "\t" + ipv4(start + (1 << 14) - 1) + "\t" + (i % 60000 + 1) + "\tRU\tAS-" + (i % 1000));
+        }
+        write("ip2asn-v4.tsv", 1_000, lines.toArray(new String[0]));
+        GeoIpDatabase.Table table = database.current();
+        assertThat(table.size()).isEqualTo(ranges);
+
+        long found = 0;
+        long started = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            found += table.find(ipv4(0x9E3779B9L * i & 0xFFFFFFFFL)) >= 0 ? 1 : 0;
+        }
+        long elapsed = System.nanoTime() - started;
+
+        assertThat(found).isEqualTo(10_000);
+        assertThat(elapsed).isLessThan(Duration.ofMillis(200).toNanos());
+        assertThat(table.asn(table.find("255.255.255.255"))).isEqualTo((ranges - 1) % 60000 + 1);
+    }
+
+    private void write(String name, long modifiedSeconds, String... lines) throws Exception {
+        Path file = root.resolve(name);
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modifiedSeconds * 1000));
+    }
+
+    private static String ipv4(long address) {
+        return (address >> 24 & 0xFF) + "." + (address >> 16 & 0xFF) + "." + (address >> 8 & 0xFF) + "." + (address & 0xFF);
+    }
+}
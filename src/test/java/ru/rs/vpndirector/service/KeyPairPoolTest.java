@@ -0,0 +1,111 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Пул заранее сгенерированных ключей: шифрование на диске, права, выдача и перезагрузка
+ */
+class KeyPairPoolTest {
+
+    @TempDir
+    Path easyRsaDir;
+
+    private OpenVpnProperties properties;
+    private SimpleMeterRegistry meterRegistry;
+    private KeyPairPool pool;
+
+    @BeforeEach
+    void setUp() {
+        properties = new OpenVpnProperties();
+        properties.setEasyRsaPath(easyRsaDir.toString());
+        properties.setKeyPoolSize(3);
+        meterRegistry = new SimpleMeterRegistry();
+        pool = new KeyPairPool(properties, meterRegistry);
+    }
+
+    @Test
+    void storesKeysEncryptedWithOwnerOnlyPermissions() throws Exception {
+        pool.load();
+        pool.fill();
+
+        List<Path> files = poolFiles();
+        assertThat(files).hasSize(3);
+        for (Path file : files) {
+            String content = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII);
+            assertThat(content).contains("BEGIN ENCRYPTED PRIVATE KEY").doesNotContain("BEGIN PRIVATE KEY");
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+        }
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(pool.getPoolDir()))).isEqualTo("rwx------");
+        assertThat(meterRegistry.get("vpndirector.keypool.size").gauge().value()).isEqualTo(3.0);
+        assertThat(meterRegistry.get("vpndirector.keypool.generated").counter().count()).isEqualTo(3.0);
+    }
+
+    @Test
+    void pollReturnsUsableKeyAndRemovesItFromDisk() throws Exception {
+        pool.load();
+        pool.fill();
+
+        KeyPair keyPair = pool.poll();
+
+        assertThat(keyPair).isNotNull();
+        assertThat(keyPair.getPrivate().getAlgorithm()).isEqualTo("EC");
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(new byte[] {1, 2, 3});
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(new byte[] {1, 2, 3});
+        assertThat(verifier.verify(signature)).isTrue();
+        assertThat(pool.size()).isEqualTo(2);
+        assertThat(poolFiles()).hasSize(2);
+    }
+
+    @Test
+    void reloadsStoredKeysAndDropsKeysWithOtherParameters() throws Exception {
+        pool.load();
+        pool.fill();
+
+        KeyPairPool restarted = new KeyPairPool(properties, new SimpleMeterRegistry());
+        restarted.load();
+        assertThat(restarted.size()).isEqualTo(3);
+        assertThat(restarted.poll()).isNotNull();
+
+        properties.setNativeKeyAlgorithm("RSA");
+        properties.setNativeKeySize(2048);
+        KeyPairPool reconfigured = new KeyPairPool(properties, new SimpleMeterRegistry());
+        reconfigured.load();
+        assertThat(reconfigured.size()).isZero();
+        assertThat(poolFiles()).isEmpty();
+    }
+
+    @Test
+    void disabledPoolReturnsNothing() {
+        properties.setKeyPoolSize(0);
+
+        assertThat(pool.poll()).isNull();
+        assertThat(Files.exists(pool.getPoolDir())).isFalse();
+    }
+
+    private List<Path> poolFiles() throws Exception {
+        try (Stream<Path> files = Files.list(pool.getPoolDir())) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".pem")).collect(Collectors.toList());
+        }
+    }
+}
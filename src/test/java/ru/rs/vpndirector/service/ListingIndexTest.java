@@ -0,0 +1,84 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Постраничный вывод: срезы заранее отсортированных индексов, поиск по началу имени и по подстроке
+ */
+class ListingIndexTest {
+
+    private final ListingIndex<String> index = new ListingIndex<>(names(), name -> name,
+        Map.of("length", Comparator.comparingInt(String::length)), null);
+
+    @Test
+    void pagesInNaturalAndSortedOrder() {
+        ListingPage<String> first = index.page(query("", "contains", "", "asc", 1, 10));
+        assertThat(first.getItems()).first().isEqualTo("client99");
+        assertThat(first.getTotal()).isEqualTo(100);
+        assertThat(first.getTotalPages()).isEqualTo(10);
+        assertThat(first.isHasNext()).isTrue();
+
+        ListingPage<String> byName = index.page(query("", "contains", "name", "asc", 2, 5));
+        assertThat(byName.getItems()).containsExactly("client13", "client14", "client15", "client16", "client17");
+        assertThat(byName.getFrom()).isEqualTo(6);
+
+        ListingPage<String> byNameDesc = index.page(query("", "contains", "name", "desc", 1, 3));
+        assertThat(byNameDesc.getItems()).containsExactly("client99", "client98", "client97");
+        assertThat(byNameDesc.nextDir("name")).isEqualTo("asc");
+    }
+
+    @Test
+    void prefixSearchUsesNameIndex() {
+        ListingPage<String> byName = index.page(query("CLIENT1", "prefix", "name", "asc", 1, 5));
+        assertThat(byName.getTotal()).isEqualTo(11);
+        assertThat(byName.getItems()).containsExactly("client1", "client10", "client11", "client12", "client13");
+
+        ListingPage<String> lastPage = index.page(query("client1", "prefix", "name", "desc", 3, 5));
+        assertThat(lastPage.getItems()).containsExactly("client1");
+
+        // Другой порядок: сначала короткие, при равной длине - естественный порядок
+        ListingPage<String> byLength = index.page(query("client1", "prefix", "length", "asc", 1, 3));
+        assertThat(byLength.getTotal()).isEqualTo(11);
+        assertThat(byLength.getItems()).containsExactly("client1", "client19", "client18");
+    }
+
+    @Test
+    void substringSearchAndPageClamping() {
+        ListingPage<String> page = index.page(query("7", "contains", "name", "asc", 99, 5));
+
+        assertThat(page.getTotal()).isEqualTo(19);
+        assertThat(page.getNumber()).isEqualTo(4);
+        assertThat(page.getItems()).containsExactly("client78", "client79", "client87", "client97");
+
+        ListingPage<String> nothing = index.page(query("zzz", "contains", "", "asc", 1, 5));
+        assertThat(nothing.getItems()).isEmpty();
+        assertThat(nothing.getFrom()).isZero();
+        assertThat(nothing.getTotalPages()).isEqualTo(1);
+    }
+
+    private static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (int i = 99; i >= 0; i--) {
+            names.add("client" + i);
+        }
+        return names;
+    }
+
+    private static ListingQuery query(String q, String match, String sort, String dir, int page, int size) {
+        ListingQuery query = new ListingQuery();
+        query.setQ(q);
+        query.setMatch(match);
+        query.setSort(sort);
+        query.setDir(dir);
+        query.setPage(page);
+        query.setSize(size);
+        return query;
+    }
+}
@@ -0,0 +1,178 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Чтение журнала OpenVPN: разбор событий, дочитывание с позиции, сохранение состояния и ротация
+ */
+class OpenVpnLogTailerTest {
+
+    @TempDir
+    Path root;
+
+    private OpenVpnProperties properties;
+    private Path logFile;
+    private OpenVpnLogTailer tailer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        logFile = root.resolve("openvpn.log");
+        // путь к журналу берется из конфигурации сервера
+        Files.write(root.resolve("server.conf"), Arrays.asList("port 1194", "log-append openvpn.log"),
+            StandardCharsets.UTF_8);
+        Files.createFile(logFile);
+        tailer = open();
+    }
+
+    @AfterEach
+    void tearDown() {
+        tailer.stop();
+    }
+
+    @Test
+    void buildsSessionHistoryFromLog() throws Exception {
+        append(
+            "2025-12-16 14:18:30 46.39.231.140:14067 VERIFY OK: depth=1, CN=Easy-RSA CA",
+            "2025-12-16 14:18:30 46.39.231.140:14067 VERIFY OK: depth=0, C=RU, ST=MSK, O=Org, CN=kocmoc, emailAddress=a@b.c",
+            "2025-12-16 14:18:32 46.39.231.140:14067 [kocmoc] Peer Connection Initiated with [AF_INET]46.39.231.140:14067",
+            "2025-12-16 14:18:32 kocmoc/46.39.231.140:14067 MULTI_sva: pool returned IPv4=10.8.0.6, IPv6=(Not enabled)",
+            "2025-12-16 15:18:32 kocmoc/46.39.231.140:14067 SIGTERM[soft,remote-exit] received, client-instance exiting",
+            "2025-12-16 16:00:00 5.6.7.8:40000 VERIFY OK: depth=0, CN=ivanov",
+            "2025-12-16 16:01:00 5.6.7.8:40000 TLS Error: TLS handshake failed",
+            "2025-12-16 16:02:00 9.9.9.9:1111 VERIFY ERROR: depth=0, error=certificate revoked: CN=petrov, serial=3",
+            "2025-12-16 16:03:00 1.1.1.1:2222 TLS Error: TLS key negotiation failed to occur within 60 seconds (check your network connectivity)",
+            "Tue Dec 16 17:00:00 2025 46.39.231.140:15000 [kocmoc] Peer Connection Initiated with [AF_INET]46.39.231.140:15000",
+            "2025-12-16T17:30:00+0000 vpn openvpn[812]: kocmoc/46.39.231.140:15000 SIGUSR1[soft,ping-restart] received, client-instance restarting",
+            "2025-12-16 18:00:00 46.39.231.140:16000 [kocmoc] Peer Connection Initiated with [AF_INET]46.39.231.140:16000",
+            "2025-12-16 18:00:01 some unrelated line");
+        tailer.poll();
+
+        ClientSessionIndex.ClientSessions kocmoc = tailer.getIndex().get("kocmoc");
+        assertThat(kocmoc.getSessionCount()).isEqualTo(3);
+        assertThat(kocmoc.isOnline()).isTrue();
+        assertThat(kocmoc.getLastSeen()).isEqualTo(Instant.parse("2025-12-16T18:00:00Z"));
+        assertThat(kocmoc.getLastAddress()).isEqualTo("46.39.231.140:16000");
+        List<ClientSessionIndex.Session> sessions = kocmoc.getSessions();
+        assertThat(sessions).extracting(ClientSessionIndex.Session::getReason)
+            .containsExactly(null, "ping-restart", "remote-exit");
+        assertThat(sessions.get(2).getVirtualAddress()).isEqualTo("10.8.0.6");
+        assertThat(sessions.get(2).getEnd()).isEqualTo(Instant.parse("2025-12-16T15:18:32Z"));
+
+        // ошибка TLS привязана к CN, прошедшему VERIFY OK с того же адреса
+        assertThat(tailer.getIndex().get("ivanov").getFailures()).extracting(ClientSessionIndex.Failure::getReason)
+            .containsExactly("TLS Error: TLS handshake failed");
+        assertThat(tailer.getIndex().get("ivanov").getSessionCount()).isZero();
+        assertThat(tailer.getIndex().get("petrov").getFailures().get(0).getReason())
+            .isEqualTo("ошибка проверки сертификата: certificate revoked");
+        assertThat(tailer.getRecentFailures()).extracting(ClientSessionIndex.Failure::getCommonName)
+            .containsExactly(null, "petrov", "ivanov");
+
+        append("2025-12-16 19:00:00 Initialization Sequence Completed");
+        tailer.poll();
+        assertThat(tailer.getIndex().get("kocmoc").isOnline()).isFalse();
+        assertThat(tailer.getIndex().get("kocmoc").getSessions().get(0).getReason()).isEqualTo("перезапуск сервера");
+    }
+
+    @Test
+    void readsOnlyCompleteLinesAndResumesFromSavedOffset() throws Exception {
+        append(connect("alice", "1.2.3.4:1000", "10:00:00"));
+        Files.write(logFile, connect("bob", "1.2.3.5:1000", "10:00:01").substring(0, 30).getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+        tailer.poll();
+        long completeLines = tailer.getOffset();
+        assertThat(completeLines).isEqualTo(Files.size(logFile) - 30);
+        assertThat(tailer.getIndex().get("bob")).isNull();
+
+        Files.write(logFile, (connect("bob", "1.2.3.5:1000", "10:00:01").substring(30) + "\n")
+            .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        tailer.poll();
+        assertThat(tailer.getIndex().get("bob").getSessionCount()).isEqualTo(1);
+        tailer.stop();
+
+        // после перезапуска журнал не перечитывается: события не учитываются повторно
+        append(connect("alice", "1.2.3.4:2000", "11:00:00"));
+        tailer = open();
+        tailer.poll();
+        assertThat(tailer.getIndex().get("alice").getSessionCount()).isEqualTo(2);
+        assertThat(tailer.getIndex().get("bob").getSessionCount()).isEqualTo(1);
+        assertThat(tailer.getOffset()).isEqualTo(Files.size(logFile));
+    }
+
+    @Test
+    void followsRotationWhileRunning() throws Exception {
+        append(connect("alice", "1.2.3.4:1000", "10:00:00"));
+        tailer.poll();
+
+        // logrotate: строка дописана в старый файл перед переименованием, новый файл создан на прежнем месте
+        append(connect("alice", "1.2.3.4:2000", "10:30:00"));
+        Files.move(logFile, root.resolve("openvpn.log.1"));
+        Files.write(logFile, Arrays.asList(connect("alice", "1.2.3.4:3000", "11:00:00")), StandardCharsets.UTF_8);
+        tailer.poll();
+
+        assertThat(tailer.getIndex().get("alice").getSessionCount()).isEqualTo(3);
+        assertThat(tailer.getOffset()).isEqualTo(Files.size(logFile));
+    }
+
+    @Test
+    void drainsFileRotatedWhileStopped() throws Exception {
+        append(connect("alice", "1.2.3.4:1000", "10:00:00"));
+        tailer.poll();
+        tailer.stop();
+
+        append(connect("alice", "1.2.3.4:2000", "10:30:00"));
+        Files.move(logFile, root.resolve("openvpn.log-20251216"));
+        Files.write(logFile, Arrays.asList(connect("bob", "1.2.3.5:1000", "11:00:00")), StandardCharsets.UTF_8);
+
+        tailer = open();
+        tailer.poll();
+        assertThat(tailer.getIndex().get("alice").getSessionCount()).isEqualTo(2);
+        assertThat(tailer.getIndex().get("bob").getSessionCount()).isEqualTo(1);
+    }
+
+    @Test
+    void restartsFromBeginningAfterTruncation() throws Exception {
+        append(connect("alice", "1.2.3.4:1000", "10:00:00"), connect("alice", "1.2.3.4:2000", "10:30:00"));
+        tailer.poll();
+
+        // copytruncate: тот же файл, но короче прочитанной позиции
+        Files.write(logFile, Arrays.asList(connect("bob", "1.2.3.5:1000", "11:00:00")), StandardCharsets.UTF_8,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        tailer.poll();
+
+        assertThat(tailer.getIndex().get("bob").getSessionCount()).isEqualTo(1);
+        assertThat(tailer.getIndex().get("alice").getSessionCount()).isEqualTo(2);
+    }
+
+    private OpenVpnLogTailer open() {
+        return new OpenVpnLogTailer(properties,
+            new OpenVpnConfigFileService(properties, new ProcessRunner(properties, new SimpleMeterRegistry())),
+            new SimpleMeterRegistry(), Clock.fixed(Instant.parse("2025-12-17T00:00:00Z"), ZoneOffset.UTC));
+    }
+
+    private void append(String... lines) throws Exception {
+        Files.write(logFile, Arrays.asList(lines), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static String connect(String commonName, String address, String time) {
+        return "2025-12-16 " + time + " " + address + " [" + commonName + "] Peer Connection Initiated with [AF_INET]" + address;
+    }
+}
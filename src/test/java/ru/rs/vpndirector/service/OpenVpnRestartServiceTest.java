@@ -0,0 +1,216 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Перезапуск с проверкой готовности: выбор reload/restart, сохранение рабочей ревизии и откат
+ */
+class OpenVpnRestartServiceTest {
+
+    private static final DateTimeFormatter STATUS_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+        .withZone(ZoneOffset.UTC);
+
+    @TempDir
+    Path root;
+
+    private ServerSocket management;
+    private Thread managementThread;
+    private Path config;
+    private OpenVpnProperties properties;
+    private OpenVpnConfigFileService configFileService;
+    private FakeSystemctlClient systemctl;
+    private SimpleMeterRegistry meterRegistry;
+    private OpenVpnRestartService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        management = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        managementThread = new Thread(this::serveManagement, "test-management");
+        managementThread.setDaemon(true);
+        managementThread.start();
+
+        config = root.resolve("server.conf");
+        writeConfig("");
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setRestartHealthTimeout(Duration.ofSeconds(1));
+        configFileService = new OpenVpnConfigFileService(properties,
+            new ProcessRunner(properties, new SimpleMeterRegistry()));
+        writeStatus(Instant.now().minusSeconds(60));
+
+        systemctl = new FakeSystemctlClient();
+        meterRegistry = new SimpleMeterRegistry();
+        service = new OpenVpnRestartService(properties, configFileService,
+            new OpenVpnStatusService(properties, new GeoIpDatabase(properties)), systemctl, meterRegistry, Duration.ofMillis(10));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        service.shutdown();
+        management.close();
+    }
+
+    @Test
+    void firstRestartSavesKnownGoodAndPushChangesUseReload() throws Exception {
+        assertThat(service.decide(RestartRun.Mode.AUTO).getAction()).isEqualTo(RestartRun.Action.RESTART);
+
+        RestartRun first = await(service.start(RestartRun.Mode.AUTO));
+        assertThat(first.getStatus()).isEqualTo(RestartRun.Status.SUCCESS);
+        assertThat(first.getAction()).isEqualTo(RestartRun.Action.RESTART);
+        assertThat(first.getDowntime()).isNotNull();
+        assertThat(root.resolve("server.conf_good")).hasSameTextualContentAs(config);
+
+        writeConfig("push \"route 10.8.0.0 255.255.255.0\"\n");
+        assertThat(service.decide(RestartRun.Mode.AUTO).getAction()).isEqualTo(RestartRun.Action.RELOAD);
+        RestartRun second = await(service.start(RestartRun.Mode.AUTO));
+        assertThat(second.getStatus()).isEqualTo(RestartRun.Status.SUCCESS);
+        assertThat(systemctl.commands).containsExactly("restart openvpn@server", "reload openvpn@server");
+
+        writeConfig("push \"route 10.8.0.0 255.255.255.0\"\nport 1195\n");
+        assertThat(service.decide(RestartRun.Mode.AUTO).getAction()).isEqualTo(RestartRun.Action.RESTART);
+        assertThat(service.getHistory()).containsExactly(second, first);
+        assertThat(meterRegistry.get("vpndirector.openvpn.restarts").tag("outcome", "success").counters())
+            .hasSize(2);
+    }
+
+    @Test
+    void rollsBackToKnownGoodWhenServerDoesNotComeUp() throws Exception {
+        await(service.start(RestartRun.Mode.RESTART));
+        byte[] good = Files.readAllBytes(config);
+
+        writeConfig("bad-directive\n");
+        RestartRun run = await(service.start(RestartRun.Mode.AUTO));
+
+        assertThat(run.getStatus()).isEqualTo(RestartRun.Status.ROLLED_BACK);
+        assertThat(Files.readAllBytes(config)).isEqualTo(good);
+        assertThat(new String(Files.readAllBytes(root.resolve("server.conf_bak")), StandardCharsets.UTF_8))
+            .contains("bad-directive");
+        assertThat(systemctl.commands).containsExactly(
+            "restart openvpn@server", "restart openvpn@server", "restart openvpn@server");
+        assertThat(meterRegistry.get("vpndirector.openvpn.restarts").tag("outcome", "rolled_back").counter().count())
+            .isEqualTo(1.0);
+    }
+
+    @Test
+    void failsWithoutKnownGoodRevision() throws Exception {
+        writeConfig("bad-directive\n");
+        RestartRun run = await(service.start(RestartRun.Mode.RELOAD));
+
+        // reload не помог - полный перезапуск, откатываться некуда
+        assertThat(run.getStatus()).isEqualTo(RestartRun.Status.FAILED);
+        assertThat(run.getDowntime()).isNull();
+        assertThat(systemctl.commands).containsExactly("reload openvpn@server", "restart openvpn@server");
+        assertThat(root.resolve("server.conf_good")).doesNotExist();
+    }
+
+    @Test
+    void changedDirectivesIgnoreCommentsAndWhitespace() {
+        List<String> before = OpenVpnRestartService.directives(
+            "# comment\nport 1194\n<ca>\nAAA\n</ca>\nverb   3\n".getBytes(StandardCharsets.ISO_8859_1));
+        List<String> after = OpenVpnRestartService.directives(
+            "port 1194\n; another\n<ca>\nBBB\n</ca>\nverb 4\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        assertThat(OpenVpnRestartService.changedDirectives(before, after)).containsExactly("<ca>", "verb");
+    }
+
+    @Test
+    void previewFlagsDirectivesThatNeedRestart() throws Exception {
+        writeConfig("port 1194\ndev tun\npush \"route 10.0.0.0 255.0.0.0\"\n");
+
+        OpenVpnRestartService.Decision decision = service.decideFor(new TreeSet<>(List.of("push", "proto", "cipher")));
+        assertThat(decision.getAction()).isEqualTo(RestartRun.Action.RESTART);
+        assertThat(decision.getRestartDirectives()).containsExactly("cipher", "proto");
+
+        assertThat(service.decideFor(Set.of("push", "route")).getAction()).isEqualTo(RestartRun.Action.RELOAD);
+        assertThat(service.decideFor(Set.of()).getRestartDirectives()).isEmpty();
+    }
+
+    private RestartRun await(RestartRun run) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (!run.isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(run.isFinished()).as("перезапуск завершился").isTrue();
+        return run;
+    }
+
+    private void writeConfig(String extra) throws IOException {
+        Files.write(config, ("port 1194\nmanagement 127.0.0.1 " + management.getLocalPort()
+            + "\nstatus openvpn-status1194.log\n" + extra).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeStatus(Instant updated) throws IOException {
+        Files.write(root.resolve("openvpn-status1194.log"), ("OpenVPN CLIENT LIST\nUpdated," + STATUS_TIME.format(updated)
+            + "\nCommon Name,Real Address,Bytes Received,Bytes Sent,Connected Since\nROUTING TABLE\n")
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void serveManagement() {
+        while (!management.isClosed()) {
+            try (Socket socket = management.accept(); OutputStream out = socket.getOutputStream()) {
+                out.write(">INFO:OpenVPN Management Interface Version 5\r\n".getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * systemctl, который "запускает" сервер, если в конфигурации нет bad-directive:
+     * переписывает файл статуса так же, как это сделал бы OpenVPN
+     */
+    private final class FakeSystemctlClient implements SystemctlClient {
+        private final List<String> commands = new CopyOnWriteArrayList<>();
+        private volatile boolean active;
+        private Instant lastUpdate = Instant.now();
+
+        @Override
+        public CommandResult restart(String unit) throws IOException {
+            return start("restart " + unit);
+        }
+
+        @Override
+        public CommandResult reload(String unit) throws IOException {
+            return start("reload " + unit);
+        }
+
+        @Override
+        public boolean isActive(String unit) {
+            return active;
+        }
+
+        private CommandResult start(String command) throws IOException {
+            commands.add(command);
+            active = !new String(Files.readAllBytes(config), StandardCharsets.UTF_8).contains("bad-directive");
+            if (active) {
+                lastUpdate = lastUpdate.plusSeconds(1);
+                writeStatus(lastUpdate);
+            }
+            return new CommandResult(0, "");
+        }
+    }
+}
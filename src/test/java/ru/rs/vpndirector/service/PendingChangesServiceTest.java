@@ -0,0 +1,256 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Накопление изменений конфигурации: один перезапуск на пачку, период затишья и окно обслуживания
+ */
+class PendingChangesServiceTest {
+
+    @TempDir
+    Path root;
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2026-01-10T01:00:00Z"));
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private OpenVpnProperties properties;
+    private OpenVpnConfigFileService configFileService;
+    private OpenVpnRestartService restartService;
+    private SimpleMeterRegistry meterRegistry;
+    private AuditJournal auditJournal;
+    private volatile boolean healthy = true;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Files.write(root.resolve("server.conf"), "port 1194\n".getBytes(StandardCharsets.UTF_8));
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setConfigEncoding("UTF-8");
+        properties.setRestartHealthTimeout(Duration.ofSeconds(1));
+        meterRegistry = new SimpleMeterRegistry();
+        configFileService = new OpenVpnConfigFileService(properties, new ProcessRunner(properties, meterRegistry));
+        auditJournal = new AuditJournal(properties, meterRegistry, clock);
+        auditJournal.open();
+
+        SystemctlClient systemctl = new SystemctlClient() {
+            @Override
+            public CommandResult restart(String unit) {
+                commands.add("restart");
+                return new CommandResult(0, "");
+            }
+
+            @Override
+            public CommandResult reload(String unit) {
+                commands.add("reload");
+                return new CommandResult(0, "");
+            }
+
+            @Override
+            public boolean isActive(String unit) {
+                try {
+                    // сервер не поднимается с директивой, которую не знает
+                    return healthy && !Files.readString(root.resolve("server.conf")).contains("broken-directive");
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        };
+        restartService = new OpenVpnRestartService(properties, configFileService,
+            new OpenVpnStatusService(properties, new GeoIpDatabase(properties)), systemctl, meterRegistry, Duration.ofMillis(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        restartService.shutdown();
+        auditJournal.stop();
+    }
+
+    @Test
+    void appliesAllChangesWithOneRestart() throws Exception {
+        PendingChangesService pending = service();
+        pending.markDirty("Добавление IP", "push \"route 10.1.0.0 255.255.255.0\"");
+        pending.markDirty("Добавление IP", "push \"route 10.2.0.0 255.255.255.0\"");
+        pending.markDirty("Редактор", "сохранение файла");
+        // автоприменение выключено - ждем кнопку
+        assertThat(pending.getNextApplyAt()).isNull();
+
+        await(pending.applyNow(RestartRun.Mode.AUTO));
+        // сэкономленные перезапуски учитываются последними
+        awaitUntil(() -> pending.getRestartsSaved() == 2, "изменения применены");
+
+        assertThat(pending.isDirty()).isFalse();
+        assertThat(meterRegistry.get("vpndirector.openvpn.restarts.saved").counter().count()).isEqualTo(2.0);
+        assertThat(commands).containsExactly("restart");
+    }
+
+    @Test
+    void changesStayPendingWhenRestartFails() throws Exception {
+        PendingChangesService pending = service();
+        pending.markDirty("Добавление IP", "push \"route 10.1.0.0 255.255.255.0\"");
+        pending.markDirty("Редактор", "сохранение файла");
+        healthy = false;
+
+        RestartRun failed = pending.applyNow(RestartRun.Mode.RESTART);
+        awaitFinished(failed);
+
+        assertThat(failed.getStatus()).isNotEqualTo(RestartRun.Status.SUCCESS);
+        assertThat(pending.getChanges()).hasSize(2);
+        assertThat(pending.getRestartsSaved()).isZero();
+
+        healthy = true;
+        RestartRun run = pending.applyNow(RestartRun.Mode.RESTART);
+        // изменение во время перезапуска остается до следующего
+        pending.markDirty("Редактор", "сохранение во время перезапуска");
+        await(run);
+        awaitUntil(() -> pending.getRestartsSaved() == 1, "пачка применена");
+
+        assertThat(pending.getChanges()).extracting(PendingChangesService.Change::getDescription)
+            .containsExactly("сохранение во время перезапуска");
+        assertThat(pending.getRestartsSaved()).isEqualTo(1);
+    }
+
+    @Test
+    void changesRevertedByRollbackAreDropped() throws Exception {
+        PendingChangesService pending = service();
+        await(pending.applyNow(RestartRun.Mode.RESTART));
+
+        configFileService.appendLinesIfAbsent(List.of("broken-directive"), List.of("broken-directive"));
+        pending.markDirty("Редактор", "сохранение файла");
+        RestartRun run = pending.applyNow(RestartRun.Mode.RESTART);
+        awaitFinished(run);
+        awaitUntil(() -> pending.getReverted() != null, "пачка отменена");
+
+        assertThat(run.getStatus()).isEqualTo(RestartRun.Status.ROLLED_BACK);
+        assertThat(pending.isDirty()).isFalse();
+        assertThat(pending.getReverted().getRun()).isSameAs(run);
+        assertThat(pending.getReverted().getChanges()).extracting(PendingChangesService.Change::getDescription)
+            .containsExactly("сохранение файла");
+        assertThat(pending.getRestartsSaved()).isZero();
+    }
+
+    @Test
+    void diffIsShownAgainstLastAppliedRevision() throws Exception {
+        PendingChangesService pending = service();
+        assertThat(pending.diff()).isEmpty();
+        await(pending.applyNow(RestartRun.Mode.RESTART));
+
+        configFileService.appendLinesIfAbsent(List.of("route 10.1.0.0"),
+            List.of("#office", "push \"route 10.1.0.0 255.255.255.0\""));
+        configFileService.replaceLineByPrefix("port", "port 1195");
+
+        assertThat(pending.diff()).extracting(line -> line.getType() + " " + line.getText()).containsExactly(
+            "- port 1194", "+ port 1195", "+ #office", "+ push \"route 10.1.0.0 255.255.255.0\"");
+    }
+
+    @Test
+    void autoApplyWaitsForQuietPeriodInsideWindow() throws Exception {
+        properties.setApplyAuto(true);
+        properties.setApplyQuietPeriod(Duration.ofMinutes(2));
+        properties.setApplyWindow("02:00-05:00");
+        PendingChangesService pending = service();
+
+        pending.markDirty("Редактор", "сохранение файла");
+        assertThat(pending.getNextApplyAt()).isEqualTo(Instant.parse("2026-01-10T02:00:00Z"));
+
+        clock.set(Instant.parse("2026-01-10T01:30:00Z"));
+        pending.applyIfDue();
+        assertThat(pending.isDirty()).isTrue();
+        assertThat(commands).isEmpty();
+
+        clock.set(Instant.parse("2026-01-10T02:00:00Z"));
+        pending.applyIfDue();
+        RestartRun run = restartService.getHistory().get(0);
+        await(run);
+        awaitUntil(() -> !pending.isDirty(), "изменения применены");
+        assertThat(commands).containsExactly("restart");
+
+        List<AuditRecord> audit = auditJournal.query(new AuditQuery()).getRecords();
+        assertThat(audit).hasSize(1);
+        assertThat(audit.get(0).getAction()).isEqualTo(AuditAction.RESTART);
+        assertThat(audit.get(0).getUser()).isEqualTo(AuditJournal.SYSTEM_USER);
+        assertThat(audit.get(0).getTime()).isEqualTo(Instant.parse("2026-01-10T02:00:00Z"));
+    }
+
+    @Test
+    void windowMayCrossMidnight() {
+        properties.setApplyWindow("23:00-04:00");
+        PendingChangesService pending = service();
+
+        assertThat(pending.nextAllowed(Instant.parse("2026-01-10T12:00:00Z")))
+            .isEqualTo(Instant.parse("2026-01-10T23:00:00Z"));
+        assertThat(pending.nextAllowed(Instant.parse("2026-01-11T03:59:00Z")))
+            .isEqualTo(Instant.parse("2026-01-11T03:59:00Z"));
+        assertThat(pending.nextAllowed(Instant.parse("2026-01-11T04:00:00Z")))
+            .isEqualTo(Instant.parse("2026-01-11T23:00:00Z"));
+    }
+
+    private PendingChangesService service() {
+        return new PendingChangesService(properties, configFileService, restartService, auditJournal, meterRegistry, clock);
+    }
+
+    private void await(RestartRun run) throws InterruptedException {
+        awaitFinished(run);
+        assertThat(run.getStatus()).isEqualTo(RestartRun.Status.SUCCESS);
+    }
+
+    private void awaitFinished(RestartRun run) throws InterruptedException {
+        awaitUntil(run::isFinished, "перезапуск завершился");
+    }
+
+    /**
+     * Итог перезапуска обрабатывается в потоке перезапуска уже после его завершения
+     */
+    private static void awaitUntil(BooleanSupplier condition, String description) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(condition.getAsBoolean()).as(description).isTrue();
+    }
+
+    private static final class MutableClock extends Clock {
+        private volatile Instant instant;
+
+        private MutableClock(Instant instant) {
+            this.instant = instant;
+        }
+
+        void set(Instant instant) {
+            this.instant = instant;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Запуск внешних команд: дедлайн, завершение дерева процессов, хвост вывода и лимиты по классам
+ */
+class ProcessRunnerTest {
+
+    @TempDir
+    Path root;
+
+    private SimpleMeterRegistry meterRegistry;
+    private ProcessRunner runner;
+
+    @BeforeEach
+    void setUp() {
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setProcessUtilityLimit(1);
+        meterRegistry = new SimpleMeterRegistry();
+        runner = new ProcessRunner(properties, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        runner.shutdown();
+    }
+
+    @Test
+    void capturesOutputAndExitCode() throws Exception {
+        ProcessRunner.Result result = runner.run(ProcessRunner.Command.of(ProcessRunner.CommandClass.UTILITY,
+            "bash", "-c", "echo out; echo err >&2; exit 3"));
+
+        assertThat(result.getExitCode()).isEqualTo(3);
+        assertThat(result.isSuccess()).isFalse();
+        assertThat(result.getStdout()).isEqualTo("out\n");
+        assertThat(result.getStderr()).isEqualTo("err\n");
+        assertThat(result.isTruncated()).isFalse();
+        assertThat(meterRegistry.get("vpndirector.process.exec").tag("outcome", "failed").timer().count())
+            .isEqualTo(1);
+    }
+
+    @Test
+    void timeoutKillsWholeProcessTree() throws Exception {
+        Path pidFile = root.resolve("child.pid");
+        ProcessRunner.Command command = ProcessRunner.Command.of(ProcessRunner.CommandClass.UTILITY,
+            "bash", "-c", "sleep 60 & echo $! > " + pidFile + "; wait")
+            .timeout(Duration.ofMillis(500));
+
+        assertThatThrownBy(() -> runner.run(command)).isInstanceOf(ProcessTimeoutException.class);
+
+        long childPid = Long.parseLong(new String(Files.readAllBytes(pidFile), StandardCharsets.US_ASCII).trim());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (isRunning(childPid) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(isRunning(childPid)).as("дочерний sleep завершен").isFalse();
+        assertThat(runner.running(ProcessRunner.CommandClass.UTILITY)).isZero();
+        assertThat(meterRegistry.get("vpndirector.process.exec").tag("outcome", "timeout").timer().count())
+            .isEqualTo(1);
+    }
+
+    @Test
+    void keepsOnlyTailOfLongOutput() throws Exception {
+        ProcessRunner.Result result = runner.run(ProcessRunner.Command.of(ProcessRunner.CommandClass.UTILITY,
+            "bash", "-c", "for i in $(seq 1 1000); do echo line$i; done").maxOutputBytes(16));
+
+        assertThat(result.isSuccess()).isTrue();
+        assertThat(result.isTruncated()).isTrue();
+        assertThat(result.getStdout()).hasSize(16).endsWith("line999\nline1000\n".substring(1));
+    }
+
+    @Test
+    void interactiveOutputStaysBoundedWithoutExpect() throws Exception {
+        int lines = PromptDriver.MAX_OUTPUT_CHARS / 8;
+        int[] received = new int[1];
+        try (PromptDriver driver = runner.startInteractive(ProcessRunner.CommandClass.UTILITY,
+                new ProcessBuilder("bash", "-c", "for i in $(seq 1 " + lines + "); do echo line$i; done"),
+                Duration.ofSeconds(30), line -> received[0]++)) {
+            assertThat(driver.waitFor(Duration.ofSeconds(30))).isZero();
+
+            assertThat(received[0]).isEqualTo(lines);
+            assertThat(driver.getOutput()).hasSize(PromptDriver.MAX_OUTPUT_CHARS).endsWith("line" + lines + "\n");
+        }
+    }
+
+    @Test
+    void tailBufferWrapsAround() {
+        ProcessRunner.TailBuffer buffer = new ProcessRunner.TailBuffer(4);
+        buffer.write("abc".getBytes(StandardCharsets.US_ASCII), 3);
+        assertThat(buffer.toString(StandardCharsets.US_ASCII)).isEqualTo("abc");
+        buffer.write("def".getBytes(StandardCharsets.US_ASCII), 3);
+        assertThat(buffer.toString(StandardCharsets.US_ASCII)).isEqualTo("cdef");
+        buffer.write("0123456789".getBytes(StandardCharsets.US_ASCII), 10);
+        assertThat(buffer.toString(StandardCharsets.US_ASCII)).isEqualTo("6789");
+        assertThat(buffer.isTruncated()).isTrue();
+    }
+
+    @Test
+    void commandWaitsForFreeSlotWithinDeadline() throws Exception {
+        Path marker = root.resolve("started");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch submitted = new CountDownLatch(1);
+            Future<ProcessRunner.Result> slow = executor.submit(() -> {
+                submitted.countDown();
+                return runner.run(ProcessRunner.Command.of(ProcessRunner.CommandClass.UTILITY,
+                    "bash", "-c", "touch " + marker + "; sleep 1"));
+            });
+            submitted.await();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!Files.exists(marker) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(runner.running(ProcessRunner.CommandClass.UTILITY)).isEqualTo(1);
+
+            // лимит UTILITY = 1: вторая команда не дождется очереди
+            assertThatThrownBy(() -> runner.run(ProcessRunner.Command.of(ProcessRunner.CommandClass.UTILITY,
+                "true").timeout(Duration.ofMillis(100))))
+                .isInstanceOf(ProcessTimeoutException.class)
+                .hasMessageContaining("очереди");
+            // другой класс команд не ограничен этим лимитом
+            assertThat(runner.run(ProcessRunner.Command.of(ProcessRunner.CommandClass.SYSTEMCTL, "true"))
+                .isSuccess()).isTrue();
+
+            assertThat(slow.get(10, TimeUnit.SECONDS).isSuccess()).isTrue();
+            assertThat(runner.run(ProcessRunner.Command.of(ProcessRunner.CommandClass.UTILITY, "true"))
+                .isSuccess()).isTrue();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Процесс жив и не является зомби (в контейнере без init осиротевших зомби может быть некому собрать)
+     */
+    private static boolean isRunning(long pid) throws Exception {
+        Path stat = Path.of("/proc", Long.toString(pid), "stat");
+        if (!Files.exists(stat)) {
+            return false;
+        }
+        String content = new String(Files.readAllBytes(stat), StandardCharsets.US_ASCII);
+        return !content.substring(content.lastIndexOf(')') + 1).trim().startsWith("Z");
+    }
+}
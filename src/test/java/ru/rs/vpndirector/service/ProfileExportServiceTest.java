@@ -0,0 +1,124 @@
+package ru.rs.vpndirector.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Выгрузка конфигураций в ZIP: отбор действующих сертификатов, порядок записей и ход выгрузки
+ */
+class ProfileExportServiceTest {
+
+    private static final String DN = "/C=RU/ST=CFO/L=Moscow/O=rs/OU=Test/CN=%s/name=EasyRSA/emailAddress=my@email.ru";
+    private static final int CLIENTS = 40;
+
+    @TempDir
+    Path root;
+
+    private Path keysDir;
+    private ProfileExportService service;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        keysDir = Files.createDirectories(root.resolve("easy-rsa/keys"));
+        List<String> index = new ArrayList<>();
+        // Имена в index.txt идут не по алфавиту, чтобы проверить порядок в архиве
+        for (int i = CLIENTS - 1; i >= 0; i--) {
+            String name = String.format("client%02d", i);
+            index.add(line("V\t491231235959Z\t\t" + String.format("%02X", i + 1), name));
+            write(name + ".key", "KEY " + name + "\n");
+            write(name + ".crt", "CERT " + name + "\n");
+        }
+        index.add(line("R\t491231235959Z\t240301120000Z\t80", "revoked"));
+        index.add(line("V\t200101000000Z\t\t81", "expired"));
+        index.add(line("V\t491231235959Z\t\t82", "nofiles"));
+        write("revoked.key", "KEY\n");
+        write("revoked.crt", "CERT\n");
+        write("expired.key", "KEY\n");
+        write("expired.crt", "CERT\n");
+        Files.write(keysDir.resolve("index.txt"), index, StandardCharsets.UTF_8);
+        write("ca.crt", "CA\n");
+        Files.write(root.resolve("client_template.ovpn"), "<key>\n{key}</key>\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(root.resolve("client_template_tun.ovpn"),
+            "redirect-gateway\n<cert>\n{cert}</cert>\n".getBytes(StandardCharsets.US_ASCII));
+
+        OpenVpnProperties properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setEasyRsaPath(root.resolve("easy-rsa").toString());
+        properties.setExportWorkers(3);
+        CertificateRegistry registry = new CertificateRegistry(new EasyRsaStore(properties));
+        service = new ProfileExportService(properties, registry, new ClientProfileService(properties));
+    }
+
+    @Test
+    void writesValidProfilesInNameOrder() throws Exception {
+        List<String> names = service.selectNames("");
+        ProfileExportService.Progress progress = service.startProgress("all", names.size());
+
+        Map<String, String> entries = export(names, progress);
+
+        assertThat(names).hasSize(CLIENTS).doesNotContain("revoked", "expired", "nofiles");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            String name = String.format("client%02d", i);
+            expected.add(name + "/" + name + "_tun.ovpn");
+            expected.add(name + "/" + name + ".ovpn");
+        }
+        assertThat(entries.keySet()).containsExactlyElementsOf(expected);
+        assertThat(entries.get("client07/client07.ovpn")).isEqualTo("<key>\nKEY client07\n</key>\n");
+        assertThat(entries.get("client07/client07_tun.ovpn")).isEqualTo("redirect-gateway\n<cert>\nCERT client07\n</cert>\n");
+        assertThat(service.getProgress("all").getState()).isEqualTo(ProfileExportService.Progress.State.DONE);
+        assertThat(progress.getDone()).isEqualTo(CLIENTS);
+    }
+
+    @Test
+    void filtersByPrefixAndReportsFailures() throws Exception {
+        List<String> names = service.selectNames("client1");
+        assertThat(names).hasSize(10).allMatch(name -> name.startsWith("client1"));
+
+        Files.delete(keysDir.resolve("client13.key"));
+        ProfileExportService.Progress progress = service.startProgress(null, names.size());
+        Map<String, String> entries = export(names, progress);
+
+        assertThat(entries).doesNotContainKey("client13/client13.ovpn").containsKey("client14/client14.ovpn");
+        assertThat(entries.get("errors.txt")).contains("client13");
+        assertThat(progress.getDone()).isEqualTo(9);
+        assertThat(progress.getFailed()).isEqualTo(1);
+    }
+
+    private Map<String, String> export(List<String> names, ProfileExportService.Progress progress) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        service.exportToZip(names, out, progress);
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()), StandardCharsets.UTF_8)) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.put(entry.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    private void write(String fileName, String content) throws Exception {
+        Files.write(keysDir.resolve(fileName), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String line(String prefix, String name) {
+        return prefix + "\tunknown\t" + String.format(DN, name);
+    }
+}
@@ -0,0 +1,147 @@
+package ru.rs.vpndirector.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.rs.vpndirector.config.OpenVpnProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Группы маршрутов: файлы ccd пишутся только для затронутых клиентов, чужое содержимое сохраняется
+ */
+class RouteGroupServiceTest {
+
+    @TempDir
+    Path root;
+
+    private OpenVpnProperties properties;
+    private OpenVpnConfigFileService configFileService;
+    private SimpleMeterRegistry meterRegistry;
+    private Path ccd;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Files.write(root.resolve("server.conf"), "port 1194\nclient-config-dir clients-ccd\n".getBytes(StandardCharsets.UTF_8));
+        properties = new OpenVpnProperties();
+        properties.setOpenvpnRoot(root.toString());
+        properties.setConfigEncoding("UTF-8");
+        meterRegistry = new SimpleMeterRegistry();
+        configFileService = new OpenVpnConfigFileService(properties, new ProcessRunner(properties, meterRegistry));
+        ccd = root.resolve("clients-ccd");
+    }
+
+    @Test
+    void routesAreWrittenOnlyForGroupMembers() throws Exception {
+        RouteGroupService service = service();
+        service.createGroup("office");
+        service.createGroup("lab");
+        service.assign("office", "alice");
+        service.assign("office", "bob");
+        service.assign("lab", "carol");
+        Files.createDirectories(ccd);
+        Files.write(ccd.resolve("alice"), List.of("ifconfig-push 10.8.0.10 10.8.0.9"), StandardCharsets.UTF_8);
+        Files.write(ccd.resolve("carol"), List.of("iroute 192.168.5.0 255.255.255.0"), StandardCharsets.UTF_8);
+        FileTime carolBefore = Files.getLastModifiedTime(ccd.resolve("carol"));
+
+        assertThat(service.addRoute("office", "10.1.2.3/24", null, "Офис")).isTrue();
+        assertThat(service.addRoute("office", "10.1.2.0", "255.255.255.0", null)).isFalse();
+
+        assertThat(Files.readAllLines(ccd.resolve("alice"), StandardCharsets.UTF_8)).containsExactly(
+            "ifconfig-push 10.8.0.10 10.8.0.9",
+            RouteGroupService.BLOCK_BEGIN, "# office", "push \"route 10.1.2.0 255.255.255.0\"", RouteGroupService.BLOCK_END);
+        assertThat(Files.readAllLines(ccd.resolve("bob"), StandardCharsets.UTF_8))
+            .contains("push \"route 10.1.2.0 255.255.255.0\"");
+        assertThat(Files.readAllLines(ccd.resolve("carol"), StandardCharsets.UTF_8))
+            .containsExactly("iroute 192.168.5.0 255.255.255.0");
+        assertThat(Files.getLastModifiedTime(ccd.resolve("carol"))).isEqualTo(carolBefore);
+        assertThat(meterRegistry.get("vpndirector.ccd.writes").counter().count()).isEqualTo(2.0);
+    }
+
+    @Test
+    void sharedRouteIsPushedOnceAndRemovedWithLastGroup() throws Exception {
+        RouteGroupService service = service();
+        service.createGroup("office");
+        service.createGroup("admins");
+        service.addRoute("office", "10.1.0.0", "255.255.0.0", null);
+        service.addRoute("admins", "10.1.0.0", "255.255.0.0", null);
+        service.addRoute("admins", "172.16.0.1", "", null);
+        service.assign("office", "alice");
+        service.assign("admins", "alice");
+
+        assertThat(service.pushLines("alice")).containsExactly("# office", "push \"route 10.1.0.0 255.255.0.0\"",
+            "# admins", "push \"route 172.16.0.1 255.255.255.255\"");
+
+        service.unassign("office", "alice");
+        assertThat(Files.readAllLines(ccd.resolve("alice"), StandardCharsets.UTF_8))
+            .contains("push \"route 10.1.0.0 255.255.0.0\"");
+        service.deleteGroup("admins");
+        // в файле не осталось ничего, кроме блока групп - он удаляется
+        assertThat(ccd.resolve("alice")).doesNotExist();
+    }
+
+    @Test
+    void groupsSurviveRestartAndManualEditsAreApplied() throws Exception {
+        RouteGroupService service = service();
+        service.createGroup("office");
+        service.addRoute("office", "10.1.0.0", "255.255.255.0", "Офис");
+        service.assign("office", "alice");
+
+        Path groupsFile = root.resolve("route-groups.conf");
+        assertThat(Files.readAllLines(groupsFile, StandardCharsets.UTF_8))
+            .contains("[office]", "route 10.1.0.0 255.255.255.0 # Офис", "client alice");
+
+        Files.write(groupsFile, List.of("[office]", "route 10.1.0.0 255.255.255.0 # Офис", "client bob"),
+            StandardCharsets.UTF_8);
+        RouteGroupService restarted = service();
+
+        assertThat(restarted.getGroup("office").getRoutes()).extracting(RouteGroupService.Route::getComment)
+            .containsExactly("Офис");
+        assertThat(restarted.groupsOf("bob")).hasSize(1);
+        assertThat(ccd.resolve("bob")).exists();
+        assertThat(ccd.resolve("alice")).doesNotExist();
+    }
+
+    @Test
+    void rejectsInvalidInput() throws Exception {
+        RouteGroupService service = service();
+        service.createGroup("office");
+
+        assertThatThrownBy(() -> service.addRoute("office", "10.1.0.0", "255.0.255.0", null))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.addRoute("office", "10.1.0.300", "255.255.255.0", null))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.assign("office", "../server.conf"))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.createGroup("office"))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void enablesClientConfigDirWhenMissing() throws Exception {
+        Files.write(root.resolve("server.conf"), "port 1194\n".getBytes(StandardCharsets.UTF_8));
+        RouteGroupService service = service();
+        assertThat(service.isCcdEnabled()).isFalse();
+        assertThat(service.getCcdDir()).isEqualTo(root.resolve("ccd"));
+
+        assertThat(service.enableCcd()).isEqualTo("client-config-dir ccd");
+
+        assertThat(service.isCcdEnabled()).isTrue();
+        assertThat(root.resolve("ccd")).isDirectory();
+        assertThat(service.enableCcd()).isNull();
+    }
+
+    private RouteGroupService service() {
+        RouteGroupService service = new RouteGroupService(properties, configFileService, meterRegistry);
+        service.start();
+        return service;
+    }
+}
@@ -0,0 +1,72 @@
+package ru.rs.vpndirector.service;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Каталог easy-rsa с одноразовым CA для тестов: keys/ca.crt, keys/ca.key, serial, пустой index.txt и vars
+ */
+final class TestEasyRsa {
+
+    private TestEasyRsa() {
+    }
+
+    /**
+     * Создает каталог easy-rsa в указанном месте
+     *
+     * @return пара ключей CA
+     */
+    static KeyPair create(Path easyRsaDir) throws Exception {
+        Path keysDir = Files.createDirectories(easyRsaDir.resolve("keys"));
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair caKeyPair = generator.generateKeyPair();
+        X500Name caName = new X500Name("C=RU,ST=CFO,L=Moscow,O=rs,OU=Test,CN=Test CA");
+        Instant now = Instant.now();
+        X509Certificate ca = new JcaX509CertificateConverter().getCertificate(
+            new JcaX509v3CertificateBuilder(caName, BigInteger.ONE, Date.from(now), Date.from(now.plus(Duration.ofDays(30))),
+                caName, caKeyPair.getPublic())
+                .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeyPair.getPrivate())));
+        writePem(keysDir.resolve("ca.crt"), ca);
+        writePem(keysDir.resolve("ca.key"), caKeyPair);
+        Files.write(keysDir.resolve("serial"), "01\n".getBytes(StandardCharsets.US_ASCII));
+        Files.write(keysDir.resolve("index.txt"), new byte[0]);
+        Files.write(easyRsaDir.resolve("vars"), List.of(
+            "export EASY_RSA=\"`pwd`\"",
+            "export KEY_EXPIRE=365",
+            "export KEY_COUNTRY=\"RU\"",
+            "export KEY_PROVINCE=\"CFO\"",
+            "export KEY_CITY=\"Moscow\"",
+            "export KEY_ORG=\"rs\"",
+            "export KEY_EMAIL=\"my@email.ru\"",
+            "export KEY_OU=Test",
+            "export KEY_NAME=EasyRSA"), StandardCharsets.UTF_8);
+        return caKeyPair;
+    }
+
+    private static void writePem(Path file, Object object) throws Exception {
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII);
+             JcaPEMWriter pemWriter = new JcaPEMWriter(writer)) {
+            pemWriter.writeObject(object);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Архив классов AppCDS для быстрого старта (launch.sh с FAST_START=1).
+# Вызывается сборкой (mvn -P fast-start package) и самим launch.sh, если JVM не принимает архив:
+# он привязан к версии JDK и к расположению/времени изменения jar, поэтому после обновления
+# JDK или копирования на сервер его нужно пересоздать на месте.
+#
+# Использование: cds-archive.sh [каталог с vpndirector-app.jar и lib/]
+set -e
+dir=$(cd "${1:-$(dirname "$0")}" && pwd)
+java_bin=${JAVA:-java}
+app="vpndirector-app.jar"
+archive="vpndirector.jsa"
+
+cd "$dir"
+if [ ! -f "$app" ]; then
+    echo "Не найден $dir/$app (собирается mvn -P fast-start package)" >&2
+    exit 1
+fi
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+mkdir -p "$work/openvpn/easy-rsa/keys"
+
+# 1. Тренировочный запуск: приложение стартует на свободном порту против пустого каталога OpenVPN,
+#    выполняет типичные запросы и завершается, JVM записывает список загруженных классов
+echo "Тренировочный запуск для списка классов..."
+if ! OPENVPN_ROOT="$work/openvpn" OPENVPN_EASY_RSA_PATH="$work/openvpn/easy-rsa" \
+    SECURITY_USER_NAME=training SECURITY_USER_PASSWORD=training \
+    "$java_bin" -Xshare:off -XX:DumpLoadedClassList="$work/classes.lst" \
+    -Dvpndirector.cds-training=true -Dspring.profiles.active=fast \
+    -jar "$app" --server.port=0 --spring.config.location=classpath:/ > "$work/training.log" 2>&1; then
+    cat "$work/training.log" >&2
+    exit 1
+fi
+
+# 2. Архив по списку классов; путь к jar должен совпадать с тем, с которым запускает launch.sh
+"$java_bin" -Xshare:dump -XX:SharedClassListFile="$work/classes.lst" -XX:SharedArchiveFile="$archive.tmp" \
+    -cp "$app" > "$work/dump.log" 2>&1 || { cat "$work/dump.log" >&2; exit 1; }
+mv "$archive.tmp" "$archive"
+echo "Архив $dir/$archive: $(wc -l < "$work/classes.lst") классов"
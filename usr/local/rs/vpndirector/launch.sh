@@ -1,11 +1,32 @@
 #!/bin/sh
 path="/usr/local/rs"
 name="vpndirector"
+# FAST_START=1 - быстрый старт (профиль fast + AppCDS): нужен каталог из mvn -P fast-start package
+# (vpndirector-app.jar, lib/, cds-archive.sh); иначе запускается vpndirector.jar
+FAST_START=${FAST_START:-0}
 cd $path'/'$name
-/usr/bin/java \
--server \
--Duser.timezone=GMT -Duser.language=en \
--Xms128m -Xmx256m -Xss1m \
--Dspring.config.additional-location=file:${path}/${name}/ \
--jar ${path}/${name}/vpndirector.jar \
-1> ${path}/${name}/log/${name}.log 2>&1 &
+
+if [ "$FAST_START" = "1" ] && [ -f vpndirector-app.jar ]; then
+    # Архив привязан к JDK и к jar: если JVM его не принимает (обновили JDK или приложение) - пересоздаем
+    if ! /usr/bin/java -Xshare:on -XX:SharedArchiveFile=vpndirector.jsa -cp vpndirector-app.jar -version >/dev/null 2>&1; then
+        JAVA=/usr/bin/java sh ${path}/${name}/cds-archive.sh ${path}/${name} > ${path}/${name}/log/cds-archive.log 2>&1
+    fi
+    /usr/bin/java \
+    -server \
+    -Duser.timezone=GMT -Duser.language=en \
+    -Xms32m -Xmx256m -Xss512k \
+    -XX:+UseSerialGC -XX:TieredStopAtLevel=1 -XX:ReservedCodeCacheSize=32m -XX:MaxMetaspaceSize=128m \
+    -Xshare:auto -XX:SharedArchiveFile=vpndirector.jsa \
+    -Dspring.profiles.active=fast \
+    -Dspring.config.additional-location=file:${path}/${name}/ \
+    -jar vpndirector-app.jar \
+    1> ${path}/${name}/log/${name}.log 2>&1 &
+else
+    /usr/bin/java \
+    -server \
+    -Duser.timezone=GMT -Duser.language=en \
+    -Xms128m -Xmx256m -Xss1m \
+    -Dspring.config.additional-location=file:${path}/${name}/ \
+    -jar ${path}/${name}/vpndirector.jar \
+    1> ${path}/${name}/log/${name}.log 2>&1 &
+fi
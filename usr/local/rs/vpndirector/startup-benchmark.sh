@@ -0,0 +1,79 @@
+#!/bin/sh
+# Сравнение обычного и быстрого запуска: время до первого ответа (GET /login) и RSS процесса
+# сразу после него и после прогрева (вход и открытие основных страниц).
+# Приложение запускается против пустого каталога OpenVPN на свободном порту, нужен curl.
+#
+# Использование: startup-benchmark.sh [каталог с vpndirector.jar] [каталог fast-start] [повторов]
+# Из исходников: mvn -P fast-start package -DskipTests && sh usr/local/rs/vpndirector/startup-benchmark.sh target target/fast-start
+set -e
+jar_dir=$(cd "${1:-$(dirname "$0")}" && pwd)
+fast_dir=$(cd "${2:-$jar_dir}" && pwd)
+runs=${3:-3}
+java_bin=${JAVA:-java}
+port=${BENCHMARK_PORT:-18181}
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+mkdir -p "$work/openvpn/easy-rsa/keys"
+
+rss_kb() {
+    awk '/^VmRSS:/ {print $2}' "/proc/$1/status"
+}
+
+now_ms() {
+    echo $(($(date +%s%N) / 1000000))
+}
+
+# $1 - название, $2 - каталог запуска, остальное - аргументы java
+measure() {
+    label=$1
+    dir=$2
+    shift 2
+    total_start=0 total_rss=0 total_warm=0
+    i=0
+    while [ $i -lt "$runs" ]; do
+        i=$((i + 1))
+        started=$(now_ms)
+        (cd "$dir" && OPENVPN_ROOT="$work/openvpn" OPENVPN_EASY_RSA_PATH="$work/openvpn/easy-rsa" \
+            SECURITY_USER_NAME=bench SECURITY_USER_PASSWORD=bench SERVER_PORT=$port \
+            exec "$java_bin" "$@" > "$work/app.log" 2>&1) &
+        pid=$!
+        until [ "$(curl -s -o /dev/null -w '%{http_code}' "http://127.0.0.1:$port/login")" = "200" ]; do
+            if ! kill -0 $pid 2>/dev/null; then
+                cat "$work/app.log" >&2
+                exit 1
+            fi
+            sleep 0.05
+        done
+        first=$(($(now_ms) - started))
+        # Подпроцесс-оболочка заменен на java через exec, поэтому $pid - это JVM
+        rss=$(rss_kb $pid)
+
+        curl -s -c "$work/cookie" -o /dev/null -d 'username=bench&password=bench' "http://127.0.0.1:$port/login"
+        for page in / /certificates /connections /editor /restart; do
+            curl -s -b "$work/cookie" -o /dev/null "http://127.0.0.1:$port$page"
+        done
+        sleep 5
+        warm=$(rss_kb $pid)
+
+        kill $pid
+        wait $pid 2>/dev/null || true
+        printf '  %-8s #%d: первый ответ %6d мс, RSS %4d МБ, после прогрева %4d МБ\n' \
+            "$label" $i $first $((rss / 1024)) $((warm / 1024))
+        total_start=$((total_start + first))
+        total_rss=$((total_rss + rss))
+        total_warm=$((total_warm + warm))
+    done
+    printf '%-10s среднее: первый ответ %6d мс, RSS %4d МБ, после прогрева %4d МБ\n' \
+        "$label" $((total_start / runs)) $((total_rss / runs / 1024)) $((total_warm / runs / 1024))
+}
+
+measure default "$jar_dir" -Xms128m -Xmx256m -Xss1m -jar vpndirector.jar
+
+# Те же параметры, что в launch.sh с FAST_START=1
+if [ ! -f "$fast_dir/vpndirector.jsa" ]; then
+    JAVA=$java_bin sh "$(dirname "$0")/cds-archive.sh" "$fast_dir"
+fi
+measure fast "$fast_dir" -Xms32m -Xmx256m -Xss512k \
+    -XX:+UseSerialGC -XX:TieredStopAtLevel=1 -XX:ReservedCodeCacheSize=32m -XX:MaxMetaspaceSize=128m \
+    -Xshare:auto -XX:SharedArchiveFile=vpndirector.jsa -Dspring.profiles.active=fast -jar vpndirector-app.jar